@@ -0,0 +1,212 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* Plays the alarm sounds when the app is in the foreground.
+*
+* The bundled sounds are decoded once into a SoundPool when the plugin is initialized, so starting
+* playback is a single call that takes a few milliseconds and works in any state (there is no player
+* to reset or prepare). Several sounds can play at the same time (several clips alarming at once), up
+* to MAX_STREAMS after which the oldest one is stopped. The device default sounds (ringtone, alarm and
+* notification) cannot be loaded into a SoundPool and are played as Ringtones, which are also used for a
+* bundled sound until the SoundPool has finished decoding it.
+*
+* The time from the alarm trigger to playback being started is measured for every played sound.
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+import android.content.Context;
+import android.media.AudioAttributes;
+import android.media.AudioManager;
+import android.media.Ringtone;
+import android.media.RingtoneManager;
+import android.media.SoundPool;
+import android.net.Uri;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+public class AlarmAudioEngine
+{
+	// Maximum number of sounds playing at the same time
+	public final static int MAX_STREAMS = 8;
+
+	private final Context context;
+	private final SoundPool soundPool;
+	private final int[] soundIds;				// SoundPool sample per slot (0 if none)
+	private final boolean[] loaded;				// Guarded by this
+	private final Ringtone[] ringtones;			// Ringtone per slot (device default sounds and fallback)
+	private final int[] streamIds = new int[MAX_STREAMS];	// Recently started SoundPool streams (ring), guarded by this
+	private int nextStream = 0;
+
+	// Counters
+	private final AtomicLong plays = new AtomicLong(0);
+	private final AtomicLong failures = new AtomicLong(0);
+	private final AtomicLong totalLatency = new AtomicLong(0);	// Nanoseconds
+	private final AtomicLong maxLatency = new AtomicLong(0);	// Nanoseconds
+	private volatile long lastLatency = 0;				// Nanoseconds
+
+	/**
+	 * Creates an engine with a number of sound slots (see load).
+	*/
+	@SuppressWarnings("deprecation")
+	public AlarmAudioEngine(Context context, int slots)
+	{
+		this.context = context.getApplicationContext();
+		this.soundIds = new int[slots];
+		this.loaded = new boolean[slots];
+		this.ringtones = new Ringtone[slots];
+		if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.LOLLIPOP){
+			// Use the notification stream for playback so volume easily can be changed with the device's notification volume controller
+			soundPool = new SoundPool.Builder()
+			.setMaxStreams(MAX_STREAMS)
+			.setAudioAttributes(new AudioAttributes.Builder().setUsage(AudioAttributes.USAGE_NOTIFICATION).build())
+			.build();
+		}
+		else {
+			soundPool = new SoundPool(MAX_STREAMS, AudioManager.STREAM_NOTIFICATION, 0);
+		}
+		soundPool.setOnLoadCompleteListener(new SoundPool.OnLoadCompleteListener() {
+			@Override
+			public void onLoadComplete(SoundPool pool, int sampleId, int status) {
+				if (status != 0)
+					return;		// Keep playing the Ringtone fallback
+				synchronized (AlarmAudioEngine.this) {
+					for (int i = 0; i < soundIds.length; i++){
+						if (soundIds[i] == sampleId)
+							loaded[i] = true;
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Loads a sound into the slot. A sound bundled as a raw resource (resId not 0) is decoded, asynchronously,
+	 * into the SoundPool. The URI is played as a Ringtone (for example a device default sound).
+	*/
+	public void load(int slot, int resId, Uri uri)
+	{
+		ringtones[slot] = (uri != null) ? createRingtone(uri) : null;
+		if (resId != 0)
+			soundIds[slot] = soundPool.load(context, resId, 1);
+	}
+
+	/**
+	 * Starts playing the sound in the slot. The trigger time (System.nanoTime()) is when the alarm was received
+	 * and is used to measure the latency. Returns false if the sound could not be played.
+	*/
+	public boolean play(int slot, long triggerTime)
+	{
+		if (slot < 0 || slot >= soundIds.length){
+			failures.incrementAndGet();
+			return false;
+		}
+		boolean started = false;
+		synchronized (this) {
+			if (loaded[slot]){
+				final int streamId = soundPool.play(soundIds[slot], 1.0f, 1.0f, 1, 0, 1.0f);
+				if (streamId != 0){
+					streamIds[nextStream] = streamId;
+					nextStream = (nextStream + 1) % MAX_STREAMS;
+					started = true;
+				}
+			}
+		}
+		if (!started && ringtones[slot] != null){
+			try {
+				ringtones[slot].play();
+				started = true;
+			}
+			catch (Exception e) {
+				// Ignore, reported as a failure below
+			}
+		}
+		if (!started){
+			failures.incrementAndGet();
+			return false;
+		}
+		recordLatency(System.nanoTime() - triggerTime);
+		return true;
+	}
+
+	/**
+	 * Stops all sounds playing.
+	*/
+	public void stop()
+	{
+		synchronized (this) {
+			for (int i = 0; i < MAX_STREAMS; i++){
+				if (streamIds[i] != 0){
+					soundPool.stop(streamIds[i]);
+					streamIds[i] = 0;
+				}
+			}
+		}
+		for (Ringtone ringtone : ringtones){
+			if (ringtone != null && ringtone.isPlaying())
+				ringtone.stop();
+		}
+	}
+
+	public void release()
+	{
+		stop();
+		soundPool.release();
+	}
+
+	public long getPlays()
+	{
+		return plays.get();
+	}
+
+	public long getFailures()
+	{
+		return failures.get();
+	}
+
+	/**
+	 * Returns the trigger to playback latency in nanoseconds of the last played sound.
+	*/
+	public long getLastLatency()
+	{
+		return lastLatency;
+	}
+
+	public long getMaxLatency()
+	{
+		return maxLatency.get();
+	}
+
+	public long getAverageLatency()
+	{
+		final long count = plays.get();
+		return (count > 0) ? totalLatency.get() / count : 0;
+	}
+
+	private void recordLatency(long latency)
+	{
+		lastLatency = latency;
+		totalLatency.addAndGet(latency);
+		plays.incrementAndGet();
+		long max;
+		while (latency > (max = maxLatency.get())){
+			if (maxLatency.compareAndSet(max, latency))
+				break;
+		}
+	}
+
+	@SuppressWarnings("deprecation")
+	private Ringtone createRingtone(Uri uri)
+	{
+		final Ringtone ringtone = RingtoneManager.getRingtone(context, uri);
+		if (ringtone == null)
+			return null;
+		if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.LOLLIPOP)
+			ringtone.setAudioAttributes(new AudioAttributes.Builder().setUsage(AudioAttributes.USAGE_NOTIFICATION).build());
+		else
+			ringtone.setStreamType(AudioManager.STREAM_NOTIFICATION);
+		return ringtone;
+	}
+}
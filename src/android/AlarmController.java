@@ -0,0 +1,158 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* Decides how an alarm is signalled, and counts, logs and reports it.
+*
+* Receives the alert level writes the alarm filters have taken as alarms (or dropped) from the ImmediateAlertHandler.
+* In the background an alarm posts a notification, in the foreground it plays the alarm sound (and vibrates), as
+* set by the user's app settings. Every alarm is then counted (AlarmStatistics), logged if logging is on
+* (AlarmJournal) and published to the server callback (ServerEventDispatcher).
+*
+* The controller holds no Android types: the hardware is reached through an AlarmOutput, the settings through a
+* SettingsSource and the time through a WallClock, so the whole alarm path can be run on a plain JVM with a
+* FakeAlarmOutput, a FakeEventSink and a VirtualClock.
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+
+public class AlarmController implements ImmediateAlertHandler.AlarmListener
+{
+	/*
+	* Returns the current app settings (see AppSettingsStore).
+	*/
+	public interface SettingsSource
+	{
+		AppSettingsStore.Settings get();
+	}
+
+	/*
+	* Told about every alarm once it has been signalled (for example to update the ongoing notification).
+	*/
+	public interface Listener
+	{
+		void onAlarmHandled(int alertLevel, DeviceAlertTable.DeviceAlertState alertState, int outcome);
+	}
+
+	private final AlarmOutput output;
+	private final SettingsSource settings;
+	private final AlarmFilterPipeline alarmFilters;
+	private final ServerEventDispatcher events;
+	private final AlarmMetrics metrics;
+	private final WallClock clock;
+	private volatile boolean inBackground = false;
+	private volatile AlarmStatistics statistics = null;
+	private volatile AlarmJournal journal = null;
+	private volatile Listener listener = null;
+
+	public AlarmController(AlarmOutput output, SettingsSource settings, AlarmFilterPipeline alarmFilters, ServerEventDispatcher events,
+		AlarmMetrics metrics, WallClock clock)
+	{
+		this.output = output;
+		this.settings = settings;
+		this.alarmFilters = alarmFilters;
+		this.events = events;
+		this.metrics = metrics;
+		this.clock = clock;
+	}
+
+	/**
+	 * Sets if the app is in the background (alarms are notified) or in the foreground (alarms are played).
+	*/
+	public void setInBackground(boolean inBackground)
+	{
+		this.inBackground = inBackground;
+	}
+
+	public boolean isInBackground()
+	{
+		return inBackground;
+	}
+
+	/**
+	 * Sets the statistics the alarms and bounces are counted in (null for none).
+	*/
+	public void setStatistics(AlarmStatistics statistics)
+	{
+		this.statistics = statistics;
+	}
+
+	/**
+	 * Sets the journal the alarms are logged to (null for none).
+	*/
+	public void setJournal(AlarmJournal journal)
+	{
+		this.journal = journal;
+	}
+
+	public void setListener(Listener listener)
+	{
+		this.listener = listener;
+	}
+
+	@Override
+	public void onAlarm(int alertLevel, DeviceAlertTable.DeviceAlertState alertState, long triggerTime)
+	{
+		// Alarms with appropiate sound etc (the write has already passed the alarm filters, see AlarmFilterPipeline)
+
+		final AppSettingsStore.Settings current = settings.get();	// One consistent snapshot for the whole alarm
+		output.keepAwake();		// Keep the cpu running while the alarm is handled
+		int outcome = AlarmJournal.OUTCOME_SILENT;
+
+		if (inBackground && output.canNotify()){
+			// Show local notification only if the app is in the background and notifications are enabled for the app
+			output.stop();			// Added 2017-02-20
+			// Show local notification or update any on going one (no need to stop any sound playing since it will be replaced with the new sound)
+			output.notify(current.sound, current.vibration, alertLevel);
+			metrics.record(AlarmMetrics.STAGE_NOTIFICATION, triggerTime);
+			outcome = AlarmJournal.OUTCOME_NOTIFIED;
+		}
+		else if (!inBackground && current.sound != AlarmSound.SOUND_OFF){
+			// Play alarm sound if app is in the foreground and alarm sound is not off. The sounds are preloaded, so
+			// playback starts right away whatever was played before (alarms from several clips play at the same time)
+			if (output.play(current.sound, triggerTime)){
+				metrics.record(AlarmMetrics.STAGE_AUDIO, triggerTime);
+				if (current.vibration)
+					output.vibrate();
+				outcome = AlarmJournal.OUTCOME_PLAYED;
+			}
+			else
+				outcome = AlarmJournal.OUTCOME_FAILED;
+		}
+
+		// Count and log the alarm
+		final AlarmStatistics alarmStatistics = statistics;
+		if (alarmStatistics != null)
+			alarmStatistics.recordAlarm(alertState.getAddress(), clock.currentTimeMillis());
+		if (current.log)
+			log(alertState.getAddress(), alertLevel, outcome, triggerTime);
+
+		final Listener alarmListener = listener;
+		if (alarmListener != null)
+			alarmListener.onAlarmHandled(alertLevel, alertState, outcome);
+
+		// Notify user of the alarm
+		events.publish(ServerEvent.TYPE_WRITE_REQUEST, alertState.getAddress(), 0, alertLevel, triggerTime);
+	}
+
+	@Override
+	public void onSuppressed(int alertLevel, DeviceAlertTable.DeviceAlertState alertState, int stage, long triggerTime)
+	{
+		// Count the bounces and log the bounces, bursts etc. but not the connect-time and "No Alert" writes of the clips
+		final AlarmFilterPipeline.Stage filter = alarmFilters.getStage(stage);
+		final AlarmStatistics alarmStatistics = statistics;
+		if (filter == AlarmFilterPipeline.DEBOUNCE && alarmStatistics != null)
+			alarmStatistics.recordBounce(alertState.getAddress(), clock.currentTimeMillis());
+		if (filter != AlarmFilterPipeline.TOGGLE_DECODE && settings.get().log)
+			log(alertState.getAddress(), alertLevel, AlarmJournal.OUTCOME_SUPPRESSED, triggerTime);
+	}
+
+	private void log(String address, int alertLevel, int outcome, long triggerTime)
+	{
+		// Appends an alarm (or a suppressed write) to the alarm journal, no disk I/O on the alarm path
+		final AlarmJournal alarmJournal = journal;
+		if (alarmJournal != null)
+			alarmJournal.append(clock.currentTimeMillis(), address, alertLevel, outcome, (triggerTime != 0) ? System.nanoTime() - triggerTime : 0);
+	}
+}
@@ -0,0 +1,226 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* Decides which alert level writes from the clips are alarms.
+*
+* Every write runs through a chain of filter stages, each of which may drop it:
+*
+*   TOGGLE_DECODE    ignores the connect-time write(s) of a nRF8002 clip and, after its first alarm, takes every
+*                    write as an alarm (the clip sends "toggled" levels)
+*   LEVEL_THRESHOLD  drops alarms below a minimum alert level
+*   DEBOUNCE         drops writes arriving less than an interval after the previous write from the same clip
+*                    (loose contact between clip contacts and sensor)
+*   BURST_COLLAPSE   lets at most a number of alarms per time window through from the same clip
+*
+* The parameters of the stages (Config) are set for all clips and can be overridden per clip. The stages read
+* the time from a MonotonicClock, so the pipeline can be run under a simulated clock outside of Android.
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+public class AlarmFilterPipeline
+{
+	/*
+	* A filter stage. Called holding the monitor of the device's alert state.
+	*/
+	public interface Stage
+	{
+		// Returns true to pass the write on to the next stage, false to drop it
+		boolean accept(DeviceAlertTable.DeviceAlertState state, int alertLevel, long now, Config config);
+	}
+
+	/*
+	* Parameters of the filter stages (immutable).
+	*/
+	public final static class Config
+	{
+		// Defaults, the filtering done before the pipeline was introduced (one alarm per window if a burst window is set)
+		public final static Config DEFAULT = new Config(true, 0, 3000, 0, 1);
+
+		public final boolean toggleDecode;	// Ignore connect-time writes and take toggled levels as alarms
+		public final int minLevel;		// Minimum alert level of an alarm
+		public final long debounceInterval;	// Milliseconds of silence required since the previous write (0 = off)
+		public final long burstWindow;		// Length in milliseconds of a burst window (0 = off)
+		public final int burstMaxAlarms;	// Maximum number of alarms per burst window (at least 1 if the window is on)
+
+		public Config(boolean toggleDecode, int minLevel, long debounceInterval, long burstWindow, int burstMaxAlarms)
+		{
+			if (burstWindow > 0 && burstMaxAlarms < 1)
+				throw new IllegalArgumentException("A burst window must let at least one alarm through");
+			this.toggleDecode = toggleDecode;
+			this.minLevel = minLevel;
+			this.debounceInterval = debounceInterval;
+			this.burstWindow = burstWindow;
+			this.burstMaxAlarms = burstMaxAlarms;
+		}
+	}
+
+	public final static Stage TOGGLE_DECODE = new Stage() {
+		@Override
+		public boolean accept(DeviceAlertTable.DeviceAlertState state, int alertLevel, long now, Config config) {
+			if (!config.toggleDecode)
+				return true;
+			if (state.isInitialized()){
+				// When an Immediate Alert level is set to trigger on "activated" on the nRF8002, it sends
+				// "toggled" levels. That is, it sends "No Alert" on every second positive flank and the
+				// configured alert level on every other. So interpret every write as an alarm after the first alarm.
+				return true;
+			}
+			if (alertLevel != 0){
+				// The first alarm received after a nRF8002 module has connected to the GATT server or
+				// the alarm has been reseted by calling resetAlarm()
+				state.initialize();
+				return true;
+			}
+			// Ignore first value(s) received. When a nRF8002 module connects to the GATT server running
+			// Immediate Alert Service, it writes it's current alert level (sometimes twice).
+			return false;
+		}
+	};
+
+	public final static Stage LEVEL_THRESHOLD = new Stage() {
+		@Override
+		public boolean accept(DeviceAlertTable.DeviceAlertState state, int alertLevel, long now, Config config) {
+			return alertLevel >= config.minLevel;
+		}
+	};
+
+	public final static Stage DEBOUNCE = new Stage() {
+		@Override
+		public boolean accept(DeviceAlertTable.DeviceAlertState state, int alertLevel, long now, Config config) {
+			// Every write restarts the interval, so a bouncing contact only alarms once it has settled
+			long interval = now - state.markAlarmTime(now);
+			return config.debounceInterval <= 0 || interval >= config.debounceInterval;
+		}
+	};
+
+	public final static Stage BURST_COLLAPSE = new Stage() {
+		@Override
+		public boolean accept(DeviceAlertTable.DeviceAlertState state, int alertLevel, long now, Config config) {
+			if (config.burstWindow <= 0)
+				return true;
+			if (state.burstAlarms == 0 || now - state.burstStartTime >= config.burstWindow){
+				state.burstStartTime = now;
+				state.burstAlarms = 0;
+			}
+			if (state.burstAlarms >= config.burstMaxAlarms)
+				return false;
+			state.burstAlarms++;
+			return true;
+		}
+	};
+
+	// Default order of the stages
+	public final static Stage[] DEFAULT_STAGES = {TOGGLE_DECODE, LEVEL_THRESHOLD, DEBOUNCE, BURST_COLLAPSE};
+
+	private final Stage[] stages;
+	private final MonotonicClock clock;
+	private volatile Config defaultConfig = Config.DEFAULT;
+	private final ConcurrentHashMap<String, Config> deviceConfigs = new ConcurrentHashMap<String, Config>();
+
+	// Counters
+	private final AtomicLong accepted = new AtomicLong(0);
+	private final AtomicLong[] dropped;
+
+	public AlarmFilterPipeline(Stage[] stages, MonotonicClock clock)
+	{
+		this.stages = stages.clone();
+		this.clock = clock;
+		this.dropped = new AtomicLong[stages.length];
+		for (int i = 0; i < stages.length; i++){
+			dropped[i] = new AtomicLong(0);
+		}
+	}
+
+	/**
+	 * Runs an alert level write through the stages. Returns true if it is an alarm.
+	*/
+	public boolean accept(DeviceAlertTable.DeviceAlertState state, int alertLevel)
+	{
+		return evaluate(state, alertLevel) < 0;
+	}
+
+	/**
+	 * Runs an alert level write through the stages. Returns the index of the stage that dropped it, or -1 if
+	 * it is an alarm.
+	*/
+	public int evaluate(DeviceAlertTable.DeviceAlertState state, int alertLevel)
+	{
+		final Config config = getConfig(state.getAddress());
+		final long now = clock.now();
+		synchronized (state) {
+			for (int i = 0; i < stages.length; i++){
+				if (!stages[i].accept(state, alertLevel, now, config)){
+					dropped[i].incrementAndGet();
+					return i;
+				}
+			}
+		}
+		accepted.incrementAndGet();
+		return -1;
+	}
+
+	/**
+	 * Sets the parameters used for the clips without parameters of their own.
+	*/
+	public void setDefaultConfig(Config config)
+	{
+		defaultConfig = config;
+	}
+
+	public Config getDefaultConfig()
+	{
+		return defaultConfig;
+	}
+
+	/**
+	 * Sets the parameters of a clip (null to use the default parameters again).
+	*/
+	public void setDeviceConfig(String address, Config config)
+	{
+		if (config == null)
+			deviceConfigs.remove(address);
+		else
+			deviceConfigs.put(address, config);
+	}
+
+	/**
+	 * Returns the parameters used for a clip.
+	*/
+	public Config getConfig(String address)
+	{
+		final Config config = deviceConfigs.get(address);
+		return (config != null) ? config : defaultConfig;
+	}
+
+	public long getAccepted()
+	{
+		return accepted.get();
+	}
+
+	/**
+	 * Returns the number of writes dropped by the stage at the index.
+	*/
+	public long getDropped(int stage)
+	{
+		return dropped[stage].get();
+	}
+
+	public int getStageCount()
+	{
+		return stages.length;
+	}
+
+	/**
+	 * Returns the stage at the index.
+	*/
+	public Stage getStage(int index)
+	{
+		return stages[index];
+	}
+}
@@ -0,0 +1,728 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* Long-term alarm history.
+*
+* The alarms are first appended to the AlarmJournal (a memory-mapped ring, cheap enough for the alarm path). A
+* background thread moves the new journal records on into segment files every INGEST_INTERVAL:
+*
+*   <first sequence>.raw  the active segment, fixed-size records as in the journal, appended to
+*   <first sequence>.seg  a compacted segment, the records delta encoded and deflated in blocks of
+*                         COMPACT_BLOCK_RECORDS, followed by the segment's index
+*
+* The active segment is compacted once it holds SEGMENT_RECORDS records or its first record is older than
+* SEGMENT_SPAN. Compacted segments older than the retention time (or beyond MAX_SEGMENTS) are deleted.
+*
+* Every segment has an index held in memory (primitive arrays, a few hundred bytes per segment): its time span, the
+* sorted addresses of the clips in it and, per block of records, the first sequence number, the time span and a
+* 64-bit mask of the clips in the block (a one-hash bloom filter). A query skips the segments and blocks that cannot
+* hold matching records and only reads (and inflates) the blocks that can. The index of a compacted segment is read
+* from the end of its file when the store is opened, the index of the active segment is rebuilt from its records.
+*
+* Compacted segment layout (little-endian):
+*
+*   0       4     magic (MAGIC)
+*   4       4     format version (VERSION)
+*   8             the blocks (deflated)
+*   footer        first sequence (8), end sequence (8), min time (8), max time (8),
+*                 number of clips (4), clip addresses (8 each),
+*                 number of blocks (4), per block: first sequence (8), records (4), min time (8), max time (8),
+*                 clip mask (8), file offset (8), length (4)
+*   trailer       footer offset (8), magic (4)
+*
+* Block record (before deflating): sequence delta (varint), timestamp delta (zig-zag varint), index of the clip
+* in the segment's clip addresses (varint), latency (varint), alert level (byte), outcome (byte).
+*
+* The results are returned in pages: a query returns at most a page of records, oldest first, and the sequence
+* number to continue the query from. Records not yet moved into the segments are read from the journal.
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+public class AlarmHistoryStore
+{
+	// Time in milliseconds between moving the journal records into the segments
+	public final static long INGEST_INTERVAL = 60000;
+	// Default time in milliseconds alarms are kept (30 days)
+	public final static long DEFAULT_RETENTION = 30L * 24 * 60 * 60 * 1000;
+	// Records and time span (milliseconds) of a segment before it is compacted
+	public final static int SEGMENT_RECORDS = 4096;
+	public final static long SEGMENT_SPAN = 24L * 60 * 60 * 1000;
+	// Most compacted segments kept (about a million alarms)
+	public final static int MAX_SEGMENTS = 256;
+
+	private final static int RAW_RECORD_SIZE = 32;		// As AlarmJournal.RECORD_SIZE
+	private final static int RAW_BLOCK_RECORDS = 64;
+	private final static int COMPACT_BLOCK_RECORDS = 256;
+	private final static int INGEST_BATCH = 1024;		// Journal records read at a time
+	private final static int MAGIC = 0x48534153;		// "SASH"
+	private final static int VERSION = 1;
+	private final static int TRAILER_SIZE = 12;
+	private final static int MAX_ENCODED_RECORD = 42;	// Four 10-byte varints, level and outcome
+	private final static String RAW_SUFFIX = ".raw";
+	private final static String SEGMENT_SUFFIX = ".seg";
+	private final static String TEMP_SUFFIX = ".tmp";
+
+	/*
+	* A page of query results.
+	*/
+	public final static class Page
+	{
+		public final List<AlarmJournal.Entry> entries;		// Oldest first
+		public final long nextSequence;				// Sequence number to continue the query from, -1 if done
+
+		Page(List<AlarmJournal.Entry> entries, long nextSequence)
+		{
+			this.entries = entries;
+			this.nextSequence = nextSequence;
+		}
+	}
+
+	/*
+	* The in-memory index of a segment file.
+	*/
+	private final static class Segment
+	{
+		final File file;
+		final boolean compacted;
+		final long firstSequence;
+		long endSequence;			// Sequence number after the last record
+		int records = 0;
+		long minTime = Long.MAX_VALUE;
+		long maxTime = Long.MIN_VALUE;
+		long[] devices = new long[0];		// Sorted clip addresses
+		// Blocks
+		int blockCount = 0;
+		long[] blockFirstSequence = new long[4];
+		int[] blockRecords = new int[4];
+		long[] blockMinTime = new long[4];
+		long[] blockMaxTime = new long[4];
+		long[] blockDeviceMask = new long[4];
+		long[] blockOffset = new long[4];
+		int[] blockLength = new int[4];
+
+		Segment(File file, boolean compacted, long firstSequence)
+		{
+			this.file = file;
+			this.compacted = compacted;
+			this.firstSequence = firstSequence;
+			this.endSequence = firstSequence;
+		}
+
+		void addBlock(long firstSequence, long offset)
+		{
+			if (blockCount == blockFirstSequence.length){
+				final int size = blockCount * 2;
+				blockFirstSequence = Arrays.copyOf(blockFirstSequence, size);
+				blockRecords = Arrays.copyOf(blockRecords, size);
+				blockMinTime = Arrays.copyOf(blockMinTime, size);
+				blockMaxTime = Arrays.copyOf(blockMaxTime, size);
+				blockDeviceMask = Arrays.copyOf(blockDeviceMask, size);
+				blockOffset = Arrays.copyOf(blockOffset, size);
+				blockLength = Arrays.copyOf(blockLength, size);
+			}
+			blockFirstSequence[blockCount] = firstSequence;
+			blockRecords[blockCount] = 0;
+			blockMinTime[blockCount] = Long.MAX_VALUE;
+			blockMaxTime[blockCount] = Long.MIN_VALUE;
+			blockDeviceMask[blockCount] = 0;
+			blockOffset[blockCount] = offset;
+			blockLength[blockCount] = 0;
+			blockCount++;
+		}
+
+		// Adds a record to the index of the last block
+		void index(long sequence, long timestamp, long device, int length)
+		{
+			final int block = blockCount - 1;
+			blockRecords[block]++;
+			blockLength[block] += length;
+			blockMinTime[block] = Math.min(blockMinTime[block], timestamp);
+			blockMaxTime[block] = Math.max(blockMaxTime[block], timestamp);
+			blockDeviceMask[block] |= deviceBit(device);
+			records++;
+			endSequence = sequence + 1;
+			minTime = Math.min(minTime, timestamp);
+			maxTime = Math.max(maxTime, timestamp);
+			if (Arrays.binarySearch(devices, device) < 0){
+				devices = Arrays.copyOf(devices, devices.length + 1);
+				devices[devices.length - 1] = device;
+				Arrays.sort(devices);
+			}
+		}
+
+		long blockEndSequence(int block)
+		{
+			return (block + 1 < blockCount) ? blockFirstSequence[block + 1] : endSequence;
+		}
+
+		boolean mayContain(long from, long to, long device, boolean anyDevice)
+		{
+			return records > 0 && maxTime >= from && minTime <= to && (anyDevice || Arrays.binarySearch(devices, device) >= 0);
+		}
+	}
+
+	/*
+	* The records of a block read back.
+	*/
+	private final static class Block
+	{
+		int count = 0;
+		final long[] sequences = new long[COMPACT_BLOCK_RECORDS];
+		final long[] timestamps = new long[COMPACT_BLOCK_RECORDS];
+		final long[] devices = new long[COMPACT_BLOCK_RECORDS];
+		final int[] latencies = new int[COMPACT_BLOCK_RECORDS];
+		final byte[] levels = new byte[COMPACT_BLOCK_RECORDS];
+		final byte[] outcomes = new byte[COMPACT_BLOCK_RECORDS];
+	}
+
+	private final File directory;
+	private final AlarmJournal journal;
+	private final ArrayList<Segment> segments = new ArrayList<Segment>();	// Ordered by sequence number, guarded by this
+	private Segment active = null;			// The raw segment appended to (last in segments)
+	private long ingestedSequence = 0;		// Journal records before this sequence number are in the segments
+	private volatile long retention = DEFAULT_RETENTION;
+	private final ScheduledExecutorService worker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "AlarmHistory");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		}
+	});
+
+	private AlarmHistoryStore(File directory, AlarmJournal journal)
+	{
+		this.directory = directory;
+		this.journal = journal;
+	}
+
+	/**
+	 * Opens the segments in the directory (creating it) and starts moving the journal records into them.
+	*/
+	public static AlarmHistoryStore open(File directory, AlarmJournal journal) throws IOException
+	{
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Could not create " + directory);
+		final AlarmHistoryStore store = new AlarmHistoryStore(directory, journal);
+		store.load();
+		store.worker.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				store.maintain();
+			}
+		}, INGEST_INTERVAL, INGEST_INTERVAL, TimeUnit.MILLISECONDS);
+		return store;
+	}
+
+	/**
+	 * Sets the time in milliseconds alarms are kept.
+	*/
+	public void setRetention(long retention)
+	{
+		this.retention = retention;
+	}
+
+	/**
+	 * Returns at most pageSize records from the sequence number on (0 for the oldest) with a timestamp in
+	 * [from, to] of the device (all devices if null), oldest first.
+	*/
+	public synchronized Page query(long from, long to, String device, long sequence, int pageSize) throws IOException
+	{
+		final boolean anyDevice = (device == null);
+		final long address = anyDevice ? 0 : BinaryEventEncoder.parseAddress(device);
+		final ArrayList<AlarmJournal.Entry> entries = new ArrayList<AlarmJournal.Entry>();
+		Block block = null;
+		for (Segment segment : segments){
+			if (segment.endSequence <= sequence)
+				continue;
+			if (!segment.mayContain(from, to, address, anyDevice)){
+				sequence = segment.endSequence;
+				continue;
+			}
+			for (int i = 0; i < segment.blockCount; i++){
+				final long blockEnd = segment.blockEndSequence(i);
+				if (blockEnd <= sequence)
+					continue;
+				if (segment.blockMaxTime[i] < from || segment.blockMinTime[i] > to ||
+					(!anyDevice && (segment.blockDeviceMask[i] & deviceBit(address)) == 0)){
+					sequence = blockEnd;
+					continue;
+				}
+				if (block == null)
+					block = new Block();
+				readBlock(segment, i, block);
+				for (int r = 0; r < block.count; r++){
+					if (block.sequences[r] < sequence)
+						continue;
+					sequence = block.sequences[r] + 1;
+					if (block.timestamps[r] >= from && block.timestamps[r] <= to && (anyDevice || block.devices[r] == address)){
+						entries.add(new AlarmJournal.Entry(block.sequences[r], block.timestamps[r], BinaryEventEncoder.formatAddress(block.devices[r]),
+							block.levels[r], block.outcomes[r], block.latencies[r]));
+						if (entries.size() >= pageSize)
+							return new Page(entries, sequence);
+					}
+				}
+				sequence = blockEnd;
+			}
+		}
+		// The newest records are still only in the journal
+		sequence = journal.scan(Math.max(sequence, ingestedSequence), from, to, device, pageSize, entries);
+		return new Page(entries, (sequence < journal.getNextSequence()) ? sequence : -1);
+	}
+
+	/**
+	 * Returns the number of segment files.
+	*/
+	public synchronized int getSegmentCount()
+	{
+		return segments.size();
+	}
+
+	/**
+	 * Moves the journal records into the segments right away and stops the background thread.
+	*/
+	public void close()
+	{
+		worker.shutdownNow();
+		try {
+			worker.awaitTermination(1, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			try {
+				ingest();
+			}
+			catch (IOException e) {
+				// The records are still in the journal, moved on the next start
+			}
+		}
+	}
+
+	private void maintain()
+	{
+		// Runs on the background thread
+		synchronized (this) {
+			try {
+				ingest();
+				if (active != null && (active.records >= SEGMENT_RECORDS || System.currentTimeMillis() - active.minTime >= SEGMENT_SPAN))
+					compact(active);
+				applyRetention();
+			}
+			catch (IOException e) {
+				// Tried again next time, the records are kept in the journal until then (as long as it does not wrap)
+			}
+		}
+	}
+
+	private void load() throws IOException
+	{
+		final File[] files = directory.listFiles();
+		if (files != null){
+			for (File file : files){
+				final String name = file.getName();
+				try {
+					if (name.endsWith(SEGMENT_SUFFIX))
+						segments.add(loadCompacted(file));
+				}
+				catch (Exception e) {
+					file.delete();		// Corrupt
+				}
+			}
+			for (File file : files){
+				final String name = file.getName();
+				if (name.endsWith(TEMP_SUFFIX)){
+					file.delete();		// Compaction interrupted
+				}
+				else if (name.endsWith(RAW_SUFFIX)){
+					final long firstSequence = parseSequence(name);
+					if (firstSequence < 0 || findSegment(firstSequence) != null)
+						file.delete();		// Already compacted
+					else
+						segments.add(loadRaw(file, firstSequence));
+				}
+			}
+		}
+		Collections.sort(segments, new Comparator<Segment>() {
+			@Override
+			public int compare(Segment a, Segment b) {
+				return (a.firstSequence < b.firstSequence) ? -1 : (a.firstSequence == b.firstSequence ? 0 : 1);
+			}
+		});
+		for (Segment segment : segments){
+			ingestedSequence = Math.max(ingestedSequence, segment.endSequence);
+		}
+		// Only the newest segment is appended to, any older raw segment is compacted
+		if (!segments.isEmpty()){
+			final Segment last = segments.get(segments.size() - 1);
+			for (Segment segment : new ArrayList<Segment>(segments)){
+				if (!segment.compacted && segment != last)
+					compact(segment);
+			}
+			if (!last.compacted)
+				active = last;
+		}
+		// The journal may have been started over, its new records must follow the ones in the segments
+		journal.advanceTo(ingestedSequence);
+	}
+
+	private void ingest() throws IOException
+	{
+		final ArrayList<AlarmJournal.Entry> entries = new ArrayList<AlarmJournal.Entry>(INGEST_BATCH);
+		while (true){
+			entries.clear();
+			final long next = journal.scan(ingestedSequence, Long.MIN_VALUE, Long.MAX_VALUE, null, INGEST_BATCH, entries);
+			if (!entries.isEmpty())
+				append(entries);
+			ingestedSequence = next;
+			if (entries.size() < INGEST_BATCH)
+				break;
+		}
+	}
+
+	private void append(List<AlarmJournal.Entry> entries) throws IOException
+	{
+		if (active == null){
+			active = new Segment(new File(directory, entries.get(0).sequence + RAW_SUFFIX), false, entries.get(0).sequence);
+			segments.add(active);
+		}
+		final ByteBuffer buffer = ByteBuffer.allocate(entries.size() * RAW_RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		for (AlarmJournal.Entry entry : entries){
+			buffer.putLong(entry.sequence);
+			buffer.putLong(entry.timestamp);
+			buffer.putLong(BinaryEventEncoder.parseAddress(entry.device));
+			buffer.putInt(entry.latency);
+			buffer.put((byte) entry.level);
+			buffer.put((byte) entry.outcome);
+			buffer.putShort((short) 0);
+		}
+		final FileOutputStream output = new FileOutputStream(active.file, true);
+		try {
+			output.write(buffer.array());
+		}
+		finally {
+			output.close();
+		}
+		for (AlarmJournal.Entry entry : entries){
+			indexRaw(active, entry.sequence, entry.timestamp, BinaryEventEncoder.parseAddress(entry.device));
+		}
+	}
+
+	private static void indexRaw(Segment segment, long sequence, long timestamp, long device)
+	{
+		if (segment.blockCount == 0 || segment.blockRecords[segment.blockCount - 1] == RAW_BLOCK_RECORDS)
+			segment.addBlock(sequence, (long) segment.records * RAW_RECORD_SIZE);
+		segment.index(sequence, timestamp, device, RAW_RECORD_SIZE);
+	}
+
+	private Segment loadRaw(File file, long firstSequence) throws IOException
+	{
+		// Rebuilds the index of a raw segment from its records (cut off at a partly written record)
+		final Segment segment = new Segment(file, false, firstSequence);
+		final RandomAccessFile input = new RandomAccessFile(file, "rw");
+		try {
+			final int records = (int)(input.length() / RAW_RECORD_SIZE);
+			final byte[] bytes = new byte[records * RAW_RECORD_SIZE];
+			input.readFully(bytes);
+			final ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+			for (int i = 0; i < records; i++){
+				final int offset = i * RAW_RECORD_SIZE;
+				indexRaw(segment, buffer.getLong(offset), buffer.getLong(offset + 8), buffer.getLong(offset + 16));
+			}
+			input.setLength((long) records * RAW_RECORD_SIZE);
+		}
+		finally {
+			input.close();
+		}
+		return segment;
+	}
+
+	private Segment loadCompacted(File file) throws IOException
+	{
+		// Reads the index of a compacted segment from the end of its file
+		final RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			final long length = input.length();
+			final ByteBuffer trailer = read(input, length - TRAILER_SIZE, TRAILER_SIZE);
+			final long footerOffset = trailer.getLong();
+			if (trailer.getInt() != MAGIC || footerOffset < 8 || footerOffset > length - TRAILER_SIZE)
+				throw new IOException("Not a segment");
+			final ByteBuffer footer = read(input, footerOffset, (int)(length - TRAILER_SIZE - footerOffset));
+			final Segment segment = new Segment(file, true, footer.getLong());
+			segment.endSequence = footer.getLong();
+			segment.minTime = footer.getLong();
+			segment.maxTime = footer.getLong();
+			segment.devices = new long[footer.getInt()];
+			for (int i = 0; i < segment.devices.length; i++){
+				segment.devices[i] = footer.getLong();
+			}
+			final int blocks = footer.getInt();
+			for (int i = 0; i < blocks; i++){
+				segment.addBlock(footer.getLong(), 0);
+				segment.blockRecords[i] = footer.getInt();
+				segment.blockMinTime[i] = footer.getLong();
+				segment.blockMaxTime[i] = footer.getLong();
+				segment.blockDeviceMask[i] = footer.getLong();
+				segment.blockOffset[i] = footer.getLong();
+				segment.blockLength[i] = footer.getInt();
+				segment.records += segment.blockRecords[i];
+			}
+			return segment;
+		}
+		finally {
+			input.close();
+		}
+	}
+
+	private void compact(Segment raw) throws IOException
+	{
+		// Rewrites a raw segment as a compacted one (written to a temporary file first, so an interrupted
+		// compaction leaves the raw segment in place)
+		final Block records = new Block();
+		final Segment segment = new Segment(new File(directory, raw.firstSequence + SEGMENT_SUFFIX), true, raw.firstSequence);
+		segment.devices = raw.devices;
+		final File temp = new File(directory, raw.firstSequence + TEMP_SUFFIX);
+		final FileOutputStream output = new FileOutputStream(temp);
+		final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+		try {
+			final ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC).putInt(VERSION);
+			output.write(header.array());
+			long offset = 8;
+			final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+			final byte[] deflated = new byte[8192];
+			final RandomAccessFile input = new RandomAccessFile(raw.file, "r");
+			try {
+				for (int first = 0; first < raw.records; first += COMPACT_BLOCK_RECORDS){
+					readRaw(input, first, Math.min(COMPACT_BLOCK_RECORDS, raw.records - first), records);
+					segment.addBlock(records.sequences[0], offset);
+					for (int r = 0; r < records.count; r++){
+						segment.index(records.sequences[r], records.timestamps[r], records.devices[r], 0);
+					}
+					// The deltas of the first record are relative to the first sequence number and time of the block
+					encoded.reset();
+					long previousSequence = records.sequences[0];
+					long previousTime = segment.blockMinTime[segment.blockCount - 1];
+					for (int r = 0; r < records.count; r++){
+						writeVarLong(encoded, records.sequences[r] - previousSequence);
+						writeVarLong(encoded, zigZag(records.timestamps[r] - previousTime));
+						writeVarLong(encoded, Arrays.binarySearch(segment.devices, records.devices[r]));
+						writeVarLong(encoded, records.latencies[r]);
+						encoded.write(records.levels[r]);
+						encoded.write(records.outcomes[r]);
+						previousSequence = records.sequences[r];
+						previousTime = records.timestamps[r];
+					}
+					deflater.reset();
+					deflater.setInput(encoded.toByteArray());
+					deflater.finish();
+					int length = 0;
+					while (!deflater.finished()){
+						final int n = deflater.deflate(deflated);
+						output.write(deflated, 0, n);
+						length += n;
+					}
+					segment.blockLength[segment.blockCount - 1] = length;
+					offset += length;
+				}
+			}
+			finally {
+				input.close();
+			}
+			output.write(encodeFooter(segment, offset));
+			output.getFD().sync();
+		}
+		finally {
+			deflater.end();
+			output.close();
+		}
+		if (!temp.renameTo(segment.file)){
+			temp.delete();
+			throw new IOException("Could not rename " + temp);
+		}
+		raw.file.delete();
+		segments.set(segments.indexOf(raw), segment);
+		if (active == raw)
+			active = null;
+	}
+
+	private static byte[] encodeFooter(Segment segment, long footerOffset)
+	{
+		final ByteBuffer footer = ByteBuffer.allocate(40 + segment.devices.length * 8 + segment.blockCount * 48 + TRAILER_SIZE)
+			.order(ByteOrder.LITTLE_ENDIAN);
+		footer.putLong(segment.firstSequence).putLong(segment.endSequence).putLong(segment.minTime).putLong(segment.maxTime);
+		footer.putInt(segment.devices.length);
+		for (long device : segment.devices){
+			footer.putLong(device);
+		}
+		footer.putInt(segment.blockCount);
+		for (int i = 0; i < segment.blockCount; i++){
+			footer.putLong(segment.blockFirstSequence[i]).putInt(segment.blockRecords[i]).putLong(segment.blockMinTime[i])
+				.putLong(segment.blockMaxTime[i]).putLong(segment.blockDeviceMask[i]).putLong(segment.blockOffset[i])
+				.putInt(segment.blockLength[i]);
+		}
+		footer.putLong(footerOffset).putInt(MAGIC);
+		return footer.array();
+	}
+
+	private void applyRetention()
+	{
+		// Deletes the compacted segments with only expired records, and the oldest ones beyond MAX_SEGMENTS
+		final long oldest = System.currentTimeMillis() - retention;
+		while (!segments.isEmpty()){
+			final Segment segment = segments.get(0);
+			if (!segment.compacted || (segment.maxTime >= oldest && segments.size() <= MAX_SEGMENTS))
+				break;
+			segment.file.delete();
+			segments.remove(0);
+		}
+	}
+
+	private void readBlock(Segment segment, int index, Block block) throws IOException
+	{
+		final RandomAccessFile input = new RandomAccessFile(segment.file, "r");
+		try {
+			if (!segment.compacted){
+				final int first = (int)(segment.blockOffset[index] / RAW_RECORD_SIZE);
+				readRaw(input, first, segment.blockRecords[index], block);
+				return;
+			}
+			final ByteBuffer deflated = read(input, segment.blockOffset[index], segment.blockLength[index]);
+			final Inflater inflater = new Inflater();
+			final byte[] encoded = new byte[segment.blockRecords[index] * MAX_ENCODED_RECORD];
+			int length;
+			try {
+				inflater.setInput(deflated.array());
+				length = inflater.inflate(encoded);
+			}
+			catch (DataFormatException e) {
+				throw new IOException("Corrupt block in " + segment.file);
+			}
+			finally {
+				inflater.end();
+			}
+			final int[] position = {0};
+			long sequence = segment.blockFirstSequence[index];
+			long timestamp = segment.blockMinTime[index];
+			block.count = 0;
+			for (int r = 0; r < segment.blockRecords[index] && position[0] < length; r++){
+				sequence += readVarLong(encoded, position);
+				timestamp += unZigZag(readVarLong(encoded, position));
+				block.count++;
+				block.sequences[r] = sequence;
+				block.timestamps[r] = timestamp;
+				block.devices[r] = segment.devices[(int) readVarLong(encoded, position)];
+				block.latencies[r] = (int) readVarLong(encoded, position);
+				block.levels[r] = encoded[position[0]++];
+				block.outcomes[r] = encoded[position[0]++];
+			}
+		}
+		finally {
+			input.close();
+		}
+	}
+
+	private static void readRaw(RandomAccessFile input, int first, int count, Block block) throws IOException
+	{
+		final ByteBuffer buffer = read(input, (long) first * RAW_RECORD_SIZE, count * RAW_RECORD_SIZE);
+		block.count = count;
+		for (int r = 0; r < count; r++){
+			block.sequences[r] = buffer.getLong();
+			block.timestamps[r] = buffer.getLong();
+			block.devices[r] = buffer.getLong();
+			block.latencies[r] = buffer.getInt();
+			block.levels[r] = buffer.get();
+			block.outcomes[r] = buffer.get();
+			buffer.getShort();
+		}
+	}
+
+	private static ByteBuffer read(RandomAccessFile input, long offset, int length) throws IOException
+	{
+		final byte[] bytes = new byte[length];
+		input.seek(offset);
+		input.readFully(bytes);
+		return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private Segment findSegment(long firstSequence)
+	{
+		for (Segment segment : segments){
+			if (segment.firstSequence == firstSequence)
+				return segment;
+		}
+		return null;
+	}
+
+	private static long parseSequence(String name)
+	{
+		try {
+			return Long.parseLong(name.substring(0, name.indexOf('.')));
+		}
+		catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static long deviceBit(long device)
+	{
+		// One bit of the 64-bit clip mask of a block
+		final long hash = device * 0x9e3779b97f4a7c15L;
+		return 1L << (hash >>> 58);
+	}
+
+	private static void writeVarLong(ByteArrayOutputStream output, long value)
+	{
+		while ((value & ~0x7fL) != 0){
+			output.write((int)((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		output.write((int) value);
+	}
+
+	private static long readVarLong(byte[] input, int[] position)
+	{
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7){
+			final byte b = input[position[0]++];
+			value |= (long)(b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+				break;
+		}
+		return value;
+	}
+
+	private static long zigZag(long value)
+	{
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unZigZag(long value)
+	{
+		return (value >>> 1) ^ -(value & 1);
+	}
+}
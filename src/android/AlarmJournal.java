@@ -0,0 +1,223 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* Alarm history log.
+*
+* Every alarm (and every write suppressed by the alarm filters) is appended as a fixed-size record to a ring file,
+* memory-mapped once when the journal is opened. Appending writes the record straight into the mapped pages (no
+* system call, no fsync and no allocation), the kernel writes the pages back to the file, so the log survives the
+* app being restarted or killed. Once the ring is full the oldest records are overwritten.
+*
+* Every record gets the next sequence number, which is also its position in the alarm history: the journal is the
+* write-ahead part of the history, the records are moved on into the indexed segment files by AlarmHistoryStore.
+*
+* File layout (little-endian):
+*
+*   header (HEADER_SIZE bytes)
+*   0       4     magic (MAGIC)
+*   4       4     format version (VERSION)
+*   8       4     capacity (number of records)
+*   16      8     sequence number of the next record
+*
+*   record (RECORD_SIZE bytes), record n is stored in slot n % capacity
+*   0       8     sequence number (tells a valid record from an old or never written one)
+*   8       8     timestamp, wall clock time in milliseconds
+*   16      8     device address (48 bits, see BinaryEventEncoder.parseAddress)
+*   24      4     latency in microseconds from the write being received to the outcome
+*   28      1     alert level
+*   29      1     outcome (OUTCOME_*)
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+
+public class AlarmJournal
+{
+	// Outcomes of an alarm
+	public final static int OUTCOME_PLAYED = 0;		// Sound started (app in the foreground)
+	public final static int OUTCOME_NOTIFIED = 1;		// Notification posted (app in the background)
+	public final static int OUTCOME_SILENT = 2;		// Sound off or notifications disabled
+	public final static int OUTCOME_FAILED = 3;		// Sound could not be played
+	public final static int OUTCOME_SUPPRESSED = 4;		// Dropped by the alarm filters (bounce, burst etc.)
+	private final static String[] OUTCOME_NAMES = {"played", "notified", "silent", "failed", "suppressed"};
+
+	// Default number of records kept (512 kB file)
+	public final static int DEFAULT_CAPACITY = 16384;
+	public final static int RECORD_SIZE = 32;
+	private final static int HEADER_SIZE = 32;
+	private final static int MAGIC = 0x4a4c4153;		// "SALJ"
+	private final static int VERSION = 1;
+	private final static int HEADER_SEQUENCE = 16;
+
+	/*
+	* A record read back from the journal.
+	*/
+	public final static class Entry
+	{
+		public final long sequence;
+		public final long timestamp;
+		public final String device;
+		public final int level;
+		public final int outcome;
+		public final int latency;
+
+		Entry(long sequence, long timestamp, String device, int level, int outcome, int latency)
+		{
+			this.sequence = sequence;
+			this.timestamp = timestamp;
+			this.device = device;
+			this.level = level;
+			this.outcome = outcome;
+			this.latency = latency;
+		}
+
+		public String getOutcomeName()
+		{
+			return getOutcomeName(outcome);
+		}
+
+		public static String getOutcomeName(int outcome)
+		{
+			return (outcome >= 0 && outcome < OUTCOME_NAMES.length) ? OUTCOME_NAMES[outcome] : "unknown";
+		}
+	}
+
+	private final RandomAccessFile file;
+	private final MappedByteBuffer buffer;
+	private final int capacity;
+	private long nextSequence;		// Guarded by this
+
+	private AlarmJournal(RandomAccessFile file, MappedByteBuffer buffer, int capacity, long nextSequence)
+	{
+		this.file = file;
+		this.buffer = buffer;
+		this.capacity = capacity;
+		this.nextSequence = nextSequence;
+	}
+
+	/**
+	 * Opens the journal file, creating it (or starting over if it has another format or capacity).
+	*/
+	public static AlarmJournal open(File path, int capacity) throws IOException
+	{
+		final RandomAccessFile file = new RandomAccessFile(path, "rw");
+		try {
+			final long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+			final boolean valid = file.length() == size;
+			if (!valid)
+				file.setLength(0);	// Zeroes the records
+			file.setLength(size);
+			final MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			long nextSequence = 0;
+			if (valid && buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION && buffer.getInt(8) == capacity){
+				nextSequence = buffer.getLong(HEADER_SEQUENCE);
+			}
+			else {
+				buffer.putInt(0, MAGIC);
+				buffer.putInt(4, VERSION);
+				buffer.putInt(8, capacity);
+				buffer.putLong(HEADER_SEQUENCE, 0);
+			}
+			return new AlarmJournal(file, buffer, capacity, nextSequence);
+		}
+		catch (IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Appends a record. Does not allocate or block on I/O.
+	*/
+	public synchronized void append(long timestamp, String device, int level, int outcome, long latencyNanos)
+	{
+		final long sequence = nextSequence;
+		final int offset = HEADER_SIZE + (int)(sequence % capacity) * RECORD_SIZE;
+		buffer.putLong(offset, -1);		// Invalid while being written
+		buffer.putLong(offset + 8, timestamp);
+		buffer.putLong(offset + 16, BinaryEventEncoder.parseAddress(device));
+		buffer.putInt(offset + 24, (int) Math.min(Integer.MAX_VALUE, Math.max(0, latencyNanos / 1000)));
+		buffer.put(offset + 28, (byte) level);
+		buffer.put(offset + 29, (byte) outcome);
+		buffer.putLong(offset, sequence);
+		nextSequence = sequence + 1;
+		buffer.putLong(HEADER_SEQUENCE, nextSequence);
+	}
+
+	/**
+	 * Adds the records from the sequence number on with a timestamp in [from, to] of the device (all devices if
+	 * null) to the entries, oldest first, until the entries hold limit records. Returns the sequence number to
+	 * continue from (the next sequence number of the journal if all records have been read).
+	*/
+	public synchronized long scan(long sequence, long from, long to, String device, int limit, List<Entry> entries)
+	{
+		final long address = (device != null) ? BinaryEventEncoder.parseAddress(device) : 0;
+		// Records older than the ring are lost
+		for (sequence = Math.max(sequence, nextSequence - capacity); sequence < nextSequence && entries.size() < limit; sequence++){
+			final int offset = HEADER_SIZE + (int)(sequence % capacity) * RECORD_SIZE;
+			if (buffer.getLong(offset) != sequence)
+				continue;		// Not (completely) written
+			final long timestamp = buffer.getLong(offset + 8);
+			if (timestamp < from || timestamp > to)
+				continue;
+			final long recordAddress = buffer.getLong(offset + 16);
+			if (device != null && recordAddress != address)
+				continue;
+			entries.add(new Entry(sequence, timestamp, BinaryEventEncoder.formatAddress(recordAddress), buffer.get(offset + 28),
+				buffer.get(offset + 29), buffer.getInt(offset + 24)));
+		}
+		return sequence;
+	}
+
+	/**
+	 * Returns the sequence number the next record will get.
+	*/
+	public synchronized long getNextSequence()
+	{
+		return nextSequence;
+	}
+
+	/**
+	 * Makes the next record get at least the sequence number (after the journal file has been started over while
+	 * the history already holds records up to it).
+	*/
+	public synchronized void advanceTo(long sequence)
+	{
+		if (sequence > nextSequence){
+			nextSequence = sequence;
+			buffer.putLong(HEADER_SEQUENCE, nextSequence);
+		}
+	}
+
+	/**
+	 * Returns the number of records in the journal.
+	*/
+	public synchronized int size()
+	{
+		return (int) Math.min(nextSequence, capacity);
+	}
+
+	/**
+	 * Writes the records to the file and closes it.
+	*/
+	public synchronized void close()
+	{
+		buffer.force();
+		try {
+			file.close();
+		}
+		catch (IOException e) {
+			// Ignore, the mapped pages are written back anyway
+		}
+	}
+}
@@ -0,0 +1,67 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* End-to-end latencies of the alarms.
+*
+* Every alert level write is timestamped (System.nanoTime()) when the GATT server callback receives it on the
+* Bluetooth binder thread. The time from then until each later stage of the alarm is recorded into a histogram
+* per stage (see LatencyHistogram), so recording never allocates or locks:
+*
+*   STAGE_QUEUE         the write is taken from the plugin state queue (see PluginStateActor)
+*   STAGE_FILTER        the alarm filters have decided if the write is an alarm (see AlarmFilterPipeline)
+*   STAGE_AUDIO         the alarm sound has started playing (app in the foreground)
+*   STAGE_NOTIFICATION  the alarm notification has been posted (app in the background)
+*   STAGE_CALLBACK      the alarm event has been sent to the server callback (sendPluginResult)
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+
+public class AlarmMetrics
+{
+	// Stages
+	public final static int STAGE_QUEUE = 0;
+	public final static int STAGE_FILTER = 1;
+	public final static int STAGE_AUDIO = 2;
+	public final static int STAGE_NOTIFICATION = 3;
+	public final static int STAGE_CALLBACK = 4;
+	private final static String[] STAGE_NAMES = {"queue", "filter", "audio", "notification", "callback"};
+	public final static int STAGE_COUNT = STAGE_NAMES.length;
+
+	private final LatencyHistogram[] histograms = new LatencyHistogram[STAGE_COUNT];
+
+	public AlarmMetrics()
+	{
+		for (int i = 0; i < STAGE_COUNT; i++){
+			histograms[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * Records that the stage has been reached for a write received at the trigger time (System.nanoTime()).
+	 * Ignored if the trigger time is unknown (0).
+	*/
+	public void record(int stage, long triggerTime)
+	{
+		if (triggerTime != 0)
+			histograms[stage].record(System.nanoTime() - triggerTime);
+	}
+
+	public LatencyHistogram getHistogram(int stage)
+	{
+		return histograms[stage];
+	}
+
+	public static String getStageName(int stage)
+	{
+		return STAGE_NAMES[stage];
+	}
+
+	public void reset()
+	{
+		for (LatencyHistogram histogram : histograms){
+			histogram.reset();
+		}
+	}
+}
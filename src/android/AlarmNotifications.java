@@ -0,0 +1,196 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* The alarm notifications shown when the app is in the background.
+*
+* A notification is built ahead of time for every combination of alarm sound, vibration on/off and alert
+* level, so posting an alarm is a table lookup and NotificationManager.notify() without any builder work.
+* Mild Alerts play their sound once. High Alerts are shown with maximum priority and repeat their sound
+* until the notification is cancelled (FLAG_INSISTENT).
+*
+* From Android 8.0 (API 26) the sound, vibration and importance of a notification are set by its channel
+* and cannot be changed once the channel has been created, so every combination has a channel of its own.
+* Only the channels of the sound and vibration settings in use are created (one per alert level, when the
+* settings are applied or the first alarm is posted), the channels of earlier settings are deleted so the
+* app's notification settings only list the channels that can actually sound.
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationChannelGroup;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.media.AudioAttributes;
+import android.media.AudioManager;
+import android.net.Uri;
+import android.support.v4.app.NotificationCompat;
+
+import java.util.List;
+
+
+public class AlarmNotifications
+{
+	// Id of the alarm notification (a new alarm replaces the one showing)
+	public final static int NOTIFICATION_ID = 1665;
+	// Alert levels with notifications of their own
+	public final static int LEVEL_MILD = 0;		// No Alert (toggled levels) and Mild Alert
+	public final static int LEVEL_HIGH = 1;		// High Alert
+	private final static int LEVEL_COUNT = 2;
+
+	private final static String NOTIFICATION_ALARM_ICON = "notification_alarm_icon";
+	private final static String NOTIFICATION_LARGE_ICON = "notification_large_icon";
+	private final static String CHANNEL_GROUP_ID = "sensesoft_mini_alarms";
+	private final static long[] VIBRATE_PATTERN_ON = {0, 1000};	// Vibrate directly for 1000 ms
+	private final static long[] VIBRATE_PATTERN_OFF = {0, 0};	// Turns off vibration
+
+	private final NotificationManager notificationManager;
+	private final Notification[] notifications;		// Indexed by variant (see variant())
+	private final Uri[] soundUris;				// Indexed by AlarmSound ordinal
+	private final AudioAttributes audioAttributes;
+	private final boolean[] channelCreated;			// Indexed by variant (Android 8.0+)
+
+	@SuppressWarnings("deprecation")
+	public AlarmNotifications(Context context, ResourceCache resources, Intent appIntent)
+	{
+		context = context.getApplicationContext();
+		notificationManager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+		final PendingIntent contentIntent = PendingIntent.getActivity(context, 0, appIntent, 0);
+		audioAttributes = (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.LOLLIPOP) ?
+			new AudioAttributes.Builder().setUsage(AudioAttributes.USAGE_NOTIFICATION).build() : null;
+		if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O)
+			notificationManager.createNotificationChannelGroup(new NotificationChannelGroup(CHANNEL_GROUP_ID, "SenseSoft Mini alarms"));
+
+		final AlarmSound[] sounds = AlarmSound.values();
+		notifications = new Notification[sounds.length * 2 * LEVEL_COUNT];
+		channelCreated = new boolean[notifications.length];
+		soundUris = new Uri[sounds.length];
+		for (AlarmSound sound : sounds){
+			final Uri soundUri = resources.getSoundUri(sound);
+			soundUris[sound.ordinal()] = soundUri;
+			for (int vibration = 0; vibration < 2; vibration++){
+				for (int level = 0; level < LEVEL_COUNT; level++){
+					NotificationCompat.Builder builder = new NotificationCompat.Builder(context, channelId(sound, vibration != 0, level)) // Automatically sets the when field (displayed time of notification) to System.currentTimeMillis()
+					.setContentTitle("SenseSoft Mini")
+					.setContentText(level == LEVEL_HIGH ? "Incoming SenseSoft Mini High Alert alarm." : "Incoming SenseSoft Mini alarm.")
+					.setContentIntent(contentIntent)
+					.setSmallIcon(resources.getDrawableId(NOTIFICATION_ALARM_ICON))
+					.setLargeIcon(resources.getNotificationBitmap(NOTIFICATION_LARGE_ICON))
+					.setPriority(level == LEVEL_HIGH ? NotificationCompat.PRIORITY_MAX : NotificationCompat.PRIORITY_HIGH)	// Heads-up notifications in Android >= 5
+					.setAutoCancel(true)			// Not really needed since also clearing notifications when app is brought to foreground
+					.setCategory(NotificationCompat.CATEGORY_ALARM)
+					.setGroup("SENSESOFT_MINI")
+					.setTicker("SenseSoft Mini")
+					.setShowWhen(true);			// Default is false in Android >= 5 and true in Android < 5
+					if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.LOLLIPOP){
+						builder.setVisibility(Notification.VISIBILITY_PRIVATE);	// Show this notification on all lockscreens, but conceal sensitive or private information on secure lockscreens
+					}
+
+					Notification notification = builder.build();
+					// Below Android 8.0 the sound and vibration are set on the notification itself
+					notification.sound = soundUri;
+					if (audioAttributes != null){
+						// Use the notification stream for playback so volume easily can be changed with the device's notification volume controller
+						notification.audioAttributes = audioAttributes;
+					}
+					else {
+						notification.audioStreamType = AudioManager.STREAM_NOTIFICATION;
+					}
+					notification.vibrate = (vibration != 0) ? VIBRATE_PATTERN_ON : VIBRATE_PATTERN_OFF;
+					if (level == LEVEL_HIGH)
+						notification.flags |= Notification.FLAG_INSISTENT;	// Repeat the sound until the notification is cancelled
+					notifications[variant(sound, vibration != 0, level)] = notification;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Creates the channels of the sound and vibration settings (Android 8.0+) and deletes the alarm channels of
+	 * any other settings. Call when the settings are loaded or changed.
+	*/
+	public synchronized void useSettings(AlarmSound sound, boolean vibration)
+	{
+		if (android.os.Build.VERSION.SDK_INT < android.os.Build.VERSION_CODES.O)
+			return;
+		for (int level = 0; level < LEVEL_COUNT; level++){
+			createChannel(sound, vibration, level);
+		}
+		// Also finds the channels created by earlier versions of the app (a channel for every combination)
+		final List<NotificationChannel> channels = notificationManager.getNotificationChannels();
+		for (NotificationChannel channel : channels){
+			if (!CHANNEL_GROUP_ID.equals(channel.getGroup()) || isChannelOf(channel.getId(), sound, vibration))
+				continue;
+			notificationManager.deleteNotificationChannel(channel.getId());
+		}
+		for (int i = 0; i < channelCreated.length; i++){
+			channelCreated[i] = false;
+		}
+		for (int level = 0; level < LEVEL_COUNT; level++){
+			channelCreated[variant(sound, vibration, level)] = true;
+		}
+	}
+
+	/**
+	 * Shows the alarm notification for the sound and vibration settings and the alert level written by the clip.
+	*/
+	public void post(AlarmSound sound, boolean vibration, int alertLevel)
+	{
+		final int level = (alertLevel >= ServerEvent.LEVEL_HIGH_ALERT) ? LEVEL_HIGH : LEVEL_MILD;
+		final Notification notification = notifications[variant(sound, vibration, level)];
+		if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O){
+			synchronized (this) {
+				if (!channelCreated[variant(sound, vibration, level)]){
+					createChannel(sound, vibration, level);	// Settings not applied through useSettings
+					channelCreated[variant(sound, vibration, level)] = true;
+				}
+			}
+		}
+		synchronized (notification) {
+			notification.when = System.currentTimeMillis();			// Time of the alarm (instead of when the notification was built)
+			notificationManager.notify(NOTIFICATION_ID, notification);	// Replaces any alarm notification showing (no need to stop sound)
+		}
+	}
+
+	public void cancel()
+	{
+		notificationManager.cancel(NOTIFICATION_ID);
+	}
+
+	private void createChannel(AlarmSound sound, boolean vibration, int level)
+	{
+		// Creating a channel that exists does nothing (its settings may have been changed by the user)
+		NotificationChannel channel = new NotificationChannel(channelId(sound, vibration, level), "Alarm (" + sound.name().toLowerCase() + (vibration ? ", vibration" : "") +
+			(level == LEVEL_HIGH ? ", High Alert)" : ", Mild Alert)"), NotificationManager.IMPORTANCE_HIGH);
+		channel.setGroup(CHANNEL_GROUP_ID);
+		channel.setSound(soundUris[sound.ordinal()], audioAttributes);
+		channel.enableVibration(vibration);
+		if (vibration)
+			channel.setVibrationPattern(VIBRATE_PATTERN_ON);
+		channel.setLockscreenVisibility(Notification.VISIBILITY_PRIVATE);
+		notificationManager.createNotificationChannel(channel);
+	}
+
+	private static String channelId(AlarmSound sound, boolean vibration, int level)
+	{
+		return "alarm_" + sound.name().toLowerCase() + (vibration ? "_vibrate" : "") + (level == LEVEL_HIGH ? "_high" : "_mild");
+	}
+
+	private static boolean isChannelOf(String channelId, AlarmSound sound, boolean vibration)
+	{
+		for (int level = 0; level < LEVEL_COUNT; level++){
+			if (channelId.equals(channelId(sound, vibration, level)))
+				return true;
+		}
+		return false;
+	}
+
+	private static int variant(AlarmSound sound, boolean vibration, int level)
+	{
+		return (sound.ordinal() * 2 + (vibration ? 1 : 0)) * LEVEL_COUNT + level;
+	}
+}
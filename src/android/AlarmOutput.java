@@ -0,0 +1,35 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* The hardware an alarm is signalled with: sound, notification, vibration and the cpu wake lock.
+*
+* The alarm decisions (see AlarmController) only talk to the hardware through this interface. On a device it is
+* AndroidAlarmOutput (SoundPool, NotificationManager, Vibrator and PowerManager), on a plain JVM FakeAlarmOutput
+* records what would have been signalled.
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+
+public interface AlarmOutput
+{
+	// Keeps the cpu running while the alarm is handled
+	void keepAwake();
+
+	// Returns true if notifications are enabled for the app
+	boolean canNotify();
+
+	// Posts (or updates) the alarm notification
+	void notify(AlarmSound sound, boolean vibration, int alertLevel);
+
+	// Starts playing the alarm sound, returns false if it could not be played. The trigger time is the
+	// System.nanoTime() when the alarm write was received.
+	boolean play(AlarmSound sound, long triggerTime);
+
+	// Stops any alarm sound playing
+	void stop();
+
+	// Vibrates the device (if it can)
+	void vibrate();
+}
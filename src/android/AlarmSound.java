@@ -0,0 +1,35 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* The alarm sounds of the app setting "sound" (stored by ordinal, do not reorder).
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+import android.media.RingtoneManager;
+
+
+public enum AlarmSound
+{
+	SOUND_0("horn", 0),				// Custom alarm sound
+	SOUND_1("bells", 0),				// Custom alarm sound
+	SOUND_2("car", 0),				// Custom alarm sound
+	SOUND_3("fire_truck", 0),			// Custom alarm sound
+	SOUND_4("space_ship", 0),			// Custom alarm sound
+	SOUND_RINGTONE(null, RingtoneManager.TYPE_RINGTONE),		// Default ringtone sound (only available on phones and not tablets)
+	SOUND_ALARM(null, RingtoneManager.TYPE_ALARM),			// Default alarm sound
+	SOUND_NOTIFICATION(null, RingtoneManager.TYPE_NOTIFICATION),	// Default notification sound
+	SOUND_OFF(null, 0);				// No alarm sound
+
+	// Name of the raw resource of a sound bundled with the app (null if not bundled)
+	public final String rawName;
+	// RingtoneManager type of a device default sound (0 if not a default sound)
+	public final int ringtoneType;
+
+	AlarmSound(String rawName, int ringtoneType)
+	{
+		this.rawName = rawName;
+		this.ringtoneType = ringtoneType;
+	}
+}
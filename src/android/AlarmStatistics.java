@@ -0,0 +1,342 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* Running alarm statistics per clip and hour.
+*
+* Updated as the alarms are accepted, or dropped as bounces by the DEBOUNCE stage of the alarm filters (see
+* AlarmFilterPipeline), so reading them never goes back to the alarm history. Per clip the statistics hold the
+* total number of alarms and bounces, the time of the first and last alarm and the counts of the last HOURS hours.
+*
+* Everything is kept in flat primitive arrays indexed by clip slot (and slot * HOURS + hour % HOURS for the hourly
+* counts): recording is a slot lookup and a few array writes, without allocating. A bucket is reused for a new hour
+* once its hour has passed out of the window (the hour it holds is kept next to the counts).
+*
+* The statistics are written to a file every PERSIST_INTERVAL if they have changed (on a background thread, written
+* to a temporary file first and then renamed) and when closed.
+*
+* File layout (little-endian):
+*
+*   0       4     magic (MAGIC)
+*   4       4     format version (VERSION)
+*   8       4     hours per clip (HOURS)
+*   12      4     number of clips
+*   per clip      address (8), alarms (8), bounces (8), first alarm (8), last alarm (8),
+*                 per bucket: hour since epoch (4), alarms (4), bounces (4)
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+
+public class AlarmStatistics
+{
+	// Hours of hourly counts kept per clip (one week)
+	public final static int HOURS = 168;
+	// Time in milliseconds between writing changed statistics to the file
+	public final static long PERSIST_INTERVAL = 5 * 60 * 1000;
+	public final static long HOUR = 60 * 60 * 1000;
+
+	private final static int MAGIC = 0x53534153;		// "SASS"
+	private final static int VERSION = 1;
+	private final static int HEADER_SIZE = 16;
+	private final static int DEVICE_SIZE = 40 + HOURS * 12;
+	private final static int INITIAL_DEVICES = 16;
+
+	private final File file;
+	// Per clip slot (guarded by this)
+	private int deviceCount = 0;
+	private long[] addresses = new long[INITIAL_DEVICES];
+	private long[] totalAlarms = new long[INITIAL_DEVICES];
+	private long[] totalBounces = new long[INITIAL_DEVICES];
+	private long[] firstAlarm = new long[INITIAL_DEVICES];
+	private long[] lastAlarm = new long[INITIAL_DEVICES];
+	// Per clip slot and hour bucket (slot * HOURS + hour % HOURS)
+	private int[] bucketHours = new int[INITIAL_DEVICES * HOURS];
+	private int[] bucketAlarms = new int[INITIAL_DEVICES * HOURS];
+	private int[] bucketBounces = new int[INITIAL_DEVICES * HOURS];
+	private boolean dirty = false;
+
+	private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "AlarmStatisticsWriter");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * Loads the statistics from the file (starting over if it is missing or corrupt) and starts writing them
+	 * back periodically.
+	*/
+	public AlarmStatistics(File file)
+	{
+		this.file = file;
+		try {
+			load();
+		}
+		catch (Exception e) {
+			clear();
+		}
+		writer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				persist();
+			}
+		}, PERSIST_INTERVAL, PERSIST_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Counts an alarm of the clip at the time (milliseconds since epoch).
+	*/
+	public synchronized void recordAlarm(String device, long time)
+	{
+		final int slot = slotOf(BinaryEventEncoder.parseAddress(device));
+		final int bucket = bucketOf(slot, time);
+		if (bucket >= 0)
+			bucketAlarms[bucket]++;
+		totalAlarms[slot]++;
+		firstAlarm[slot] = (firstAlarm[slot] == 0) ? time : Math.min(firstAlarm[slot], time);
+		lastAlarm[slot] = Math.max(lastAlarm[slot], time);
+		dirty = true;
+	}
+
+	/**
+	 * Counts a write of the clip dropped as a bounce at the time (milliseconds since epoch).
+	*/
+	public synchronized void recordBounce(String device, long time)
+	{
+		final int slot = slotOf(BinaryEventEncoder.parseAddress(device));
+		final int bucket = bucketOf(slot, time);
+		if (bucket >= 0)
+			bucketBounces[bucket]++;
+		totalBounces[slot]++;
+		dirty = true;
+	}
+
+	/**
+	 * Returns the number of clips with statistics.
+	*/
+	public synchronized int getDeviceCount()
+	{
+		return deviceCount;
+	}
+
+	/**
+	 * Returns the slot of the clip, -1 if it has no statistics.
+	*/
+	public synchronized int findDevice(String device)
+	{
+		final long address = BinaryEventEncoder.parseAddress(device);
+		for (int slot = 0; slot < deviceCount; slot++){
+			if (addresses[slot] == address)
+				return slot;
+		}
+		return -1;
+	}
+
+	// The getters below take the slot of a clip (0 to getDeviceCount() - 1)
+
+	public synchronized String getDevice(int slot)
+	{
+		return BinaryEventEncoder.formatAddress(addresses[slot]);
+	}
+
+	public synchronized long getAlarms(int slot)
+	{
+		return totalAlarms[slot];
+	}
+
+	public synchronized long getBounces(int slot)
+	{
+		return totalBounces[slot];
+	}
+
+	/**
+	 * Returns the time (milliseconds since epoch) of the first alarm of the clip, 0 if none.
+	*/
+	public synchronized long getFirstAlarm(int slot)
+	{
+		return firstAlarm[slot];
+	}
+
+	public synchronized long getLastAlarm(int slot)
+	{
+		return lastAlarm[slot];
+	}
+
+	/**
+	 * Returns the number of alarms of the clip in the hour (hours since epoch, 0 if outside the window).
+	*/
+	public synchronized int getHourAlarms(int slot, int hour)
+	{
+		final int bucket = slot * HOURS + hour % HOURS;
+		return (bucketHours[bucket] == hour) ? bucketAlarms[bucket] : 0;
+	}
+
+	public synchronized int getHourBounces(int slot, int hour)
+	{
+		final int bucket = slot * HOURS + hour % HOURS;
+		return (bucketHours[bucket] == hour) ? bucketBounces[bucket] : 0;
+	}
+
+	/**
+	 * Zeroes the statistics of all clips.
+	*/
+	public synchronized void clear()
+	{
+		deviceCount = 0;
+		Arrays.fill(bucketHours, 0);
+		Arrays.fill(bucketAlarms, 0);
+		Arrays.fill(bucketBounces, 0);
+		dirty = true;
+	}
+
+	/**
+	 * Writes the statistics right away (on the calling thread) and stops the writer thread.
+	*/
+	public void close()
+	{
+		writer.shutdownNow();
+		persist();
+	}
+
+	/**
+	 * Returns the hour (hours since epoch) of the time (milliseconds since epoch).
+	*/
+	public static int hourOf(long time)
+	{
+		return (int)(time / HOUR);
+	}
+
+	private int slotOf(long address)
+	{
+		for (int slot = 0; slot < deviceCount; slot++){
+			if (addresses[slot] == address)
+				return slot;
+		}
+		if (deviceCount == addresses.length)
+			grow();
+		final int slot = deviceCount++;
+		addresses[slot] = address;
+		totalAlarms[slot] = 0;
+		totalBounces[slot] = 0;
+		firstAlarm[slot] = 0;
+		lastAlarm[slot] = 0;
+		Arrays.fill(bucketHours, slot * HOURS, (slot + 1) * HOURS, 0);
+		Arrays.fill(bucketAlarms, slot * HOURS, (slot + 1) * HOURS, 0);
+		Arrays.fill(bucketBounces, slot * HOURS, (slot + 1) * HOURS, 0);
+		return slot;
+	}
+
+	private int bucketOf(int slot, long time)
+	{
+		// Takes over the bucket if it holds an hour that has passed out of the window. Returns -1 if the time
+		// itself is out of the window (the clock has been set back), then only the totals are counted.
+		final int hour = hourOf(time);
+		final int bucket = slot * HOURS + hour % HOURS;
+		if (bucketHours[bucket] > hour)
+			return -1;
+		if (bucketHours[bucket] != hour){
+			bucketHours[bucket] = hour;
+			bucketAlarms[bucket] = 0;
+			bucketBounces[bucket] = 0;
+		}
+		return bucket;
+	}
+
+	private void grow()
+	{
+		final int size = addresses.length * 2;
+		addresses = Arrays.copyOf(addresses, size);
+		totalAlarms = Arrays.copyOf(totalAlarms, size);
+		totalBounces = Arrays.copyOf(totalBounces, size);
+		firstAlarm = Arrays.copyOf(firstAlarm, size);
+		lastAlarm = Arrays.copyOf(lastAlarm, size);
+		bucketHours = Arrays.copyOf(bucketHours, size * HOURS);
+		bucketAlarms = Arrays.copyOf(bucketAlarms, size * HOURS);
+		bucketBounces = Arrays.copyOf(bucketBounces, size * HOURS);
+	}
+
+	private void persist()
+	{
+		final ByteBuffer buffer;
+		synchronized (this) {
+			if (!dirty)
+				return;
+			dirty = false;
+			buffer = ByteBuffer.allocate(HEADER_SIZE + deviceCount * DEVICE_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.putInt(MAGIC).putInt(VERSION).putInt(HOURS).putInt(deviceCount);
+			for (int slot = 0; slot < deviceCount; slot++){
+				buffer.putLong(addresses[slot]).putLong(totalAlarms[slot]).putLong(totalBounces[slot])
+					.putLong(firstAlarm[slot]).putLong(lastAlarm[slot]);
+				for (int bucket = slot * HOURS; bucket < (slot + 1) * HOURS; bucket++){
+					buffer.putInt(bucketHours[bucket]).putInt(bucketAlarms[bucket]).putInt(bucketBounces[bucket]);
+				}
+			}
+		}
+		final File temp = new File(file.getPath() + ".tmp");
+		try {
+			final FileOutputStream output = new FileOutputStream(temp);
+			try {
+				output.write(buffer.array());
+				output.getFD().sync();
+			}
+			finally {
+				output.close();
+			}
+			if (!temp.renameTo(file))
+				throw new IOException("Could not rename " + temp);
+		}
+		catch (IOException e) {
+			// Written again with the next change
+			synchronized (this) {
+				dirty = true;
+			}
+		}
+	}
+
+	private synchronized void load() throws IOException
+	{
+		if (!file.exists())
+			return;
+		final RandomAccessFile input = new RandomAccessFile(file, "r");
+		final byte[] bytes;
+		try {
+			bytes = new byte[(int) input.length()];
+			input.readFully(bytes);
+		}
+		finally {
+			input.close();
+		}
+		final ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+		if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getInt() != HOURS)
+			throw new IOException("Unsupported statistics file");
+		final int devices = buffer.getInt();
+		if (devices < 0 || bytes.length != HEADER_SIZE + devices * DEVICE_SIZE)
+			throw new IOException("Corrupt statistics file");
+		for (int i = 0; i < devices; i++){
+			final int slot = slotOf(buffer.getLong());
+			totalAlarms[slot] = buffer.getLong();
+			totalBounces[slot] = buffer.getLong();
+			firstAlarm[slot] = buffer.getLong();
+			lastAlarm[slot] = buffer.getLong();
+			for (int bucket = slot * HOURS; bucket < (slot + 1) * HOURS; bucket++){
+				bucketHours[bucket] = buffer.getInt();
+				bucketAlarms[bucket] = buffer.getInt();
+				bucketBounces[bucket] = buffer.getInt();
+			}
+		}
+	}
+}
@@ -0,0 +1,78 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* Alarm output on an Android device.
+*
+* Sound is played by the AlarmAudioEngine (preloaded SoundPool), notifications are posted by AlarmNotifications
+* (prebuilt per sound, vibration and alert level) and the cpu is kept running by the WakeLockManager.
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+import android.content.Context;
+import android.os.Vibrator;
+import android.support.v4.app.NotificationManagerCompat;
+
+
+public class AndroidAlarmOutput implements AlarmOutput
+{
+	// Vibration time in milliseconds
+	private final static long VIBRATION_TIME = 1000;
+
+	private final NotificationManagerCompat notificationManager;
+	private final AlarmAudioEngine audioEngine;
+	private final AlarmNotifications notifications;
+	private final WakeLockManager wakeLocks;
+	private final Vibrator vibrator;		// null if the device cannot vibrate (or the app may not)
+
+	public AndroidAlarmOutput(Context context, AlarmAudioEngine audioEngine, AlarmNotifications notifications, WakeLockManager wakeLocks, boolean vibratorAvailable)
+	{
+		context = context.getApplicationContext();
+		this.notificationManager = NotificationManagerCompat.from(context);
+		this.audioEngine = audioEngine;
+		this.notifications = notifications;
+		this.wakeLocks = wakeLocks;
+		this.vibrator = vibratorAvailable ? (Vibrator) context.getSystemService(Context.VIBRATOR_SERVICE) : null;
+	}
+
+	@Override
+	public void keepAwake()
+	{
+		wakeLocks.onAlarm();
+	}
+
+	@Override
+	public boolean canNotify()
+	{
+		// The function areNotificationsEnabled() from the support library returns true if notifications are
+		// enabled for the app and if API >= 19. If Api < 19 it will always return true (even if notifications
+		// actually are disabled for the app).
+		return notificationManager.areNotificationsEnabled();
+	}
+
+	@Override
+	public void notify(AlarmSound sound, boolean vibration, int alertLevel)
+	{
+		notifications.post(sound, vibration, alertLevel);	// Prebuilt, only sets the time of the alarm
+	}
+
+	@Override
+	public boolean play(AlarmSound sound, long triggerTime)
+	{
+		return audioEngine.play(sound.ordinal(), triggerTime);
+	}
+
+	@Override
+	public void stop()
+	{
+		audioEngine.stop();
+	}
+
+	@Override
+	public void vibrate()
+	{
+		if (vibrator != null)
+			vibrator.vibrate(VIBRATION_TIME);	// Works async
+	}
+}
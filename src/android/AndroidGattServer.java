@@ -0,0 +1,59 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* GattServer of an Android device, calls the BluetoothGattServer.
+*
+* The BluetoothDevice of a client is taken from the ConnectionRegistry (no allocation). A request can be answered
+* on a binder thread before the state actor has registered the connection, the device is then obtained from the
+* BluetoothAdapter.
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattServer;
+
+
+public class AndroidGattServer implements GattServer
+{
+	private final BluetoothGattServer server;
+	private final ConnectionRegistry connections;
+
+	public AndroidGattServer(BluetoothGattServer server, ConnectionRegistry connections)
+	{
+		this.server = server;
+		this.connections = connections;
+	}
+
+	@Override
+	public boolean sendResponse(String address, int requestId, int status, int offset, byte[] value)
+	{
+		final BluetoothDevice device = getDevice(address);
+		return device != null && server.sendResponse(device, requestId, status, offset, value);
+	}
+
+	@Override
+	public boolean notifyCharacteristicChanged(String address, BluetoothGattCharacteristic characteristic, byte[] value, boolean confirm)
+	{
+		final BluetoothDevice device = getDevice(address);
+		if (device == null)
+			return false;
+		// The value is read from the (shared) characteristic when notifying, so set and notify atomically
+		synchronized (characteristic) {
+			characteristic.setValue(value);
+			return server.notifyCharacteristicChanged(device, characteristic, confirm);
+		}
+	}
+
+	private BluetoothDevice getDevice(String address)
+	{
+		final ConnectionRegistry.Connection connection = connections.get(address);
+		if (connection != null)
+			return connection.getDevice();
+		final BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+		return (adapter != null && BluetoothAdapter.checkBluetoothAddress(address)) ? adapter.getRemoteDevice(address) : null;
+	}
+}
@@ -0,0 +1,236 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* The user's app settings (alarm sound, vibration and logging).
+*
+* The settings are kept as an immutable snapshot published through a volatile reference, so the alarm path
+* (plugin's state actor thread) always reads a consistent set of settings without locking. Changes are written to
+* the shared preferences on a background thread, coalesced over WRITE_DELAY so a burst of changes is a single
+* disk write.
+*
+* On-disk format (FORMAT_VERSION):
+*   1  the settings object from JS stored as one JSON string (KEY_LEGACY_SETTINGS)
+*   2  one typed preference per setting
+* Version 1 settings are migrated to version 2 when the store is created.
+*
+* Whether the device can vibrate (vibrator and VIBRATE permission) does not change while the app runs, so it
+* is checked once when the store is created.
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+import android.Manifest.permission;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.os.Vibrator;
+import android.support.v4.content.ContextCompat;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+
+public class AppSettingsStore implements AlarmController.SettingsSource
+{
+	// Version of the on-disk format written by the store
+	public final static int FORMAT_VERSION = 2;
+	// Time in milliseconds changes are collected before written to disk
+	public final static long WRITE_DELAY = 500;
+
+	// Shared preference persistent storage file name
+	private final static String PREFERENCES_NAME = "user_settings";
+	// Preference keys
+	private final static String KEY_FORMAT_VERSION = "format_version";
+	private final static String KEY_LEGACY_SETTINGS = "user_settings";	// Version 1 JSON string
+	private final static String KEY_SOUND = "sound";
+	private final static String KEY_VIBRATION = "vibration";
+	private final static String KEY_LOG = "log";
+
+	/*
+	* A snapshot of the settings (immutable).
+	*/
+	public final static class Settings
+	{
+		public final static Settings DEFAULT = new Settings(AlarmSound.SOUND_0, false, true);
+
+		public final AlarmSound sound;		// Sound played on alarms
+		public final boolean vibration;		// Vibration on/off flag
+		public final boolean log;		// Alarm logging on/off flag
+
+		public Settings(AlarmSound sound, boolean vibration, boolean log)
+		{
+			this.sound = sound;
+			this.vibration = vibration;
+			this.log = log;
+		}
+
+		public Settings withSound(AlarmSound sound)
+		{
+			return new Settings(sound, vibration, log);
+		}
+	}
+
+	private final SharedPreferences preferences;
+	private final boolean vibratorAvailable;
+	private volatile Settings settings;
+	private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "AppSettingsWriter");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	private final Runnable writeRunnable = new Runnable() {
+		@Override
+		public void run() {
+			write();
+		}
+	};
+	private boolean writePending = false;		// Guarded by this
+	private volatile int writeFailures = 0;
+
+	/**
+	 * Loads the settings (migrating an older on-disk format) and checks the device capabilities.
+	*/
+	public AppSettingsStore(Context context)
+	{
+		context = context.getApplicationContext();
+		preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+		final Vibrator vibrator = (Vibrator) context.getSystemService(Context.VIBRATOR_SERVICE);
+		vibratorAvailable = (vibrator != null) && vibrator.hasVibrator() &&
+			(ContextCompat.checkSelfPermission(context, permission.VIBRATE) == PackageManager.PERMISSION_GRANTED);
+		settings = load();
+	}
+
+	/**
+	 * Returns the current settings. Never null and never changes once returned.
+	*/
+	@Override
+	public Settings get()
+	{
+		return settings;
+	}
+
+	/**
+	 * Replaces the settings. If persist is true they are written to disk (asynchronously), otherwise they
+	 * are used until the app is restarted or the settings are replaced again.
+	*/
+	public void update(Settings newSettings, boolean persist)
+	{
+		settings = newSettings;
+		if (persist)
+			scheduleWrite();
+	}
+
+	/**
+	 * Returns true if the device has a vibrator and the app the permission to use it.
+	*/
+	public boolean isVibratorAvailable()
+	{
+		return vibratorAvailable;
+	}
+
+	/**
+	 * Returns the number of failed disk writes.
+	*/
+	public int getWriteFailures()
+	{
+		return writeFailures;
+	}
+
+	/**
+	 * Writes any pending change right away (on the calling thread) and stops the writer thread.
+	*/
+	public void shutdown()
+	{
+		boolean pending;
+		synchronized (this) {
+			pending = writePending;
+		}
+		writer.shutdownNow();
+		if (pending)
+			write();
+	}
+
+	private void scheduleWrite()
+	{
+		synchronized (this) {
+			if (writePending)
+				return;		// The pending write will write the latest settings
+			writePending = true;
+		}
+		try {
+			writer.schedule(writeRunnable, WRITE_DELAY, TimeUnit.MILLISECONDS);
+		}
+		catch (Exception e) {
+			// Shut down
+			synchronized (this) {
+				writePending = false;
+			}
+		}
+	}
+
+	private void write()
+	{
+		synchronized (this) {
+			writePending = false;
+		}
+		final Settings current = settings;
+		final boolean written = preferences.edit()
+			.putInt(KEY_FORMAT_VERSION, FORMAT_VERSION)
+			.putInt(KEY_SOUND, current.sound.ordinal())
+			.putBoolean(KEY_VIBRATION, current.vibration)
+			.putBoolean(KEY_LOG, current.log)
+			.remove(KEY_LEGACY_SETTINGS)
+			.commit();
+		if (!written)
+			writeFailures++;	// Kept in memory, written again on the next change
+	}
+
+	private Settings load()
+	{
+		final int version = preferences.getInt(KEY_FORMAT_VERSION, 1);
+		if (version >= 2){
+			return new Settings(toSound(preferences.getInt(KEY_SOUND, Settings.DEFAULT.sound.ordinal())),
+				preferences.getBoolean(KEY_VIBRATION, Settings.DEFAULT.vibration),
+				preferences.getBoolean(KEY_LOG, Settings.DEFAULT.log));
+		}
+		final String legacy = preferences.getString(KEY_LEGACY_SETTINGS, null);
+		if (legacy == null)
+			return Settings.DEFAULT;	// Settings never saved
+		Settings migrated;
+		try {
+			// Version 1, the settings object as set from JS (vibration and log as 0/1 or booleans)
+			final JSONObject json = new JSONObject(legacy);
+			migrated = new Settings(toSound(json.optInt(KEY_SOUND, Settings.DEFAULT.sound.ordinal())),
+				toBoolean(json.opt(KEY_VIBRATION), Settings.DEFAULT.vibration),
+				toBoolean(json.opt(KEY_LOG), Settings.DEFAULT.log));
+		}
+		catch (Exception e) {
+			migrated = Settings.DEFAULT;		// Corrupt, start over with the defaults
+		}
+		settings = migrated;
+		scheduleWrite();
+		return migrated;
+	}
+
+	private static AlarmSound toSound(int ordinal)
+	{
+		final AlarmSound[] sounds = AlarmSound.values();
+		return (ordinal >= 0 && ordinal < sounds.length) ? sounds[ordinal] : Settings.DEFAULT.sound;
+	}
+
+	private static boolean toBoolean(Object value, boolean defaultValue)
+	{
+		if (value instanceof Boolean)
+			return (Boolean) value;
+		if (value instanceof Number)
+			return ((Number) value).intValue() != 0;
+		return defaultValue;
+	}
+}
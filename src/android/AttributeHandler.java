@@ -0,0 +1,56 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* Handles the requests from remote clients to one characteristic (and its descriptors) of a GATT service.
+*
+* Handlers are registered in the AttributeHandlerRegistry under the UUIDs of the service and the
+* characteristic. The write methods are called on the plugin's state actor thread (see PluginStateActor), the
+* read methods directly on a Bluetooth binder thread, so reads must be thread safe. Both must return quickly.
+* The client is identified by its Bluetooth address.
+* Requests a handler does not override are answered with GATT_REQUEST_NOT_SUPPORTED.
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+
+
+public abstract class AttributeHandler
+{
+	/**
+	 * Handles a characteristic write request. Returns the GATT status to respond with.
+	*/
+	public int onCharacteristicWrite(String address, BluetoothGattCharacteristic characteristic, int offset, byte[] value)
+	{
+		return BluetoothGatt.GATT_REQUEST_NOT_SUPPORTED;
+	}
+
+	/**
+	 * Handles a characteristic read request. Returns the value to respond with (from the given offset),
+	 * AttributeValueStore.INVALID_OFFSET if the offset is beyond the end of the value or null if reading is not supported.
+	*/
+	public byte[] onCharacteristicRead(String address, BluetoothGattCharacteristic characteristic, int offset)
+	{
+		return null;
+	}
+
+	/**
+	 * Handles a descriptor write request. Returns the GATT status to respond with.
+	*/
+	public int onDescriptorWrite(String address, BluetoothGattDescriptor descriptor, int offset, byte[] value)
+	{
+		return BluetoothGatt.GATT_REQUEST_NOT_SUPPORTED;
+	}
+
+	/**
+	 * Handles a descriptor read request. Returns the value to respond with (from the given offset),
+	 * AttributeValueStore.INVALID_OFFSET if the offset is beyond the end of the value or null if reading is not supported.
+	*/
+	public byte[] onDescriptorRead(String address, BluetoothGattDescriptor descriptor, int offset)
+	{
+		return null;
+	}
+}
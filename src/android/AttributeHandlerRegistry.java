@@ -0,0 +1,186 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* Registry of the AttributeHandlers of the GATT server, keyed by service UUID and characteristic UUID.
+*
+* The GATT server callback dispatches every characteristic and descriptor request through the registry
+* with two hash lookups (no allocation), instead of growing an if/else chain per supported service.
+* Each registered handler gets request counters and latency (time spent in the handler) counters.
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+public class AttributeHandlerRegistry
+{
+	// Handlers per characteristic UUID, per service UUID
+	private final ConcurrentHashMap<UUID, ConcurrentHashMap<UUID, Entry>> services = new ConcurrentHashMap<UUID, ConcurrentHashMap<UUID, Entry>>();
+
+	/*
+	* A registered handler and its counters.
+	*/
+	public static class Entry
+	{
+		private final UUID serviceUuid;
+		private final UUID characteristicUuid;
+		private final AttributeHandler handler;
+		private final AtomicLong requests = new AtomicLong(0);
+		private final AtomicLong totalNanos = new AtomicLong(0);
+		private final AtomicLong maxNanos = new AtomicLong(0);
+
+		Entry(UUID serviceUuid, UUID characteristicUuid, AttributeHandler handler)
+		{
+			this.serviceUuid = serviceUuid;
+			this.characteristicUuid = characteristicUuid;
+			this.handler = handler;
+		}
+
+		public UUID getServiceUuid()
+		{
+			return serviceUuid;
+		}
+
+		public UUID getCharacteristicUuid()
+		{
+			return characteristicUuid;
+		}
+
+		public AttributeHandler getHandler()
+		{
+			return handler;
+		}
+
+		public long getRequests()
+		{
+			return requests.get();
+		}
+
+		public long getTotalNanos()
+		{
+			return totalNanos.get();
+		}
+
+		public long getMaxNanos()
+		{
+			return maxNanos.get();
+		}
+
+		void record(long startNanos)
+		{
+			long elapsed = System.nanoTime() - startNanos;
+			requests.incrementAndGet();
+			totalNanos.addAndGet(elapsed);
+			long max = maxNanos.get();
+			while (elapsed > max && !maxNanos.compareAndSet(max, elapsed)){
+				max = maxNanos.get();
+			}
+		}
+	}
+
+	/**
+	 * Registers (or replaces) the handler of a characteristic.
+	*/
+	public void register(UUID serviceUuid, UUID characteristicUuid, AttributeHandler handler)
+	{
+		ConcurrentHashMap<UUID, Entry> characteristics = services.get(serviceUuid);
+		if (characteristics == null){
+			ConcurrentHashMap<UUID, Entry> newCharacteristics = new ConcurrentHashMap<UUID, Entry>();
+			characteristics = services.putIfAbsent(serviceUuid, newCharacteristics);
+			if (characteristics == null)
+				characteristics = newCharacteristics;
+		}
+		characteristics.put(characteristicUuid, new Entry(serviceUuid, characteristicUuid, handler));
+	}
+
+	public void unregister(UUID serviceUuid, UUID characteristicUuid)
+	{
+		Map<UUID, Entry> characteristics = services.get(serviceUuid);
+		if (characteristics != null)
+			characteristics.remove(characteristicUuid);
+	}
+
+	/**
+	 * Returns the registered handler entry of a characteristic or null if there is none.
+	*/
+	public Entry lookup(UUID serviceUuid, UUID characteristicUuid)
+	{
+		if (serviceUuid == null || characteristicUuid == null)
+			return null;
+		Map<UUID, Entry> characteristics = services.get(serviceUuid);
+		return (characteristics != null) ? characteristics.get(characteristicUuid) : null;
+	}
+
+	public Entry lookup(BluetoothGattCharacteristic characteristic)
+	{
+		if (characteristic == null || characteristic.getService() == null)
+			return null;
+		return lookup(characteristic.getService().getUuid(), characteristic.getUuid());
+	}
+
+	/**
+	 * Returns a snapshot of all registered handler entries.
+	*/
+	public List<Entry> entries()
+	{
+		List<Entry> entries = new ArrayList<Entry>();
+		for (Map<UUID, Entry> characteristics : services.values()){
+			entries.addAll(characteristics.values());
+		}
+		return entries;
+	}
+
+	public int dispatchCharacteristicWrite(Entry entry, String address, BluetoothGattCharacteristic characteristic, int offset, byte[] value)
+	{
+		long start = System.nanoTime();
+		try {
+			return entry.handler.onCharacteristicWrite(address, characteristic, offset, value);
+		}
+		finally {
+			entry.record(start);
+		}
+	}
+
+	public byte[] dispatchCharacteristicRead(Entry entry, String address, BluetoothGattCharacteristic characteristic, int offset)
+	{
+		long start = System.nanoTime();
+		try {
+			return entry.handler.onCharacteristicRead(address, characteristic, offset);
+		}
+		finally {
+			entry.record(start);
+		}
+	}
+
+	public int dispatchDescriptorWrite(Entry entry, String address, BluetoothGattDescriptor descriptor, int offset, byte[] value)
+	{
+		long start = System.nanoTime();
+		try {
+			return entry.handler.onDescriptorWrite(address, descriptor, offset, value);
+		}
+		finally {
+			entry.record(start);
+		}
+	}
+
+	public byte[] dispatchDescriptorRead(Entry entry, String address, BluetoothGattDescriptor descriptor, int offset)
+	{
+		long start = System.nanoTime();
+		try {
+			return entry.handler.onDescriptorRead(address, descriptor, offset);
+		}
+		finally {
+			entry.record(start);
+		}
+	}
+}
@@ -0,0 +1,173 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* Current values of the readable characteristics and descriptors of the GATT server.
+*
+* Read and read blob (offset) requests are answered straight from the store on the Bluetooth binder thread,
+* without crossing into JavaScript. Stored values are never modified in place: an update replaces the value
+* with a new array, so a read from offset 0 can hand out the stored array itself instead of a copy.
+*
+* Per-client values, such as the Client Characteristic Configuration Descriptor (CCCD), are stored
+* separately for every connected device.
+*
+* Attributes are keyed by identity (the BluetoothGattCharacteristic/BluetoothGattDescriptor objects
+* registered with the GATT server), so lookups do not allocate.
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+public class AttributeValueStore
+{
+	private final static byte[] EMPTY_VALUE = new byte[0];
+	// Returned by the reads when the offset is beyond the end of the value (compared by identity, answered with GATT_INVALID_OFFSET)
+	public final static byte[] INVALID_OFFSET = new byte[0];
+	// Value of a CCCD when the client has not subscribed
+	private final static byte[] CCCD_DEFAULT_VALUE = {0x00, 0x00};
+
+	private final ConcurrentHashMap<Object, byte[]> values = new ConcurrentHashMap<Object, byte[]>();
+	private final ConcurrentHashMap<String, ConcurrentHashMap<Object, byte[]>> clientValues = new ConcurrentHashMap<String, ConcurrentHashMap<Object, byte[]>>();
+
+	/**
+	 * Loads the initial values of the characteristics and descriptors of a service.
+	*/
+	public void load(BluetoothGattService service)
+	{
+		for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()){
+			set(characteristic, characteristic.getValue());
+			for (BluetoothGattDescriptor descriptor : characteristic.getDescriptors()){
+				set(descriptor, descriptor.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Removes the values (and per-client values) of the characteristics and descriptors of a service.
+	*/
+	public void unload(BluetoothGattService service)
+	{
+		for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()){
+			values.remove(characteristic);
+			for (BluetoothGattDescriptor descriptor : characteristic.getDescriptors()){
+				values.remove(descriptor);
+				for (ConcurrentHashMap<Object, byte[]> deviceValues : clientValues.values()){
+					deviceValues.remove(descriptor);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Replaces the value of an attribute (the value is copied).
+	*/
+	public void set(Object attribute, byte[] value)
+	{
+		values.put(attribute, (value != null) ? value.clone() : EMPTY_VALUE);
+	}
+
+	/**
+	 * Returns the current value of an attribute (do not modify it) or null if the attribute has no value.
+	*/
+	public byte[] get(Object attribute)
+	{
+		return values.get(attribute);
+	}
+
+	/**
+	 * Returns the value of an attribute from the offset (read blob), INVALID_OFFSET if the offset is beyond the end
+	 * of the value or null if the attribute has no value. Reads from offset 0 return the stored array without copying.
+	*/
+	public byte[] read(Object attribute, int offset)
+	{
+		return slice(values.get(attribute), offset);
+	}
+
+	/**
+	 * Writes a value (or a part of it at the offset) to an attribute. Returns false if the offset is
+	 * beyond the end of the current value.
+	*/
+	public boolean write(Object attribute, int offset, byte[] value)
+	{
+		byte[] newValue = merge(values.get(attribute), offset, value);
+		if (newValue == null)
+			return false;
+		values.put(attribute, newValue);
+		return true;
+	}
+
+	/**
+	 * Replaces the per-client value of an attribute (for example a CCCD).
+	*/
+	public void setClientValue(String address, Object attribute, byte[] value)
+	{
+		ConcurrentHashMap<Object, byte[]> deviceValues = clientValues.get(address);
+		if (deviceValues == null){
+			ConcurrentHashMap<Object, byte[]> newValues = new ConcurrentHashMap<Object, byte[]>();
+			deviceValues = clientValues.putIfAbsent(address, newValues);
+			if (deviceValues == null)
+				deviceValues = newValues;
+		}
+		deviceValues.put(attribute, (value != null) ? value.clone() : EMPTY_VALUE);
+	}
+
+	/**
+	 * Returns the per-client value of a CCCD from the offset (not subscribed if never written by the client) or
+	 * INVALID_OFFSET if the offset is beyond the end of the value.
+	*/
+	public byte[] readClientValue(String address, Object attribute, int offset)
+	{
+		ConcurrentHashMap<Object, byte[]> deviceValues = clientValues.get(address);
+		byte[] value = (deviceValues != null) ? deviceValues.get(attribute) : null;
+		return slice((value != null) ? value : CCCD_DEFAULT_VALUE, offset);
+	}
+
+	/**
+	 * Removes the per-client values of a disconnected device.
+	*/
+	public void onDisconnected(String address)
+	{
+		clientValues.remove(address);
+	}
+
+	public void clear()
+	{
+		values.clear();
+		clientValues.clear();
+	}
+
+	private static byte[] slice(byte[] value, int offset)
+	{
+		if (value == null)
+			return null;
+		if (offset <= 0)
+			return value;
+		if (offset > value.length)
+			return INVALID_OFFSET;
+		if (offset == value.length)
+			return EMPTY_VALUE;		// Read blob of a value that is exactly as long as the previous responses
+		return Arrays.copyOfRange(value, offset, value.length);
+	}
+
+	private static byte[] merge(byte[] current, int offset, byte[] value)
+	{
+		if (value == null)
+			value = EMPTY_VALUE;
+		if (offset <= 0)
+			return value.clone();
+		if (current == null)
+			current = EMPTY_VALUE;
+		if (offset > current.length)
+			return null;
+		byte[] result = Arrays.copyOf(current, Math.max(current.length, offset + value.length));
+		System.arraycopy(value, 0, result, offset, value.length);
+		return result;
+	}
+}
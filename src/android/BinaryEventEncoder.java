@@ -0,0 +1,107 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* Compact binary encoding of GATT server events (opt-in alternative to the JSON encoding).
+*
+* Every event is a fixed-size record of RECORD_SIZE bytes (little-endian):
+*
+*   offset  size  field
+*   0       1     event type (ServerEvent.TYPE_*)
+*   1       1     alert level (write requests) or number of services (services added)
+*   2       2     GATT status (unsigned) or ATT MTU (connected and MTU changed events)
+*   4       6     device address, most significant byte first (all zero if not device related)
+*   10      6     timestamp, wall clock time in milliseconds (unsigned)
+*
+* Several events (a batch) are sent as consecutive records in the same buffer. The buffer is delivered
+* as a byte[] plugin result, which arrives as an ArrayBuffer in JavaScript (see decodeEvents in gattserver.js).
+*
+* Service error events carry the UUID of the service instead of a device address, which does not fit in a
+* record: they cannot be encoded (see canEncode) and are delivered with the JSON encoding instead.
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+
+public class BinaryEventEncoder
+{
+	public final static int RECORD_SIZE = 16;
+
+	private BinaryEventEncoder()
+	{
+	}
+
+	/**
+	 * Returns false if the event cannot be encoded as a record (service errors).
+	*/
+	public static boolean canEncode(ServerEvent event)
+	{
+		return event.type != ServerEvent.TYPE_SERVICE_ERROR;
+	}
+
+	/**
+	 * Writes the event as one record into the buffer at the given offset. Does not allocate.
+	*/
+	public static void encode(ServerEvent event, byte[] buffer, int offset)
+	{
+		buffer[offset] = (byte)event.type;
+		buffer[offset + 1] = (byte)event.level;
+		buffer[offset + 2] = (byte)event.status;
+		buffer[offset + 3] = (byte)(event.status >>> 8);
+		writeAddress(event.device, buffer, offset + 4);
+		long timestamp = event.timestamp;
+		for (int i = 0; i < 6; i++){
+			buffer[offset + 10 + i] = (byte)(timestamp >>> (8 * i));
+		}
+	}
+
+	/**
+	 * Returns the event encoded as a single record.
+	*/
+	public static byte[] encode(ServerEvent event)
+	{
+		byte[] record = new byte[RECORD_SIZE];
+		encode(event, record, 0);
+		return record;
+	}
+
+	private static void writeAddress(String address, byte[] buffer, int offset)
+	{
+		final long value = parseAddress(address);
+		for (int i = 0; i < 6; i++){
+			buffer[offset + i] = (byte)(value >>> (8 * (5 - i)));
+		}
+	}
+
+	/**
+	 * Parses a Bluetooth address on the form "00:11:22:AA:BB:CC" into its 48 bits (0 if not an address). Does not allocate.
+	*/
+	static long parseAddress(String address)
+	{
+		if (address == null || address.length() != 17)
+			return 0;
+		long value = 0;
+		for (int i = 0; i < 6; i++){
+			int high = Character.digit(address.charAt(i * 3), 16);
+			int low = Character.digit(address.charAt(i * 3 + 1), 16);
+			value = (value << 8) | (((high < 0 ? 0 : high) << 4) | (low < 0 ? 0 : low));
+		}
+		return value;
+	}
+
+	/**
+	 * Formats the 48 bits of a Bluetooth address on the form "00:11:22:AA:BB:CC".
+	*/
+	static String formatAddress(long value)
+	{
+		final StringBuilder address = new StringBuilder(17);
+		for (int i = 5; i >= 0; i--){
+			final int b = (int)(value >>> (8 * i)) & 0xff;
+			address.append(Character.toUpperCase(Character.forDigit(b >>> 4, 16)));
+			address.append(Character.toUpperCase(Character.forDigit(b & 0xf, 16)));
+			if (i > 0)
+				address.append(':');
+		}
+		return address.toString();
+	}
+}
@@ -0,0 +1,49 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* Delivers the server events to a Cordova callback context (the JavaScript server callback).
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+
+public class CallbackContextSink implements ServerEventDispatcher.EventSink
+{
+	private final CallbackContext callbackContext;
+
+	public CallbackContextSink(CallbackContext callbackContext)
+	{
+		this.callbackContext = callbackContext;
+	}
+
+	@Override
+	public void send(JSONObject event, boolean error, boolean keepCallback)
+	{
+		PluginResult pluginResult = new PluginResult(error ? PluginResult.Status.ERROR : PluginResult.Status.OK, event);
+		pluginResult.setKeepCallback(keepCallback);	// Save the callback so it can be invoked several times
+		callbackContext.sendPluginResult(pluginResult);
+	}
+
+	@Override
+	public void send(JSONArray events)
+	{
+		PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, events);
+		pluginResult.setKeepCallback(true);
+		callbackContext.sendPluginResult(pluginResult);
+	}
+
+	@Override
+	public void send(byte[] records, boolean error, boolean keepCallback)
+	{
+		PluginResult pluginResult = new PluginResult(error ? PluginResult.Status.ERROR : PluginResult.Status.OK, records);
+		pluginResult.setKeepCallback(keepCallback);
+		callbackContext.sendPluginResult(pluginResult);
+	}
+}
@@ -0,0 +1,57 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* Default handler of characteristics that are declared in the service definitions (see GattAttributeTable)
+* but have no dedicated handler. Read requests are answered with the current value of the characteristic
+* or descriptor from the AttributeValueStore and write requests replace it.
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+
+
+public class CharacteristicValueHandler extends AttributeHandler
+{
+	private final AttributeValueStore valueStore;
+
+	public CharacteristicValueHandler(AttributeValueStore valueStore)
+	{
+		this.valueStore = valueStore;
+	}
+
+	@Override
+	public int onCharacteristicWrite(String address, BluetoothGattCharacteristic characteristic, int offset, byte[] value)
+	{
+		if ((characteristic.getProperties() & (BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE)) == 0)
+			return BluetoothGatt.GATT_WRITE_NOT_PERMITTED;
+		if (!valueStore.write(characteristic, offset, value))
+			return BluetoothGatt.GATT_INVALID_OFFSET;
+		return BluetoothGatt.GATT_SUCCESS;
+	}
+
+	@Override
+	public byte[] onCharacteristicRead(String address, BluetoothGattCharacteristic characteristic, int offset)
+	{
+		if ((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_READ) == 0)
+			return null;
+		return valueStore.read(characteristic, offset);
+	}
+
+	@Override
+	public int onDescriptorWrite(String address, BluetoothGattDescriptor descriptor, int offset, byte[] value)
+	{
+		if (!valueStore.write(descriptor, offset, value))
+			return BluetoothGatt.GATT_INVALID_OFFSET;
+		return BluetoothGatt.GATT_SUCCESS;
+	}
+
+	@Override
+	public byte[] onDescriptorRead(String address, BluetoothGattDescriptor descriptor, int offset)
+	{
+		return valueStore.read(descriptor, offset);
+	}
+}
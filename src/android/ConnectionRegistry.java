@@ -0,0 +1,331 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* The clients connected to the GATT server.
+*
+* Maintained from the BluetoothGattServerCallback (connection state, MTU and PHY changes), so the plugin never
+* has to ask the Bluetooth stack (BluetoothManager.getConnectedDevices, a binder IPC call) who is connected.
+* Lookup by address is constant time and iteration is weakly consistent, so the registry can be read from any
+* thread while the binder threads update it.
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+public class ConnectionRegistry
+{
+	// ATT MTU of a connection until a larger one has been negotiated (Bluetooth Core Specification)
+	public final static int DEFAULT_MTU = 23;
+	// Header bytes of a read response (opcode)
+	public final static int READ_RESPONSE_HEADER_LENGTH = 1;
+
+	/*
+	* A connected client.
+	*/
+	public final static class Connection
+	{
+		private final String address;
+		private final BluetoothDevice device;
+		private final MonotonicClock clock;
+		private final long connectTime;			// Wall clock time in milliseconds
+		private final long connectElapsedTime;		// Monotonic time in milliseconds
+		private volatile int mtu = DEFAULT_MTU;
+		private volatile int txPhy = BluetoothDevice.PHY_LE_1M;
+		private volatile int rxPhy = BluetoothDevice.PHY_LE_1M;
+		private final AtomicLong readRequests = new AtomicLong(0);
+		private final AtomicLong writeRequests = new AtomicLong(0);
+		private final AtomicLong notificationsSent = new AtomicLong(0);
+		private volatile boolean alarming = false;	// Has alarmed since connected or since the alarms were reset
+		private volatile boolean cancelled = false;	// Disconnection requested by the plugin (releaseCpu), still pending
+
+		Connection(String address, BluetoothDevice device, MonotonicClock clock, WallClock wallClock)
+		{
+			this.address = address;
+			this.device = device;
+			this.clock = clock;
+			this.connectTime = wallClock.currentTimeMillis();
+			this.connectElapsedTime = clock.now();
+		}
+
+		public BluetoothDevice getDevice()
+		{
+			return device;
+		}
+
+		public String getAddress()
+		{
+			return address;
+		}
+
+		public long getConnectTime()
+		{
+			return connectTime;
+		}
+
+		/**
+		 * Returns the time in milliseconds the client has been connected.
+		*/
+		public long getConnectedTime()
+		{
+			return clock.now() - connectElapsedTime;
+		}
+
+		public int getMtu()
+		{
+			return mtu;
+		}
+
+		public int getTxPhy()
+		{
+			return txPhy;
+		}
+
+		public int getRxPhy()
+		{
+			return rxPhy;
+		}
+
+		public long getReadRequests()
+		{
+			return readRequests.get();
+		}
+
+		public long getWriteRequests()
+		{
+			return writeRequests.get();
+		}
+
+		public long getNotificationsSent()
+		{
+			return notificationsSent.get();
+		}
+
+		public void countReadRequest()
+		{
+			readRequests.incrementAndGet();
+		}
+
+		public void countWriteRequest()
+		{
+			writeRequests.incrementAndGet();
+		}
+
+		public void countNotificationSent()
+		{
+			notificationsSent.incrementAndGet();
+		}
+
+		public boolean isAlarming()
+		{
+			return alarming;
+		}
+
+		public void setAlarming(boolean alarming)
+		{
+			this.alarming = alarming;
+		}
+
+		public boolean isCancelled()
+		{
+			return cancelled;
+		}
+	}
+
+	private final ConcurrentHashMap<String, Connection> connections = new ConcurrentHashMap<String, Connection>();
+	private final MonotonicClock clock;
+	private final WallClock wallClock;
+
+	public ConnectionRegistry(MonotonicClock clock, WallClock wallClock)
+	{
+		this.clock = clock;
+		this.wallClock = wallClock;
+	}
+
+	/**
+	 * Registers a new connection (replacing any previous one of the device) and returns it. The device may be
+	 * null when run without a Bluetooth stack.
+	*/
+	public Connection onConnected(String address, BluetoothDevice device)
+	{
+		Connection connection = new Connection(address, device, clock, wallClock);
+		connections.put(address, connection);
+		return connection;
+	}
+
+	/**
+	 * Removes the connection of a disconnected device and returns it (null if it was not registered).
+	*/
+	public Connection onDisconnected(String address)
+	{
+		return connections.remove(address);
+	}
+
+	/**
+	 * Marks every connection as cancelled and returns them, so that their disconnections can be requested. The
+	 * connections stay registered until their disconnection callbacks, but no longer count as active.
+	*/
+	public List<Connection> cancelAll()
+	{
+		List<Connection> cancelled = snapshot();
+		for (Connection connection : cancelled){
+			connection.cancelled = true;
+		}
+		return cancelled;
+	}
+
+	/**
+	 * Returns the number of connections that have not been cancelled (the clips the wake locks and the foreground
+	 * service are kept for).
+	*/
+	public int countActive()
+	{
+		int count = 0;
+		for (Connection connection : connections.values()){
+			if (!connection.cancelled)
+				count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Must be called from BluetoothGattServerCallback.onMtuChanged.
+	*/
+	public void onMtuChanged(String address, int mtu)
+	{
+		Connection connection = connections.get(address);
+		if (connection != null)
+			connection.mtu = mtu;
+	}
+
+	/**
+	 * Must be called from BluetoothGattServerCallback.onPhyUpdate and onPhyRead.
+	*/
+	public void onPhyUpdate(String address, int txPhy, int rxPhy)
+	{
+		Connection connection = connections.get(address);
+		if (connection != null){
+			connection.txPhy = txPhy;
+			connection.rxPhy = rxPhy;
+		}
+	}
+
+	/**
+	 * Returns the connection of a device or null if it is not connected.
+	*/
+	public Connection get(String address)
+	{
+		return connections.get(address);
+	}
+
+	/**
+	 * Returns the ATT MTU of the connection (the default MTU if the device is not connected).
+	*/
+	public int getMtu(String address)
+	{
+		Connection connection = connections.get(address);
+		return (connection != null) ? connection.mtu : DEFAULT_MTU;
+	}
+
+	/**
+	 * Returns the maximum number of value bytes in a read response to the device.
+	*/
+	public int getMaxReadLength(String address)
+	{
+		return getMtu(address) - READ_RESPONSE_HEADER_LENGTH;
+	}
+
+	public void countReadRequest(String address)
+	{
+		Connection connection = connections.get(address);
+		if (connection != null)
+			connection.countReadRequest();
+	}
+
+	public void countWriteRequest(String address)
+	{
+		Connection connection = connections.get(address);
+		if (connection != null)
+			connection.countWriteRequest();
+	}
+
+	/**
+	 * Marks the client as alarming (shown in the foreground service's notification). Returns true only if the mark
+	 * changed, false if the client was already alarming or is not connected.
+	*/
+	public boolean setAlarming(String address)
+	{
+		Connection connection = connections.get(address);
+		if (connection == null || connection.alarming)
+			return false;
+		connection.setAlarming(true);
+		return true;
+	}
+
+	/**
+	 * Clears the alarming mark of every client.
+	*/
+	public void resetAlarming()
+	{
+		for (Connection connection : connections.values()){
+			connection.setAlarming(false);
+		}
+	}
+
+	/**
+	 * Returns the number of clients that have alarmed since they connected or the alarms were reset.
+	*/
+	public int countAlarming()
+	{
+		int count = 0;
+		for (Connection connection : connections.values()){
+			if (connection.alarming)
+				count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Returns a live (weakly consistent) view of the connections for iteration.
+	*/
+	public Collection<Connection> connections()
+	{
+		return connections.values();
+	}
+
+	/**
+	 * Returns a copy of the current connections.
+	*/
+	public List<Connection> snapshot()
+	{
+		return new ArrayList<Connection>(connections.values());
+	}
+
+	public boolean isConnected(String address)
+	{
+		return connections.containsKey(address);
+	}
+
+	public int size()
+	{
+		return connections.size();
+	}
+
+	public boolean isEmpty()
+	{
+		return connections.isEmpty();
+	}
+
+	public void clear()
+	{
+		connections.clear();
+	}
+}
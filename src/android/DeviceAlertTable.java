@@ -0,0 +1,170 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* Per-device Immediate Alert state.
+*
+* Every connected nRF8002 clip gets its own entry, keyed by the device's Bluetooth address, holding
+* the toggle/initialized state, the time of its last alarm write and its last alert level. This way
+* the connect-time writes or the alarm interval of one clip never suppresses alarms from another clip.
+*
+* Lookups and updates are lock free (ConcurrentHashMap and atomics). The alert level writes are handled on
+* the plugin's state actor thread, while the state is also read from other threads (actions, tests).
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+public class DeviceAlertTable
+{
+	// Initial capacity of the table (a ward usually has a few dozen clips per tablet)
+	private final static int INITIAL_CAPACITY = 64;
+
+	private final ConcurrentHashMap<String, DeviceAlertState> states = new ConcurrentHashMap<String, DeviceAlertState>(INITIAL_CAPACITY);
+
+	/*
+	* Immediate Alert state of a single clip.
+	*/
+	public static class DeviceAlertState
+	{
+		private final String address;
+		// Flag indicating if the clip's Immediate Alert level has been initialized (first alarm received)
+		private final AtomicBoolean initialized = new AtomicBoolean(false);
+		// Elapsed time in milliseconds since boot of the last alarm write from the clip (0 if none yet)
+		private final AtomicLong lastAlarmTime = new AtomicLong(0);
+		// Last alert level written by the clip
+		private volatile int alertLevel = 0;
+		// Start time and number of alarms of the current alarm burst (guarded by the state's monitor, see AlarmFilterPipeline)
+		long burstStartTime = 0;
+		int burstAlarms = 0;
+
+		DeviceAlertState(String address)
+		{
+			this.address = address;
+		}
+
+		public String getAddress()
+		{
+			return address;
+		}
+
+		public boolean isInitialized()
+		{
+			return initialized.get();
+		}
+
+		/**
+		 * Marks the clip as initialized. Returns true if it was not initialized before.
+		*/
+		public boolean initialize()
+		{
+			return initialized.compareAndSet(false, true);
+		}
+
+		public void reset()
+		{
+			initialized.set(false);
+		}
+
+		public int getAlertLevel()
+		{
+			return alertLevel;
+		}
+
+		public void setAlertLevel(int level)
+		{
+			alertLevel = level;
+		}
+
+		public long getLastAlarmTime()
+		{
+			return lastAlarmTime.get();
+		}
+
+		/**
+		 * Records an alarm write at the given time and returns the time of the previous one.
+		*/
+		public long markAlarmTime(long elapsedTime)
+		{
+			return lastAlarmTime.getAndSet(elapsedTime);
+		}
+	}
+
+	/**
+	 * Returns the state of the device, creating it if the device has no entry yet.
+	*/
+	public DeviceAlertState get(String address)
+	{
+		DeviceAlertState state = states.get(address);
+		if (state == null){
+			DeviceAlertState newState = new DeviceAlertState(address);
+			state = states.putIfAbsent(address, newState);
+			if (state == null)
+				state = newState;
+		}
+		return state;
+	}
+
+	/**
+	 * Returns the state of the device or null if the device has no entry.
+	*/
+	public DeviceAlertState peek(String address)
+	{
+		return states.get(address);
+	}
+
+	/**
+	 * Creates a fresh (uninitialized) entry for a newly connected device, replacing any old one.
+	*/
+	public DeviceAlertState onConnected(String address)
+	{
+		DeviceAlertState state = new DeviceAlertState(address);
+		states.put(address, state);
+		return state;
+	}
+
+	/**
+	 * Evicts the entry of a disconnected device.
+	*/
+	public void onDisconnected(String address)
+	{
+		states.remove(address);
+	}
+
+	/**
+	 * Resets the initialized flag of every device (the alert level written next will be ignored).
+	*/
+	public void resetAll()
+	{
+		for (DeviceAlertState state : states.values()){
+			state.reset();
+		}
+	}
+
+	/**
+	 * Returns the number of clips that have alarmed since they connected or the alarms were reset (resetAll).
+	*/
+	public int countAlarming()
+	{
+		int count = 0;
+		for (DeviceAlertState state : states.values()){
+			if (state.isInitialized())
+				count++;
+		}
+		return count;
+	}
+
+	public void clear()
+	{
+		states.clear();
+	}
+
+	public int size()
+	{
+		return states.size();
+	}
+}
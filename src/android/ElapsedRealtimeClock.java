@@ -0,0 +1,29 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* The monotonic clock of the device: milliseconds since boot, including time spent in sleep.
+*
+* The only MonotonicClock reading android.os.SystemClock, kept out of the interface so the classes using a
+* MonotonicClock can be loaded on a plain JVM.
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+import android.os.SystemClock;
+
+
+public final class ElapsedRealtimeClock implements MonotonicClock
+{
+	public final static ElapsedRealtimeClock INSTANCE = new ElapsedRealtimeClock();
+
+	private ElapsedRealtimeClock()
+	{
+	}
+
+	@Override
+	public long now()
+	{
+		return SystemClock.elapsedRealtime();
+	}
+}
@@ -0,0 +1,424 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* Declarative GATT service definitions.
+*
+* The services provided by the GATT server are described in JSON (the "services" parameter of startServer):
+*
+*   [{ "uuid": "1802", "type": "primary", "characteristics": [
+*       { "uuid": "2a06", "properties": ["writeWithoutResponse"], "permissions": ["write"], "value": [0],
+*         "descriptors": [{ "uuid": "2901", "permissions": ["read"], "value": "416c657274" }] }
+*   ]}]
+*
+* UUIDs are either 16-bit short forms (expanded with the Bluetooth base UUID) or full 128-bit UUIDs.
+* Properties and permissions are lists of names or plain integer bit masks. Values are arrays of
+* bytes or hex strings. A characteristic that can notify or indicate gets a Client Characteristic
+* Configuration Descriptor (readable and writable, notifications and indications off) unless it declares one.
+*
+* A definition is compiled once into an immutable attribute table. The last table compiled is kept (only that
+* one, keyed by its JSON text), so restarting the server with the same definition does not parse it again. The
+* BluetoothGattService objects are built from the table each time the services are registered with the GATT
+* server. Two tables can be compared service by service, so a running server only replaces the services whose
+* definition has changed.
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+
+public class GattAttributeTable
+{
+	// Definition of the default server, the Immediate Alert service with the Alert Level characteristic
+	private final static String IMMEDIATE_ALERT_DEFINITION =
+		"[{\"uuid\":\"1802\",\"type\":\"primary\",\"characteristics\":[" +
+		"{\"uuid\":\"2a06\",\"properties\":[\"writeWithoutResponse\"],\"permissions\":[\"write\"],\"value\":[0]}]}]";
+
+	private final static String BASE_UUID_SUFFIX = "-0000-1000-8000-00805f9b34fb";	// Bluetooth base UUID
+
+	// Client Characteristic Configuration Descriptor (subscriptions to notifications and indications)
+	public final static UUID CCCD_UUID = UUID.fromString("00002902" + BASE_UUID_SUFFIX);
+	private final static byte[] CCCD_INITIAL_VALUE = {0, 0};
+	// Property and permission names accepted in definitions (in error messages)
+	private final static String PROPERTY_NAMES = "broadcast, read, writeWithoutResponse, write, notify, indicate, signedWrite, extendedProps";
+	private final static String PERMISSION_NAMES = "read, readEncrypted, readEncryptedMitm, write, writeEncrypted, writeEncryptedMitm, " +
+		"writeSigned, writeSignedMitm";
+
+	// Definition keys
+	private final static String KEY_UUID = "uuid";
+	private final static String KEY_TYPE = "type";
+	private final static String KEY_CHARACTERISTICS = "characteristics";
+	private final static String KEY_DESCRIPTORS = "descriptors";
+	private final static String KEY_PROPERTIES = "properties";
+	private final static String KEY_PERMISSIONS = "permissions";
+	private final static String KEY_VALUE = "value";
+	private final static String TYPE_SECONDARY = "secondary";
+
+	// The default table and the last table compiled from another definition
+	private static volatile GattAttributeTable immediateAlertTable = null;
+	private static volatile GattAttributeTable lastTable = null;
+
+	private final String definition;		// JSON text the table was compiled from
+	private final ServiceDefinition[] services;
+
+	public static class ServiceDefinition
+	{
+		public final UUID uuid;
+		public final int type;
+		public final CharacteristicDefinition[] characteristics;
+
+		ServiceDefinition(UUID uuid, int type, CharacteristicDefinition[] characteristics)
+		{
+			this.uuid = uuid;
+			this.type = type;
+			this.characteristics = characteristics;
+		}
+
+		/**
+		 * Returns true if the other service (may be null) is defined the same way.
+		*/
+		public boolean matches(ServiceDefinition other)
+		{
+			if (other == null || !uuid.equals(other.uuid) || type != other.type || characteristics.length != other.characteristics.length)
+				return false;
+			for (int i = 0; i < characteristics.length; i++){
+				if (!characteristics[i].matches(other.characteristics[i]))
+					return false;
+			}
+			return true;
+		}
+	}
+
+	public static class CharacteristicDefinition
+	{
+		public final UUID uuid;
+		public final int properties;
+		public final int permissions;
+		private final byte[] value;
+		public final DescriptorDefinition[] descriptors;
+
+		CharacteristicDefinition(UUID uuid, int properties, int permissions, byte[] value, DescriptorDefinition[] descriptors)
+		{
+			this.uuid = uuid;
+			this.properties = properties;
+			this.permissions = permissions;
+			this.value = value;
+			this.descriptors = descriptors;
+		}
+
+		/**
+		 * Returns a copy of the initial value (null if none).
+		*/
+		public byte[] getValue()
+		{
+			return (value != null) ? value.clone() : null;
+		}
+
+		boolean matches(CharacteristicDefinition other)
+		{
+			if (!uuid.equals(other.uuid) || properties != other.properties || permissions != other.permissions ||
+				!Arrays.equals(value, other.value) || descriptors.length != other.descriptors.length)
+				return false;
+			for (int i = 0; i < descriptors.length; i++){
+				if (!descriptors[i].matches(other.descriptors[i]))
+					return false;
+			}
+			return true;
+		}
+	}
+
+	public static class DescriptorDefinition
+	{
+		public final UUID uuid;
+		public final int permissions;
+		private final byte[] value;
+
+		DescriptorDefinition(UUID uuid, int permissions, byte[] value)
+		{
+			this.uuid = uuid;
+			this.permissions = permissions;
+			this.value = value;
+		}
+
+		/**
+		 * Returns a copy of the initial value (null if none).
+		*/
+		public byte[] getValue()
+		{
+			return (value != null) ? value.clone() : null;
+		}
+
+		boolean matches(DescriptorDefinition other)
+		{
+			return uuid.equals(other.uuid) && permissions == other.permissions && Arrays.equals(value, other.value);
+		}
+	}
+
+	private GattAttributeTable(String definition, ServiceDefinition[] services)
+	{
+		this.definition = definition;
+		this.services = services;
+	}
+
+	/**
+	 * Returns the attribute table of the default server (Immediate Alert service only).
+	*/
+	public static GattAttributeTable immediateAlert()
+	{
+		GattAttributeTable table = immediateAlertTable;
+		if (table == null){
+			try {
+				table = parse(IMMEDIATE_ALERT_DEFINITION);
+			}
+			catch (JSONException e) {
+				throw new IllegalStateException(e.getMessage());
+			}
+			immediateAlertTable = table;
+		}
+		return table;
+	}
+
+	/**
+	 * Returns the compiled attribute table of the service definitions, compiling it unless it is the definition
+	 * compiled last.
+	*/
+	public static GattAttributeTable compile(JSONArray definition) throws JSONException
+	{
+		return compile(definition.toString());
+	}
+
+	public static GattAttributeTable compile(String definition) throws JSONException
+	{
+		GattAttributeTable table = lastTable;
+		if (table == null || !table.definition.equals(definition)){
+			table = parse(definition);
+			lastTable = table;
+		}
+		return table;
+	}
+
+	public ServiceDefinition[] getServices()
+	{
+		return services;
+	}
+
+	/**
+	 * Returns the definition of the service or null if the table has no such service.
+	*/
+	public ServiceDefinition getService(UUID uuid)
+	{
+		for (ServiceDefinition service : services){
+			if (service.uuid.equals(uuid))
+				return service;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the UUIDs of the services of the other table that this table does not have.
+	*/
+	public List<UUID> getRemovedServices(GattAttributeTable other)
+	{
+		List<UUID> removed = new ArrayList<UUID>();
+		for (ServiceDefinition service : other.services){
+			if (getService(service.uuid) == null)
+				removed.add(service.uuid);
+		}
+		return removed;
+	}
+
+	/**
+	 * Builds new BluetoothGattService objects (with initial values) from the table.
+	*/
+	public List<BluetoothGattService> buildServices()
+	{
+		List<BluetoothGattService> gattServices = new ArrayList<BluetoothGattService>(services.length);
+		for (ServiceDefinition serviceDef : services){
+			gattServices.add(buildService(serviceDef));
+		}
+		return gattServices;
+	}
+
+	/**
+	 * Builds a new BluetoothGattService object (with initial values) of a service of the table.
+	*/
+	public static BluetoothGattService buildService(ServiceDefinition serviceDef)
+	{
+		BluetoothGattService service = new BluetoothGattService(serviceDef.uuid, serviceDef.type);
+		for (CharacteristicDefinition charDef : serviceDef.characteristics){
+			BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(charDef.uuid, charDef.properties, charDef.permissions);
+			if (charDef.value != null)
+				characteristic.setValue(charDef.getValue());
+			for (DescriptorDefinition descDef : charDef.descriptors){
+				BluetoothGattDescriptor descriptor = new BluetoothGattDescriptor(descDef.uuid, descDef.permissions);
+				if (descDef.value != null)
+					descriptor.setValue(descDef.getValue());
+				if (!characteristic.addDescriptor(descriptor))
+					throw new IllegalStateException("Descriptor " + descDef.uuid + " could not be added");
+			}
+			if (!service.addCharacteristic(characteristic))
+				throw new IllegalStateException("Characteristic " + charDef.uuid + " could not be added");
+		}
+		return service;
+	}
+
+	/**
+	 * Parses a 16-bit ("2a06" or "0x2a06") or a full 128-bit UUID.
+	*/
+	public static UUID parseUuid(String uuid)
+	{
+		String u = uuid.trim().toLowerCase();
+		if (u.startsWith("0x"))
+			u = u.substring(2);
+		if (u.length() == 4)
+			return UUID.fromString("0000" + u + BASE_UUID_SUFFIX);
+		if (u.length() == 8)
+			return UUID.fromString(u + BASE_UUID_SUFFIX);
+		return UUID.fromString(u);
+	}
+
+	private static GattAttributeTable parse(String definition) throws JSONException
+	{
+		JSONArray servicesJson = new JSONArray(definition);
+		ServiceDefinition[] services = new ServiceDefinition[servicesJson.length()];
+		for (int i = 0; i < servicesJson.length(); i++){
+			JSONObject serviceJson = servicesJson.getJSONObject(i);
+			int type = TYPE_SECONDARY.equals(serviceJson.optString(KEY_TYPE)) ? BluetoothGattService.SERVICE_TYPE_SECONDARY : BluetoothGattService.SERVICE_TYPE_PRIMARY;
+			JSONArray charsJson = serviceJson.optJSONArray(KEY_CHARACTERISTICS);
+			int charCount = (charsJson != null) ? charsJson.length() : 0;
+			CharacteristicDefinition[] characteristics = new CharacteristicDefinition[charCount];
+			for (int j = 0; j < charCount; j++){
+				characteristics[j] = parseCharacteristic(charsJson.getJSONObject(j));
+			}
+			services[i] = new ServiceDefinition(parseUuid(serviceJson.getString(KEY_UUID)), type, characteristics);
+		}
+		return new GattAttributeTable(definition, services);
+	}
+
+	private static CharacteristicDefinition parseCharacteristic(JSONObject charJson) throws JSONException
+	{
+		int properties = parseFlags(charJson.opt(KEY_PROPERTIES), true);
+		JSONArray descsJson = charJson.optJSONArray(KEY_DESCRIPTORS);
+		int descCount = (descsJson != null) ? descsJson.length() : 0;
+		List<DescriptorDefinition> descriptors = new ArrayList<DescriptorDefinition>(descCount + 1);
+		boolean hasCccd = false;
+		for (int i = 0; i < descCount; i++){
+			JSONObject descJson = descsJson.getJSONObject(i);
+			DescriptorDefinition descriptor = new DescriptorDefinition(parseUuid(descJson.getString(KEY_UUID)),
+				parseFlags(descJson.opt(KEY_PERMISSIONS), false), parseValue(descJson.opt(KEY_VALUE)));
+			hasCccd |= descriptor.uuid.equals(CCCD_UUID);
+			descriptors.add(descriptor);
+		}
+		// Clients cannot subscribe to notifications or indications without a CCCD
+		if (!hasCccd && (properties & (BluetoothGattCharacteristic.PROPERTY_NOTIFY | BluetoothGattCharacteristic.PROPERTY_INDICATE)) != 0){
+			descriptors.add(new DescriptorDefinition(CCCD_UUID, BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE,
+				CCCD_INITIAL_VALUE.clone()));
+		}
+		return new CharacteristicDefinition(parseUuid(charJson.getString(KEY_UUID)),
+			properties, parseFlags(charJson.opt(KEY_PERMISSIONS), false),
+			parseValue(charJson.opt(KEY_VALUE)), descriptors.toArray(new DescriptorDefinition[descriptors.size()]));
+	}
+
+	private static int parseFlags(Object flags, boolean properties) throws JSONException
+	{
+		// Parses a list of property/permission names or an integer bit mask
+
+		if (flags == null)
+			return 0;
+		if (flags instanceof Number)
+			return ((Number)flags).intValue();
+		if (!(flags instanceof JSONArray))
+			throw new JSONException("Invalid " + (properties ? KEY_PROPERTIES : KEY_PERMISSIONS) + ": " + flags);
+		JSONArray names = (JSONArray)flags;
+		int mask = 0;
+		for (int i = 0; i < names.length(); i++){
+			mask |= properties ? propertyFlag(names.getString(i)) : permissionFlag(names.getString(i));
+		}
+		return mask;
+	}
+
+	private static int propertyFlag(String name) throws JSONException
+	{
+		if ("broadcast".equals(name))
+			return BluetoothGattCharacteristic.PROPERTY_BROADCAST;
+		if ("read".equals(name))
+			return BluetoothGattCharacteristic.PROPERTY_READ;
+		if ("writeWithoutResponse".equals(name))
+			return BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE;
+		if ("write".equals(name))
+			return BluetoothGattCharacteristic.PROPERTY_WRITE;
+		if ("notify".equals(name))
+			return BluetoothGattCharacteristic.PROPERTY_NOTIFY;
+		if ("indicate".equals(name))
+			return BluetoothGattCharacteristic.PROPERTY_INDICATE;
+		if ("signedWrite".equals(name))
+			return BluetoothGattCharacteristic.PROPERTY_SIGNED_WRITE;
+		if ("extendedProps".equals(name))
+			return BluetoothGattCharacteristic.PROPERTY_EXTENDED_PROPS;
+		throw new JSONException("Unknown property: " + name + " (one of " + PROPERTY_NAMES + ")");
+	}
+
+	private static int permissionFlag(String name) throws JSONException
+	{
+		if ("read".equals(name))
+			return BluetoothGattCharacteristic.PERMISSION_READ;
+		if ("readEncrypted".equals(name))
+			return BluetoothGattCharacteristic.PERMISSION_READ_ENCRYPTED;
+		if ("write".equals(name))
+			return BluetoothGattCharacteristic.PERMISSION_WRITE;
+		if ("writeEncrypted".equals(name))
+			return BluetoothGattCharacteristic.PERMISSION_WRITE_ENCRYPTED;
+		if ("readEncryptedMitm".equals(name))
+			return BluetoothGattCharacteristic.PERMISSION_READ_ENCRYPTED_MITM;
+		if ("writeEncryptedMitm".equals(name))
+			return BluetoothGattCharacteristic.PERMISSION_WRITE_ENCRYPTED_MITM;
+		if ("writeSigned".equals(name))
+			return BluetoothGattCharacteristic.PERMISSION_WRITE_SIGNED;
+		if ("writeSignedMitm".equals(name))
+			return BluetoothGattCharacteristic.PERMISSION_WRITE_SIGNED_MITM;
+		throw new JSONException("Unknown permission: " + name + " (one of " + PERMISSION_NAMES + ")");
+	}
+
+	/**
+	 * Parses a value given as an array of bytes or a hex string (null if no value).
+	*/
+	public static byte[] parseValue(Object value) throws JSONException
+	{
+		if (value == null || value == JSONObject.NULL)
+			return null;
+		if (value instanceof JSONArray){
+			JSONArray bytes = (JSONArray)value;
+			byte[] result = new byte[bytes.length()];
+			for (int i = 0; i < result.length; i++){
+				result[i] = (byte)bytes.getInt(i);
+			}
+			return result;
+		}
+		String hex = value.toString();
+		if (hex.startsWith("0x"))
+			hex = hex.substring(2);
+		if (hex.length() % 2 != 0)
+			throw new JSONException("Invalid hex value: " + value);
+		byte[] result = new byte[hex.length() / 2];
+		for (int i = 0; i < result.length; i++){
+			int high = Character.digit(hex.charAt(2 * i), 16);
+			int low = Character.digit(hex.charAt(2 * i + 1), 16);
+			if (high < 0 || low < 0)
+				throw new JSONException("Invalid hex value: " + value);
+			result[i] = (byte)((high << 4) | low);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,29 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* The calls made on the GATT server while serving the connected clients.
+*
+* The clients are identified by their Bluetooth address, so the request handling (see GattServerCore) and the
+* notification queues (see NotificationSender) can be run on a plain JVM against a fake server. On a device the
+* calls go to the BluetoothGattServer (see AndroidGattServer).
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+
+public interface GattServer
+{
+	/**
+	 * Sends the response to a read or write request of the client. Returns false if it could not be sent.
+	*/
+	boolean sendResponse(String address, int requestId, int status, int offset, byte[] value);
+
+	/**
+	 * Sends the value of the characteristic to the client as a notification (confirm false) or an indication.
+	 * Returns false if it could not be sent, otherwise onNotificationSent follows.
+	*/
+	boolean notifyCharacteristicChanged(String address, BluetoothGattCharacteristic characteristic, byte[] value, boolean confirm);
+}
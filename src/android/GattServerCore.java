@@ -0,0 +1,290 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* Serves the clients of the GATT server: connections, read and write requests and their responses.
+*
+* The plugin only forwards the BluetoothGattServerCallback calls here. The connection changes, writes and link
+* updates come as state actor messages (see PluginStateActor) and must be handled on the actor thread, the reads
+* are answered directly on the binder thread. The clients are identified by their Bluetooth address and the
+* responses go through a GattServer, so the core runs on a plain JVM with a fake server: the attribute objects
+* are only passed through, and the write requests carry the UUIDs their handlers are looked up by.
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+
+import java.util.Arrays;
+
+
+public class GattServerCore implements ImmediateAlertHandler.TriggerTimeSource
+{
+	/*
+	* Told about the changes of the connected clients.
+	*/
+	public interface Listener
+	{
+		// Called when a client has connected (connected is true) or disconnected, after the registry was updated
+		void onConnectionsChanged(boolean connected);
+	}
+
+	private final ConnectionRegistry connections;
+	private final DeviceAlertTable alertStates;
+	private final AttributeHandlerRegistry attributeHandlers;
+	private final AttributeValueStore attributeValues;
+	private final NotificationSender notificationSender;
+	private final PreparedWriteBuffers preparedWrites;
+	private final ServerEventDispatcher events;
+	private final AlarmMetrics metrics;
+	private final Listener listener;
+	private volatile GattServer server = null;	// null while the server is closed
+	private long writeReceivedTime = 0;		// When the characteristic write being handled was received (actor thread only)
+
+	public GattServerCore(ConnectionRegistry connections, DeviceAlertTable alertStates, AttributeHandlerRegistry attributeHandlers,
+		AttributeValueStore attributeValues, NotificationSender notificationSender, PreparedWriteBuffers preparedWrites,
+		ServerEventDispatcher events, AlarmMetrics metrics, Listener listener)
+	{
+		this.connections = connections;
+		this.alertStates = alertStates;
+		this.attributeHandlers = attributeHandlers;
+		this.attributeValues = attributeValues;
+		this.notificationSender = notificationSender;
+		this.preparedWrites = preparedWrites;
+		this.events = events;
+		this.metrics = metrics;
+		this.listener = listener;
+	}
+
+	/**
+	 * Sets the server the responses and notifications are sent through (null once it has been closed).
+	*/
+	public void setServer(GattServer server)
+	{
+		this.server = server;
+		notificationSender.setServer(server);
+	}
+
+	/**
+	 * Returns the System.nanoTime() when the characteristic write being handled was received (the time now if none).
+	*/
+	@Override
+	public long getTriggerTime()
+	{
+		return (writeReceivedTime != 0) ? writeReceivedTime : System.nanoTime();
+	}
+
+	public void onConnectionState(PluginStateActor.ConnectionState change)
+	{
+		final String address = change.address;
+		if (change.status == BluetoothGatt.GATT_SUCCESS && change.newState == BluetoothGatt.STATE_CONNECTED) {
+			final ConnectionRegistry.Connection connection = connections.onConnected(address, change.device);
+
+			// New clip connection, its first alert level write(s) must not be interpreted as an alarm
+			alertStates.onConnected(address);
+			notificationSender.onConnected(connection);
+			listener.onConnectionsChanged(true);
+
+			// The MTU is the default one until the client negotiates a larger one (see onMtuChanged)
+			events.publish(ServerEvent.TYPE_CONNECTED, address, connection.getMtu(), 0);
+		}
+		else if (change.newState == BluetoothGatt.STATE_DISCONNECTED) {
+			connections.onDisconnected(address);
+			alertStates.onDisconnected(address);
+			notificationSender.onDisconnected(address);
+			listener.onConnectionsChanged(false);
+			preparedWrites.onDisconnected(address);
+			attributeValues.onDisconnected(address);
+			events.publish(ServerEvent.TYPE_DISCONNECTED, address, change.status, 0);
+		}
+		else {
+			// Ends the server callback
+			events.publish(ServerEvent.TYPE_CONNECTION_ERROR, address, change.status, 0);
+		}
+	}
+
+	public void onCharacteristicWrite(PluginStateActor.WriteRequest request)
+	{
+		connections.countWriteRequest(request.address);
+		metrics.record(AlarmMetrics.STAGE_QUEUE, request.receivedTime);
+		final AttributeHandlerRegistry.Entry handler = attributeHandlers.lookup(request.serviceUuid, request.characteristicUuid);
+		if (handler != null && request.preparedWrite){
+			// Fragment of a long write, delivered to the handler when the write is executed
+			int status = preparedWrites.prepare(request.address, request.attribute, request.offset, request.value);
+			if (request.responseNeeded)
+				sendResponse(request.address, request.requestId, status, request.offset, request.value);
+		}
+		else if (handler != null){
+			writeReceivedTime = request.receivedTime;
+			int status;
+			try {
+				status = attributeHandlers.dispatchCharacteristicWrite(handler, request.address, request.characteristic, request.offset, request.value);
+			}
+			finally {
+				writeReceivedTime = 0;
+			}
+			if (request.responseNeeded)
+				sendResponse(request.address, request.requestId, status, request.offset, null);
+		}
+		else {
+			if (request.responseNeeded)
+				sendResponse(request.address, request.requestId, BluetoothGatt.GATT_REQUEST_NOT_SUPPORTED, request.offset, null);
+
+			events.publish(ServerEvent.TYPE_WRITE_NOT_SUPPORTED, request.address, 0, 0);
+		}
+	}
+
+	public void onDescriptorWrite(PluginStateActor.WriteRequest request)
+	{
+		connections.countWriteRequest(request.address);
+		if (GattAttributeTable.CCCD_UUID.equals(request.descriptorUuid)){
+			// The client subscribes to (or unsubscribes from) notifications/indications of the characteristic
+			boolean subscribed = notificationSender.setSubscription(request.address, request.characteristic, request.value);
+			if (subscribed)
+				attributeValues.setClientValue(request.address, request.attribute, request.value);
+			if (request.responseNeeded)
+				sendResponse(request.address, request.requestId, subscribed ? BluetoothGatt.GATT_SUCCESS : BluetoothGatt.GATT_FAILURE, request.offset, null);
+			return;
+		}
+
+		final BluetoothGattDescriptor descriptor = (BluetoothGattDescriptor) request.attribute;
+		final AttributeHandlerRegistry.Entry handler = attributeHandlers.lookup(request.serviceUuid, request.characteristicUuid);
+		int status = BluetoothGatt.GATT_REQUEST_NOT_SUPPORTED;	// Not supported/implemented if no handler
+		if (handler != null && request.preparedWrite){
+			// Fragment of a long write, delivered to the handler when the write is executed
+			status = preparedWrites.prepare(request.address, descriptor, request.offset, request.value);
+			if (request.responseNeeded)
+				sendResponse(request.address, request.requestId, status, request.offset, request.value);
+			return;
+		}
+		if (handler != null)
+			status = attributeHandlers.dispatchDescriptorWrite(handler, request.address, descriptor, request.offset, request.value);
+		if (request.responseNeeded)
+			sendResponse(request.address, request.requestId, status, request.offset, null);
+	}
+
+	/**
+	 * Commits (or discards) all prepared writes of the client.
+	*/
+	public void onExecuteWrite(PluginStateActor.ExecuteWrite request)
+	{
+		int status = preparedWrites.execute(request.address, request.execute, preparedWriteCommitter(request.address));
+		sendResponse(request.address, request.requestId, status, 0, null);
+	}
+
+	public void onMtuChanged(PluginStateActor.LinkUpdate update)
+	{
+		// Notifications and read responses to the device are sized to the negotiated MTU
+		connections.onMtuChanged(update.address, update.value1);
+		events.publish(ServerEvent.TYPE_MTU_CHANGED, update.address, update.value1, 0);
+	}
+
+	public void onPhyUpdate(PluginStateActor.LinkUpdate update)
+	{
+		connections.onPhyUpdate(update.address, update.value1, update.value2);
+	}
+
+	public void onNotificationSent(PluginStateActor.LinkUpdate update)
+	{
+		// Send the next notification queued for the device (only one may be in flight at a time)
+		notificationSender.onNotificationSent(update.address, update.value1);
+	}
+
+	/**
+	 * Answers a characteristic read request (called on the binder thread, reads are never forwarded to JavaScript).
+	*/
+	public void onCharacteristicRead(String address, int requestId, int offset, BluetoothGattCharacteristic characteristic)
+	{
+		connections.countReadRequest(address);
+		final AttributeHandlerRegistry.Entry handler = attributeHandlers.lookup(characteristic);
+		if (handler != null){
+			byte[] value = attributeHandlers.dispatchCharacteristicRead(handler, address, characteristic, offset);
+			if (value != null)
+				sendReadResponse(address, requestId, offset, value);
+			else
+				sendResponse(address, requestId, BluetoothGatt.GATT_READ_NOT_PERMITTED, offset, null);
+			return;
+		}
+
+		// Serve the stored value if any, otherwise not supported/implemented
+		byte[] value = attributeValues.read(characteristic, offset);
+		if (value != null)
+			sendReadResponse(address, requestId, offset, value);
+		else
+			sendResponse(address, requestId, BluetoothGatt.GATT_REQUEST_NOT_SUPPORTED, offset, null);
+	}
+
+	/**
+	 * Answers a descriptor read request (called on the binder thread).
+	*/
+	public void onDescriptorRead(String address, int requestId, int offset, BluetoothGattDescriptor descriptor)
+	{
+		connections.countReadRequest(address);
+		if (GattAttributeTable.CCCD_UUID.equals(descriptor.getUuid())){
+			// The client's notification/indication subscription of the characteristic
+			sendReadResponse(address, requestId, offset, attributeValues.readClientValue(address, descriptor, offset));
+			return;
+		}
+
+		final AttributeHandlerRegistry.Entry handler = attributeHandlers.lookup(descriptor.getCharacteristic());
+		byte[] value;
+		if (handler != null)
+			value = attributeHandlers.dispatchDescriptorRead(handler, address, descriptor, offset);
+		else
+			value = attributeValues.read(descriptor, offset);
+		if (value != null)
+			sendReadResponse(address, requestId, offset, value);
+		else
+			sendResponse(address, requestId, BluetoothGatt.GATT_REQUEST_NOT_SUPPORTED, offset, null);	// Not supported/implemented
+	}
+
+	private PreparedWriteBuffers.Committer preparedWriteCommitter(final String address)
+	{
+		// Delivers the reassembled values of the executed prepared writes of the device to the attribute handlers
+
+		return new PreparedWriteBuffers.Committer() {
+			@Override
+			public int commit(Object attribute, byte[] value) {
+				if (attribute instanceof BluetoothGattCharacteristic){
+					final BluetoothGattCharacteristic characteristic = (BluetoothGattCharacteristic)attribute;
+					final AttributeHandlerRegistry.Entry handler = attributeHandlers.lookup(characteristic);
+					if (handler != null)
+						return attributeHandlers.dispatchCharacteristicWrite(handler, address, characteristic, 0, value);
+				}
+				else if (attribute instanceof BluetoothGattDescriptor){
+					final BluetoothGattDescriptor descriptor = (BluetoothGattDescriptor)attribute;
+					final AttributeHandlerRegistry.Entry handler = attributeHandlers.lookup(descriptor.getCharacteristic());
+					if (handler != null)
+						return attributeHandlers.dispatchDescriptorWrite(handler, address, descriptor, 0, value);
+				}
+				return BluetoothGatt.GATT_REQUEST_NOT_SUPPORTED;
+			}
+		};
+	}
+
+	private void sendReadResponse(String address, int requestId, int offset, byte[] value)
+	{
+		// Responds to a read (blob) request with as much of the value as fits in one read response. The client
+		// reads the rest with read blob requests at increasing offsets.
+
+		if (value == AttributeValueStore.INVALID_OFFSET){
+			sendResponse(address, requestId, BluetoothGatt.GATT_INVALID_OFFSET, offset, null);
+			return;
+		}
+		final int maxLength = connections.getMaxReadLength(address);
+		if (value.length > maxLength)
+			value = Arrays.copyOf(value, maxLength);
+		sendResponse(address, requestId, BluetoothGatt.GATT_SUCCESS, offset, value);
+	}
+
+	private void sendResponse(String address, int requestId, int status, int offset, byte[] value)
+	{
+		// The server may have been closed (releaseCpu, onDestroy) while the request was queued
+
+		final GattServer gattServer = server;
+		if (gattServer != null)
+			gattServer.sendResponse(address, requestId, status, offset, value);
+	}
+}
@@ -22,10 +22,15 @@ import org.json.JSONObject;
 import org.json.JSONArray;
 import org.json.JSONException;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.Enum;
 import java.lang.System;
+import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
 import android.bluetooth.BluetoothAdapter;
@@ -40,30 +45,20 @@ import android.bluetooth.BluetoothManager;
 
 import android.app.Activity;
 import android.app.AlertDialog;			// For showing debug messages
-import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.DialogInterface;		// For showing debug messages
 import android.content.Intent;
-import android.content.pm.PackageManager;
 import android.content.ServiceConnection;
-import android.content.SharedPreferences;
-import android.graphics.BitmapFactory;
 import android.os.IBinder;
-import android.os.Vibrator;
-import android.os.SystemClock;
-import android.Manifest.permission;
-import android.media.AudioAttributes;
+import android.util.Log;
 import android.media.AudioManager;
-import android.media.MediaPlayer;
 import android.media.Ringtone;
-import android.media.RingtoneManager;
 import android.net.Uri;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.NotificationManagerCompat;
-import android.support.v4.content.ContextCompat;
 
 import android.view.View;
 //import android.view.Window;
@@ -72,9 +67,12 @@ import android.view.WindowManager;
 
 public class GattServerPlugin extends CordovaPlugin
 {
+	// Tag of the log messages
+	private final static String TAG = "GattServerPlugin";
+	
 	// Immediate alert service
-	private final static UUID IMMEDIATE_ALERT_SERVICE_UUID = UUID.fromString("00001802-0000-1000-8000-00805f9b34fb");	// Service UUID
-	private final static UUID ALERT_LEVEL_CHAR_UUID = UUID.fromString("00002a06-0000-1000-8000-00805f9b34fb");		// Characteristic UUID
+	private final static UUID IMMEDIATE_ALERT_SERVICE_UUID = ImmediateAlertHandler.IMMEDIATE_ALERT_SERVICE_UUID;	// Service UUID
+	private final static UUID ALERT_LEVEL_CHAR_UUID = ImmediateAlertHandler.ALERT_LEVEL_CHAR_UUID;		// Characteristic UUID
 	//private static final int ALERT_LEVEL_CHARACTERISTIC_VALUE = 2;
 	//private static final int ALERT_LEVEL_CHARACTERISTIC_FORMATTYPE = 17;
 	//private static final int ALERT_LEVEL_CHARACTERISTIC_OFFSET = 0;
@@ -87,8 +85,13 @@ public class GattServerPlugin extends CordovaPlugin
 	// Linkloss service
 	//private final static UUID LINKLOSS_SERVICE_UUID = UUID.fromString("00001803-0000-1000-8000-00805f9b34fb");				// Service UUID
 	
-	// General callback variables
-	private CallbackContext serverRunningCallbackContext = null;
+	// Delivers the GATT server events to the server callback (the callback given to startServer)
+	private final ServerEventDispatcher eventDispatcher = new ServerEventDispatcher(new ServerEventDispatcher.Encoder() {
+		@Override
+		public JSONObject encode(ServerEvent event) {
+			return encodeServerEvent(event);
+		}
+	});
 	
 	// Action Name Strings
 	private final static String START_GATT_SERVER = "startServer";
@@ -98,7 +101,21 @@ public class GattServerPlugin extends CordovaPlugin
 	private final static String SET_APP_SETTINGS = "setAppSettings";
 	private final static String GET_APP_SETTINGS = "getAppSettings";
 	private final static String PLAY_SOUND = "playSound";
+	private final static String GET_AUDIO_STATS = "getAudioStats";
+	private final static String GET_WAKE_LOCK_STATS = "getWakeLockStats";
 	private final static String RESET_SOUND = "resetSound";
+	private final static String NOTIFY = "notify";
+	private final static String SET_VALUE = "setValue";
+	private final static String GET_CONNECTIONS = "getConnections";
+	private final static String SET_ALARM_FILTER = "setAlarmFilter";
+	private final static String GET_QUEUE_STATS = "getQueueStats";
+	private final static String GET_METRICS = "getMetrics";
+	private final static String QUERY_ALARM_LOG = "queryAlarmLog";
+	private final static String GET_ALARM_STATS = "getAlarmStats";
+	private final static String ALARM = "alarm";		// Debug action
+	private final static Set<String> ACTIONS = new HashSet<String>(Arrays.asList(START_GATT_SERVER, RESET_ALARM, STOP_SOUND, RELEASE_CPU,
+		SET_APP_SETTINGS, GET_APP_SETTINGS, PLAY_SOUND, GET_AUDIO_STATS, GET_WAKE_LOCK_STATS, RESET_SOUND, NOTIFY, SET_VALUE, GET_CONNECTIONS,
+		SET_ALARM_FILTER, GET_QUEUE_STATS, GET_METRICS, QUERY_ALARM_LOG, GET_ALARM_STATS, ALARM));
 	
 	// Object keys
 	private final static String keyStatus = "status";
@@ -111,6 +128,7 @@ public class GattServerPlugin extends CordovaPlugin
 	private final static String statusWriteRequest = "characteristicWriteRequest";
 	private final static String statusConnectionState = "serverConnectionState";
 	private final static String statusAlarmReseted = "alarmReseted";
+	private final static String statusMtuChanged = "mtuChanged";
   
 	// Error Types
 	private final static String errorConnectionState = "serverConnectionState";
@@ -121,83 +139,131 @@ public class GattServerPlugin extends CordovaPlugin
 	private final static String errorServerStateUnauthorized = "serverStateUnauthorized";	// iOS only
 	private final static String errorServiceAdded = "serviceAdded";
 	private final static String errorWriteRequest = "writeRequest";
-	private final static String errorReadRequest = "readRequest";
 	private final static String errorAppSettings = "appSettings";
+	private final static String errorServiceDefinition = "serviceDefinition";
+	private final static String errorNotify = "notify";
+	private final static String errorSetValue = "setValue";
+	private final static String errorAlarmFilter = "alarmFilter";
+	private final static String errorAlarmLog = "alarmLog";
 	
 	// Error Messages
 	private final static String logServerAlreadyRunning = "GATT server is already running";
 	private final static String logNoPermission = "No permission granted for local notifications";
-	private final static String logService = "Immediate Alert service could not be added";
+	private final static String logService = "Service could not be added";
 	private final static String logConnectionState = "Connection state changed with error";
 	private final static String logStateUnsupported = "BLE is not supported by device";
 	private final static String logStatePoweredOff = "BLE is turned off for device";
 	private final static String logRequestNotSupported = "Request is not supported";
 	private final static String logAppSettings = "Writing user preferences failed";
+	private final static String logServerNotRunning = "GATT server is not running";
+	private final static String logAlarmLog = "Alarm log could not be read";
 	
-	private boolean isInBackground = false;			// Flag indicating if app is in the background
-	private boolean iasInitialized = false; 		// Flag indicating if Immediate Alert Service has been initialized
-	private BluetoothGattServer gattServer = null;
+	private volatile BluetoothGattServer gattServer = null;	// Changed on the state actor thread only, read requests are answered on binder threads
+	private GattAttributeTable registeredTable = null;		// Services registered (or being registered) with the GATT server (state actor thread only)
 	private NotificationManager alarmNotificationManager = null;
-	private Notification alarmNotification = null;
-	private final static String NOTIFICATION_ALARM_ICON = "notification_alarm_icon";
-	private final static String NOTIFICATION_LARGE_ICON = "notification_large_icon";
-	private MediaPlayer mPlayer = null;
-	
-	private long elapsedAlarmTime = 0;			// Elapsed time in milliseconds since boot (including time spent in sleep)
-	private final long MIN_ALARM_INTERVAL = 3000;		// Minimum allowed time interval in milliseconds between a previous alarm and a new alarm.
-								// Any new alarms triggered in this time interval will be ignored.
-	
-	private SharedPreferences appPreferences;
-	private SharedPreferences.Editor appPreferencesEditor;
-	private final static String APP_SETTINGS_NAME = "user_settings";	// Shared preference persistent storage file name
+	private AlarmNotifications alarmNotifications = null;		// Prebuilt alarm notifications per sound, vibration and alert level (channels of the settings in use)
+	private ResourceCache resourceCache = null;			// Sound URIs, drawable ids and notification bitmaps (shared with the service)
+	private AlarmAudioEngine audioEngine = null;			// Plays the alarm sounds when the app is in the foreground
+	private WakeLockManager wakeLocks = null;			// Keeps the cpu running while clips are connected or alarming
+	private AppSettingsStore settingsStore = null;			// The user's app settings (immutable snapshots, written behind)
+	private AlarmController alarmController = null;			// Signals, counts, logs and reports the alarms (app in the foreground until paused)
+	
+	private final DeviceAlertTable alertStates = new DeviceAlertTable();	// Immediate Alert state (initialized flag, last alarm time etc.) per connected clip
+	private final AlarmFilterPipeline alarmFilters = new AlarmFilterPipeline(AlarmFilterPipeline.DEFAULT_STAGES, ElapsedRealtimeClock.INSTANCE);	// Decides which alert level writes are alarms (debounce etc.)
+	private final AttributeHandlerRegistry attributeHandlers = new AttributeHandlerRegistry();	// Request handlers per service and characteristic
+	private final AttributeValueStore attributeValues = new AttributeValueStore();	// Current values of the readable characteristics and descriptors
+	private final CharacteristicValueHandler characteristicValueHandler = new CharacteristicValueHandler(attributeValues);
+	private final AlarmMetrics alarmMetrics = new AlarmMetrics();		// Latencies from alarm write to sound, notification and JS callback
+	private AlarmJournal alarmJournal = null;			// Recent alarms, appended on the alarm path (null if the file could not be opened)
+	private AlarmHistoryStore alarmHistory = null;			// Indexed alarm history fed from the journal (null if not available)
+	private AlarmStatistics alarmStatistics = null;			// Alarm and bounce counts per clip and hour
+	private final ConnectionRegistry connectionRegistry = new ConnectionRegistry(ElapsedRealtimeClock.INSTANCE, WallClock.SYSTEM);	// The connected clients (maintained from the server callbacks)
+	private final NotificationSender notificationSender = new NotificationSender(new NotificationSender.Scheduler() {
+		@Override
+		public void schedule(Object token, long delayMillis) {
+			stateActor.sendDelayed(PluginStateActor.MSG_NOTIFICATION_TIMER, token, delayMillis);
+		}
+	});	// Flow-controlled notification queues per connection
+	private final PreparedWriteBuffers preparedWrites = new PreparedWriteBuffers();		// Reassembly of prepared (long) writes per connection
+	// Serves the connected clients: connections, read and write requests (the server callbacks are forwarded to it)
+	private final GattServerCore serverCore = new GattServerCore(connectionRegistry, alertStates, attributeHandlers, attributeValues,
+		notificationSender, preparedWrites, eventDispatcher, alarmMetrics, new GattServerCore.Listener() {
+		@Override
+		public void onConnectionsChanged(boolean connected) {
+			GattServerPlugin.this.onConnectionsChanged(connected);
+		}
+	});
+	// Adds the services to the GATT server one at a time and reports when all of them are live (used on the state actor thread)
+	private final ServiceRegistrationQueue serviceRegistration = new ServiceRegistrationQueue(new ServiceRegistrationQueue.Listener() {
+		@Override
+		public void onServiceAdded(BluetoothGattService service) {
+			attributeValues.load(service);		// Initial values served to read requests
+		}
+		@Override
+		public void onServicesReady(int serviceCount) {
+			eventDispatcher.publish(ServerEvent.TYPE_SERVICE_ADDED, null, BluetoothGatt.GATT_SUCCESS, serviceCount);
+		}
+		@Override
+		public void onServiceFailed(ServiceRegistrationQueue.Registration failed) {
+			// Ends the server callback
+			eventDispatcher.publish(ServerEvent.TYPE_SERVICE_ERROR, failed.getServiceUuid().toString(), failed.getStatus(), failed.getAttempts());
+		}
+	}, new ServiceRegistrationQueue.Scheduler() {
+		@Override
+		public void schedule(Object token, long delayMillis) {
+			stateActor.sendDelayed(PluginStateActor.MSG_REGISTRATION_TIMER, token, delayMillis);
+		}
+	});
+	
 	// Settings keys
-	private final static String KEY_APP_SETTINGS = "user_settings";
 	private final static String KEY_SOUND_SETTING = "sound";
 	private final static String KEY_VIBRATION_SETTING = "vibration";
 	private final static String KEY_LOG_SETTING = "log";
 	private final static String KEY_VIBRATOR_AVAILABLE = "vibrator_available";	// Added 2018-05-18 (android specific only)
+	// startServer parameter keys
+	private final static String KEY_EVENT_DELIVERY = "eventDelivery";		// "single" (default) or "batch"
+	private final static String KEY_BATCH_WINDOW = "batchWindow";			// Batch time window in milliseconds
+	private final static String KEY_BATCH_MAX_EVENTS = "batchMaxEvents";		// Maximum number of events in a batch
+	private final static String KEY_BATCH_FLUSH_HIGH_ALERT = "batchFlushOnHighAlert";	// Deliver High Alerts right away
+	// notify parameter keys
+	private final static String KEY_NOTIFY_DEVICE = "device";
+	private final static String KEY_NOTIFY_SERVICE = "service";
+	private final static String KEY_NOTIFY_CHARACTERISTIC = "characteristic";
+	private final static String KEY_NOTIFY_VALUE = "value";
+	// setValue parameter keys (also service, characteristic and value as for notify)
+	private final static String KEY_VALUE_DESCRIPTOR = "descriptor";
+	// setAlarmFilter parameter keys (see AlarmFilterPipeline)
+	private final static String KEY_FILTER_DEVICE = "device";			// Clip to set the parameters of (all clips if not given)
+	private final static String KEY_FILTER_RESET = "reset";			// Use the parameters for all clips (again) for the clip
+	private final static String KEY_FILTER_TOGGLE_DECODE = "toggleDecode";
+	private final static String KEY_FILTER_MIN_LEVEL = "minLevel";
+	private final static String KEY_FILTER_DEBOUNCE_INTERVAL = "debounceInterval";
+	private final static String KEY_FILTER_BURST_WINDOW = "burstWindow";
+	private final static String KEY_FILTER_BURST_MAX_ALARMS = "burstMaxAlarms";
+	// getWakeLockStats, getMetrics and getQueueStats parameter keys
+	private final static String KEY_STATS_RESET = "reset";			// Zero the counters after returning them
+	// queryAlarmLog parameter keys
+	private final static String KEY_LOG_FROM = "from";			// Oldest alarm time (milliseconds since epoch, default 0)
+	private final static String KEY_LOG_TO = "to";				// Newest alarm time (milliseconds since epoch, default now)
+	private final static String KEY_LOG_DEVICE = "device";			// Clip address (all clips if not given)
+	private final static String KEY_LOG_PAGE_SIZE = "pageSize";		// Maximum number of alarms per page
+	private final static String KEY_LOG_PAGES = "pages";			// Maximum number of pages sent (all if not given)
+	private final static String KEY_LOG_CURSOR = "cursor";			// Where to continue a query (from a returned page)
+	private final static String ALARM_LOG_FILE = "alarm_journal.bin";
+	private final static String ALARM_HISTORY_DIRECTORY = "alarm_history";
+	private final static int DEFAULT_LOG_PAGE_SIZE = 100;
+	// getAlarmStats parameter keys (also reset as for getMetrics)
+	private final static String KEY_STATS_DEVICE = "device";			// Clip to return (all clips if not given)
+	private final static String KEY_STATS_HOURS = "hours";			// Number of hourly counts returned
+	private final static String ALARM_STATS_FILE = "alarm_stats.bin";
+	private final static int DEFAULT_STATS_HOURS = 24;
+	private final static String KEY_SERVICES = "services";				// GATT service definitions (see GattAttributeTable)
+	private final static String KEY_EVENT_ENCODING = "eventEncoding";		// "json" (default) or "binary"
+	private final static String EVENT_DELIVERY_BATCH = "batch";
+	private final static String EVENT_ENCODING_BINARY = "binary";
+	private final static long DEFAULT_BATCH_WINDOW = 16;			// Milliseconds
 	
-	private AppSettings myAppSettings = null;
-	
-	private enum AlarmSound
-	{
-		SOUND_0,			// Custom alarm sound
-		SOUND_1,			// Custom alarm sound
-		SOUND_2,			// Custom alarm sound
-		SOUND_3,			// Custom alarm sound
-		SOUND_4,			// Custom alarm sound
-		SOUND_RINGTONE,			// Default ringtone sound
-		SOUND_ALARM,			// Default alarm sound
-		SOUND_NOTIFICATION,		// Default notification sound
-		SOUND_OFF;			// No alarm sound
-	}
-	
-	private class AppSettings
-	{
-		//public boolean alert = true;			// Alarm on/off flag
-		public AlarmSound sound = AlarmSound.SOUND_0;	// Sound flag
-		public boolean vibration = false;		// Vibration on/off flag
-		public boolean log = true;			// Alarm logging on/off flag
-	}
-	
-	// MediaPlayer state diagram
-	private enum MediaPlayerState
-	{
-		IDLE,
-		INITIALIZED,
-		PREPARING,
-		PREPARED,
-		STARTED,
-		PAUSED,
-		STOPPED,
-		PLAYBACK_COMPLETED,
-		END,
-		ERROR;
-	}
-	
-	private MediaPlayerState mPlayerState;				// MediaPlayer state
-	
-	private SensesoftMiniService mService;				// Foreground service that keeps the app awake
+	private SensesoftMiniService mService;				// Foreground service that keeps the app awake (state actor thread only)
     	private boolean isBound = false;				// Flag indicating if the service is bound
 	
 	// Used to bind/unbind the foreground service with the activity
@@ -207,16 +273,12 @@ public class GattServerPlugin extends CordovaPlugin
 		public void onServiceConnected(ComponentName className, IBinder service) {
 			// We've bound to SensesoftMiniService, cast the IBinder and get SensesoftMiniService instance
             		SensesoftMiniBinder binder = (SensesoftMiniBinder) service;
-            		mService = binder.getService();
-            		isBound = true;
-			Intent appIntent = cordova.getActivity().getIntent();	// This will start the app if not running otherwise bring it to the foreground
-			appIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-			mService.enableForegroundService(appIntent);
+			stateActor.send(PluginStateActor.MSG_SERVICE_CONNECTED, binder.getService());
 		}
 		// Callback for service unbinding, passed to unbindService()
         	@Override
 		public void onServiceDisconnected(ComponentName name) {
-		    	isBound = false;
+			stateActor.send(PluginStateActor.MSG_SERVICE_DISCONNECTED, null);
 		}
 	};
 	
@@ -224,6 +286,8 @@ public class GattServerPlugin extends CordovaPlugin
 	/*********************************************************************************************************************
 	Bluetooth GATT interface callbacks
 	*********************************************************************************************************************/
+	// The callbacks below that change the plugin state only send a message to the state actor (see receive()). The
+	// read requests only read the attribute values (thread safe), so they are answered directly on the binder thread.
 	private final BluetoothGattServerCallback mBluetoothGattServerCallback = new BluetoothGattServerCallback() {
 		
 		// Remote client characteristic write request
@@ -232,82 +296,14 @@ public class GattServerPlugin extends CordovaPlugin
 			
 			//showDebugMsgBox("Write request: " + "value=" + String.valueOf((int)value[0]) + " offset=" + String.valueOf(offset));
 			
-			if(characteristic.getUuid() ==  ALERT_LEVEL_CHAR_UUID){
-				//showDebugMsgBox("Hej!");
-				int alertLevel = (int)value[0];
-				characteristic.setValue(value);
-				if(!iasInitialized && alertLevel != 0){
-					// The first alarm received after a nRF8002 module has connected to the GATT server or
-					// the alarm has been reseted by calling resetAlarm()
-					iasInitialized = true;
-					alarm(parseCharacteristicValue(alertLevel), device.getAddress());
-				}
-				else if (iasInitialized){
-					// When an Immediate Alert level is set to trigger on "activated" on the nRF8002, it sends
-					// "toggled" levels. That is, it sends "No Alert" on every second positive flank and the
-					// configured alert level on every other. So interpret every write to this characteristic as
-					// an alarm after the first alarm.
-					alarm(parseCharacteristicValue(alertLevel), device.getAddress());
-				}
-				else {
-					// Ignore first value(s) received. When a nRF8002 module connects to the GATT server
-					// running Immediate Alert Service, it writes it's current alert level (sometimes twice).
-					// This must not be interpreted as an alert.
-					//alarm(parseCharacteristicValue(alertLevel), device.getAddress()); // Added 2017-01-27 just to test sounds without having to manually trigger an alarm. Remove when done!!!
-				}
-				
-				if (responseNeeded)
-					gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, null);
-			}
-			else {
-				if (responseNeeded)
-					gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_REQUEST_NOT_SUPPORTED, offset, null);
-				
-				JSONObject returnObj = new JSONObject();
-				addProperty(returnObj, keyError, errorWriteRequest);
-				addProperty(returnObj, keyMessage, logRequestNotSupported);
-				PluginResult pluginResult = new PluginResult(PluginResult.Status.ERROR, returnObj);
-				pluginResult.setKeepCallback(true);
-				serverRunningCallbackContext.sendPluginResult(pluginResult);
-			}
+			stateActor.send(PluginStateActor.MSG_CHARACTERISTIC_WRITE, new PluginStateActor.WriteRequest(device, requestId, characteristic, preparedWrite, responseNeeded, offset, value));
 		}
 		
 		@Override
 		public void onConnectionStateChange(BluetoothDevice device, int status, int newState) {
 			//Callback indicating when GATT client has connected/disconnected to/from a remote GATT server
 			
-			JSONObject returnObj = new JSONObject();
-			// Notify user of connection status change
-			if (status == BluetoothGatt.GATT_SUCCESS && newState == BluetoothGatt.STATE_CONNECTED) {
-				//showDebugMsgBox("STATE_CONNECTED!");
-				
-				// Start the foreground service if not already started
-				startService();
-				
-				addProperty(returnObj, keyStatus, statusConnectionState);
-				addProperty(returnObj, "device", device.getAddress());
-				addProperty(returnObj, "state", "connected");
-				PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, returnObj);
-				pluginResult.setKeepCallback(true);														// Save the callback so it can be invoked several times
-				serverRunningCallbackContext.sendPluginResult(pluginResult);
-			}
-			else if (newState == BluetoothGatt.STATE_DISCONNECTED) {
-				//showDebugMsgBox("STATE_DISCONNECTED!");				
-				addProperty(returnObj, keyStatus, statusConnectionState);
-				addProperty(returnObj, "device", device.getAddress());
-				addProperty(returnObj, "state", "disconnected");
-				PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, returnObj);
-				pluginResult.setKeepCallback(true);														// Save the callback so it can be invoked several times
-				serverRunningCallbackContext.sendPluginResult(pluginResult);
-			}
-			else {
-				addProperty(returnObj, keyError, errorConnectionState);
-				addProperty(returnObj, keyMessage, logConnectionState + " " + status);
-				PluginResult pluginResult = new PluginResult(PluginResult.Status.ERROR, returnObj);
-				pluginResult.setKeepCallback(false);
-				serverRunningCallbackContext.sendPluginResult(pluginResult);
-				serverRunningCallbackContext = null;
-			}
+			stateActor.send(PluginStateActor.MSG_CONNECTION_STATE, new PluginStateActor.ConnectionState(device, status, newState));
 		}
 
 		@Override
@@ -315,135 +311,226 @@ public class GattServerPlugin extends CordovaPlugin
 			
 			//showDebugMsgBox("onServiceAdded called!");
 			
-			JSONObject returnObj = new JSONObject();
-			
-			if(status != BluetoothGatt.GATT_SUCCESS){
-				// Notify user of error
-				addProperty(returnObj, keyError, errorServiceAdded);
-				addProperty(returnObj, keyMessage, logService);
-				PluginResult pluginResult = new PluginResult(PluginResult.Status.ERROR, returnObj);
-				pluginResult.setKeepCallback(false);
-				serverRunningCallbackContext.sendPluginResult(pluginResult);
-				serverRunningCallbackContext = null;
-				//showDebugMsgBox("onServiceAdded error!");
-				//return;
-			}
-			else {
-				// Notify user and save callback
-				addProperty(returnObj, keyStatus, statusServiceAdded);
-				PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, returnObj);
-				// Save the callback so it can be invoked several times
-				pluginResult.setKeepCallback(true);
-				serverRunningCallbackContext.sendPluginResult(pluginResult);
-				//showDebugMsgBox("onServiceAdded success!");
-			}
-			
+			stateActor.send(PluginStateActor.MSG_SERVICE_ADDED, new PluginStateActor.ServiceAdded(status, service));
 		}
 
 		@Override
 		public void onCharacteristicReadRequest(BluetoothDevice device, int requestId, int offset, BluetoothGattCharacteristic characteristic) {
-			// Not supported/implemented
-			
-			gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_REQUEST_NOT_SUPPORTED, offset, null);
-			
-			// Not really needed since there are currently no read requests
-			JSONObject returnObj = new JSONObject();
-			addProperty(returnObj, keyError, errorReadRequest);
-			addProperty(returnObj, keyMessage, logRequestNotSupported);
-			PluginResult pluginResult = new PluginResult(PluginResult.Status.ERROR, returnObj);
-			pluginResult.setKeepCallback(true);
-			serverRunningCallbackContext.sendPluginResult(pluginResult);
-		
+			serverCore.onCharacteristicRead(device.getAddress(), requestId, offset, characteristic);
 		}
-			
 
 		@Override
 		public void onDescriptorReadRequest(BluetoothDevice device, int requestId, int offset, BluetoothGattDescriptor descriptor) {
-			// Not supported/implemented
-			gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_REQUEST_NOT_SUPPORTED, offset, null);
+			serverCore.onDescriptorRead(device.getAddress(), requestId, offset, descriptor);
 		}
 
 		@Override
 		public void onDescriptorWriteRequest(BluetoothDevice device, int requestId, BluetoothGattDescriptor descriptor, boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
-			// Not supported/implemented
-			gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_REQUEST_NOT_SUPPORTED, offset, null);
+			
+			stateActor.send(PluginStateActor.MSG_DESCRIPTOR_WRITE, new PluginStateActor.WriteRequest(device, requestId, descriptor, preparedWrite, responseNeeded, offset, value));
+		}
+
+		@Override
+		public void onNotificationSent(BluetoothDevice device, int status) {
+			stateActor.send(PluginStateActor.MSG_NOTIFICATION_SENT, new PluginStateActor.LinkUpdate(device, status, 0));
+		}
+
+		@Override
+		public void onMtuChanged(BluetoothDevice device, int mtu) {
+			stateActor.send(PluginStateActor.MSG_MTU_CHANGED, new PluginStateActor.LinkUpdate(device, mtu, 0));
+		}
+
+		@Override
+		public void onPhyUpdate(BluetoothDevice device, int txPhy, int rxPhy, int status) {
+			if (status == BluetoothGatt.GATT_SUCCESS)
+				stateActor.send(PluginStateActor.MSG_PHY_UPDATE, new PluginStateActor.LinkUpdate(device, txPhy, rxPhy));
+		}
+
+		@Override
+		public void onPhyRead(BluetoothDevice device, int txPhy, int rxPhy, int status) {
+			if (status == BluetoothGatt.GATT_SUCCESS)
+				stateActor.send(PluginStateActor.MSG_PHY_UPDATE, new PluginStateActor.LinkUpdate(device, txPhy, rxPhy));
 		}
 
 		@Override
 		public void onExecuteWrite(BluetoothDevice device, int requestId, boolean execute) {
-			// Not supported/implemented
-			gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_REQUEST_NOT_SUPPORTED, 0, null);
+			stateActor.send(PluginStateActor.MSG_EXECUTE_WRITE, new PluginStateActor.ExecuteWrite(device, requestId, execute));
 		}
 	};
 	
 	
+	/*********************************************************************************************************************
+	Plugin state actor (all changes of the plugin state are made on its thread)
+	*********************************************************************************************************************/
+	private final PluginStateActor stateActor = new PluginStateActor(new PluginStateActor.Receiver() {
+		@Override
+		public void receive(int type, Object payload) {
+			switch (type) {
+				case PluginStateActor.MSG_CONNECTION_STATE:
+					serverCore.onConnectionState((PluginStateActor.ConnectionState) payload);
+					break;
+				case PluginStateActor.MSG_CHARACTERISTIC_WRITE:
+					serverCore.onCharacteristicWrite((PluginStateActor.WriteRequest) payload);
+					break;
+				case PluginStateActor.MSG_DESCRIPTOR_WRITE:
+					serverCore.onDescriptorWrite((PluginStateActor.WriteRequest) payload);
+					break;
+				case PluginStateActor.MSG_EXECUTE_WRITE:
+					serverCore.onExecuteWrite((PluginStateActor.ExecuteWrite) payload);
+					break;
+				case PluginStateActor.MSG_MTU_CHANGED:
+					serverCore.onMtuChanged((PluginStateActor.LinkUpdate) payload);
+					break;
+				case PluginStateActor.MSG_PHY_UPDATE:
+					serverCore.onPhyUpdate((PluginStateActor.LinkUpdate) payload);
+					break;
+				case PluginStateActor.MSG_NOTIFICATION_SENT:
+					serverCore.onNotificationSent((PluginStateActor.LinkUpdate) payload);
+					break;
+				case PluginStateActor.MSG_SERVICE_ADDED:
+					final PluginStateActor.ServiceAdded added = (PluginStateActor.ServiceAdded) payload;
+					// Completes (or retries) the service being added and adds the next one. The user is notified
+					// once all services have been added or if a service could not be added.
+					serviceRegistration.onServiceAdded(added.status, added.service);
+					break;
+				case PluginStateActor.MSG_REGISTRATION_TIMER:
+					// Retries the service being added if it was not added in time or after a failed attempt
+					serviceRegistration.onTimer(payload);
+					break;
+				case PluginStateActor.MSG_NOTIFICATION_TIMER:
+					// Fails the notification in flight if it was not reported sent in time and sends the next one
+					notificationSender.onTimer(payload);
+					break;
+				case PluginStateActor.MSG_ACTION:
+					final PluginStateActor.ActionRequest request = (PluginStateActor.ActionRequest) payload;
+					try {
+						dispatchAction(request.action, request.args, request.callbackContext);
+					}
+					catch (Exception ex) {
+						Log.e(TAG, request.action + " failed", ex);
+						request.callbackContext.error(ex.getMessage());
+					}
+					break;
+				case PluginStateActor.MSG_PAUSE:
+					alarmController.setInBackground(true);		// App is put in background
+					break;
+				case PluginStateActor.MSG_RESUME:
+					alarmController.setInBackground(false);		// App is put in foreground
+					alarmNotificationManager.cancelAll();
+					stopPlaying();
+					break;
+				case PluginStateActor.MSG_DESTROY:
+					destroy();
+					break;
+				case PluginStateActor.MSG_SERVICE_CONNECTED:
+					mService = (SensesoftMiniService) payload;
+					isBound = true;
+					Intent appIntent = cordova.getActivity().getIntent();	// This will start the app if not running otherwise bring it to the foreground
+					appIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+					mService.enableForegroundService(appIntent);
+					updateOngoingNotification();
+					break;
+				case PluginStateActor.MSG_SERVICE_DISCONNECTED:
+					isBound = false;
+					break;
+			}
+		}
+	});
+	
 	/*********************************************************************************************************************
 	Plugin Actions
 	*********************************************************************************************************************/
 	@Override
 	public boolean execute(String action, final JSONArray args, final CallbackContext callbackContext) throws JSONException
 	{
-		// Will run on the WebCore thread which here is fine
-		try {
-			if (START_GATT_SERVER.equals(action)) { 
-				startServerAction(callbackContext);
-				return true;
-			}
-			else if (RESET_ALARM.equals(action)){
-				resetAlarmAction(callbackContext);
-				return true;
-			}
-			else if (STOP_SOUND.equals(action)){
-				stopAlarmSoundAction(callbackContext);
-				return true;
-			}
-			else if (RELEASE_CPU.equals(action)){		// Action for Android only
-				releaseCpuAction(callbackContext);
-				return true;
-			}
-			else if (SET_APP_SETTINGS.equals(action)){
-				//cordova.getThreadPool().execute(new Runnable() {
-				//	public void run() {
-						setAppSettingsAction(callbackContext, args);
-				//	}				
-				//});
-				return true;
-			}
-			else if (GET_APP_SETTINGS.equals(action)){
-				//cordova.getThreadPool().execute(new Runnable() {
-				//	public void run() {
-						getAppSettingsAction(callbackContext);
-				//	}				
-				//});
-				return true;
-			}
-			else if (PLAY_SOUND.equals(action)){
-				playSoundAction(args.getInt(0));
-				return true;
-			}
-			else if (RESET_SOUND.equals(action)){
-				resetSoundAction(args.getInt(0));
-				return true;
-			}
-			else if (action.equals("alarm")){
-				alarmAction(callbackContext);
-				return true;
-			}
+		// Runs on the WebCore thread, the action itself is run on the state actor thread (see dispatchAction)
+		if (!ACTIONS.contains(action)){
 			callbackContext.error("Invalid action");
 			return false;
-		} 
-		catch(Exception ex) {
-			System.err.println("Exception: " + ex.getMessage());
-			callbackContext.error(ex.getMessage());
-			return false;
-		} 
+		}
+		stateActor.send(PluginStateActor.MSG_ACTION, new PluginStateActor.ActionRequest(action, args, callbackContext));
+		return true;
 	}
 	
-	private void startServerAction(CallbackContext callbackContext)
+	private void dispatchAction(String action, final JSONArray args, final CallbackContext callbackContext) throws JSONException
 	{
-		// Note: the flag indicating that Immediate Alert Service has been initialized (iasInitialized) will also be
+		// Runs on the state actor thread
+		
+		if (START_GATT_SERVER.equals(action)) { 
+			startServerAction(callbackContext, args.optJSONObject(0));
+		}
+		else if (RESET_ALARM.equals(action)){
+			resetAlarmAction(callbackContext);
+		}
+		else if (STOP_SOUND.equals(action)){
+			stopAlarmSoundAction(callbackContext);
+		}
+		else if (RELEASE_CPU.equals(action)){		// Action for Android only
+			releaseCpuAction(callbackContext);
+		}
+		else if (SET_APP_SETTINGS.equals(action)){
+			//cordova.getThreadPool().execute(new Runnable() {
+			//	public void run() {
+					setAppSettingsAction(callbackContext, args);
+			//	}				
+			//});
+		}
+		else if (GET_APP_SETTINGS.equals(action)){
+			//cordova.getThreadPool().execute(new Runnable() {
+			//	public void run() {
+					getAppSettingsAction(callbackContext);
+			//	}				
+			//});
+		}
+		else if (PLAY_SOUND.equals(action)){
+			playSoundAction(args.getInt(0));
+		}
+		else if (GET_AUDIO_STATS.equals(action)){
+			getAudioStatsAction(callbackContext);
+		}
+		else if (GET_WAKE_LOCK_STATS.equals(action)){
+			getWakeLockStatsAction(callbackContext, args.optJSONObject(0));
+		}
+		else if (RESET_SOUND.equals(action)){
+			resetSoundAction(args.getInt(0));
+		}
+		else if (NOTIFY.equals(action)){
+			notifyAction(callbackContext, args);
+		}
+		else if (SET_VALUE.equals(action)){
+			setValueAction(callbackContext, args);
+		}
+		else if (GET_CONNECTIONS.equals(action)){
+			getConnectionsAction(callbackContext);
+		}
+		else if (SET_ALARM_FILTER.equals(action)){
+			setAlarmFilterAction(callbackContext, args.optJSONObject(0));
+		}
+		else if (GET_QUEUE_STATS.equals(action)){
+			getQueueStatsAction(callbackContext, args.optJSONObject(0));
+		}
+		else if (GET_METRICS.equals(action)){
+			getMetricsAction(callbackContext, args.optJSONObject(0));
+		}
+		else if (QUERY_ALARM_LOG.equals(action)){
+			queryAlarmLogAction(callbackContext, args.optJSONObject(0));
+		}
+		else if (GET_ALARM_STATS.equals(action)){
+			getAlarmStatsAction(callbackContext, args.optJSONObject(0));
+		}
+		else if (ALARM.equals(action)){
+			alarmAction(callbackContext);
+		}
+	}
+	
+	private void startServerAction(CallbackContext callbackContext, JSONObject params)
+	{
+		// Note: the flags indicating that Immediate Alert Service has been initialized for each clip will also be
 		// reseted when calling this function.
 		
+		// Set how the server events are delivered to the server callback (one by one or in batches)
+		setEventDelivery(params);
+		
 		//showDebugMsgBox("startServerAction() called!");
 		JSONObject returnObj = new JSONObject();
 		
@@ -481,16 +568,27 @@ public class GattServerPlugin extends CordovaPlugin
 			// return;
 		}
 		
-		iasInitialized = false; 	// Reset the flag indicating that Immediate Alert Service has been initialized
+		alertStates.resetAll(); 	// Reset the flags indicating that Immediate Alert Service has been initialized
+		connectionRegistry.resetAlarming();
 		
-		// If GATT server has been initialized or the GATT server is already running, don't start it again
-		if((gattServer != null) && (serverRunningCallbackContext != null))
+		// Compile the requested GATT services (the Immediate Alert service if no services are given)
+		final GattAttributeTable attributeTable;
+		try {
+			attributeTable = getAttributeTable(params);
+		}
+		catch (Exception e) {
+			addProperty(returnObj, keyError, errorServiceDefinition);
+			addProperty(returnObj, keyMessage, e.getMessage());
+			PluginResult pluginResult = new PluginResult(PluginResult.Status.ERROR, returnObj);
+			pluginResult.setKeepCallback(false);
+			callbackContext.sendPluginResult(pluginResult);
+			return;
+		}
+		
+		// If the GATT server is already running the same services, don't start it again
+		if((gattServer != null) && eventDispatcher.hasSink() && (attributeTable == registeredTable))
 		{
-			addProperty(returnObj, keyStatus, statusServiceExists);
-			PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, returnObj);
-			pluginResult.setKeepCallback(true);		// Save the callback so it can be invoked several times
-			serverRunningCallbackContext.sendPluginResult(pluginResult);
-			//iasInitialized = false;
+			eventDispatcher.publish(ServerEvent.TYPE_SERVICE_EXISTS, null, 0, 0);
 			return;
 		}
 		
@@ -507,50 +605,91 @@ public class GattServerPlugin extends CordovaPlugin
 				callbackContext.sendPluginResult(pluginResult);
 				return;
 			}
+			registeredTable = null;
 		}
+		serverCore.setServer(new AndroidGattServer(gattServer, connectionRegistry));
 		
-		// Create an Immediate Alert service if not already provided by the device
-		final BluetoothGattService immediateAlertService = new BluetoothGattService(IMMEDIATE_ALERT_SERVICE_UUID, BluetoothGattService.SERVICE_TYPE_PRIMARY);
-		if(gattServer.getService(IMMEDIATE_ALERT_SERVICE_UUID) == null){
-			final BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(ALERT_LEVEL_CHAR_UUID, BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE, BluetoothGattCharacteristic.PERMISSION_WRITE);
-			//characteristic.setValue(ALERT_LEVEL_CHARACTERISTIC_VALUE, ALERT_LEVEL_CHARACTERISTIC_FORMATTYPE, ALERT_LEVEL_CHARACTERISTIC_OFFSET);
-			//characteristic.setValue(ALERT_LEVEL_HIGH);
-			characteristic.setValue(ALERT_LEVEL_LOW);
-			if(!immediateAlertService.addCharacteristic(characteristic)){
-				// Notify user of error
-				addProperty(returnObj, keyError, errorServiceAdded);
-				addProperty(returnObj, keyMessage, logService);
-				PluginResult pluginResult = new PluginResult(PluginResult.Status.ERROR, returnObj);
-				pluginResult.setKeepCallback(false);
-				callbackContext.sendPluginResult(pluginResult);
-				return;	
+		// Remove the services registered from a previous definition but no longer defined
+		if (registeredTable != null){
+			for (UUID uuid : attributeTable.getRemovedServices(registeredTable)){
+				removeService(uuid);
 			}
 		}
-		else {
-			// Notify user of added service(s) and save callback context
-			serverRunningCallbackContext = callbackContext;
-			addProperty(returnObj, keyStatus, statusServiceExists);
-			PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, returnObj);
-			pluginResult.setKeepCallback(true);		// Save the callback so it can be invoked several times
-			serverRunningCallbackContext.sendPluginResult(pluginResult);
-			return;
+		
+		// Add the services not already provided by the device, replacing those whose definition has changed
+		final List<GattAttributeTable.ServiceDefinition> pendingServices = new ArrayList<GattAttributeTable.ServiceDefinition>();
+		for (GattAttributeTable.ServiceDefinition definition : attributeTable.getServices()){
+			if (gattServer.getService(definition.uuid) != null){
+				if (registeredTable == null || definition.matches(registeredTable.getService(definition.uuid)))
+					continue;
+				removeService(definition.uuid);
+			}
+			pendingServices.add(definition);
 		}
+		registeredTable = attributeTable;
+		registerDefaultHandlers(attributeTable);
 		
 		//Save the callback context for setting up GATT server
-		serverRunningCallbackContext = callbackContext;
+		eventDispatcher.setSink(new CallbackContextSink(callbackContext));
+		
+		if (pendingServices.isEmpty()){
+			// Notify user of added service(s)
+			eventDispatcher.publish(ServerEvent.TYPE_SERVICE_EXISTS, null, 0, 0);
+			return;
+		}
+		
+		// Add the services one after another (completed by the implementation of the onServiceAdded callback)
+		serviceRegistration.register(gattServer, pendingServices);
+	}
+	
+	private void removeService(final UUID serviceUuid)
+	{
+		// Removes a service of a previous definition from the GATT server together with its values and default handlers
+		
+		final BluetoothGattService service = gattServer.getService(serviceUuid);
+		if (service == null)
+			return;
+		gattServer.removeService(service);
+		attributeValues.unload(service);
+		for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()){
+			final AttributeHandlerRegistry.Entry entry = attributeHandlers.lookup(serviceUuid, characteristic.getUuid());
+			if (entry != null && entry.getHandler() == characteristicValueHandler)
+				attributeHandlers.unregister(serviceUuid, characteristic.getUuid());
+		}
+	}
+	
+	private GattAttributeTable getAttributeTable(final JSONObject params) throws JSONException
+	{
+		// Returns the compiled (and cached) attribute table of the services in the startServer parameters
+		
+		JSONArray services = (params != null) ? params.optJSONArray(KEY_SERVICES) : null;
+		if (services == null || services.length() == 0)
+			return GattAttributeTable.immediateAlert();
+		return GattAttributeTable.compile(services);
+	}
+	
+	private void registerDefaultHandlers(final GattAttributeTable attributeTable)
+	{
+		// Characteristics without a dedicated handler serve reads and writes of their current value
 		
-		// Add Immediate Alert service (this will call the implementation od the onServiceAdded callback)
-		gattServer.addService(immediateAlertService);
+		for (GattAttributeTable.ServiceDefinition service : attributeTable.getServices()){
+			for (GattAttributeTable.CharacteristicDefinition characteristic : service.characteristics){
+				if (attributeHandlers.lookup(service.uuid, characteristic.uuid) == null)
+					attributeHandlers.register(service.uuid, characteristic.uuid, characteristicValueHandler);
+			}
+		}
 	}
 	
 	private void resetAlarmAction(CallbackContext callbackContext)
 	{
-		// Resets the Immediate Alert Service initialized flag.
+		// Resets the Immediate Alert Service initialized flag of every connected clip.
 		// Should be called after a client has disconnected since when a nRF8002 module connects to the GATT server running
 		// Immediate Alert Service, it writes it's current alert level (always "No Alert", that is alert level 0). This must
 		// not be interpreted as an alert.
 		
-		iasInitialized = false;
+		alertStates.resetAll();
+		connectionRegistry.resetAlarming();
+		updateOngoingNotification();
 		
 		// Release the wake lock if it has been acquired but not yet released
 		/*if (wakeLock.isHeld())
@@ -574,10 +713,237 @@ public class GattServerPlugin extends CordovaPlugin
 	
 	private void stopAlarmSoundAction(CallbackContext callbackContext)
 	{
-		// Stops playback of any sound the MediaPlayer is playing
+		// Stops playback of any alarm sound playing
 		stopPlaying();
 	}
 	
+	private void notifyAction(CallbackContext callbackContext, JSONArray args)
+	{
+		// Queues notifications/indications of characteristic values to the connected clients. The argument is a
+		// notification object, or an array of them to send many with one call:
+		// {device: address (optional, all clients subscribed to the characteristic if not given),
+		//  service: UUID (optional), characteristic: UUID, value: array of bytes or hex string}
+		
+		JSONObject returnObj = new JSONObject();
+		if (gattServer == null){
+			addProperty(returnObj, keyError, errorNotify);
+			addProperty(returnObj, keyMessage, logServerNotRunning);
+			PluginResult pluginResult = new PluginResult(PluginResult.Status.ERROR, returnObj);
+			pluginResult.setKeepCallback(false);
+			callbackContext.sendPluginResult(pluginResult);
+			return;
+		}
+		
+		final NotificationSender.SendCounts counts = new NotificationSender.SendCounts();
+		int unknown = 0;
+		try {
+			JSONArray notifications = args.optJSONArray(0);
+			if (notifications == null){
+				notifications = new JSONArray();
+				notifications.put(args.getJSONObject(0));
+			}
+			for (int i = 0; i < notifications.length(); i++){
+				JSONObject notification = notifications.getJSONObject(i);
+				BluetoothGattCharacteristic characteristic = findCharacteristic(notification.optString(KEY_NOTIFY_SERVICE, null), notification.getString(KEY_NOTIFY_CHARACTERISTIC));
+				if (characteristic == null){
+					unknown++;
+					continue;
+				}
+				byte[] value = GattAttributeTable.parseValue(notification.opt(KEY_NOTIFY_VALUE));
+				if (value == null)
+					value = new byte[0];
+				String device = notification.optString(KEY_NOTIFY_DEVICE, null);
+				if (device == null){
+					attributeValues.set(characteristic, value);	// New current value, also served to read requests
+					notificationSender.sendToSubscribers(characteristic, value, counts);
+				}
+				else {
+					notificationSender.send(device, characteristic, value, counts);
+				}
+			}
+		}
+		catch (Exception e) {
+			addProperty(returnObj, keyError, errorNotify);
+			addProperty(returnObj, keyMessage, e.getMessage());
+			PluginResult pluginResult = new PluginResult(PluginResult.Status.ERROR, returnObj);
+			pluginResult.setKeepCallback(false);
+			callbackContext.sendPluginResult(pluginResult);
+			return;
+		}
+		
+		// Notify user of queued and rejected notifications (and why) and the send queue statistics
+		addProperty(returnObj, "queued", counts.queued);
+		addProperty(returnObj, "rejected", unknown + counts.getRejected());
+		addProperty(returnObj, "unknownCharacteristic", unknown);
+		addProperty(returnObj, "notConnected", counts.notConnected);
+		addProperty(returnObj, "notSubscribed", counts.notSubscribed);
+		addProperty(returnObj, "queueFull", counts.queueFull);
+		addProperty(returnObj, "tooLong", counts.tooLong);	// Values longer than MTU-3 bytes of the connection
+		addProperty(returnObj, "queueDepth", notificationSender.getQueueDepth());
+		addProperty(returnObj, "sent", notificationSender.getSent());
+		addProperty(returnObj, "failed", notificationSender.getFailed());
+		addProperty(returnObj, "sentBytes", notificationSender.getSentBytes());
+		addProperty(returnObj, "throughput", notificationSender.getThroughput());	// Notifications per second
+		PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, returnObj);
+		pluginResult.setKeepCallback(false);
+		callbackContext.sendPluginResult(pluginResult);
+	}
+	
+	private void setValueAction(CallbackContext callbackContext, JSONArray args)
+	{
+		// Updates the values served (natively) to read requests of characteristics and descriptors. The argument is
+		// a value object, or an array of them to update many with one call:
+		// {service: UUID (optional), characteristic: UUID, descriptor: UUID (optional, the characteristic's value if not given),
+		//  value: array of bytes or hex string}
+		
+		JSONObject returnObj = new JSONObject();
+		if (gattServer == null){
+			addProperty(returnObj, keyError, errorSetValue);
+			addProperty(returnObj, keyMessage, logServerNotRunning);
+			PluginResult pluginResult = new PluginResult(PluginResult.Status.ERROR, returnObj);
+			pluginResult.setKeepCallback(false);
+			callbackContext.sendPluginResult(pluginResult);
+			return;
+		}
+		
+		int updated = 0;
+		int rejected = 0;
+		try {
+			JSONArray values = args.optJSONArray(0);
+			if (values == null){
+				values = new JSONArray();
+				values.put(args.getJSONObject(0));
+			}
+			for (int i = 0; i < values.length(); i++){
+				JSONObject value = values.getJSONObject(i);
+				BluetoothGattCharacteristic characteristic = findCharacteristic(value.optString(KEY_NOTIFY_SERVICE, null), value.getString(KEY_NOTIFY_CHARACTERISTIC));
+				Object attribute = characteristic;
+				String descriptorUuid = value.optString(KEY_VALUE_DESCRIPTOR, null);
+				if (characteristic != null && descriptorUuid != null)
+					attribute = characteristic.getDescriptor(GattAttributeTable.parseUuid(descriptorUuid));
+				if (attribute == null){
+					rejected++;
+					continue;
+				}
+				attributeValues.set(attribute, GattAttributeTable.parseValue(value.opt(KEY_NOTIFY_VALUE)));
+				updated++;
+			}
+		}
+		catch (Exception e) {
+			addProperty(returnObj, keyError, errorSetValue);
+			addProperty(returnObj, keyMessage, e.getMessage());
+			PluginResult pluginResult = new PluginResult(PluginResult.Status.ERROR, returnObj);
+			pluginResult.setKeepCallback(false);
+			callbackContext.sendPluginResult(pluginResult);
+			return;
+		}
+		
+		// Notify user of updated values
+		addProperty(returnObj, "updated", updated);
+		addProperty(returnObj, "rejected", rejected);
+		PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, returnObj);
+		pluginResult.setKeepCallback(false);
+		callbackContext.sendPluginResult(pluginResult);
+	}
+	
+	private void getConnectionsAction(CallbackContext callbackContext)
+	{
+		// Returns the connected clients, the MTU and PHY of their connections, their request counters and if they have alarmed
+		
+		JSONArray connections = new JSONArray();
+		for (ConnectionRegistry.Connection connection : connectionRegistry.snapshot()){
+			JSONObject connectionObj = new JSONObject();
+			addProperty(connectionObj, "device", connection.getAddress());
+			addProperty(connectionObj, "connectTime", connection.getConnectTime());
+			addProperty(connectionObj, "connectedTime", connection.getConnectedTime());
+			addProperty(connectionObj, "mtu", connection.getMtu());
+			addProperty(connectionObj, "txPhy", connection.getTxPhy());
+			addProperty(connectionObj, "rxPhy", connection.getRxPhy());
+			addProperty(connectionObj, "readRequests", connection.getReadRequests());
+			addProperty(connectionObj, "writeRequests", connection.getWriteRequests());
+			addProperty(connectionObj, "notificationsSent", connection.getNotificationsSent());
+			addProperty(connectionObj, "alarming", connection.isAlarming());
+			connections.put(connectionObj);
+		}
+		PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, connections);
+		pluginResult.setKeepCallback(false);
+		callbackContext.sendPluginResult(pluginResult);
+	}
+	
+	private void setAlarmFilterAction(CallbackContext callbackContext, final JSONObject params)
+	{
+		// Sets the parameters of the alarm filters for all clips or, if a device is given, for one clip.
+		// Parameters not given keep their current values. Returns the parameters now in use.
+		
+		JSONObject returnObj = new JSONObject();
+		try {
+			final String device = (params != null) ? params.optString(KEY_FILTER_DEVICE, null) : null;
+			AlarmFilterPipeline.Config config;
+			if (device == null){
+				config = parseAlarmFilterConfig(params, alarmFilters.getDefaultConfig());
+				alarmFilters.setDefaultConfig(config);
+			}
+			else if (params.optBoolean(KEY_FILTER_RESET, false)){
+				alarmFilters.setDeviceConfig(device, null);
+				config = alarmFilters.getDefaultConfig();
+			}
+			else {
+				config = parseAlarmFilterConfig(params, alarmFilters.getConfig(device));
+				alarmFilters.setDeviceConfig(device, config);
+			}
+			addProperty(returnObj, KEY_FILTER_TOGGLE_DECODE, config.toggleDecode);
+			addProperty(returnObj, KEY_FILTER_MIN_LEVEL, config.minLevel);
+			addProperty(returnObj, KEY_FILTER_DEBOUNCE_INTERVAL, config.debounceInterval);
+			addProperty(returnObj, KEY_FILTER_BURST_WINDOW, config.burstWindow);
+			addProperty(returnObj, KEY_FILTER_BURST_MAX_ALARMS, config.burstMaxAlarms);
+		}
+		catch (Exception e) {
+			addProperty(returnObj, keyError, errorAlarmFilter);
+			addProperty(returnObj, keyMessage, e.getMessage());
+			PluginResult pluginResult = new PluginResult(PluginResult.Status.ERROR, returnObj);
+			pluginResult.setKeepCallback(false);
+			callbackContext.sendPluginResult(pluginResult);
+			return;
+		}
+		PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, returnObj);
+		pluginResult.setKeepCallback(false);
+		callbackContext.sendPluginResult(pluginResult);
+	}
+	
+	private AlarmFilterPipeline.Config parseAlarmFilterConfig(final JSONObject params, final AlarmFilterPipeline.Config current) throws JSONException
+	{
+		// Returns the alarm filter parameters given, the current values for those not given
+		
+		if (params == null)
+			return current;
+		final boolean toggleDecode = params.optBoolean(KEY_FILTER_TOGGLE_DECODE, current.toggleDecode);
+		final int minLevel = params.optInt(KEY_FILTER_MIN_LEVEL, current.minLevel);
+		final long debounceInterval = params.optLong(KEY_FILTER_DEBOUNCE_INTERVAL, current.debounceInterval);
+		final long burstWindow = params.optLong(KEY_FILTER_BURST_WINDOW, current.burstWindow);
+		final int burstMaxAlarms = params.optInt(KEY_FILTER_BURST_MAX_ALARMS, current.burstMaxAlarms);
+		if (minLevel < 0 || debounceInterval < 0 || burstWindow < 0 || burstMaxAlarms < 0)
+			throw new JSONException("Negative alarm filter parameter");
+		return new AlarmFilterPipeline.Config(toggleDecode, minLevel, debounceInterval, burstWindow, burstMaxAlarms);
+	}
+	
+	
+	private BluetoothGattCharacteristic findCharacteristic(final String serviceUuid, final String characteristicUuid)
+	{
+		// Returns the characteristic of the GATT server (searching all services if no service is given) or null if not found
+		
+		final UUID charUuid = GattAttributeTable.parseUuid(characteristicUuid);
+		if (serviceUuid != null){
+			final BluetoothGattService service = gattServer.getService(GattAttributeTable.parseUuid(serviceUuid));
+			return (service != null) ? service.getCharacteristic(charUuid) : null;
+		}
+		for (BluetoothGattService service : gattServer.getServices()){
+			final BluetoothGattCharacteristic characteristic = service.getCharacteristic(charUuid);
+			if (characteristic != null)
+				return characteristic;
+		}
+		return null;
+	}
+	
 	private void releaseCpuAction(CallbackContext callbackContext)
 	{
 		// Stops the SenseSoftMini service (which releases its claim to the CPU by releasing acquired wake lock).
@@ -592,12 +958,10 @@ public class GattServerPlugin extends CordovaPlugin
 		// Disconnects an established connection or cancels a connection attempt currently in progress 
 		if (gattServer != null){
 			//showDebugMsgBox("releaseCpuAction 0");
-			final BluetoothManager bluetoothManager = (BluetoothManager) cordova.getActivity().getSystemService(Context.BLUETOOTH_SERVICE);
-			List<BluetoothDevice> clientClips = bluetoothManager.getConnectedDevices(android.bluetooth.BluetoothProfile.GATT);
-			//if (!clientClips.isEmpty())
-			//	gattServer.cancelConnection(clientClips.get(0));
-			for (int i = 0; i < clientClips.size(); i++){
-				gattServer.cancelConnection(clientClips.get(i));
+			// The connected clips are known from the server callbacks (no need to ask the Bluetooth stack). Cancelled
+			// connections no longer hold the wake locks or restart the service while their disconnections are pending
+			for (ConnectionRegistry.Connection connection : connectionRegistry.cancelAll()){
+				gattServer.cancelConnection(connection.getDevice());
 			}
 			// Close the GATT server instance if bluetooth is not enabled (need to close on some devices)
 			if (BluetoothAdapter.getDefaultAdapter() != null){
@@ -605,12 +969,19 @@ public class GattServerPlugin extends CordovaPlugin
 					//showDebugMsgBox("releaseCpuAction 1");
 					gattServer.close();
 					gattServer = null;
+					registeredTable = null;
+					serverCore.setServer(null);
+					notificationSender.clear();
+					attributeValues.clear();
+					connectionRegistry.clear();	// No disconnection callbacks once closed
 				}
 			}
 		}
 		
 		// Stops the service if it is running
 		stopService();
+		// Release the wake lock (not reacquired by the pending disconnections)
+		wakeLocks.releaseAll();
 	}
 	
 	private void setAppSettingsAction(CallbackContext callbackContext, JSONArray settings)
@@ -619,22 +990,16 @@ public class GattServerPlugin extends CordovaPlugin
 		JSONObject appSettings;
 		try {
 			appSettings = settings.getJSONObject(0);
-			myAppSettings.sound = AlarmSound.values()[appSettings.getInt(KEY_SOUND_SETTING)];
-			//myAppSettings.vibration = appSettings.getBoolean(KEY_VIBRATION_SETTING);
-			myAppSettings.vibration = (appSettings.getInt(KEY_VIBRATION_SETTING) != 0);	// Converts int to boolean
-			//myAppSettings.log = appSettings.getBoolean(KEY_LOG_SETTING);
-			myAppSettings.log = (appSettings.getInt(KEY_LOG_SETTING) != 0);		// Converts int to boolean
-			appPreferencesEditor.putString(KEY_APP_SETTINGS, appSettings.toString());
-                        if (!appPreferencesEditor.commit()) {
-				// Failed to write user's preferences to persistent storage
-				// Notify user of error
-				addProperty(returnObj, keyError, errorAppSettings);
-				addProperty(returnObj, keyMessage, logAppSettings);
-				PluginResult pluginResult = new PluginResult(PluginResult.Status.ERROR, returnObj);
-				pluginResult.setKeepCallback(false);
-				callbackContext.sendPluginResult(pluginResult);
-				return;	
-			}
+			final int sound = appSettings.getInt(KEY_SOUND_SETTING);
+			if (sound < 0 || sound >= AlarmSound.values().length)
+				throw new JSONException("Unknown sound " + sound);
+			//final boolean vibration = appSettings.getBoolean(KEY_VIBRATION_SETTING);
+			final boolean vibration = (appSettings.getInt(KEY_VIBRATION_SETTING) != 0);	// Converts int to boolean
+			//final boolean log = appSettings.getBoolean(KEY_LOG_SETTING);
+			final boolean log = (appSettings.getInt(KEY_LOG_SETTING) != 0);		// Converts int to boolean
+			// Published at once to the alarm path, written to persistent storage in the background
+			settingsStore.update(new AppSettingsStore.Settings(AlarmSound.values()[sound], vibration, log), true);
+			alarmNotifications.useSettings(AlarmSound.values()[sound], vibration);
             	} 
 		catch (Exception e) {
                 	// Notify user of error
@@ -646,11 +1011,8 @@ public class GattServerPlugin extends CordovaPlugin
 			return;	
 		}
 		
-		// Set the sound
-		setAlarmNotificationSound(myAppSettings.sound);
-		setAlarmNotificationVibrate(myAppSettings.vibration);		// Added 2018-05-18
-		//setAlarmNotificationSound(AlarmSound.values()[getAppSetting(KEY_SOUND_SETTING)]);
-		initMediaPlayer(true);
+		// The alarm notifications of all sound and vibration settings are prebuilt, only the notification channels
+		// of the new settings are created (see AlarmNotifications)
 		
 		// Notify user
 		PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, true);
@@ -660,119 +1022,255 @@ public class GattServerPlugin extends CordovaPlugin
 	
 	private void getAppSettingsAction(CallbackContext callbackContext)
 	{	
-		// Returns the app settings from the shared preferences if callbackContext is not null. 
-		// Otherwise, it "loads" the user's app preferneces from the shared preferences.
-		JSONObject returnObj;
-		try {
-			String settingsString = appPreferences.getString(KEY_APP_SETTINGS, "NA");
-			if (settingsString.equals("NA")){
-				
-				// Shared preferences don't exist yet, notify user with defaults
-				if (callbackContext != null){
-					returnObj = new JSONObject();
-					addProperty(returnObj, KEY_SOUND_SETTING, myAppSettings.sound.ordinal());
-					addProperty(returnObj, KEY_VIBRATION_SETTING, myAppSettings.vibration);
-					// Check if device has vibrator and permission (if and else added 2018-05-18)
-					Vibrator vib = (Vibrator) cordova.getActivity().getSystemService(Context.VIBRATOR_SERVICE);
-					if (vib.hasVibrator()){
-						if (ContextCompat.checkSelfPermission(cordova.getActivity(), permission.VIBRATE) == PackageManager.PERMISSION_GRANTED){
-							addProperty(returnObj, KEY_VIBRATOR_AVAILABLE, true);
-						}
-						else
-							addProperty(returnObj, KEY_VIBRATOR_AVAILABLE, false);
-					}
-					else {
-						addProperty(returnObj, KEY_VIBRATOR_AVAILABLE, false);
-					}
-					addProperty(returnObj, KEY_LOG_SETTING, myAppSettings.log);
-					PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, returnObj);
-					pluginResult.setKeepCallback(false);
-					callbackContext.sendPluginResult(pluginResult);
-				}
-				return;		
-			}
-			returnObj = new JSONObject(settingsString);
+		// Returns the app settings (the defaults if they have never been set) and if the device can vibrate
+		
+		final AppSettingsStore.Settings settings = settingsStore.get();
+		JSONObject returnObj = new JSONObject();
+		addProperty(returnObj, KEY_SOUND_SETTING, settings.sound.ordinal());
+		addProperty(returnObj, KEY_VIBRATION_SETTING, settings.vibration ? 1 : 0);	// Same format as set by setAppSettings
+		addProperty(returnObj, KEY_VIBRATOR_AVAILABLE, settingsStore.isVibratorAvailable());
+		addProperty(returnObj, KEY_LOG_SETTING, settings.log ? 1 : 0);
+		PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, returnObj);
+		pluginResult.setKeepCallback(false);
+		callbackContext.sendPluginResult(pluginResult);
+	}
+	
+	private void playSoundAction(int sound)
+	{
+		// Plays the sound given by the sound argument (a preview, the sound setting is not changed)
+		
+		stopPlaying();
+		if (sound >= 0 && sound < AlarmSound.SOUND_OFF.ordinal())
+			audioEngine.play(sound, System.nanoTime());
+	}
+	
+	private void resetSoundAction(int sound)
+	{
+		// Sets the sound played on alarms to the sound given by the sound argument
+		
+		final AppSettingsStore.Settings settings = settingsStore.get().withSound(AlarmSound.values()[sound]);
+		settingsStore.update(settings, false);	// Not saved
+		alarmNotifications.useSettings(settings.sound, settings.vibration);
+	}
+	
+	private void getAudioStatsAction(CallbackContext callbackContext)
+	{
+		// Returns the alarm sound playback counters and the alarm to playback latencies (in microseconds)
+		
+		JSONObject returnObj = new JSONObject();
+		addProperty(returnObj, "plays", audioEngine.getPlays());
+		addProperty(returnObj, "failures", audioEngine.getFailures());
+		addProperty(returnObj, "lastLatency", audioEngine.getLastLatency() / 1000);
+		addProperty(returnObj, "averageLatency", audioEngine.getAverageLatency() / 1000);
+		addProperty(returnObj, "maxLatency", audioEngine.getMaxLatency() / 1000);
+		PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, returnObj);
+		pluginResult.setKeepCallback(false);
+		callbackContext.sendPluginResult(pluginResult);
+	}
+	
+	private void getWakeLockStatsAction(CallbackContext callbackContext, JSONObject params)
+	{
+		// Returns the wake lock counters (times in milliseconds), optionally zeroing them (for example per shift)
+		
+		JSONObject returnObj = new JSONObject();
+		addProperty(returnObj, "held", wakeLocks.isHeld());
+		addProperty(returnObj, "acquisitions", wakeLocks.getAcquisitions());
+		addProperty(returnObj, "heldTime", wakeLocks.getHeldTime());
+		addProperty(returnObj, "longestHold", wakeLocks.getLongestHold());
+		addProperty(returnObj, "timeouts", wakeLocks.getTimeouts());
+		if (params != null && params.optBoolean(KEY_STATS_RESET, false))
+			wakeLocks.resetStats();
+		PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, returnObj);
+		pluginResult.setKeepCallback(false);
+		callbackContext.sendPluginResult(pluginResult);
+	}
+	
+	private void getQueueStatsAction(CallbackContext callbackContext, JSONObject params)
+	{
+		// Returns the state actor queue depth and, per message type, the number of messages and the time they waited in
+		// the queue (in microseconds), the server events dropped, the notification send queue counters, the prepared
+		// (long) write counters and the request counts and handling times of the characteristic handlers, optionally
+		// zeroing the notification counters
+		
+		JSONObject returnObj = new JSONObject();
+		addProperty(returnObj, "queued", stateActor.getQueued());
+		addProperty(returnObj, "maxQueued", stateActor.getMaxQueued());
+		addProperty(returnObj, "droppedEvents", eventDispatcher.getDroppedEvents());	// Server events lost because the event queue was full
+		addProperty(returnObj, "droppedAlarms", eventDispatcher.getDroppedAlarms());	// Of which alarm events
+		for (int type = 0; type < PluginStateActor.TYPE_COUNT; type++){
+			JSONObject typeObj = new JSONObject();
+			addProperty(typeObj, "count", stateActor.getCount(type));
+			addProperty(typeObj, "failures", stateActor.getFailures(type));
+			addProperty(typeObj, "averageLatency", stateActor.getAverageLatency(type) / 1000);
+			addProperty(typeObj, "maxLatency", stateActor.getMaxLatency(type) / 1000);
+			addProperty(returnObj, PluginStateActor.getTypeName(type), typeObj);
+		}
+		JSONObject notificationsObj = new JSONObject();
+		addProperty(notificationsObj, "queueDepth", notificationSender.getQueueDepth());
+		addProperty(notificationsObj, "queued", notificationSender.getQueued());
+		addProperty(notificationsObj, "rejected", notificationSender.getRejected());	// Not connected, not subscribed, send queue full or too long
+		addProperty(notificationsObj, "tooLong", notificationSender.getTooLong());
+		addProperty(notificationsObj, "sent", notificationSender.getSent());
+		addProperty(notificationsObj, "failed", notificationSender.getFailed());
+		addProperty(notificationsObj, "timedOut", notificationSender.getTimedOut());	// Not reported sent in time (counted as failed)
+		addProperty(notificationsObj, "sentBytes", notificationSender.getSentBytes());
+		addProperty(notificationsObj, "throughput", notificationSender.getThroughput());	// Notifications per second
+		addProperty(returnObj, "notifications", notificationsObj);
+		JSONObject preparedWritesObj = new JSONObject();
+		addProperty(preparedWritesObj, "allocatedBuffers", preparedWrites.getAllocatedBuffers());	// Reassembly buffers not taken from the pool
+		addProperty(preparedWritesObj, "committedWrites", preparedWrites.getCommittedWrites());
+		addProperty(preparedWritesObj, "committedBytes", preparedWrites.getCommittedBytes());
+		addProperty(preparedWritesObj, "discardedWrites", preparedWrites.getDiscardedWrites());	// Cancelled or client disconnected
+		addProperty(returnObj, "preparedWrites", preparedWritesObj);
+		JSONArray handlers = new JSONArray();
+		for (AttributeHandlerRegistry.Entry handler : attributeHandlers.entries()){
+			// Time spent in the handler of each characteristic (see AttributeHandlerRegistry)
+			JSONObject handlerObj = new JSONObject();
+			addProperty(handlerObj, "service", handler.getServiceUuid().toString());
+			addProperty(handlerObj, "characteristic", handler.getCharacteristicUuid().toString());
+			addProperty(handlerObj, "requests", handler.getRequests());
+			addProperty(handlerObj, "averageLatency", (handler.getRequests() > 0) ? handler.getTotalNanos() / handler.getRequests() / 1000 : 0);
+			addProperty(handlerObj, "maxLatency", handler.getMaxNanos() / 1000);
+			handlers.put(handlerObj);
+		}
+		addProperty(returnObj, "handlers", handlers);
+		if (params != null && params.optBoolean(KEY_STATS_RESET, false))
+			notificationSender.resetStats();
+		PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, returnObj);
+		pluginResult.setKeepCallback(false);
+		callbackContext.sendPluginResult(pluginResult);
+	}
+	
+	private void getMetricsAction(CallbackContext callbackContext, JSONObject params)
+	{
+		// Returns, per alarm stage (see AlarmMetrics), the number of alarms and the latencies in microseconds from
+		// the alarm write being received, optionally zeroing them
+		
+		JSONObject returnObj = new JSONObject();
+		for (int stage = 0; stage < AlarmMetrics.STAGE_COUNT; stage++){
+			final LatencyHistogram histogram = alarmMetrics.getHistogram(stage);
+			JSONObject stageObj = new JSONObject();
+			addProperty(stageObj, "count", histogram.getCount());
+			addProperty(stageObj, "min", histogram.getMin() / 1000);
+			addProperty(stageObj, "mean", histogram.getMean() / 1000);
+			addProperty(stageObj, "p50", histogram.getValueAtPercentile(50) / 1000);
+			addProperty(stageObj, "p90", histogram.getValueAtPercentile(90) / 1000);
+			addProperty(stageObj, "p99", histogram.getValueAtPercentile(99) / 1000);
+			addProperty(stageObj, "p999", histogram.getValueAtPercentile(99.9) / 1000);
+			addProperty(stageObj, "max", histogram.getMax() / 1000);
+			addProperty(returnObj, AlarmMetrics.getStageName(stage), stageObj);
+		}
+		if (params != null && params.optBoolean(KEY_STATS_RESET, false))
+			alarmMetrics.reset();
+		PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, returnObj);
+		pluginResult.setKeepCallback(false);
+		callbackContext.sendPluginResult(pluginResult);
+	}
+	
+	private void queryAlarmLogAction(final CallbackContext callbackContext, JSONObject params)
+	{
+		// Sends the logged alarms (and writes suppressed by the alarm filters) of a time span to the callback in
+		// pages, oldest first. The history files are read on a Cordova thread pool thread, not the state actor.
 		
-			if (callbackContext != null){
-				// Notify user
-				// Check if device has vibrator and permission (if and else added 2018-05-18)
-				Vibrator vib = (Vibrator) cordova.getActivity().getSystemService(Context.VIBRATOR_SERVICE);
-				if (vib.hasVibrator()){
-					if (ContextCompat.checkSelfPermission(cordova.getActivity(), permission.VIBRATE) == PackageManager.PERMISSION_GRANTED){
-						addProperty(returnObj, KEY_VIBRATOR_AVAILABLE, true);
+		final AlarmHistoryStore history = alarmHistory;
+		if (history == null){
+			sendAlarmLogError(callbackContext);
+			return;
+		}
+		final long from = (params != null) ? params.optLong(KEY_LOG_FROM, 0) : 0;
+		final long to = (params != null) ? params.optLong(KEY_LOG_TO, Long.MAX_VALUE) : Long.MAX_VALUE;
+		final String device = (params != null && params.has(KEY_LOG_DEVICE)) ? params.optString(KEY_LOG_DEVICE) : null;
+		final int pageSize = Math.max(1, (params != null) ? params.optInt(KEY_LOG_PAGE_SIZE, DEFAULT_LOG_PAGE_SIZE) : DEFAULT_LOG_PAGE_SIZE);
+		final int maxPages = (params != null) ? params.optInt(KEY_LOG_PAGES, Integer.MAX_VALUE) : Integer.MAX_VALUE;
+		final long cursor = (params != null) ? Math.max(0, params.optLong(KEY_LOG_CURSOR, 0)) : 0;
+		cordova.getThreadPool().execute(new Runnable() {
+			public void run() {
+				long sequence = cursor;
+				try {
+					for (int page = 1; ; page++){
+						final AlarmHistoryStore.Page result = history.query(from, to, device, sequence, pageSize);
+						sequence = result.nextSequence;
+						JSONArray alarms = new JSONArray();
+						for (AlarmJournal.Entry entry : result.entries){
+							JSONObject alarmObj = new JSONObject();
+							addProperty(alarmObj, "timestamp", entry.timestamp);
+							addProperty(alarmObj, "device", entry.device);
+							addProperty(alarmObj, "level", entry.level);
+							addProperty(alarmObj, "outcome", entry.getOutcomeName());
+							addProperty(alarmObj, "latency", entry.latency);	// Microseconds
+							alarms.put(alarmObj);
+						}
+						final boolean last = (sequence < 0 || page >= maxPages);
+						JSONObject returnObj = new JSONObject();
+						addProperty(returnObj, "alarms", alarms);
+						if (sequence >= 0)
+							addProperty(returnObj, KEY_LOG_CURSOR, sequence);	// Continues the query (absent when done)
+						addProperty(returnObj, "done", last);
+						PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, returnObj);
+						pluginResult.setKeepCallback(!last);
+						callbackContext.sendPluginResult(pluginResult);
+						if (last)
+							return;
 					}
-					else
-						addProperty(returnObj, KEY_VIBRATOR_AVAILABLE, false);
 				}
-				else {
-					addProperty(returnObj, KEY_VIBRATOR_AVAILABLE, false);
+				catch (IOException e) {
+					sendAlarmLogError(callbackContext);
 				}
-				PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, returnObj);
-				pluginResult.setKeepCallback(false);
-				callbackContext.sendPluginResult(pluginResult);
-			}
-			else {
-				// Set/load the user's app preferences
-				myAppSettings.sound = AlarmSound.values()[returnObj.getInt(KEY_SOUND_SETTING)];
-				//myAppSettings.vibration = returnObj.getBoolean(KEY_VIBRATION_SETTING);
-				myAppSettings.vibration = (returnObj.getInt(KEY_VIBRATION_SETTING) != 0);	// Converts int to boolean
-				//myAppSettings.log = returnObj.getBoolean(KEY_LOG_SETTING);
-				myAppSettings.log = (returnObj.getInt(KEY_LOG_SETTING) != 0);			// Converts int to boolean
 			}
-		}
-		catch (Exception e) {
-			//showDebugMsgBox("getAppSetting exception thrown!");
-			// Notify user of error
-			if (callbackContext != null){
-				//returnObj = new JSONObject();
-				//addProperty(returnObj, keyError, errorAppSettings);
-				//addProperty(returnObj, keyMessage, e.getMessage());
-				//PluginResult pluginResult = new PluginResult(PluginResult.Status.ERROR, returnObj);
-				PluginResult pluginResult = new PluginResult(PluginResult.Status.ERROR, e.getMessage());
-				pluginResult.setKeepCallback(false);
-				callbackContext.sendPluginResult(pluginResult);
-				return;
-			}
-		}
+		});
 	}
 	
-	private void playSoundAction(int sound)
+	private void getAlarmStatsAction(CallbackContext callbackContext, JSONObject params)
 	{
-		// Plays the sound given by the sound argument by first reseting the media player and prepare it
-		// with the new sound.
+		// Returns, per clip, the alarm and bounce counts (total and of the last hours, oldest hour first) and the
+		// times of the first and last alarm, optionally zeroing them. Read from the running statistics, so the
+		// time taken does not depend on the number of alarms.
 		
-		//PluginResult pluginResult;
-		myAppSettings.sound = AlarmSound.values()[sound];
-		initMediaPlayer(false);
-		if (mPlayerState == MediaPlayerState.PREPARED){
-			try {
-				if (!mPlayer.isPlaying()){
-					mPlayer.start();
-					mPlayerState = MediaPlayerState.STARTED;
+		final int hours = Math.max(1, Math.min(AlarmStatistics.HOURS,
+			(params != null) ? params.optInt(KEY_STATS_HOURS, DEFAULT_STATS_HOURS) : DEFAULT_STATS_HOURS));
+		final int currentHour = AlarmStatistics.hourOf(System.currentTimeMillis());
+		final String device = (params != null && params.has(KEY_STATS_DEVICE)) ? params.optString(KEY_STATS_DEVICE) : null;
+		JSONArray devices = new JSONArray();
+		synchronized (alarmStatistics) {
+			final int onlySlot = (device != null) ? alarmStatistics.findDevice(device) : -1;
+			for (int slot = 0; slot < alarmStatistics.getDeviceCount(); slot++){
+				if (device != null && slot != onlySlot)
+					continue;
+				JSONObject deviceObj = new JSONObject();
+				addProperty(deviceObj, "device", alarmStatistics.getDevice(slot));
+				addProperty(deviceObj, "alarms", alarmStatistics.getAlarms(slot));
+				addProperty(deviceObj, "bounces", alarmStatistics.getBounces(slot));
+				addProperty(deviceObj, "firstAlarm", alarmStatistics.getFirstAlarm(slot));
+				addProperty(deviceObj, "lastAlarm", alarmStatistics.getLastAlarm(slot));
+				JSONArray hourlyAlarms = new JSONArray();
+				JSONArray hourlyBounces = new JSONArray();
+				for (int hour = currentHour - hours + 1; hour <= currentHour; hour++){
+					hourlyAlarms.put(alarmStatistics.getHourAlarms(slot, hour));
+					hourlyBounces.put(alarmStatistics.getHourBounces(slot, hour));
 				}
-			} catch (Exception ex) {
-				showDebugMsgBox("Error playing sound: " + ex.getMessage());
-				mPlayerState = MediaPlayerState.ERROR;
-				initMediaPlayer(true);	// Reset and reinitialize the MediaPlayer
-				//pluginResult = new PluginResult(PluginResult.Status.OK, false);
-				//pluginResult.setKeepCallback(false);
-				//callbackContext.sendPluginResult(pluginResult);
-				return;
+				addProperty(deviceObj, "hourlyAlarms", hourlyAlarms);
+				addProperty(deviceObj, "hourlyBounces", hourlyBounces);
+				devices.put(deviceObj);
 			}
+			if (params != null && params.optBoolean(KEY_STATS_RESET, false))
+				alarmStatistics.clear();
 		}
-		
-		// Notify user
-		//pluginResult = new PluginResult(PluginResult.Status.OK, true);
-		//pluginResult.setKeepCallback(false);
-		//callbackContext.sendPluginResult(pluginResult);
+		JSONObject returnObj = new JSONObject();
+		addProperty(returnObj, "firstHour", (long)(currentHour - hours + 1) * AlarmStatistics.HOUR);	// Start of the oldest hour (milliseconds since epoch)
+		addProperty(returnObj, "devices", devices);
+		PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, returnObj);
+		pluginResult.setKeepCallback(false);
+		callbackContext.sendPluginResult(pluginResult);
 	}
 	
-	private void resetSoundAction(int sound)
+	private void sendAlarmLogError(CallbackContext callbackContext)
 	{
-		// Resets the media player and prepare it with the sound given by the sound argument
-		
-		myAppSettings.sound = AlarmSound.values()[sound];
-		initMediaPlayer(true);
+		JSONObject returnObj = new JSONObject();
+		addProperty(returnObj, keyError, errorAlarmLog);
+		addProperty(returnObj, keyMessage, logAlarmLog);
+		PluginResult pluginResult = new PluginResult(PluginResult.Status.ERROR, returnObj);
+		pluginResult.setKeepCallback(false);
+		callbackContext.sendPluginResult(pluginResult);
 	}
 	
 	private void alarmAction(CallbackContext callbackContext)
@@ -803,451 +1301,105 @@ public class GattServerPlugin extends CordovaPlugin
 	Helpers
 	*********************************************************************************************************************/
 	
-	private void alarm(final String alertLevel, final String deviceUUID){
+	private void setEventDelivery(final JSONObject params)
+	{
+		// Sets batched or one by one delivery of the server events from the startServer parameters.
+		// In batch mode the server callback is called with an array of event objects. With binary encoding, the
+		// server callback is called with an ArrayBuffer of fixed-size event records (see BinaryEventEncoder).
 		
-		// Alarms with appropiate sound etc
-		// Ignore alarm if not enough elapsed time since last alarm (to prevent responding to some
-		// of the alarms triggered because of loose connection between clip contacts and sensor)
-		long elapsedTime =  SystemClock.elapsedRealtime();	// Milliseconds since boot, including time spent in sleep
-		long alarmInterval = elapsedTime - elapsedAlarmTime;
-		elapsedAlarmTime = elapsedTime;
-		if (alarmInterval < MIN_ALARM_INTERVAL){
+		eventDispatcher.setBinaryEncoding(params != null && EVENT_ENCODING_BINARY.equals(params.optString(KEY_EVENT_ENCODING)));
+		if (params == null || !EVENT_DELIVERY_BATCH.equals(params.optString(KEY_EVENT_DELIVERY))){
+			eventDispatcher.setBatching(0, 0, true);
 			return;
 		}
-		
-		if (isInBackground && NotificationManagerCompat.from(cordova.getActivity().getApplicationContext()).areNotificationsEnabled()){
-			// Show local notification only if the app is in the background and notifications are enabled for the app.
-			// The function areNotificationsEnabled() from the support library returns true if notifications are
-			// enabled for the app and if API >= 19. If Api < 19 it will always return true (even if notifications
-			// actually are disabled for the app).
-			/*long[] pattern = { 0, 200, 500 };
-			//Intent appActivity = cordova.getActivity().getApplicationContext().getPackageManager().getLaunchIntentForPackage(cordova.getActivity().getApplicationContext().getPackageName()); // If used, app will be restarted
-			Intent appIntent = cordova.getActivity().getIntent();	// If used, will start app if not running otherwise bring it to the foreground
-			appIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-			
-			NotificationCompat.Builder mBuilder = new NotificationCompat.Builder(cordova.getActivity().getApplicationContext())
-			.setContentTitle("SenseSoft Notifications Mini")
-			.setContentText("Incoming SenseSoft Mini alarm.")
-			.setContentIntent(PendingIntent.getActivity(cordova.getActivity().getApplicationContext(), 0, appIntent, 0))
-			.setSmallIcon(cordova.getActivity().getApplicationContext().getApplicationInfo().icon)
-			//.setPriority(NotificationCompat.PRIORITY_MAX)
-			//.setPriority(NotificationCompat.PRIORITY_DEFAULT)
-			.setPriority(NotificationCompat.PRIORITY_HIGH)
-			//.setOngoing(true)
-			.setAutoCancel(true)			// Not really needed since also clearing notifications when app is brought to foreground
-			//.setOnlyAlertOnce(true)		// Set this flag if you would only like the sound, vibrate and ticker to be played if the notification is not already showing. 
-			.setCategory(NotificationCompat.CATEGORY_ALARM)
-			.setGroup("SENSESOFT_MINI")
-			.setTicker("SenseSoft Mini");
-			mBuilder.setVibrate(pattern);
-			//mBuilder.setDefaults(NotificationCompat.DEFAULT_SOUND | NotificationCompat.DEFAULT_LIGHTS);	// Use instead of below to use the default notification sound
-			Uri soundPath = Uri.parse("android.resource://" + cordova.getActivity().getApplicationContext().getPackageName() + "/raw/crash_short");
-			//Uri soundPath = Uri.parse("android.resource://" + cordova.getActivity().getApplicationContext().getPackageName() + "/" + R.raw.crash_short);	// Also works if com.sensiblesolutions.sensesoftnotificationsmini.R has been imported
-			//mBuilder.setSound(soundPath, AudioManager.STREAM_ALARM);	// If using this then the volume has to be changed with the device's alarm volume controllers
-			mBuilder.setSound(soundPath, AudioManager.STREAM_NOTIFICATION);	// Use for all sounds (so volume easily can be changed with the device's notification volume controller)
-			*/
-			//NotificationManager mNotificationManager = (NotificationManager) cordova.getActivity().getApplicationContext().getSystemService(Context.NOTIFICATION_SERVICE);
-
-			stopPlaying();			// Added 2017-02-20
-			// Show local notification or update any on going one (no need to stop any sound playing since it will be replaced with the new sound)
-			alarmNotification.when = System.currentTimeMillis();		// Set the time of the notification since was set when building the notification (default)
-			alarmNotificationManager.notify(1665, alarmNotification);	// mId (here 1665) allows you to update any current notification with same mId (no need to stop sound)
-			//alarmNotificationManager.notify(1665, mBuilder.build());	// mId (here 1665) allows you to update any current notification with same mId (no need to stop sound)
-		}
-		else if((!isInBackground) && (myAppSettings.sound != AlarmSound.SOUND_OFF)){
-			// Manually play alarm sound if app is in the foreground and alarm sound is not off
-			
-			if (mPlayerState == MediaPlayerState.PREPARED || mPlayerState == MediaPlayerState.PAUSED ||
-			    mPlayerState == MediaPlayerState.PLAYBACK_COMPLETED || mPlayerState == MediaPlayerState.STARTED){
-				try {
-					if (!mPlayer.isPlaying()){
-						mPlayer.start();
-						mPlayerState = MediaPlayerState.STARTED;
-						vibrateDevice();
-					}
-					else {	// else added 2017-02-14
-						//mPlayer.pause();
-						mPlayer.seekTo(0);	// Restart the playback (asynchronuous operation)
-						vibrateDevice();
-						//mPlayer.start();
-					}
-				} catch (Exception ex) {
-					showDebugMsgBox("Error playing sound: " + ex.getMessage());
-					mPlayerState = MediaPlayerState.ERROR;
-					initMediaPlayer(true);	// Reset and reinitialize the MediaPlayer
-				}
-			}
-			
-			/*Uri soundPath = Uri.parse("android.resource://" + cordova.getActivity().getApplicationContext().getPackageName() + "/raw/crash_short");	// Use when playing own sound file (important: do NOT include file type extension!)
-			// Below compiles if you import com.sensiblesolutions.sensesoftnotificationsmini.R (do NOT import android.R!)
-			//Uri soundPath = Uri.parse("android.resource://" + cordova.getActivity().getApplicationContext().getPackageName() + "/" + R.raw.crash_short);
-			// Below compiles if you do not import com.sensiblesolutions.sensesoftnotificationsmini.R
-			//Uri soundPath = Uri.parse("android.resource://" + cordova.getActivity().getApplicationContext().getPackageName() + "/" + com.sensiblesolutions.sensesoftnotificationsmini.R.raw.crash_short);
-			
-			//showDebugMsgBox("soundPath: " + soundPath.toString());
-			
-			MediaPlayer mediaPlayer = new MediaPlayer();
-			try {
-				mediaPlayer.setDataSource(cordova.getActivity().getApplicationContext(), soundPath);
-				// Use the notification stream when playing all sounds (notification, alarm, ringtone and own sound) so user easily can change the volume for all sounds with the device's notification volume controllers
-				mediaPlayer.setAudioStreamType(AudioManager.STREAM_NOTIFICATION);
-				//mediaPlayer.setAudioStreamType(AudioManager.STREAM_ALARM);
-				//mediaPlayer.setAudioStreamType(AudioManager.STREAM_RING);
-				mediaPlayer.setLooping(false);
-				mediaPlayer.setOnCompletionListener(new MediaPlayer.OnCompletionListener() {
-					@Override
-					public void onCompletion(MediaPlayer mp)
-					{
-						mp.stop();
-						//mp.release();
-						//mp.reset();
-					}
-				});
-				mediaPlayer.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
-					@Override
-    					public void onPrepared(MediaPlayer mp) {
-						// Called when MediaPlayer is ready
-        					mp.start();
-						// Vibrate the device if it has hardware vibrator and permission
-						vibrateDevice();
-   				 	}
-				});
-				//mediaPlayer.prepare();
-				mediaPlayer.prepareAsync();	// Prepare async to not block main thread
-				
-			} catch (Exception ex) {
-				// Do nothing
-				showDebugMsgBox("Error playing sound: " + ex.getMessage());
-			}*/
-		}
-		
-		// Notify user of started server and save callback
-		JSONObject returnObj = new JSONObject();
-		addProperty(returnObj, keyStatus, statusWriteRequest);
-		addProperty(returnObj, "device", deviceUUID);
-		addProperty(returnObj, "characteristic", ALERT_LEVEL_CHAR_UUID.toString());
-		addProperty(returnObj, "value", alertLevel);
-		PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, returnObj);
-		pluginResult.setKeepCallback(true);		// Save the callback so it can be invoked several times
-		serverRunningCallbackContext.sendPluginResult(pluginResult);
+		eventDispatcher.setBatching(params.optLong(KEY_BATCH_WINDOW, DEFAULT_BATCH_WINDOW),
+			params.optInt(KEY_BATCH_MAX_EVENTS, ServerEventDispatcher.DEFAULT_BATCH_MAX_EVENTS),
+			params.optBoolean(KEY_BATCH_FLUSH_HIGH_ALERT, true));
 	}
 	
-	private void initAlarmNotification()
-	{	
-		// Builds the alarms notification
-		
-		//long[] pattern = {0, 1000, 1000};
-		//long[] pattern_on = {0, 1000};		// Vibrate directly for 1000 ms
-		//long[] pattern_off = {0, 0};		// Turns off vibration (must test if it works)
-	
-		//Intent appActivity = cordova.getActivity().getApplicationContext().getPackageManager().getLaunchIntentForPackage(cordova.getActivity().getApplicationContext().getPackageName()); // If used, app will always be restarted (even if it's already running)
-		Intent appIntent = cordova.getActivity().getIntent();	// If used, will start app if not running otherwise bring it to the foreground
-		appIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-		
-		
-		NotificationCompat.Builder mBuilder = new NotificationCompat.Builder(cordova.getActivity().getApplicationContext()) // Automatically sets the when field (displayed time of notification) to System.currentTimeMillis() 
-		.setContentTitle("SenseSoft Mini")
-		.setContentText("Incoming SenseSoft Mini alarm.")
-		.setContentIntent(PendingIntent.getActivity(cordova.getActivity().getApplicationContext(), 0, appIntent, 0))
-		//.setSmallIcon(cordova.getActivity().getApplicationContext().getApplicationInfo().icon)
-		.setSmallIcon(cordova.getActivity().getApplicationContext().getResources().getIdentifier(NOTIFICATION_ALARM_ICON, "drawable", cordova.getActivity().getApplicationContext().getPackageName()))
-		.setLargeIcon(BitmapFactory.decodeResource(cordova.getActivity().getApplicationContext().getResources(), cordova.getActivity().getApplicationContext().getResources().getIdentifier(NOTIFICATION_LARGE_ICON, "drawable", cordova.getActivity().getApplicationContext().getPackageName())))
-		.setPriority(NotificationCompat.PRIORITY_HIGH)			// PRIORITY_HIGH and PRIORITY_MAX will result in a heads-up notification in Android >= 5
-		//.setOngoing(true)
-		.setAutoCancel(true)			// Not really needed since also clearing notifications when app is brought to foreground
-		//.setOnlyAlertOnce(true)		// Set this flag if you would only like the sound, vibrate and ticker to be played if the notification is not already showing. 
-		.setCategory(NotificationCompat.CATEGORY_ALARM)
-		.setGroup("SENSESOFT_MINI")
-		.setTicker("SenseSoft Mini")
-		//.setColorized(true)      	// Only recommended to use background color for high priority events (only Android O and above)
-		//.setColor(0x0027a1c6)		// Sets the background color (argb) of the small icon where it's used other than the in the system bar (always whiteish there)
-		.setShowWhen(true);			// Default is false in Android >= 5 and true in Android < 5
-		/*if (myAppSettings.vibration){
-			mBuilder.setVibrate(pattern_on);	// Will vibrate on a notification if device has hardware vibrator and it's turned on in the app settings
-		}
-		else {
-			mBuilder.setVibrate(pattern_off);	// Turns off vibration (must test if it works)
-		}*/
-		if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.LOLLIPOP){
-			mBuilder.setVisibility(Notification.VISIBILITY_PRIVATE);	// Show this notification on all lockscreens, but conceal sensitive or private information on secure lockscreens
-		}
-		
-		alarmNotification = mBuilder.build();
-		this.setAlarmNotificationSound(myAppSettings.sound);
-		this.setAlarmNotificationVibrate(myAppSettings.vibration);
-	}
-
-	private void setAlarmNotificationSound(final AlarmSound sound)
+	private JSONObject encodeServerEvent(final ServerEvent event)
 	{
-		// Sets the alarm sound for the notification to use when the app is in the background
-		// Note: To change notification sound, just call this method again with the app sound setting as parameter
+		// Encodes a server event into the object passed to the server callback (runs on the event drainer thread)
 		
-		if (alarmNotification == null)
-			return;
-			
-		Uri soundPath = null;
-		
-		switch (sound) {
-			case SOUND_0:
-				// Custom sound 1
-				//soundPath = Uri.parse("android.resource://" + cordova.getActivity().getApplicationContext().getPackageName() + "/raw/alarm");
-				soundPath = Uri.parse("android.resource://" + cordova.getActivity().getApplicationContext().getPackageName() + "/raw/horn");
-				//mBuilder.setSound(soundPath, AudioManager.STREAM_NOTIFICATION);	// Use the notification stream for playback so volume easily can be changed with the device's notification volume controller
+		JSONObject returnObj = new JSONObject();
+		switch (event.type) {
+			case ServerEvent.TYPE_SERVICE_ADDED:
+				addProperty(returnObj, keyStatus, statusServiceAdded);
+				addProperty(returnObj, "services", event.level);	// Number of services added
 				break;
-			case SOUND_1:
-				// Custom sound 2
-				//soundPath = Uri.parse("android.resource://" + cordova.getActivity().getApplicationContext().getPackageName() + "/raw/crash_short");
-				soundPath = Uri.parse("android.resource://" + cordova.getActivity().getApplicationContext().getPackageName() + "/raw/bells");
-				//Uri soundPath = Uri.parse("android.resource://" + cordova.getActivity().getApplicationContext().getPackageName() + "/" + R.raw.crash_short);	// Also works if com.sensiblesolutions.sensesoftnotificationsmini.R has been imported
-				//mBuilder.setSound(soundPath, AudioManager.STREAM_ALARM);	// If using this then the volume has to be changed with the device's alarm volume controllers
-				//mBuilder.setSound(soundPath, AudioManager.STREAM_NOTIFICATION);	// Use the notification stream for playback so volume easily can be changed with the device's notification volume controller
+			case ServerEvent.TYPE_SERVICE_EXISTS:
+				addProperty(returnObj, keyStatus, statusServiceExists);
 				break;
-			case SOUND_2:
-				// Custom sound 3
-				soundPath = Uri.parse("android.resource://" + cordova.getActivity().getApplicationContext().getPackageName() + "/raw/car");
+			case ServerEvent.TYPE_SERVICE_ERROR:
+				addProperty(returnObj, keyError, errorServiceAdded);
+				addProperty(returnObj, keyMessage, logService);
+				addProperty(returnObj, "service", event.device);	// UUID of the service that could not be added
+				addProperty(returnObj, "gattStatus", event.status);
+				addProperty(returnObj, "attempts", event.level);
 				break;
-			case SOUND_3:
-				// Custom sound 4
-				soundPath = Uri.parse("android.resource://" + cordova.getActivity().getApplicationContext().getPackageName() + "/raw/fire_truck");
+			case ServerEvent.TYPE_CONNECTED:
+				addProperty(returnObj, keyStatus, statusConnectionState);
+				addProperty(returnObj, "device", event.device);
+				addProperty(returnObj, "state", "connected");
+				addProperty(returnObj, "mtu", event.status);
+				break;
+			case ServerEvent.TYPE_DISCONNECTED:
+				addProperty(returnObj, keyStatus, statusConnectionState);
+				addProperty(returnObj, "device", event.device);
+				addProperty(returnObj, "state", "disconnected");
 				break;
-			case SOUND_4:
-				// Custom sound 5
-				soundPath = Uri.parse("android.resource://" + cordova.getActivity().getApplicationContext().getPackageName() + "/raw/space_ship");
-				break;	
-			case SOUND_RINGTONE:
-				// Device default ringtone (only available on phones and not tablets)
-				soundPath = RingtoneManager.getDefaultUri(RingtoneManager.TYPE_RINGTONE);
-				//mBuilder.setSound(soundPath, AudioManager.STREAM_NOTIFICATION);	// Use the notification stream for playback so volume easily can be changed with the device's notification volume controller
+			case ServerEvent.TYPE_CONNECTION_ERROR:
+				addProperty(returnObj, keyError, errorConnectionState);
+				addProperty(returnObj, keyMessage, logConnectionState + " " + event.status);
 				break;
-			case SOUND_ALARM:
-				// Device default alarm sound
-				soundPath = RingtoneManager.getDefaultUri(RingtoneManager.TYPE_ALARM);
-				//mBuilder.setSound(soundPath, AudioManager.STREAM_NOTIFICATION);	// Use the notification stream for playback so volume easily can be changed with the device's notification volume controller
+			case ServerEvent.TYPE_WRITE_REQUEST:
+				addProperty(returnObj, keyStatus, statusWriteRequest);
+				addProperty(returnObj, "device", event.device);
+				addProperty(returnObj, "characteristic", ALERT_LEVEL_CHAR_UUID.toString());
+				addProperty(returnObj, "value", parseCharacteristicValue(event.level));
 				break;
-			case SOUND_NOTIFICATION:
-				// Device default notification sound
-				soundPath = RingtoneManager.getDefaultUri(RingtoneManager.TYPE_NOTIFICATION);
-				//mBuilder.setSound(soundPath, AudioManager.STREAM_NOTIFICATION);	// Use the notification stream for playback so volume easily can be changed with the device's notification volume controller
+			case ServerEvent.TYPE_WRITE_NOT_SUPPORTED:
+				addProperty(returnObj, keyError, errorWriteRequest);
+				addProperty(returnObj, keyMessage, logRequestNotSupported);
 				break;
-			case SOUND_OFF:
-				// No sound
-				//mBuilder.setSound(soundPath, AudioManager.STREAM_NOTIFICATION); // Not sure it works by setting soundPath to null (test it!)
+			case ServerEvent.TYPE_MTU_CHANGED:
+				addProperty(returnObj, keyStatus, statusMtuChanged);
+				addProperty(returnObj, "device", event.device);
+				addProperty(returnObj, "mtu", event.status);
 				break;
-			default:
-				// Device default notification sound
-				soundPath = RingtoneManager.getDefaultUri(RingtoneManager.TYPE_NOTIFICATION);
-				//mBuilder.setSound(soundPath, AudioManager.STREAM_NOTIFICATION);	// Use the notification stream for playback so volume easily can be changed with the device's notification volume controller
-				
-		}
-		
-		alarmNotification.sound = soundPath;
-		if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.LOLLIPOP){
-			// Use the notification stream for playback so volume easily can be changed with the device's notification volume controller
-			AudioAttributes aAttributes = new AudioAttributes.Builder(alarmNotification.audioAttributes)
-			.setUsage(AudioAttributes.USAGE_NOTIFICATION)
-			.build();
-			alarmNotification.audioAttributes = aAttributes;
-		}
-		else {
-			// Use the notification stream for playback so volume easily can be changed with the device's notification volume controller
-			alarmNotification.audioStreamType = AudioManager.STREAM_NOTIFICATION;
 		}
+		return returnObj;
 	}
 	
-	private void setAlarmNotificationVibrate(final boolean vibrate)
-	{
-		//long[] pattern = {0, 1000, 1000};
-		long[] pattern_on = {0, 1000};		// Vibrate directly for 1000 ms
-		long[] pattern_off = {0, 0};		// Turns off vibration (must test if it works!)?
-		
-		if (vibrate)
-			alarmNotification.vibrate = pattern_on;
-		else
-			alarmNotification.vibrate = pattern_off;
-	}
-	
-	private void initMediaPlayer(boolean prepareSoundAsync)
-	{
-		// Creates and initializes the MediaPlayer object if not already created. If already created, it resets the
-		// MediaPlayer object to its uninitialized state and reinitializes it. After it has been initialized, it prepares
-		// the player for playback, synchronously or asynchronously depending on the prepareSoundAsync argument.
-		// Note: To change sound (prepare another sound), just call this method again after the app sound setting has changed
-		
-		if (mPlayer == null)
-			mPlayer = new MediaPlayer();
-		else {
-			// Reset the MediaPlayer to its uninitialized state
-			mPlayer.reset();	// After reset(), the object is like being just created
-		}
-		mPlayerState = MediaPlayerState.IDLE;
+	private void initAlarmNotifications()
+	{	
+		// Builds the alarm notifications of every sound, vibration and alert level combination and the channels
+		// of the current sound and vibration settings
 		
-		if (myAppSettings.sound != AlarmSound.SOUND_OFF){
-			this.setAlarmSound(myAppSettings.sound);
-			try {
-				mPlayer.setLooping(false);
-				mPlayer.setOnCompletionListener(new MediaPlayer.OnCompletionListener() {
-					@Override
-					public void onCompletion(MediaPlayer mp)
-					{
-						// Called when the end of the media source has been reached during playback
-						mPlayerState = MediaPlayerState.PLAYBACK_COMPLETED;
-						//mp.stop();
-						//mp.release();
-						//mp.reset();
-					}
-				});
-				if (prepareSoundAsync){
-					mPlayer.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
-						@Override
-						public void onPrepared(MediaPlayer mp) {
-							// Called when MediaPlayer is ready for playback
-							mPlayerState = MediaPlayerState.PREPARED;
-							//mp.start();
-							// Vibrate the device if it has hardware vibrator and permission
-							//vibrateDevice();
-						 }
-					});
-				}
-				else {
-					mPlayer.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
-						@Override
-						public void onPrepared(MediaPlayer mp) {
-							// Reseting the media player does not remove registered listeners
-							// so provide an empty callback
-						 }
-					});
-				}
-				mPlayer.setOnErrorListener(new MediaPlayer.OnErrorListener() {
-					@Override
-					public boolean onError(MediaPlayer mp,  int what, int extra) {
-						// Called when when an error has happened during an asynchronous operation
-						showDebugMsgBox("Error during asynchronous operation: " + Integer.toString(what) + " (" + Integer.toString(extra) + ")");
-						mPlayerState = MediaPlayerState.ERROR;
-						return true;
-					 }
-				});
-			}
-			catch (Exception ex) {
-				mPlayerState = MediaPlayerState.ERROR;
-				showDebugMsgBox("Error initializing sound: " + ex.getMessage());
-				return;
-			}
-
-			mPlayerState = MediaPlayerState.INITIALIZED;
-			try {
-				if (prepareSoundAsync){
-					mPlayer.prepareAsync();		// Prepare async to not block main thread
-					mPlayerState = MediaPlayerState.PREPARING;
-				}
-				else {
-					mPlayer.prepare();
-					mPlayerState = MediaPlayerState.PREPARED;
-				}
-			} catch (Exception ex) {
-				mPlayerState = MediaPlayerState.ERROR;
-				showDebugMsgBox("Error preparing sound: " + ex.getMessage());
-			}
-		}
+		//Intent appActivity = cordova.getActivity().getApplicationContext().getPackageManager().getLaunchIntentForPackage(cordova.getActivity().getApplicationContext().getPackageName()); // If used, app will always be restarted (even if it's already running)
+		Intent appIntent = cordova.getActivity().getIntent();	// If used, will start app if not running otherwise bring it to the foreground
+		appIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+		alarmNotifications = new AlarmNotifications(cordova.getActivity(), resourceCache, appIntent);
+		final AppSettingsStore.Settings settings = settingsStore.get();
+		alarmNotifications.useSettings(settings.sound, settings.vibration);
 	}
 	
-	private void setAlarmSound(final AlarmSound sound)
+	private void initAudioEngine()
 	{
-		// Sets the alarm sound to use by the media player when the app is in the foreground
-		
-		Uri soundPath = null;
+		// Creates the audio engine and loads (decodes) all alarm sounds once, the slot of a sound is its AlarmSound ordinal
 		
-		if (mPlayer == null)
-			return;
-			
-		switch (sound) {
-			case SOUND_0:
-				// Custom sound 1
-				//soundPath = Uri.parse("android.resource://" + cordova.getActivity().getApplicationContext().getPackageName() + "/raw/alarm");
-				soundPath = Uri.parse("android.resource://" + cordova.getActivity().getApplicationContext().getPackageName() + "/raw/horn");
-				break;
-			case SOUND_1:
-				// Custom sound 2
-				//soundPath = Uri.parse("android.resource://" + cordova.getActivity().getApplicationContext().getPackageName() + "/raw/crash_short");
-				soundPath = Uri.parse("android.resource://" + cordova.getActivity().getApplicationContext().getPackageName() + "/raw/bells");
-				break;
-			case SOUND_2:
-				// Custom sound 3
-				soundPath = Uri.parse("android.resource://" + cordova.getActivity().getApplicationContext().getPackageName() + "/raw/car");
-				break;
-			case SOUND_3:
-				// Custom sound 4
-				soundPath = Uri.parse("android.resource://" + cordova.getActivity().getApplicationContext().getPackageName() + "/raw/fire_truck");
-				break;
-			case SOUND_4:
-				// Custom sound 5
-				soundPath = Uri.parse("android.resource://" + cordova.getActivity().getApplicationContext().getPackageName() + "/raw/space_ship");
-				break;
-			case SOUND_RINGTONE:
-				// Device default ringtone (only available on phones and not tablets)
-				soundPath = RingtoneManager.getDefaultUri(RingtoneManager.TYPE_RINGTONE);
-				break;
-			case SOUND_ALARM:
-				// Device default alarm sound
-				soundPath = RingtoneManager.getDefaultUri(RingtoneManager.TYPE_ALARM);
-				break;
-			case SOUND_NOTIFICATION:
-				// Device default notification sound
-				soundPath = RingtoneManager.getDefaultUri(RingtoneManager.TYPE_NOTIFICATION);
-				break;
-			case SOUND_OFF:
-				// No sound
-				break;
-			default:
-				// Device default notification sound
-				soundPath = RingtoneManager.getDefaultUri(RingtoneManager.TYPE_NOTIFICATION);
-				
-		}
-		
-		try {
-			mPlayer.setAudioStreamType(AudioManager.STREAM_NOTIFICATION); // Use the notification stream for playback so volume easily can be changed with the device's volume controller for notifications
-			mPlayer.setDataSource(cordova.getActivity().getApplicationContext(), soundPath);
-		} catch (Exception ex) {
-			mPlayerState = MediaPlayerState.ERROR;
-			showDebugMsgBox("Error setting sound: " + ex.getMessage());
+		audioEngine = new AlarmAudioEngine(cordova.getActivity(), AlarmSound.SOUND_OFF.ordinal());
+		for (AlarmSound sound : AlarmSound.values()){
+			if (sound != AlarmSound.SOUND_OFF)
+				audioEngine.load(sound.ordinal(), (sound.rawName != null) ? resourceCache.getRawId(sound.rawName) : 0, resourceCache.getSoundUri(sound));
 		}
 	}
 	
 	private void stopPlaying()
 	{
-		// Stops playback of any sound the MediaPlayer is playing
-		if (mPlayerState == MediaPlayerState.PAUSED || mPlayerState == MediaPlayerState.PLAYBACK_COMPLETED || 
-		    mPlayerState == MediaPlayerState.STARTED){
-			try {
-				if (mPlayer.isPlaying()){
-					mPlayer.pause();
-					mPlayerState = MediaPlayerState.PAUSED;
-					mPlayer.seekTo(0);	// Seek to the beginning of the sound (asynchronuous operation)
-				}
-			} catch (Exception ex) {
-				showDebugMsgBox("Error pausing sound: " + ex.getMessage());
-				mPlayerState = MediaPlayerState.ERROR;
-				initMediaPlayer(true);	// Reset and reinitialize the MediaPlayer
-			}
-		}
-	}
-	
-	private void vibrateDevice()
-	{
-		// Vibrate the device if it has hardware vibrator and permission
-		
-		if (myAppSettings.vibration){
-			// Check if device has vibrator and permission
-			Vibrator vib = (Vibrator) cordova.getActivity().getSystemService(Context.VIBRATOR_SERVICE);
-			if (vib.hasVibrator()){
-				if (ContextCompat.checkSelfPermission(cordova.getActivity(), permission.VIBRATE) == PackageManager.PERMISSION_GRANTED){
-					// Vibrate (works async)
-					//long[] pattern = {0, 1000, 1000};
-					//long[] pattern = {0, 1000};	// Vibrate directly for 1000 ms
-					vib.vibrate(1000);		// Vibrate directly for 1000 ms
-					//vib.vibrate(pattern, -1);	// -1 disables repeating (0 repeats)
-				}
-			}
-		}
+		// Stops playback of any alarm sound playing
+		if (audioEngine != null)
+			audioEngine.stop();
 	}
 	
 	private void addProperty(JSONObject obj, String key, Object value)
@@ -1351,6 +1503,28 @@ public class GattServerPlugin extends CordovaPlugin
 		isBound = true;
 	}
 	
+	private void onConnectionsChanged(boolean connected)
+	{
+		// The wake locks and the foreground service follow the active (not cancelled) connections: the first
+		// clip to connect starts the foreground service (it keeps running until releaseCpu, as clips may reconnect).
+		// A disconnection never starts it, so the disconnections releaseCpu requested cannot restart it
+		
+		final int active = connectionRegistry.countActive();
+		wakeLocks.onConnectionsChanged(active);
+		if (connected && active == 1)
+			startService();
+		updateOngoingNotification();
+	}
+	
+	private void updateOngoingNotification()
+	{
+		// Shows the number of connected and alarming clips in the foreground service's notification (coalesced by the service)
+		
+		final SensesoftMiniService service = mService;
+		if (service != null)
+			service.updateOngoingState(connectionRegistry.size(), connectionRegistry.countAlarming());
+	}
+	
     	private void stopService() {
     
     		// Unbind the activity from service if bounded
@@ -1373,8 +1547,6 @@ public class GattServerPlugin extends CordovaPlugin
 	 protected void pluginInitialize() {
 	 	// Called after plugin construction and fields have been initialized
 		//showDebugMsgBox("pluginInitialize() called 0!");
-		isInBackground = false;		// App is in foreground
-		
 		// Hides the status bar
 		/*cordova.getActivity().runOnUiThread(new Runnable() {
                 	@Override
@@ -1386,18 +1558,56 @@ public class GattServerPlugin extends CordovaPlugin
 		});*/
 		//showDebugMsgBox("pluginInitialize() called 1!");
 
-		myAppSettings = new AppSettings();
-		
-		// Get shared preference objects used for retrieving and storing the user's app preferences
-		appPreferences = cordova.getActivity().getSharedPreferences(APP_SETTINGS_NAME, Context.MODE_PRIVATE);
-		appPreferencesEditor = appPreferences.edit();
-		// "Load" the app preferences from the shared preferences
-		this.getAppSettingsAction(null);
-		this.initAlarmNotification();
+		// Load the user's app preferences (migrating an older format) and check if the device can vibrate
+		settingsStore = new AppSettingsStore(cordova.getActivity());
+		resourceCache = ResourceCache.getInstance(cordova.getActivity());
+		this.initAlarmNotifications();
 		alarmNotificationManager = (NotificationManager) cordova.getActivity().getApplicationContext().getSystemService(Context.NOTIFICATION_SERVICE);
 		alarmNotificationManager.cancelAll();
 		
-		this.initMediaPlayer(true);
+		this.initAudioEngine();
+		wakeLocks = new WakeLockManager(cordova.getActivity());
+		alarmStatistics = new AlarmStatistics(new File(cordova.getActivity().getFilesDir(), ALARM_STATS_FILE));
+		try {
+			alarmJournal = AlarmJournal.open(new File(cordova.getActivity().getFilesDir(), ALARM_LOG_FILE), AlarmJournal.DEFAULT_CAPACITY);
+			alarmHistory = AlarmHistoryStore.open(new File(cordova.getActivity().getFilesDir(), ALARM_HISTORY_DIRECTORY), alarmJournal);
+		}
+		catch (IOException e) {
+			// Alarms are not logged (or only to the journal)
+			alarmHistory = null;
+		}
+		
+		// The alarm decisions only reach the hardware through the alarm output (see AlarmController)
+		alarmController = new AlarmController(new AndroidAlarmOutput(cordova.getActivity(), audioEngine, alarmNotifications, wakeLocks,
+			settingsStore.isVibratorAvailable()), settingsStore, alarmFilters, eventDispatcher, alarmMetrics, WallClock.SYSTEM);
+		alarmController.setStatistics(alarmStatistics);
+		alarmController.setJournal(alarmJournal);
+		alarmController.setListener(new AlarmController.Listener() {
+			@Override
+			public void onAlarmHandled(int alertLevel, DeviceAlertTable.DeviceAlertState alertState, int outcome) {
+				if (connectionRegistry.setAlarming(alertState.getAddress()))
+					updateOngoingNotification();	// The clip is now alarming
+			}
+		});
+		
+		// Register the handlers of the supported characteristics
+		final ImmediateAlertHandler immediateAlertHandler = new ImmediateAlertHandler(alertStates, alarmFilters, alarmController);
+		// The writes are handled on the state actor thread, the alarm latencies are measured from when the binder thread received them
+		immediateAlertHandler.setTriggerTimeSource(serverCore);
+		immediateAlertHandler.setMetrics(alarmMetrics);
+		attributeHandlers.register(IMMEDIATE_ALERT_SERVICE_UUID, ALERT_LEVEL_CHAR_UUID, immediateAlertHandler);
+		eventDispatcher.setMetrics(alarmMetrics);
+		eventDispatcher.setOverflowListener(new ServerEventDispatcher.OverflowListener() {
+			@Override
+			public void onEventDropped(int type, String device, long droppedEvents) {
+				// The server callback falls behind, the drop counts are returned by getQueueStats
+				Log.w(TAG, "Server event queue full, dropped event " + type + ((device != null) ? " of " + device : "") +
+					" (" + droppedEvents + " dropped in total)");
+			}
+		});
+		
+		// Start delivering GATT server events to the server callback
+		eventDispatcher.start();
 
 		super.pluginInitialize();
 		//showDebugMsgBox("pluginInitialize() called end!");
@@ -1407,10 +1617,21 @@ public class GattServerPlugin extends CordovaPlugin
 	public void onDestroy() {
 		 // The final call you receive before your activity is destroyed
 		
-		// Release the MediaPlayer
-		if (mPlayer != null){
-			mPlayer.release();
-			mPlayer = null;
+		// Clean up after any message already queued, then stop the state actor
+		stateActor.send(PluginStateActor.MSG_DESTROY, null);
+		stateActor.stop();
+			
+		super.onDestroy();
+	}
+	
+	private void destroy()
+	{
+		// Releases everything held by the plugin (runs on the state actor thread)
+		
+		// Release the audio engine
+		if (audioEngine != null){
+			audioEngine.release();
+			audioEngine = null;
 		}
 		// Close the GATT server instance
 		if (gattServer != null){
@@ -1420,8 +1641,27 @@ public class GattServerPlugin extends CordovaPlugin
 				gattServer.cancelConnection(clientClips.get(0));*/
 			gattServer.close();
 		}
-			
-		super.onDestroy();
+		serverCore.setServer(null);
+		notificationSender.clear();
+		attributeValues.clear();
+		connectionRegistry.clear();
+		wakeLocks.releaseAll();
+		settingsStore.shutdown();	// Writes any pending settings change
+		alarmController.setJournal(null);
+		alarmController.setStatistics(null);
+		alarmStatistics.close();	// Writes the latest counts
+		if (alarmHistory != null){
+			alarmHistory.close();		// Moves the last journal records into the history
+			alarmHistory = null;
+		}
+		if (alarmJournal != null){
+			alarmJournal.close();
+			alarmJournal = null;
+		}
+		serviceRegistration.cancel();
+		// Stop delivering GATT server events
+		eventDispatcher.setSink(null);
+		eventDispatcher.stop();
 	}
 	
 	/*@Override
@@ -1443,7 +1683,7 @@ public class GattServerPlugin extends CordovaPlugin
 	@Override
 	public void onPause(boolean multitasking) {
 		// Called when the system is about to start resuming a previous activity
-		isInBackground = true;		// App is put in background
+		stateActor.send(PluginStateActor.MSG_PAUSE, null);	// App is put in background
 		//stopPlaying();		// If used, might stop playback when enters lock screen if an alarm was received right before
 		super.onPause(multitasking);
 		//showDebugMsgBox("onPause() called!");
@@ -1452,10 +1692,8 @@ public class GattServerPlugin extends CordovaPlugin
 	@Override
 	public void onResume(boolean multitasking) {
 		// Called when the activity will start interacting with the user
-		isInBackground = false;		// App is put in foreground
 		//NotificationManager alarmNotificationManager = (NotificationManager) cordova.getActivity().getApplicationContext().getSystemService(Context.NOTIFICATION_SERVICE);
-		alarmNotificationManager.cancelAll();
-		stopPlaying();
+		stateActor.send(PluginStateActor.MSG_RESUME, null);	// App is put in foreground (clears the alarm notifications and stops any sound)
 		super.onResume(multitasking);
 		//showDebugMsgBox("onResume() called!");
     	}
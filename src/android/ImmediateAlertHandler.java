@@ -0,0 +1,94 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* Handler of the Alert Level characteristic of the Immediate Alert service (0x1802).
+*
+* Runs the alert level writes from the nRF8002 clips through the alarm filters (connect-time writes,
+* toggled levels, debouncing etc., see AlarmFilterPipeline) and reports the ones that are alarms.
+*
+* The trigger time of an alarm is when its write was received. If the writes are not handled on the thread that
+* received them, the time is taken from a TriggerTimeSource.
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.util.UUID;
+
+
+public class ImmediateAlertHandler extends AttributeHandler
+{
+	// Immediate alert service
+	public final static UUID IMMEDIATE_ALERT_SERVICE_UUID = UUID.fromString("00001802-0000-1000-8000-00805f9b34fb");	// Service UUID
+	public final static UUID ALERT_LEVEL_CHAR_UUID = UUID.fromString("00002a06-0000-1000-8000-00805f9b34fb");		// Characteristic UUID
+
+	/*
+	* Receives the alert level writes interpreted as alarms.
+	*/
+	public interface AlarmListener
+	{
+		// The trigger time is the System.nanoTime() when the write was received
+		void onAlarm(int alertLevel, DeviceAlertTable.DeviceAlertState alertState, long triggerTime);
+		// The write was dropped by the filter stage at the index (see AlarmFilterPipeline.getStage())
+		void onSuppressed(int alertLevel, DeviceAlertTable.DeviceAlertState alertState, int stage, long triggerTime);
+	}
+
+	/*
+	* Returns the System.nanoTime() when the write being handled was received.
+	*/
+	public interface TriggerTimeSource
+	{
+		long getTriggerTime();
+	}
+
+	private final DeviceAlertTable alertStates;
+	private final AlarmFilterPipeline alarmFilters;
+	private final AlarmListener listener;
+	private volatile TriggerTimeSource triggerTimes = null;		// null if the write was received by the calling thread
+	private volatile AlarmMetrics metrics = null;
+
+	public ImmediateAlertHandler(DeviceAlertTable alertStates, AlarmFilterPipeline alarmFilters, AlarmListener listener)
+	{
+		this.alertStates = alertStates;
+		this.alarmFilters = alarmFilters;
+		this.listener = listener;
+	}
+
+	public void setTriggerTimeSource(TriggerTimeSource triggerTimes)
+	{
+		this.triggerTimes = triggerTimes;
+	}
+
+	/**
+	 * Sets the metrics the latency of the filter decision is recorded in (null for none).
+	*/
+	public void setMetrics(AlarmMetrics metrics)
+	{
+		this.metrics = metrics;
+	}
+
+	@Override
+	public int onCharacteristicWrite(String address, BluetoothGattCharacteristic characteristic, int offset, byte[] value)
+	{
+		final TriggerTimeSource source = triggerTimes;
+		final long triggerTime = (source != null) ? source.getTriggerTime() : System.nanoTime();
+		if (value == null || value.length == 0)
+			return BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+
+		int alertLevel = (int)value[0];
+		final DeviceAlertTable.DeviceAlertState alertState = alertStates.get(address);
+		alertState.setAlertLevel(alertLevel);
+		final int droppedBy = alarmFilters.evaluate(alertState, alertLevel);
+		final AlarmMetrics alarmMetrics = metrics;
+		if (alarmMetrics != null)
+			alarmMetrics.record(AlarmMetrics.STAGE_FILTER, triggerTime);
+		if (droppedBy < 0)
+			listener.onAlarm(alertLevel, alertState, triggerTime);
+		else
+			listener.onSuppressed(alertLevel, alertState, droppedBy, triggerTime);
+		return BluetoothGatt.GATT_SUCCESS;
+	}
+}
@@ -0,0 +1,129 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* Fixed-memory histogram of latencies in nanoseconds.
+*
+* The buckets are log-linear (as in HdrHistogram): values below 2^SUB_BUCKET_BITS are counted exactly, larger
+* values in buckets whose width is 1/2^(SUB_BUCKET_BITS - 1) of their magnitude, so every recorded value is
+* known within about 3%. All buckets are allocated up front (values above MAX_VALUE are counted as MAX_VALUE),
+* so recording is a few arithmetic operations and atomic increments and never allocates or locks. Values can
+* be recorded from any thread.
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+public class LatencyHistogram
+{
+	// Bits of precision of the buckets
+	private final static int SUB_BUCKET_BITS = 6;
+	private final static int SUB_BUCKET_HALF_COUNT = 1 << (SUB_BUCKET_BITS - 1);
+	// Largest value counted as itself (about 68 seconds)
+	public final static long MAX_VALUE = (1L << 36) - 1;
+	private final static int BUCKET_COUNT = indexOf(MAX_VALUE) + 1;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong count = new AtomicLong(0);
+	private final AtomicLong sum = new AtomicLong(0);
+	private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+	private final AtomicLong max = new AtomicLong(0);
+
+	/**
+	 * Records a latency in nanoseconds (negative values are counted as 0).
+	*/
+	public void record(long value)
+	{
+		if (value < 0)
+			value = 0;
+		else if (value > MAX_VALUE)
+			value = MAX_VALUE;
+		counts.incrementAndGet(indexOf(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long current;
+		while (value < (current = min.get())){
+			if (min.compareAndSet(current, value))
+				break;
+		}
+		while (value > (current = max.get())){
+			if (max.compareAndSet(current, value))
+				break;
+		}
+	}
+
+	public long getCount()
+	{
+		return count.get();
+	}
+
+	public long getMin()
+	{
+		return (count.get() > 0) ? min.get() : 0;
+	}
+
+	public long getMax()
+	{
+		return max.get();
+	}
+
+	public long getMean()
+	{
+		final long n = count.get();
+		return (n > 0) ? sum.get() / n : 0;
+	}
+
+	/**
+	 * Returns the value at the percentile (0 - 100), that is the highest value of the bucket holding it
+	 * (never above the largest recorded value). Returns 0 if nothing has been recorded.
+	*/
+	public long getValueAtPercentile(double percentile)
+	{
+		final long total = count.get();
+		if (total == 0)
+			return 0;
+		final long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++){
+			seen += counts.get(i);
+			if (seen >= rank)
+				return Math.min(highestValueOf(i), max.get());
+		}
+		return max.get();	// Counts recorded while iterating
+	}
+
+	/**
+	 * Zeroes the histogram. Values recorded at the same time may be lost.
+	*/
+	public void reset()
+	{
+		for (int i = 0; i < BUCKET_COUNT; i++){
+			counts.set(i, 0);
+		}
+		count.set(0);
+		sum.set(0);
+		min.set(Long.MAX_VALUE);
+		max.set(0);
+	}
+
+	private static int indexOf(long value)
+	{
+		if (value < (SUB_BUCKET_HALF_COUNT << 1))
+			return (int) value;		// Exact
+		// Keep the SUB_BUCKET_BITS highest bits of the value
+		final int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return shift * SUB_BUCKET_HALF_COUNT + (int)(value >>> shift);
+	}
+
+	private static long highestValueOf(int index)
+	{
+		if (index < (SUB_BUCKET_HALF_COUNT << 1))
+			return index;
+		final int shift = index / SUB_BUCKET_HALF_COUNT - 1;
+		final long subBucket = index - shift * SUB_BUCKET_HALF_COUNT;
+		return ((subBucket + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,18 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* Source of monotonic time in milliseconds (never goes backwards, unaffected by wall clock changes).
+*
+* The alarm filters, the connection registry and the wake locks read the time through this interface so they
+* can be driven by a simulated clock when run on a plain JVM. On the device the time is read from
+* ElapsedRealtimeClock.
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+
+public interface MonotonicClock
+{
+	long now();
+}
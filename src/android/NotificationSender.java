@@ -0,0 +1,392 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* Sends characteristic notifications/indications to the connected clients.
+*
+* Android allows only one notification in flight per connection: the next one may not be sent until
+* onNotificationSent has been called for the previous one. Every connection therefore has its own bounded
+* send queue that is advanced from onNotificationSent. A notification whose onNotificationSent does not come
+* within a deadline (delivered through the Scheduler) is counted as failed and the queue moves on. The sender
+* also keeps track of which clients have subscribed (through the Client Characteristic Configuration
+* Descriptor) to which characteristics: a value is only sent to subscribed clients, and can be fanned out to
+* all of them.
+*
+* A notification carries at most MTU-3 bytes of the value, so longer values (for the negotiated MTU of the
+* connection, see ConnectionRegistry) are rejected when queued instead of being cut by the Bluetooth stack.
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+public class NotificationSender
+{
+	// Subscription bits of the Client Characteristic Configuration Descriptor value
+	public final static int SUBSCRIBED_NOTIFICATIONS = 0x01;
+	public final static int SUBSCRIBED_INDICATIONS = 0x02;
+	// Maximum number of notifications waiting to be sent per connection
+	public final static int DEFAULT_MAX_QUEUE_DEPTH = 256;
+	// Header bytes of a notification/indication (opcode and attribute handle)
+	public final static int NOTIFICATION_HEADER_LENGTH = 3;
+	// Time in milliseconds to wait for onNotificationSent (longer than the longest connection interval, 4 s)
+	public final static long DEFAULT_SEND_TIMEOUT = 5000;
+
+	/*
+	* Delivers the send deadlines.
+	*/
+	public interface Scheduler
+	{
+		// Must call onTimer(token) after the delay
+		void schedule(Object token, long delayMillis);
+	}
+
+	/*
+	* Outcome of the notifications queued by one call (see send and sendToSubscribers).
+	*/
+	public final static class SendCounts
+	{
+		public int queued = 0;
+		public int notConnected = 0;	// The device is not connected
+		public int notSubscribed = 0;	// The client has not subscribed to the characteristic
+		public int queueFull = 0;	// The send queue of the connection is full
+		public int tooLong = 0;		// The value is longer than MTU-3 bytes of the connection
+
+		public int getRejected()
+		{
+			return notConnected + notSubscribed + queueFull + tooLong;
+		}
+	}
+
+	private final int maxQueueDepth;
+	private final Scheduler scheduler;
+	private final long sendTimeout;
+	private final ConcurrentHashMap<String, Connection> connections = new ConcurrentHashMap<String, Connection>();
+	private volatile GattServer server = null;
+
+	// Counters
+	private final AtomicLong queued = new AtomicLong(0);
+	private final AtomicLong rejected = new AtomicLong(0);
+	private final AtomicLong tooLong = new AtomicLong(0);
+	private final AtomicLong sent = new AtomicLong(0);
+	private final AtomicLong failed = new AtomicLong(0);
+	private final AtomicLong timedOut = new AtomicLong(0);
+	private final AtomicLong sentBytes = new AtomicLong(0);
+	private volatile long statsStartTime = System.nanoTime();
+
+	/*
+	* A notification waiting to be sent.
+	*/
+	private final static class Pending
+	{
+		final BluetoothGattCharacteristic characteristic;
+		final byte[] value;
+
+		Pending(BluetoothGattCharacteristic characteristic, byte[] value)
+		{
+			this.characteristic = characteristic;
+			this.value = value;
+		}
+	}
+
+	/*
+	* Send queue and subscriptions of one connected client. Guarded by its own monitor.
+	*/
+	private final static class Connection
+	{
+		final ConnectionRegistry.Connection info;
+		final ArrayDeque<Pending> queue = new ArrayDeque<Pending>();
+		final HashMap<BluetoothGattCharacteristic, Integer> subscriptions = new HashMap<BluetoothGattCharacteristic, Integer>();
+		boolean inFlight = false;
+		Deadline deadline = null;	// Of the notification in flight
+
+		Connection(ConnectionRegistry.Connection info)
+		{
+			this.info = info;
+		}
+	}
+
+	/*
+	* Token of a send deadline (a new one for every notification sent, so a stale deadline is told apart).
+	*/
+	private final static class Deadline
+	{
+		final Connection connection;
+
+		Deadline(Connection connection)
+		{
+			this.connection = connection;
+		}
+	}
+
+	public NotificationSender(Scheduler scheduler)
+	{
+		this(scheduler, DEFAULT_MAX_QUEUE_DEPTH, DEFAULT_SEND_TIMEOUT);
+	}
+
+	public NotificationSender(Scheduler scheduler, int maxQueueDepth, long sendTimeout)
+	{
+		this.scheduler = scheduler;
+		this.maxQueueDepth = maxQueueDepth;
+		this.sendTimeout = sendTimeout;
+	}
+
+	public void setServer(GattServer server)
+	{
+		this.server = server;
+	}
+
+	public void onConnected(ConnectionRegistry.Connection connection)
+	{
+		connections.put(connection.getAddress(), new Connection(connection));
+	}
+
+	public void onDisconnected(String address)
+	{
+		Connection connection = connections.remove(address);
+		if (connection != null){
+			synchronized (connection) {
+				failed.addAndGet(connection.queue.size());
+				connection.queue.clear();
+				connection.inFlight = false;
+				connection.deadline = null;
+			}
+		}
+	}
+
+	public void clear()
+	{
+		connections.clear();
+	}
+
+	/**
+	 * Records a write of the Client Characteristic Configuration Descriptor of a characteristic.
+	 * Returns false if the device is not connected.
+	*/
+	public boolean setSubscription(String address, BluetoothGattCharacteristic characteristic, byte[] value)
+	{
+		Connection connection = connections.get(address);
+		if (connection == null)
+			return false;
+		int subscription = (value != null && value.length > 0) ? (value[0] & (SUBSCRIBED_NOTIFICATIONS | SUBSCRIBED_INDICATIONS)) : 0;
+		synchronized (connection) {
+			if (subscription == 0)
+				connection.subscriptions.remove(characteristic);
+			else
+				connection.subscriptions.put(characteristic, subscription);
+		}
+		return true;
+	}
+
+	/**
+	 * Queues a notification of the characteristic value to one device. Returns false (and counts the reason
+	 * in counts) if the device is not connected, has not subscribed to the characteristic, its send queue is
+	 * full or the value does not fit in a notification.
+	*/
+	public boolean send(String address, BluetoothGattCharacteristic characteristic, byte[] value, SendCounts counts)
+	{
+		Connection connection = connections.get(address);
+		if (connection == null){
+			rejected.incrementAndGet();
+			counts.notConnected++;
+			return false;
+		}
+		return enqueue(connection, characteristic, value, counts);
+	}
+
+	/**
+	 * Queues a notification of the characteristic value to every device subscribed to the
+	 * characteristic. Returns the number of devices it was queued to.
+	*/
+	public int sendToSubscribers(BluetoothGattCharacteristic characteristic, byte[] value, SendCounts counts)
+	{
+		int count = 0;
+		for (Connection connection : connections.values()){
+			boolean subscribed;
+			synchronized (connection) {
+				subscribed = connection.subscriptions.containsKey(characteristic);
+			}
+			if (subscribed && enqueue(connection, characteristic, value, counts))
+				count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Must be called from BluetoothGattServerCallback.onNotificationSent. Sends the next queued notification.
+	 * A callback coming after the deadline of its notification completes the notification sent since (Android
+	 * does not tell which notification was sent), at worst the next one then fails to start.
+	*/
+	public void onNotificationSent(String address, int status)
+	{
+		Connection connection = connections.get(address);
+		if (connection == null)
+			return;
+		if (status != BluetoothGatt.GATT_SUCCESS)
+			failed.incrementAndGet();
+		synchronized (connection) {
+			connection.inFlight = false;
+			connection.deadline = null;
+			sendNext(connection);
+		}
+	}
+
+	/**
+	 * Must be called with the tokens passed to the Scheduler. Fails the notification in flight if it has not
+	 * been reported sent and sends the next one.
+	*/
+	public void onTimer(Object token)
+	{
+		final Connection connection = ((Deadline) token).connection;
+		synchronized (connection) {
+			if (connection.deadline != token)
+				return;		// Sent, or the client disconnected, since
+			connection.inFlight = false;
+			connection.deadline = null;
+			failed.incrementAndGet();
+			timedOut.incrementAndGet();
+			sendNext(connection);
+		}
+	}
+
+	/**
+	 * Returns the total number of notifications waiting to be sent.
+	*/
+	public int getQueueDepth()
+	{
+		int depth = 0;
+		for (Connection connection : connections.values()){
+			synchronized (connection) {
+				depth += connection.queue.size() + (connection.inFlight ? 1 : 0);
+			}
+		}
+		return depth;
+	}
+
+	public long getQueued()
+	{
+		return queued.get();
+	}
+
+	public long getRejected()
+	{
+		return rejected.get();
+	}
+
+	/**
+	 * Returns the number of notifications rejected because the value was longer than MTU-3 bytes of the connection.
+	*/
+	public long getTooLong()
+	{
+		return tooLong.get();
+	}
+
+	public long getSent()
+	{
+		return sent.get();
+	}
+
+	public long getFailed()
+	{
+		return failed.get();
+	}
+
+	/**
+	 * Returns the number of notifications (counted as failed) not reported sent within the deadline.
+	*/
+	public long getTimedOut()
+	{
+		return timedOut.get();
+	}
+
+	public long getSentBytes()
+	{
+		return sentBytes.get();
+	}
+
+	/**
+	 * Returns the number of notifications sent per second since the counters were reset.
+	*/
+	public double getThroughput()
+	{
+		double seconds = (System.nanoTime() - statsStartTime) / 1e9;
+		return (seconds > 0) ? sent.get() / seconds : 0;
+	}
+
+	public void resetStats()
+	{
+		queued.set(0);
+		rejected.set(0);
+		tooLong.set(0);
+		sent.set(0);
+		failed.set(0);
+		timedOut.set(0);
+		sentBytes.set(0);
+		statsStartTime = System.nanoTime();
+	}
+
+	private boolean enqueue(Connection connection, BluetoothGattCharacteristic characteristic, byte[] value, SendCounts counts)
+	{
+		synchronized (connection) {
+			if (!connection.subscriptions.containsKey(characteristic)){
+				rejected.incrementAndGet();
+				counts.notSubscribed++;
+				return false;
+			}
+			if (value.length > connection.info.getMtu() - NOTIFICATION_HEADER_LENGTH){
+				rejected.incrementAndGet();
+				tooLong.incrementAndGet();
+				counts.tooLong++;
+				return false;
+			}
+			if (connection.queue.size() >= maxQueueDepth){
+				rejected.incrementAndGet();
+				counts.queueFull++;
+				return false;
+			}
+			connection.queue.add(new Pending(characteristic, value));
+			queued.incrementAndGet();
+			counts.queued++;
+			if (!connection.inFlight)
+				sendNext(connection);
+		}
+		return true;
+	}
+
+	private void sendNext(Connection connection)
+	{
+		// Called holding the connection's monitor
+		final GattServer gattServer = server;
+		Pending pending;
+		while ((pending = connection.queue.poll()) != null){
+			if (gattServer == null){
+				failed.incrementAndGet();
+				continue;
+			}
+			Integer subscription = connection.subscriptions.get(pending.characteristic);
+			if (subscription == null){
+				failed.incrementAndGet();	// Unsubscribed while the notification was queued
+				continue;
+			}
+			boolean confirm = (subscription & SUBSCRIBED_INDICATIONS) != 0;
+			byte[] value = pending.value;
+			if (gattServer.notifyCharacteristicChanged(connection.info.getAddress(), pending.characteristic, value, confirm)){
+				connection.inFlight = true;
+				connection.deadline = new Deadline(connection);
+				scheduler.schedule(connection.deadline, sendTimeout);
+				connection.info.countNotificationSent();
+				sent.incrementAndGet();
+				sentBytes.addAndGet(value.length);
+				return;
+			}
+			failed.incrementAndGet();
+		}
+	}
+}
@@ -0,0 +1,351 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* Serializes all changes of the plugin state on one thread.
+*
+* The GATT server callbacks (binder threads), the plugin actions (WebCore thread) and the activity and service
+* callbacks (main thread) only send a typed message to the actor. The messages are handled one at a time, in the
+* order they were sent, on the actor's own thread (a HandlerThread), so the plugin state needs no locks.
+*
+* The time every message waits in the queue (from send to the start of its handling) is recorded per message type.
+* The enqueue time is carried in the (pooled) Message itself, so sending a message allocates nothing but its payload.
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.util.Log;
+
+import org.apache.cordova.CallbackContext;
+import org.json.JSONArray;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+public class PluginStateActor
+{
+	private final static String TAG = "GattServerState";
+
+	// Message types (payload)
+	public final static int MSG_CONNECTION_STATE = 0;	// Client connected or disconnected (ConnectionState)
+	public final static int MSG_CHARACTERISTIC_WRITE = 1;	// Characteristic write request, alarms (WriteRequest)
+	public final static int MSG_DESCRIPTOR_WRITE = 2;	// Descriptor write request, subscriptions (WriteRequest)
+	public final static int MSG_EXECUTE_WRITE = 3;		// Execute or cancel the prepared writes of a client (ExecuteWrite)
+	public final static int MSG_MTU_CHANGED = 4;		// LinkUpdate (value1 = MTU)
+	public final static int MSG_PHY_UPDATE = 5;		// LinkUpdate (value1 = TX PHY, value2 = RX PHY)
+	public final static int MSG_NOTIFICATION_SENT = 6;	// LinkUpdate (value1 = status)
+	public final static int MSG_SERVICE_ADDED = 7;		// ServiceAdded
+	public final static int MSG_ACTION = 8;			// Plugin action from JS (ActionRequest)
+	public final static int MSG_PAUSE = 9;			// Activity paused (no payload)
+	public final static int MSG_RESUME = 10;		// Activity resumed (no payload)
+	public final static int MSG_DESTROY = 11;		// Plugin destroyed (no payload)
+	public final static int MSG_SERVICE_CONNECTED = 12;	// Foreground service bound (SensesoftMiniService)
+	public final static int MSG_SERVICE_DISCONNECTED = 13;	// Foreground service lost (no payload)
+	public final static int MSG_REGISTRATION_TIMER = 14;	// Timeout or retry of a service registration (token, see ServiceRegistrationQueue)
+	public final static int MSG_NOTIFICATION_TIMER = 15;	// Deadline of a notification in flight (token, see NotificationSender)
+	private final static String[] TYPE_NAMES = {"connectionState", "characteristicWrite", "descriptorWrite", "executeWrite", "mtuChanged",
+		"phyUpdate", "notificationSent", "serviceAdded", "action", "pause", "resume", "destroy", "serviceConnected", "serviceDisconnected",
+		"registrationTimer", "notificationTimer"};
+	public final static int TYPE_COUNT = TYPE_NAMES.length;
+
+	/*
+	* Message payloads (immutable). The address of the device is read on the sending (binder) thread. The package
+	* private constructors take it as is, with any device (null when run without a Bluetooth stack, see GattServerCore).
+	*/
+	public final static class ConnectionState
+	{
+		public final String address;
+		public final BluetoothDevice device;
+		public final int status;
+		public final int newState;
+
+		public ConnectionState(BluetoothDevice device, int status, int newState)
+		{
+			this(device.getAddress(), device, status, newState);
+		}
+
+		ConnectionState(String address, BluetoothDevice device, int status, int newState)
+		{
+			this.address = address;
+			this.device = device;
+			this.status = status;
+			this.newState = newState;
+		}
+	}
+
+	public final static class WriteRequest
+	{
+		public final String address;
+		public final int requestId;
+		public final Object attribute;		// BluetoothGattCharacteristic or BluetoothGattDescriptor
+		public final BluetoothGattCharacteristic characteristic;	// The characteristic written or the one of the descriptor
+		public final UUID serviceUuid;		// null if the characteristic is not part of a service
+		public final UUID characteristicUuid;
+		public final UUID descriptorUuid;	// null if a characteristic is written
+		public final boolean preparedWrite;
+		public final boolean responseNeeded;
+		public final int offset;
+		public final byte[] value;
+		public final long receivedTime;		// System.nanoTime() when the binder thread received the request
+
+		public WriteRequest(BluetoothDevice device, int requestId, BluetoothGattCharacteristic characteristic, boolean preparedWrite, boolean responseNeeded, int offset, byte[] value)
+		{
+			this(device.getAddress(), requestId, characteristic, characteristic, serviceUuid(characteristic), characteristic.getUuid(), null,
+				preparedWrite, responseNeeded, offset, value);
+		}
+
+		public WriteRequest(BluetoothDevice device, int requestId, BluetoothGattDescriptor descriptor, boolean preparedWrite, boolean responseNeeded, int offset, byte[] value)
+		{
+			this(device.getAddress(), requestId, descriptor, descriptor.getCharacteristic(), serviceUuid(descriptor.getCharacteristic()),
+				descriptor.getCharacteristic().getUuid(), descriptor.getUuid(), preparedWrite, responseNeeded, offset, value);
+		}
+
+		WriteRequest(String address, int requestId, Object attribute, BluetoothGattCharacteristic characteristic, UUID serviceUuid, UUID characteristicUuid,
+			UUID descriptorUuid, boolean preparedWrite, boolean responseNeeded, int offset, byte[] value)
+		{
+			this.receivedTime = System.nanoTime();
+			this.address = address;
+			this.requestId = requestId;
+			this.attribute = attribute;
+			this.characteristic = characteristic;
+			this.serviceUuid = serviceUuid;
+			this.characteristicUuid = characteristicUuid;
+			this.descriptorUuid = descriptorUuid;
+			this.preparedWrite = preparedWrite;
+			this.responseNeeded = responseNeeded;
+			this.offset = offset;
+			this.value = value;
+		}
+
+		private static UUID serviceUuid(BluetoothGattCharacteristic characteristic)
+		{
+			final BluetoothGattService service = characteristic.getService();
+			return (service != null) ? service.getUuid() : null;
+		}
+	}
+
+	public final static class ExecuteWrite
+	{
+		public final String address;
+		public final int requestId;
+		public final boolean execute;
+
+		public ExecuteWrite(BluetoothDevice device, int requestId, boolean execute)
+		{
+			this(device.getAddress(), requestId, execute);
+		}
+
+		ExecuteWrite(String address, int requestId, boolean execute)
+		{
+			this.address = address;
+			this.requestId = requestId;
+			this.execute = execute;
+		}
+	}
+
+	public final static class LinkUpdate
+	{
+		public final String address;
+		public final int value1;
+		public final int value2;
+
+		public LinkUpdate(BluetoothDevice device, int value1, int value2)
+		{
+			this(device.getAddress(), value1, value2);
+		}
+
+		LinkUpdate(String address, int value1, int value2)
+		{
+			this.address = address;
+			this.value1 = value1;
+			this.value2 = value2;
+		}
+	}
+
+	public final static class ServiceAdded
+	{
+		public final int status;
+		public final BluetoothGattService service;
+
+		public ServiceAdded(int status, BluetoothGattService service)
+		{
+			this.status = status;
+			this.service = service;
+		}
+	}
+
+	public final static class ActionRequest
+	{
+		public final String action;
+		public final JSONArray args;
+		public final CallbackContext callbackContext;
+
+		public ActionRequest(String action, JSONArray args, CallbackContext callbackContext)
+		{
+			this.action = action;
+			this.args = args;
+			this.callbackContext = callbackContext;
+		}
+	}
+
+	/*
+	* Handles the messages, called on the actor thread.
+	*/
+	public interface Receiver
+	{
+		void receive(int type, Object payload);
+	}
+
+	private final Receiver receiver;
+	private final HandlerThread thread;
+	private final Handler handler;
+	private final AtomicInteger queued = new AtomicInteger(0);	// Messages sent but not yet handled
+
+	// Queue latency per message type in nanoseconds (only written on the actor thread)
+	private final long[] counts = new long[TYPE_COUNT];
+	private final long[] totalLatency = new long[TYPE_COUNT];
+	private final long[] maxLatency = new long[TYPE_COUNT];
+	private final long[] failures = new long[TYPE_COUNT];		// Messages that threw
+	private int maxQueued = 0;
+
+	/**
+	 * Creates and starts the actor thread.
+	*/
+	public PluginStateActor(Receiver receiver)
+	{
+		this.receiver = receiver;
+		this.thread = new HandlerThread("GattServerState");
+		this.thread.start();
+		this.handler = new Handler(thread.getLooper(), new Handler.Callback() {
+			@Override
+			public boolean handleMessage(Message message) {
+				handle(message);
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * Sends a message to the actor. Can be called from any thread. Returns false if the actor has been stopped.
+	*/
+	public boolean send(int type, Object payload)
+	{
+		final long now = System.nanoTime();
+		final Message message = handler.obtainMessage(type, (int)(now >>> 32), (int) now, payload);
+		queued.incrementAndGet();
+		if (!handler.sendMessage(message)){
+			queued.decrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Sends a message to the actor to be handled after the delay. The queue latency of the message is counted
+	 * from the end of the delay. Returns false if the actor has been stopped.
+	*/
+	public boolean sendDelayed(int type, Object payload, long delayMillis)
+	{
+		final long due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+		final Message message = handler.obtainMessage(type, (int)(due >>> 32), (int) due, payload);
+		queued.incrementAndGet();
+		if (!handler.sendMessageDelayed(message, delayMillis)){
+			queued.decrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true if called on the actor thread.
+	*/
+	public boolean isActorThread()
+	{
+		return Looper.myLooper() == thread.getLooper();
+	}
+
+	/**
+	 * Stops the actor thread once the messages already sent have been handled.
+	*/
+	public void stop()
+	{
+		thread.quitSafely();
+	}
+
+	/**
+	 * Returns the number of messages waiting to be handled.
+	*/
+	public int getQueued()
+	{
+		return queued.get();
+	}
+
+	// The statistics below must be read on the actor thread (for example from a plugin action)
+
+	public int getMaxQueued()
+	{
+		return maxQueued;
+	}
+
+	public static String getTypeName(int type)
+	{
+		return TYPE_NAMES[type];
+	}
+
+	public long getCount(int type)
+	{
+		return counts[type];
+	}
+
+	public long getFailures(int type)
+	{
+		return failures[type];
+	}
+
+	/**
+	 * Returns the average time in nanoseconds messages of the type have waited in the queue.
+	*/
+	public long getAverageLatency(int type)
+	{
+		return (counts[type] > 0) ? totalLatency[type] / counts[type] : 0;
+	}
+
+	/**
+	 * Returns the longest time in nanoseconds a message of the type has waited in the queue.
+	*/
+	public long getMaxLatency(int type)
+	{
+		return maxLatency[type];
+	}
+
+	private void handle(Message message)
+	{
+		final int type = message.what;
+		final long latency = System.nanoTime() - (((long) message.arg1 << 32) | (message.arg2 & 0xffffffffL));
+		final int depth = queued.getAndDecrement();
+		if (depth > maxQueued)
+			maxQueued = depth;
+		counts[type]++;
+		totalLatency[type] += latency;
+		if (latency > maxLatency[type])
+			maxLatency[type] = latency;
+		try {
+			receiver.receive(type, message.obj);
+		}
+		catch (RuntimeException e) {
+			// Keep the actor running, the other messages must still be handled
+			failures[type]++;
+			Log.e(TAG, TYPE_NAMES[type] + " failed", e);
+		}
+	}
+}
@@ -0,0 +1,194 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* Reassembly of prepared (queued/long) writes.
+*
+* A client writes a value longer than MTU-3 bytes as a series of offset-addressed Prepare Write requests
+* followed by an Execute Write request that either commits or discards all of them. The fragments are
+* collected per device and attribute into reusable buffers taken from a shared pool, and handed over as
+* complete values when the write is executed. Memory is bounded: a value is at most MAX_VALUE_LENGTH bytes
+* and a device can have at most MAX_ATTRIBUTES_PER_DEVICE attributes with a write in progress.
+*
+* The devices are identified by their Bluetooth address. The counters (buffers allocated, writes committed and
+* discarded) are reported by the getQueueStats action.
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+import android.bluetooth.BluetoothGatt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+public class PreparedWriteBuffers
+{
+	// Maximum length of an attribute value (Bluetooth Core Specification)
+	public final static int MAX_VALUE_LENGTH = 512;
+	// Maximum number of attributes with a prepared write in progress per device
+	public final static int MAX_ATTRIBUTES_PER_DEVICE = 4;
+	// Maximum number of free buffers kept in the pool
+	public final static int MAX_POOLED_BUFFERS = 16;
+	// ATT error code "Prepare Queue Full" (not defined in BluetoothGatt)
+	public final static int GATT_PREPARE_QUEUE_FULL = 0x09;
+
+	/*
+	* Receives the reassembled values when the prepared writes of a device are executed.
+	*/
+	public interface Committer
+	{
+		// Returns the GATT status of the write
+		int commit(Object attribute, byte[] value);
+	}
+
+	/*
+	* A value being reassembled.
+	*/
+	private final static class Fragments
+	{
+		final Object attribute;		// BluetoothGattCharacteristic or BluetoothGattDescriptor
+		final byte[] buffer;
+		int length = 0;
+
+		Fragments(Object attribute, byte[] buffer)
+		{
+			this.attribute = attribute;
+			this.buffer = buffer;
+		}
+	}
+
+	private final ConcurrentLinkedQueue<byte[]> pool = new ConcurrentLinkedQueue<byte[]>();
+	private final AtomicInteger pooledBuffers = new AtomicInteger(0);
+	private final ConcurrentHashMap<String, List<Fragments>> writes = new ConcurrentHashMap<String, List<Fragments>>();
+
+	// Counters
+	private final AtomicLong allocatedBuffers = new AtomicLong(0);
+	private final AtomicLong committedWrites = new AtomicLong(0);
+	private final AtomicLong committedBytes = new AtomicLong(0);
+	private final AtomicLong discardedWrites = new AtomicLong(0);
+
+	/**
+	 * Stores a fragment of a prepared write. Returns the GATT status to respond with.
+	*/
+	public int prepare(String address, Object attribute, int offset, byte[] value)
+	{
+		int length = (value != null) ? value.length : 0;
+		if (offset < 0 || offset > MAX_VALUE_LENGTH)
+			return BluetoothGatt.GATT_INVALID_OFFSET;
+		if (offset + length > MAX_VALUE_LENGTH)
+			return BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;	// The fragment would make the value too long
+
+		List<Fragments> deviceWrites = writes.get(address);
+		if (deviceWrites == null){
+			List<Fragments> newWrites = new ArrayList<Fragments>(MAX_ATTRIBUTES_PER_DEVICE);
+			deviceWrites = writes.putIfAbsent(address, newWrites);
+			if (deviceWrites == null)
+				deviceWrites = newWrites;
+		}
+		synchronized (deviceWrites) {
+			Fragments fragments = null;
+			for (int i = 0; i < deviceWrites.size(); i++){
+				if (deviceWrites.get(i).attribute == attribute){
+					fragments = deviceWrites.get(i);
+					break;
+				}
+			}
+			if (fragments == null){
+				if (deviceWrites.size() >= MAX_ATTRIBUTES_PER_DEVICE)
+					return GATT_PREPARE_QUEUE_FULL;
+				fragments = new Fragments(attribute, takeBuffer());
+				deviceWrites.add(fragments);
+			}
+			if (length > 0)
+				System.arraycopy(value, 0, fragments.buffer, offset, length);
+			fragments.length = Math.max(fragments.length, offset + length);
+		}
+		return BluetoothGatt.GATT_SUCCESS;
+	}
+
+	/**
+	 * Executes (commit is true) or cancels the prepared writes of a device. Returns the GATT status
+	 * to respond with (the first failing commit status, if any).
+	*/
+	public int execute(String address, boolean commit, Committer committer)
+	{
+		List<Fragments> deviceWrites = writes.remove(address);
+		if (deviceWrites == null)
+			return BluetoothGatt.GATT_SUCCESS;
+
+		int status = BluetoothGatt.GATT_SUCCESS;
+		synchronized (deviceWrites) {
+			for (int i = 0; i < deviceWrites.size(); i++){
+				Fragments fragments = deviceWrites.get(i);
+				if (commit){
+					int commitStatus = committer.commit(fragments.attribute, Arrays.copyOf(fragments.buffer, fragments.length));
+					if (commitStatus != BluetoothGatt.GATT_SUCCESS && status == BluetoothGatt.GATT_SUCCESS)
+						status = commitStatus;
+					committedWrites.incrementAndGet();
+					committedBytes.addAndGet(fragments.length);
+				}
+				else {
+					discardedWrites.incrementAndGet();
+				}
+				releaseBuffer(fragments.buffer, fragments.length);
+			}
+			deviceWrites.clear();
+		}
+		return status;
+	}
+
+	/**
+	 * Discards the prepared writes of a disconnected device.
+	*/
+	public void onDisconnected(String address)
+	{
+		execute(address, false, null);
+	}
+
+	public long getAllocatedBuffers()
+	{
+		return allocatedBuffers.get();
+	}
+
+	public long getCommittedWrites()
+	{
+		return committedWrites.get();
+	}
+
+	public long getCommittedBytes()
+	{
+		return committedBytes.get();
+	}
+
+	public long getDiscardedWrites()
+	{
+		return discardedWrites.get();
+	}
+
+	private byte[] takeBuffer()
+	{
+		byte[] buffer = pool.poll();
+		if (buffer != null){
+			pooledBuffers.decrementAndGet();
+			return buffer;
+		}
+		allocatedBuffers.incrementAndGet();
+		return new byte[MAX_VALUE_LENGTH];
+	}
+
+	private void releaseBuffer(byte[] buffer, int used)
+	{
+		if (pooledBuffers.incrementAndGet() > MAX_POOLED_BUFFERS){
+			pooledBuffers.decrementAndGet();
+			return;		// Pool is full, let the buffer be garbage collected
+		}
+		Arrays.fill(buffer, 0, used, (byte)0);	// Gaps between fragments of the next write must read as zero
+		pool.offer(buffer);
+	}
+}
@@ -0,0 +1,125 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* Process-wide cache of resolved resources shared by the plugin and SensesoftMiniService.
+*
+* Resource identifiers (Resources.getIdentifier is a slow reflective lookup), the URIs of the alarm sounds and
+* the decoded notification bitmaps are resolved once and the same instances are handed out to every caller.
+* Bitmaps are downsampled to the size of a notification large icon when decoded, so a full-size copy of the
+* drawable never lives in the heap.
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.RingtoneManager;
+import android.net.Uri;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+
+public class ResourceCache
+{
+	private static ResourceCache instance = null;
+
+	private final Context context;
+	private final ConcurrentHashMap<String, Integer> identifiers = new ConcurrentHashMap<String, Integer>();
+	private final ConcurrentHashMap<String, Bitmap> bitmaps = new ConcurrentHashMap<String, Bitmap>();
+	private final Uri[] soundUris = new Uri[AlarmSound.values().length];	// Guarded by this
+
+	private ResourceCache(Context context)
+	{
+		this.context = context.getApplicationContext();
+	}
+
+	/**
+	 * Returns the cache of the process.
+	*/
+	public static synchronized ResourceCache getInstance(Context context)
+	{
+		if (instance == null)
+			instance = new ResourceCache(context);
+		return instance;
+	}
+
+	/**
+	 * Returns the identifier of a resource of the app (0 if there is no such resource).
+	*/
+	public int getIdentifier(String name, String type)
+	{
+		final String key = type + "/" + name;
+		Integer id = identifiers.get(key);
+		if (id == null){
+			id = context.getResources().getIdentifier(name, type, context.getPackageName());
+			identifiers.put(key, id);
+		}
+		return id;
+	}
+
+	public int getDrawableId(String name)
+	{
+		return getIdentifier(name, "drawable");
+	}
+
+	public int getRawId(String name)
+	{
+		return getIdentifier(name, "raw");
+	}
+
+	/**
+	 * Returns the URI of an alarm sound (null for SOUND_OFF).
+	*/
+	public synchronized Uri getSoundUri(AlarmSound sound)
+	{
+		final int index = sound.ordinal();
+		if (soundUris[index] == null){
+			if (sound.rawName != null)
+				soundUris[index] = Uri.parse("android.resource://" + context.getPackageName() + "/raw/" + sound.rawName);
+			else if (sound.ringtoneType != 0)
+				soundUris[index] = RingtoneManager.getDefaultUri(sound.ringtoneType);
+		}
+		return soundUris[index];
+	}
+
+	/**
+	 * Returns a drawable decoded at (about) the size of a notification large icon (null if there is no such drawable).
+	*/
+	public Bitmap getNotificationBitmap(String name)
+	{
+		Bitmap bitmap = bitmaps.get(name);
+		if (bitmap == null){
+			final int id = getDrawableId(name);
+			if (id == 0)
+				return null;
+			final Resources resources = context.getResources();
+			bitmap = decodeSampled(resources, id, resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_width),
+				resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_height));
+			if (bitmap == null)
+				return null;
+			final Bitmap cached = bitmaps.putIfAbsent(name, bitmap);
+			if (cached != null)
+				bitmap = cached;	// Decoded by another thread at the same time
+		}
+		return bitmap;
+	}
+
+	private static Bitmap decodeSampled(Resources resources, int id, int width, int height)
+	{
+		// Decodes the drawable with the largest power of two downsampling that keeps it at least width x height
+		
+		final BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeResource(resources, id, options);
+		int sampleSize = 1;
+		while (options.outWidth / (sampleSize * 2) >= width && options.outHeight / (sampleSize * 2) >= height){
+			sampleSize *= 2;
+		}
+		options.inJustDecodeBounds = false;
+		options.inSampleSize = sampleSize;
+		return BitmapFactory.decodeResource(resources, id, options);
+	}
+}
@@ -3,26 +3,29 @@
 *
 * Service to keep bluetooth connection alive when the app is put in background.
 *
-* A wake lock is needed to keep the cpu running so bluetooth connection doesn't disconnects when the device goes to "sleep".
+* The wake lock that keeps the cpu running while clips are connected is held by the plugin (see WakeLockManager).
 * The doze mode in Android 6.0+ does not honour wake locks (even if the app is excluded from such battery optimization).
 * Apps that have running foreground services (with the associated notification) are not restricted by doze mode.
+*
+* The ongoing notification shows the number of connected and alarming clips. State changes can come in at a high
+* rate (many clips connecting or alarming at once), so they are coalesced: the notification is updated at most once
+* per MIN_UPDATE_INTERVAL, only when its text has changed, and from a builder created once per foreground session.
 * 
 */
 
 package com.sensiblesolutions.gattserver;
 
-import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
-import android.graphics.BitmapFactory;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
-import android.os.PowerManager;
-import android.os.PowerManager.WakeLock;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.NotificationManagerCompat;
 
@@ -38,14 +41,29 @@ public class SensesoftMiniService extends Service {
     // Notification icons for the ongoing 'foreground service' notification
     private static final String NOTIFICATION_BT_ICON = "notification_bt_icon";
     private static final String NOTIFICATION_LARGE_ICON = "notification_large_icon";
+    // Minimum time in milliseconds between two updates of the ongoing notification
+    private static final long MIN_UPDATE_INTERVAL = 1000;
 
      // Interface for clients that bind
     private final IBinder mBinder = new SensesoftMiniBinder(); 
-  
-    // Wakelock used to prevent CPU from going to sleep
-    private WakeLock wakeLock = null;
 
     private boolean isForegroundService = false;
+
+    // Ongoing notification, only used on the main thread
+    private NotificationCompat.Builder ongoingBuilder = null;	// Created when entering the foreground state
+    private String shownText = null;				// Text of the notification showing
+    private final Handler updateHandler = new Handler(Looper.getMainLooper());
+    private final Runnable updateRunnable = new Runnable() {
+        @Override
+        public void run() {
+		postOngoingState();
+        }
+    };
+    // Latest state reported by the plugin (guarded by this)
+    private int connectedClips = 0;
+    private int alarmingClips = 0;
+    private boolean updatePending = false;
+    private long lastUpdateTime = 0;				// SystemClock.elapsedRealtime() of the last update
 	
     /*
     * Class used for the client Binder. Because we know this service always
@@ -65,14 +83,6 @@ public class SensesoftMiniService extends Service {
     public IBinder onBind(Intent intent) {
         // Called after the first client (only) is binding to the service with bindService()
       
-	// Need a wakelock to keep the cpu running so bluetooth connection doesn't disconnects when device goes to "sleep"
-	if (wakeLock == null){
-		PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
-		wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "SSMWakelockTag");
-		wakeLock.setReferenceCounted(false);
-		wakeLock.acquire();
-	}
-      
         return mBinder;
     }
 	
@@ -85,14 +95,7 @@ public class SensesoftMiniService extends Service {
 		stopForeground(true);
 		isForegroundService = false;
 	}
-	    
-	// Release the wake lock if it has been acquired but not yet released
-	if (wakeLock != null){
-		if (wakeLock.isHeld()){
-			wakeLock.release();
-		}
-		wakeLock = null;
-	}
+	resetOngoingNotification();
 	    
         return false;
     }
@@ -116,45 +119,99 @@ public class SensesoftMiniService extends Service {
 	    
         super.onDestroy();
 	
-	// Release the wake lock if it has been acquired but not yet released
-	if (wakeLock != null){
-		if (wakeLock.isHeld()){
-			wakeLock.release();
-		}
-		wakeLock = null;
-	}
+	resetOngoingNotification();
     }
 
     /*
     * A foreground service must provide a notification for the status bar, which is placed under the Ongoing heading.
     * This means that the notification cannot be dismissed unless the service is either stopped or removed from the foreground.
+    * The builder is kept and only its text is changed when the notification is updated.
     */
-    private Notification makeOngoingNotification(String contentText, Intent appIntent) {
+    private NotificationCompat.Builder makeOngoingNotificationBuilder(Intent appIntent) {
 
-        NotificationCompat.Builder mBuilder = new NotificationCompat.Builder(getApplicationContext())
+        return new NotificationCompat.Builder(getApplicationContext())
           .setContentTitle(ONGOING_NOTIFICATION_TITLE)
-          .setContentText(contentText)
           .setOngoing(true)
+          .setOnlyAlertOnce(true)	// Updates must not make any sound or heads-up
+          .setShowWhen(false)
           //.setColorized(true)      	// Recommended to use background color for ongoing foreground service notifications (only Android O and above)
 	  //.setColor(0x0027a1c6)	// Sets the background color of the small icon where it's used other than the in the system bar (always whiteish there)
           //.setSmallIcon(getApplicationContext().getApplicationInfo().icon)
-	  .setSmallIcon(getApplicationContext().getResources().getIdentifier(NOTIFICATION_BT_ICON, "drawable", getApplicationContext().getPackageName()))
-          .setLargeIcon(BitmapFactory.decodeResource(getApplicationContext().getResources(), getApplicationContext().getResources().getIdentifier(NOTIFICATION_LARGE_ICON, "drawable", getApplicationContext().getPackageName())))
+	  .setSmallIcon(ResourceCache.getInstance(this).getDrawableId(NOTIFICATION_BT_ICON))
+          .setLargeIcon(ResourceCache.getInstance(this).getNotificationBitmap(NOTIFICATION_LARGE_ICON))	// Same (downsampled) bitmap as the plugin's alarm notification
 	  .setPriority(NotificationCompat.PRIORITY_MIN)     // Minimum priority prevents the notification from being visable on the lockscreen
           .setContentIntent(PendingIntent.getActivity(getApplicationContext(), ONGOING_NOTIFICATION_ID, appIntent, PendingIntent.FLAG_UPDATE_CURRENT));
-      
-        return mBuilder.build();
     }
   
     /**
-     * Update the ongoing notification.
+     * Update the ongoing notification right away (not coalesced).
     */
-    protected void updateOngoingNotification(String contentText, Intent appIntent) {
+    protected void updateOngoingNotification(String contentText) {
 
-        Notification notification = makeOngoingNotification(contentText, appIntent);
+	if (!isForegroundService || ongoingBuilder == null || contentText.equals(shownText))
+		return;		// Not showing or nothing visible changed
+	ongoingBuilder.setContentText(contentText);
         NotificationManager serviceNotificationManager;
         serviceNotificationManager = (NotificationManager) getApplicationContext().getSystemService(Context.NOTIFICATION_SERVICE);
-        serviceNotificationManager.notify(ONGOING_NOTIFICATION_ID, notification);
+        serviceNotificationManager.notify(ONGOING_NOTIFICATION_ID, ongoingBuilder.build());
+	shownText = contentText;
+    }
+
+    /**
+     * Reports the number of connected and alarming clips shown in the ongoing notification. Can be called from any
+     * thread, the notification is updated on the main thread at most once per MIN_UPDATE_INTERVAL with the latest state.
+    */
+    protected void updateOngoingState(int connected, int alarming) {
+
+	long delay;
+	synchronized (this) {
+		connectedClips = connected;
+		alarmingClips = alarming;
+		if (updatePending)
+			return;		// The pending update will show this state
+		updatePending = true;
+		delay = Math.max(0, lastUpdateTime + MIN_UPDATE_INTERVAL - SystemClock.elapsedRealtime());
+	}
+	updateHandler.postDelayed(updateRunnable, delay);
+    }
+
+    /*
+    * Shows the latest reported state (main thread).
+    */
+    private void postOngoingState() {
+
+	String contentText;
+	synchronized (this) {
+		updatePending = false;
+		contentText = makeOngoingText(connectedClips, alarmingClips);
+		if (!isForegroundService || contentText.equals(shownText))
+			return;
+		lastUpdateTime = SystemClock.elapsedRealtime();
+	}
+	updateOngoingNotification(contentText);
+    }
+
+    private static String makeOngoingText(int connected, int alarming) {
+
+	if (connected == 0)
+		return "No alarm clips connected.";
+	String contentText = connected + ((connected == 1) ? " clip connected" : " clips connected");
+	if (alarming > 0)
+		contentText += ", " + alarming + " alarming";
+	return contentText + ".";
+    }
+
+    /*
+    * Drops any pending update and the builder (main thread).
+    */
+    private void resetOngoingNotification() {
+
+	updateHandler.removeCallbacks(updateRunnable);
+	synchronized (this) {
+		updatePending = false;
+	}
+	ongoingBuilder = null;
+	shownText = null;
     }
 
     /**
@@ -164,7 +221,10 @@ public class SensesoftMiniService extends Service {
     protected void enableForegroundService(Intent appIntent) {
 
 	if (!isForegroundService){
-		startForeground(ONGOING_NOTIFICATION_ID, makeOngoingNotification(ONGOING_NOTIFICATION_TEXT, appIntent));
+		ongoingBuilder = makeOngoingNotificationBuilder(appIntent);
+		ongoingBuilder.setContentText(ONGOING_NOTIFICATION_TEXT);
+		startForeground(ONGOING_NOTIFICATION_ID, ongoingBuilder.build());
+		shownText = ONGOING_NOTIFICATION_TEXT;
 		isForegroundService = true;
 	}
     }
@@ -0,0 +1,75 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* A GATT server event on its way from the plugin's state actor thread to JavaScript.
+*
+* Instances are pre-allocated as slots in the ServerEventDispatcher ring buffer and reused,
+* so the fields are plain values (no JSON) that are cheap to write on the alarm path.
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+
+public class ServerEvent
+{
+	// Event types
+	public final static int TYPE_SERVICE_ADDED = 1;		// All requested services added to the GATT server
+	public final static int TYPE_SERVICE_EXISTS = 2;	// Service(s) already provided by the GATT server
+	public final static int TYPE_SERVICE_ERROR = 3;		// Service could not be added (ends the server callback)
+	public final static int TYPE_CONNECTED = 4;		// Remote client connected
+	public final static int TYPE_DISCONNECTED = 5;		// Remote client disconnected
+	public final static int TYPE_CONNECTION_ERROR = 6;	// Connection state changed with error (ends the server callback)
+	public final static int TYPE_WRITE_REQUEST = 7;		// Alert level write accepted as an alarm
+	public final static int TYPE_WRITE_NOT_SUPPORTED = 8;	// Write request to an unsupported characteristic
+	public final static int TYPE_MTU_CHANGED = 10;		// ATT MTU of a connection negotiated
+
+	// Immediate Alert level of a High Alert
+	public final static int LEVEL_HIGH_ALERT = 2;
+
+	public int type;
+	public String device;		// Bluetooth address of the remote device (null if not device related) or UUID of the service (service error)
+	public int status;		// GATT status (error events) or ATT MTU (connected and MTU changed events)
+	public int level;		// Immediate Alert level (write requests), number of services (services added) or attempts (service error)
+	public long timestamp;		// Wall clock time in milliseconds when the event occurred
+	public long triggerTime;	// System.nanoTime() when the alarm write was received (0 if not an alarm, see AlarmMetrics)
+
+	/**
+	 * Returns true if the event is reported through the error callback.
+	*/
+	public boolean isError()
+	{
+		return type == TYPE_SERVICE_ERROR || type == TYPE_CONNECTION_ERROR || type == TYPE_WRITE_NOT_SUPPORTED;
+	}
+
+	/**
+	 * Returns true if the event is a High Alert alarm.
+	*/
+	public boolean isHighAlert()
+	{
+		return type == TYPE_WRITE_REQUEST && level == LEVEL_HIGH_ALERT;
+	}
+
+	/**
+	 * Returns false if the event is the last one to be delivered to the server callback.
+	*/
+	public boolean keepsCallback()
+	{
+		return type != TYPE_SERVICE_ERROR && type != TYPE_CONNECTION_ERROR;
+	}
+
+	void set(int type, String device, int status, int level, long timestamp, long triggerTime)
+	{
+		this.type = type;
+		this.device = device;
+		this.status = status;
+		this.level = level;
+		this.timestamp = timestamp;
+		this.triggerTime = triggerTime;
+	}
+
+	void copyFrom(ServerEvent other)
+	{
+		set(other.type, other.device, other.status, other.level, other.timestamp, other.triggerTime);
+	}
+}
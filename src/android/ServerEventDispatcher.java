@@ -0,0 +1,411 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* Delivers GATT server events to the JavaScript server callback.
+*
+* The plugin's state actor thread (and any other publisher) only write an event into a pre-allocated slot of a
+* bounded, lock-free ring buffer and return. A dedicated drainer thread takes the events out of the ring,
+* encodes them and sends them to the event sink (the server callback context, see CallbackContextSink), which is
+* only ever used by the drainer thread. This keeps the alarm path latency flat during connection storms.
+*
+* Optionally, events are batched: the drainer collects the events over a time window (or up to a maximum
+* number of events) and delivers them as one JSON array, so a burst of events only costs one crossing of
+* the WebView bridge. High Alert events and error events are never held back.
+*
+* If the ring buffer is full an event is dropped and counted (alarm events also on their own). The first event
+* dropped after the ring had room is reported to the OverflowListener, so an overflow is never silent.
+*
+* Events are encoded as JSON objects by default, or as fixed-size binary records (see BinaryEventEncoder)
+* delivered as an ArrayBuffer if binary encoding is enabled.
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+
+public class ServerEventDispatcher
+{
+	// Number of event slots in the ring buffer (must be a power of two)
+	private final static int DEFAULT_CAPACITY = 1024;
+	// Maximum time in nanoseconds the drainer thread sleeps before checking the ring buffer again
+	private final static long MAX_PARK_NANOS = 100000000L;
+	// Default maximum number of events delivered in one batch
+	public final static int DEFAULT_BATCH_MAX_EVENTS = 32;
+
+	/*
+	* Encodes an event into the JSON object sent to the server callback.
+	*/
+	public interface Encoder
+	{
+		JSONObject encode(ServerEvent event);
+	}
+
+	/*
+	* Receives the encoded events, called on the drainer thread. The sink is dropped once an event has ended the
+	* callback (keepCallback false).
+	*/
+	public interface EventSink
+	{
+		// A single event (error events go to the error callback)
+		void send(JSONObject event, boolean error, boolean keepCallback);
+		// A batch of events
+		void send(JSONArray events);
+		// Binary event records (see BinaryEventEncoder), a single event or a batch
+		void send(byte[] records, boolean error, boolean keepCallback);
+	}
+
+	/*
+	* Told when the ring buffer overflows, called on the publishing thread with the first event dropped (not for
+	* the events dropped after it until an event has been published again).
+	*/
+	public interface OverflowListener
+	{
+		void onEventDropped(int type, String device, long droppedEvents);
+	}
+
+	/*
+	* Ring buffer slot. The sequence number tells if the slot is free for the producer (sequence == position)
+	* or holds a published event for the drainer (sequence == position + 1).
+	*/
+	private final static class Slot
+	{
+		volatile long sequence;
+		final ServerEvent event = new ServerEvent();
+
+		Slot(long sequence)
+		{
+			this.sequence = sequence;
+		}
+	}
+
+	/*
+	* Events collected by the drainer thread for batched delivery, either as JSON objects or binary records.
+	*/
+	private final class Batch
+	{
+		final int maxEvents;
+		final JSONArray json;
+		final byte[] records;
+		final long[] triggerTimes;	// Of the alarm events in the batch (see AlarmMetrics)
+		int size = 0;
+		int alarms = 0;
+
+		Batch(boolean binary, int maxEvents)
+		{
+			this.maxEvents = maxEvents;
+			json = binary ? null : new JSONArray();
+			records = binary ? new byte[maxEvents * BinaryEventEncoder.RECORD_SIZE] : null;
+			triggerTimes = new long[maxEvents];
+		}
+
+		void add(ServerEvent event)
+		{
+			if (records != null)
+				BinaryEventEncoder.encode(event, records, size * BinaryEventEncoder.RECORD_SIZE);
+			else
+				json.put(encoder.encode(event));
+			size++;
+			if (event.triggerTime != 0)
+				triggerTimes[alarms++] = event.triggerTime;
+		}
+	}
+
+	private final Slot[] slots;
+	private final int mask;
+	private final AtomicLong tail = new AtomicLong(0);	// Next position to claim by a producer
+	private long head = 0;					// Next position to drain (drainer thread only)
+	private final AtomicLong droppedEvents = new AtomicLong(0);
+	private final AtomicLong droppedAlarms = new AtomicLong(0);
+	private final AtomicBoolean overflowing = new AtomicBoolean(false);	// Events dropped since the last one published
+	private volatile OverflowListener overflowListener = null;
+
+	private final Encoder encoder;
+	private final AtomicReference<EventSink> sink = new AtomicReference<EventSink>(null);
+	private volatile AlarmMetrics metrics = null;
+	private volatile boolean running = false;
+	private volatile boolean drainerParked = false;
+	private volatile Thread drainer = null;
+	
+	// Batching (a window of 0 disables batching)
+	private volatile long batchWindowNanos = 0;
+	private volatile int batchMaxEvents = DEFAULT_BATCH_MAX_EVENTS;
+	private volatile boolean flushOnHighAlert = true;
+	
+	private volatile boolean binaryEncoding = false;
+
+	public ServerEventDispatcher(Encoder encoder)
+	{
+		this(encoder, DEFAULT_CAPACITY);
+	}
+
+	public ServerEventDispatcher(Encoder encoder, int capacity)
+	{
+		if (Integer.bitCount(capacity) != 1)
+			throw new IllegalArgumentException("Capacity must be a power of two");
+		this.encoder = encoder;
+		slots = new Slot[capacity];
+		for (int i = 0; i < capacity; i++){
+			slots[i] = new Slot(i);
+		}
+		mask = capacity - 1;
+	}
+
+	/**
+	 * Starts the drainer thread if not already started.
+	*/
+	public synchronized void start()
+	{
+		if (running)
+			return;
+		running = true;
+		drainer = new Thread(new Runnable() {
+			public void run() {
+				drainLoop();
+			}
+		}, "GattServerEvents");
+		drainer.setDaemon(true);
+		drainer.start();
+	}
+
+	/**
+	 * Stops the drainer thread. Events still in the ring buffer are delivered before the thread exits.
+	*/
+	public synchronized void stop()
+	{
+		if (!running)
+			return;
+		running = false;
+		LockSupport.unpark(drainer);
+		drainer = null;
+	}
+
+	/**
+	 * Sets the sink the events are delivered to (null to stop delivering events).
+	*/
+	public void setSink(EventSink sink)
+	{
+		this.sink.set(sink);
+	}
+
+	/**
+	 * Returns true if there is a sink (server callback) to deliver events to.
+	*/
+	public boolean hasSink()
+	{
+		return sink.get() != null;
+	}
+
+	/**
+	 * Enables batching of the events over the given time window in milliseconds (0 disables batching),
+	 * delivering a batch when it holds maxEvents events. High Alert events flush the batch right away if
+	 * flushOnHighAlert is true.
+	*/
+	public void setBatching(long windowMillis, int maxEvents, boolean flushOnHighAlert)
+	{
+		this.batchMaxEvents = (maxEvents > 0) ? maxEvents : DEFAULT_BATCH_MAX_EVENTS;
+		this.flushOnHighAlert = flushOnHighAlert;
+		this.batchWindowNanos = (windowMillis > 0) ? windowMillis * 1000000L : 0;
+		if (drainerParked)
+			LockSupport.unpark(drainer);	// Let the drainer pick up the new settings
+	}
+
+	/**
+	 * Enables the compact binary event encoding (true) or the JSON encoding (false).
+	*/
+	public void setBinaryEncoding(boolean binaryEncoding)
+	{
+		this.binaryEncoding = binaryEncoding;
+	}
+
+	/**
+	 * Sets the metrics the latency from alarm write to delivery of the alarm event is recorded in (null for none).
+	*/
+	public void setMetrics(AlarmMetrics metrics)
+	{
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Sets the listener told about the first event dropped when the ring buffer overflows (null for none).
+	*/
+	public void setOverflowListener(OverflowListener listener)
+	{
+		this.overflowListener = listener;
+	}
+
+	public boolean isBatching()
+	{
+		return batchWindowNanos > 0;
+	}
+
+	/**
+	 * Returns the number of events dropped because the ring buffer was full.
+	*/
+	public long getDroppedEvents()
+	{
+		return droppedEvents.get();
+	}
+
+	/**
+	 * Returns the number of alarm events (alert level writes accepted as alarms) among the dropped events.
+	*/
+	public long getDroppedAlarms()
+	{
+		return droppedAlarms.get();
+	}
+
+	/**
+	 * Publishes an event. Never blocks; returns false (and counts the event as dropped) if the ring buffer is full.
+	*/
+	public boolean publish(int type, String device, int status, int level)
+	{
+		return publish(type, device, status, level, 0);
+	}
+
+	/**
+	 * Publishes an alarm event. The trigger time is the System.nanoTime() when the alarm write was received.
+	*/
+	public boolean publish(int type, String device, int status, int level, long triggerTime)
+	{
+		long position = tail.get();
+		Slot slot;
+		for (;;){
+			slot = slots[(int)(position & mask)];
+			long diff = slot.sequence - position;
+			if (diff == 0){
+				if (tail.compareAndSet(position, position + 1))
+					break;
+				position = tail.get();
+			}
+			else if (diff < 0){
+				// Ring buffer is full
+				final long dropped = droppedEvents.incrementAndGet();
+				if (type == ServerEvent.TYPE_WRITE_REQUEST)
+					droppedAlarms.incrementAndGet();
+				final OverflowListener listener = overflowListener;
+				if (overflowing.compareAndSet(false, true) && listener != null)
+					listener.onEventDropped(type, device, dropped);
+				return false;
+			}
+			else {
+				// Another producer claimed the position, try the next one
+				position = tail.get();
+			}
+		}
+		slot.event.set(type, device, status, level, System.currentTimeMillis(), triggerTime);
+		slot.sequence = position + 1;	// Publish the event to the drainer
+		if (overflowing.get())
+			overflowing.set(false);		// The next event dropped is reported again
+		if (drainerParked)
+			LockSupport.unpark(drainer);
+		return true;
+	}
+
+	private boolean isEmpty()
+	{
+		return slots[(int)(head & mask)].sequence != head + 1;
+	}
+
+	private void drainLoop()
+	{
+		final ServerEvent event = new ServerEvent();
+		Batch batch = null;		// Events collected in the current batch (null if none)
+		long batchDeadline = 0;		// System.nanoTime() when the current batch must be delivered
+		for (;;){
+			Slot slot = slots[(int)(head & mask)];
+			if (slot.sequence == head + 1){
+				// Copy the event out of the slot and release the slot to the producers
+				event.copyFrom(slot.event);
+				slot.event.device = null;
+				slot.sequence = head + slots.length;
+				head++;
+				
+				long windowNanos = batchWindowNanos;
+				if (windowNanos == 0 || event.isError()){
+					// Not batching or an error event (delivered on its own to the error callback)
+					if (batch != null){
+						deliverBatch(batch);
+						batch = null;
+					}
+					deliver(event);
+					continue;
+				}
+				if (batch == null){
+					batch = new Batch(binaryEncoding, batchMaxEvents);
+					batchDeadline = System.nanoTime() + windowNanos;
+				}
+				batch.add(event);
+				if (batch.size >= batch.maxEvents || (flushOnHighAlert && event.isHighAlert())){
+					deliverBatch(batch);
+					batch = null;
+				}
+			}
+			else if (batch != null && System.nanoTime() - batchDeadline >= 0){
+				// Batch window has elapsed
+				deliverBatch(batch);
+				batch = null;
+			}
+			else if (!running){
+				if (batch != null)
+					deliverBatch(batch);
+				return;
+			}
+			else {
+				long parkNanos = MAX_PARK_NANOS;
+				if (batch != null)
+					parkNanos = Math.min(parkNanos, batchDeadline - System.nanoTime());
+				drainerParked = true;
+				if (isEmpty() && running && parkNanos > 0)
+					LockSupport.parkNanos(this, parkNanos);
+				drainerParked = false;
+			}
+		}
+	}
+
+	private void deliver(ServerEvent event)
+	{
+		final EventSink context = sink.get();
+		if (context == null)
+			return;		// No server callback (server not started or callback ended)
+
+		// Keep the callback so it can be invoked several times. Service errors are never batched, so the events
+		// that cannot be encoded as records are only delivered here
+		if (binaryEncoding && BinaryEventEncoder.canEncode(event))
+			context.send(BinaryEventEncoder.encode(event), event.isError(), event.keepsCallback());
+		else
+			context.send(encoder.encode(event), event.isError(), event.keepsCallback());
+		final AlarmMetrics alarmMetrics = metrics;
+		if (alarmMetrics != null)
+			alarmMetrics.record(AlarmMetrics.STAGE_CALLBACK, event.triggerTime);
+		if (!event.keepsCallback())
+			sink.compareAndSet(context, null);	// The callback has ended (unless already replaced)
+	}
+
+	private void deliverBatch(Batch batch)
+	{
+		// Batches only hold events delivered to the success callback
+		final EventSink context = sink.get();
+		if (context == null)
+			return;
+
+		if (batch.records != null)
+			context.send(Arrays.copyOf(batch.records, batch.size * BinaryEventEncoder.RECORD_SIZE), false, true);
+		else
+			context.send(batch.json);
+		final AlarmMetrics alarmMetrics = metrics;
+		if (alarmMetrics != null){
+			for (int i = 0; i < batch.alarms; i++){
+				alarmMetrics.record(AlarmMetrics.STAGE_CALLBACK, batch.triggerTimes[i]);
+			}
+		}
+	}
+}
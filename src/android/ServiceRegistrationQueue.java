@@ -0,0 +1,299 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* Adds GATT services to the GATT server one after another.
+*
+* Android only allows one outstanding BluetoothGattServer.addService() at a time, and its completion is
+* reported through onServiceAdded. Every requested service is tracked by a Registration that is completed
+* from onServiceAdded. A service that fails, or that is not reported added within a timeout, is
+* retried a few times (waiting longer before every retry) before the registration fails. The listener is
+* told once all services are live, or is given the Registration of the service that failed.
+*
+* Every attempt adds a new BluetoothGattService instance built from the service definition, so a late
+* onServiceAdded of an abandoned attempt is told apart from the current attempt (and the abandoned service is
+* removed again if it did get added). The timeouts and retries are not run on a timer thread of their own:
+* the Scheduler delivers them to onTimer on the thread using the queue (the plugin's state actor), which is
+* also the thread that must call register, onServiceAdded and cancel.
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattServer;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+
+public class ServiceRegistrationQueue
+{
+	// Time in milliseconds to wait for onServiceAdded before retrying
+	public final static long DEFAULT_TIMEOUT = 5000;
+	// Number of times a service is tried to be added before giving up
+	public final static int DEFAULT_MAX_ATTEMPTS = 3;
+	// Time in milliseconds to wait before the first retry (doubled before every further retry)
+	public final static long DEFAULT_RETRY_DELAY = 500;
+
+	/*
+	* Receives the outcome of a registration.
+	*/
+	public interface Listener
+	{
+		// Called when a service has been added (before the next service is added)
+		void onServiceAdded(BluetoothGattService service);
+		// Called when every requested service has been added
+		void onServicesReady(int serviceCount);
+		// Called when a service could not be added (the remaining services are not added)
+		void onServiceFailed(Registration failed);
+	}
+
+	/*
+	* Delivers the timeouts and retries of the registration.
+	*/
+	public interface Scheduler
+	{
+		// Must call onTimer(token) after the delay, on the thread using the queue
+		void schedule(Object token, long delayMillis);
+	}
+
+	/*
+	* Registration of one service.
+	*/
+	public static class Registration
+	{
+		private final GattAttributeTable.ServiceDefinition definition;
+		private boolean done = false;
+		private boolean success = false;
+		private int status = BluetoothGatt.GATT_FAILURE;
+		private int attempts = 0;
+
+		Registration(GattAttributeTable.ServiceDefinition definition)
+		{
+			this.definition = definition;
+		}
+
+		public UUID getServiceUuid()
+		{
+			return definition.uuid;
+		}
+
+		public boolean isDone()
+		{
+			return done;
+		}
+
+		public boolean isSuccess()
+		{
+			return success;
+		}
+
+		public int getStatus()
+		{
+			return status;
+		}
+
+		public int getAttempts()
+		{
+			return attempts;
+		}
+
+		void complete(boolean success, int status)
+		{
+			if (done)
+				return;
+			this.done = true;
+			this.success = success;
+			this.status = status;
+		}
+	}
+
+	/*
+	* One attempt to add a service.
+	*/
+	private final static class Attempt
+	{
+		final Registration registration;
+		final int number;			// 1 for the first attempt
+		BluetoothGattService service = null;	// Instance passed to addService (null until added)
+		boolean retryPending = false;		// Waiting to be retried (else waiting for onServiceAdded)
+
+		Attempt(Registration registration, int number)
+		{
+			this.registration = registration;
+			this.number = number;
+		}
+	}
+
+	private final Listener listener;
+	private final Scheduler scheduler;
+	private final long timeout;
+	private final int maxAttempts;
+	private final long retryDelay;
+
+	private final ArrayDeque<Registration> queue = new ArrayDeque<Registration>();
+	private final List<BluetoothGattService> abandoned = new ArrayList<BluetoothGattService>();	// Timed out, may still get added
+	private BluetoothGattServer server = null;
+	private Attempt current = null;		// Attempt of the service currently being added
+	private Object timer = null;		// Token of the timeout or retry of the current attempt
+	private int addedServices = 0;
+
+	public ServiceRegistrationQueue(Listener listener, Scheduler scheduler)
+	{
+		this(listener, scheduler, DEFAULT_TIMEOUT, DEFAULT_MAX_ATTEMPTS, DEFAULT_RETRY_DELAY);
+	}
+
+	public ServiceRegistrationQueue(Listener listener, Scheduler scheduler, long timeout, int maxAttempts, long retryDelay)
+	{
+		this.listener = listener;
+		this.scheduler = scheduler;
+		this.timeout = timeout;
+		this.maxAttempts = maxAttempts;
+		this.retryDelay = retryDelay;
+	}
+
+	/**
+	 * Adds the services to the GATT server one after another, cancelling any registration in progress.
+	*/
+	public void register(BluetoothGattServer server, List<GattAttributeTable.ServiceDefinition> services)
+	{
+		cancel();
+		if (this.server != server)
+			abandoned.clear();
+		this.server = server;
+		addedServices = 0;
+		for (GattAttributeTable.ServiceDefinition service : services){
+			queue.add(new Registration(service));
+		}
+		addNext();
+	}
+
+	/**
+	 * Returns true if a registration is in progress.
+	*/
+	public boolean isBusy()
+	{
+		return current != null;
+	}
+
+	/**
+	 * Must be called with the result of BluetoothGattServerCallback.onServiceAdded.
+	*/
+	public void onServiceAdded(int status, BluetoothGattService service)
+	{
+		if (service == null)
+			return;
+		if (current == null || current.retryPending || service != current.service){
+			// Late callback of an abandoned attempt, don't leave a service nobody waits for on the server
+			if (abandoned.remove(service) && status == BluetoothGatt.GATT_SUCCESS && server != null)
+				server.removeService(service);
+			return;
+		}
+		timer = null;
+		if (status == BluetoothGatt.GATT_SUCCESS){
+			current.registration.complete(true, status);
+			addedServices++;
+			listener.onServiceAdded(service);
+			addNext();
+		}
+		else {
+			retryOrFail(status);
+		}
+	}
+
+	/**
+	 * Must be called with the tokens passed to the Scheduler.
+	*/
+	public void onTimer(Object token)
+	{
+		if (current == null || token != timer)
+			return;		// Completed, retried or cancelled since
+		timer = null;
+		if (current.retryPending){
+			attempt(current.registration, current.number + 1);
+			return;
+		}
+		// Not reported added in time, remove it in case it was added but the callback got lost
+		server.removeService(current.service);
+		abandoned.add(current.service);
+		retryOrFail(BluetoothGatt.GATT_FAILURE);
+	}
+
+	/**
+	 * Cancels the registration in progress. Services not yet added are failed.
+	*/
+	public void cancel()
+	{
+		timer = null;
+		if (current != null){
+			if (current.service != null && !current.retryPending)
+				abandoned.add(current.service);
+			current.registration.complete(false, BluetoothGatt.GATT_FAILURE);
+		}
+		current = null;
+		for (Registration registration : queue){
+			registration.complete(false, BluetoothGatt.GATT_FAILURE);
+		}
+		queue.clear();
+	}
+
+	private void addNext()
+	{
+		final Registration next = queue.poll();
+		if (next == null){
+			current = null;
+			listener.onServicesReady(addedServices);
+			return;
+		}
+		attempt(next, 1);
+	}
+
+	private void attempt(Registration registration, int number)
+	{
+		current = new Attempt(registration, number);
+		registration.attempts = number;
+		try {
+			current.service = GattAttributeTable.buildService(registration.definition);
+		}
+		catch (IllegalStateException e) {
+			fail(BluetoothGatt.GATT_FAILURE);	// The definition can never be added
+			return;
+		}
+		schedule(timeout);
+		if (!server.addService(current.service))
+			retryOrFail(BluetoothGatt.GATT_FAILURE);
+	}
+
+	private void retryOrFail(int status)
+	{
+		if (current.number < maxAttempts){
+			// Give the Bluetooth stack time to recover, longer after every failed attempt
+			current.retryPending = true;
+			schedule(retryDelay << (current.number - 1));
+			return;
+		}
+		fail(status);
+	}
+
+	private void schedule(long delayMillis)
+	{
+		timer = new Object();
+		scheduler.schedule(timer, delayMillis);
+	}
+
+	private void fail(int status)
+	{
+		final Registration failed = current.registration;
+		current = null;
+		timer = null;
+		failed.complete(false, status);
+		for (Registration registration : queue){
+			registration.complete(false, BluetoothGatt.GATT_FAILURE);
+		}
+		queue.clear();
+		listener.onServiceFailed(failed);
+	}
+}
@@ -0,0 +1,195 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* Keeps the CPU running while it is needed to receive alarms.
+*
+* A wake lock is needed to keep the cpu running so bluetooth connection doesn't disconnects when the device goes
+* to "sleep". The lock is only held while clips are connected or an alarm is being handled (ALARM_HOLD_TIME after
+* the last alarm) and is released as soon as neither is the case. Every acquire has a timeout (HOLD_TIMEOUT) that
+* is renewed while the lock is needed, so a missed release can never keep the device awake for more than the timeout.
+*
+* The number of acquisitions, the total and the longest time held are recorded to follow the battery cost.
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.PowerManager.WakeLock;
+
+
+public class WakeLockManager
+{
+	// Timeout in milliseconds of every acquire (safety net, renewed while the lock is needed)
+	public final static long HOLD_TIMEOUT = 10 * 60 * 1000;
+	// Interval in milliseconds the timeout is renewed at while the lock is needed
+	private final static long RENEW_INTERVAL = HOLD_TIMEOUT / 2;
+	// Time in milliseconds the lock is held after an alarm (playing the sound, posting the notification etc.)
+	public final static long ALARM_HOLD_TIME = 30 * 1000;
+
+	private final WakeLock wakeLock;
+	private final MonotonicClock clock;
+	private final Handler handler = new Handler(Looper.getMainLooper());
+	private final Runnable updateRunnable = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (WakeLockManager.this) {
+				update();
+			}
+		}
+	};
+
+	// State (guarded by this)
+	private int connectedClips = 0;
+	private long alarmHoldUntil = 0;		// Time the lock is held until after the last alarm
+	private boolean held = false;
+	private long heldSince = 0;
+	private long expiresAt = 0;			// Time the lock is released by its timeout unless renewed
+
+	// Counters (guarded by this)
+	private long acquisitions = 0;
+	private long totalHeldTime = 0;			// Milliseconds, ended holds only
+	private long longestHold = 0;			// Milliseconds, ended holds only
+	private long timeouts = 0;			// Holds ended by the timeout instead of a release
+
+	public WakeLockManager(Context context)
+	{
+		this(context, ElapsedRealtimeClock.INSTANCE);
+	}
+
+	public WakeLockManager(Context context, MonotonicClock clock)
+	{
+		PowerManager powerManager = (PowerManager) context.getApplicationContext().getSystemService(Context.POWER_SERVICE);
+		this.wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "SSMWakelockTag");
+		this.wakeLock.setReferenceCounted(false);
+		this.clock = clock;
+	}
+
+	/**
+	 * Must be called when a clip has connected or disconnected, with the number of clips connected.
+	*/
+	public synchronized void onConnectionsChanged(int clips)
+	{
+		connectedClips = clips;
+		update();
+	}
+
+	/**
+	 * Must be called when an alarm is received. Holds the lock for at least ALARM_HOLD_TIME.
+	*/
+	public synchronized void onAlarm()
+	{
+		alarmHoldUntil = Math.max(alarmHoldUntil, clock.now() + ALARM_HOLD_TIME);
+		update();
+	}
+
+	/**
+	 * Releases the lock whatever the connection and alarm state (server closed, plugin destroyed).
+	*/
+	public synchronized void releaseAll()
+	{
+		connectedClips = 0;
+		alarmHoldUntil = 0;
+		update();
+	}
+
+	public synchronized boolean isHeld()
+	{
+		checkTimeout(clock.now());
+		return held;
+	}
+
+	public synchronized long getAcquisitions()
+	{
+		return acquisitions;
+	}
+
+	/**
+	 * Returns the total time in milliseconds the lock has been held, including the current hold.
+	*/
+	public synchronized long getHeldTime()
+	{
+		final long now = clock.now();
+		checkTimeout(now);
+		return totalHeldTime + (held ? now - heldSince : 0);
+	}
+
+	/**
+	 * Returns the longest time in milliseconds the lock has been held at once, including the current hold.
+	*/
+	public synchronized long getLongestHold()
+	{
+		final long now = clock.now();
+		checkTimeout(now);
+		return Math.max(longestHold, held ? now - heldSince : 0);
+	}
+
+	public synchronized long getTimeouts()
+	{
+		return timeouts;
+	}
+
+	/**
+	 * Zeroes the counters (for example at the start of a shift). A current hold is counted from now.
+	*/
+	public synchronized void resetStats()
+	{
+		final long now = clock.now();
+		checkTimeout(now);
+		acquisitions = held ? 1 : 0;
+		totalHeldTime = 0;
+		longestHold = 0;
+		timeouts = 0;
+		if (held)
+			heldSince = now;
+	}
+
+	/*
+	* Acquires, renews or releases the lock for the current state. Called holding this.
+	*/
+	private void update()
+	{
+		final long now = clock.now();
+		checkTimeout(now);
+		handler.removeCallbacks(updateRunnable);
+		if (connectedClips > 0 || now < alarmHoldUntil){
+			if (!held){
+				held = true;
+				heldSince = now;
+				acquisitions++;
+			}
+			wakeLock.acquire(HOLD_TIMEOUT);		// Restarts the timeout if already held
+			expiresAt = now + HOLD_TIMEOUT;
+			// Renew before the timeout, or release when the alarm hold ends if no clip is connected
+			handler.postDelayed(updateRunnable, (connectedClips > 0) ? RENEW_INTERVAL : Math.min(RENEW_INTERVAL, alarmHoldUntil - now));
+		}
+		else if (held){
+			if (wakeLock.isHeld())
+				wakeLock.release();
+			endHold(now);
+		}
+	}
+
+	/*
+	* Ends the hold if the timeout has released the lock (the renewal did not run in time). Called holding this.
+	*/
+	private void checkTimeout(long now)
+	{
+		if (held && now >= expiresAt){
+			timeouts++;
+			endHold(expiresAt);
+		}
+	}
+
+	private void endHold(long endTime)
+	{
+		final long holdTime = endTime - heldSince;
+		totalHeldTime += holdTime;
+		if (holdTime > longestHold)
+			longestHold = holdTime;
+		held = false;
+	}
+}
@@ -0,0 +1,24 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* Source of wall clock time in milliseconds since epoch (may jump when the user or the network changes the time).
+*
+* Used for the times shown to the user and stored in the alarm history and statistics, so they can be driven by a
+* virtual clock when run on a plain JVM (see VirtualClock).
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+
+public interface WallClock
+{
+	WallClock SYSTEM = new WallClock() {
+		@Override
+		public long currentTimeMillis() {
+			return System.currentTimeMillis();
+		}
+	};
+
+	long currentTimeMillis();
+}
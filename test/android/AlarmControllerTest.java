@@ -0,0 +1,290 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* Tests of the alarm path on a plain JVM: alert level writes run through the ImmediateAlertHandler (its
+* AlarmFilterPipeline and DeviceAlertTable) into the AlarmController, which signals them through a
+* FakeAlarmOutput, publishes them to a FakeEventSink and counts and logs them, all under a VirtualClock.
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+public class AlarmControllerTest
+{
+	private final static String CLIP = "00:11:22:33:44:55";
+	private final static String OTHER_CLIP = "00:11:22:33:44:66";
+	private final static long WALL_TIME = 1500000000000L;
+	private final static long BOOT_TIME = 60000;
+	private final static long SETTLED = 3000;		// The default debounce interval
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	private VirtualClock clock;
+	private FakeAlarmOutput output;
+	private FakeEventSink sink;
+	private ServerEventDispatcher events;
+	private DeviceAlertTable alertStates;
+	private AlarmFilterPipeline alarmFilters;
+	private AlarmJournal journal;
+	private AlarmStatistics statistics;
+	private AlarmController controller;
+	private ImmediateAlertHandler alertHandler;
+	private volatile AppSettingsStore.Settings settings = new AppSettingsStore.Settings(AlarmSound.SOUND_2, true, true);
+	private final List<Integer> handled = new ArrayList<Integer>();
+
+	@Before
+	public void setUp() throws Exception
+	{
+		clock = new VirtualClock(WALL_TIME);
+		clock.advance(BOOT_TIME);
+		output = new FakeAlarmOutput();
+		sink = new FakeEventSink();
+		events = new ServerEventDispatcher(new ServerEventDispatcher.Encoder() {
+			@Override
+			public JSONObject encode(ServerEvent event) {
+				JSONObject object = new JSONObject();
+				try {
+					object.put("type", event.type);
+					object.put("device", event.device);
+					object.put("level", event.level);
+				}
+				catch (JSONException e) {
+					throw new AssertionError(e);
+				}
+				return object;
+			}
+		});
+		events.setSink(sink);
+		events.start();
+		alertStates = new DeviceAlertTable();
+		alarmFilters = new AlarmFilterPipeline(AlarmFilterPipeline.DEFAULT_STAGES, clock);
+		journal = AlarmJournal.open(folder.newFile("alarms.journal"), 64);
+		statistics = new AlarmStatistics(folder.newFile("alarms.stats"));
+		controller = new AlarmController(output, new AlarmController.SettingsSource() {
+			@Override
+			public AppSettingsStore.Settings get() {
+				return settings;
+			}
+		}, alarmFilters, events, new AlarmMetrics(), clock);
+		controller.setJournal(journal);
+		controller.setStatistics(statistics);
+		controller.setListener(new AlarmController.Listener() {
+			@Override
+			public void onAlarmHandled(int alertLevel, DeviceAlertTable.DeviceAlertState alertState, int outcome) {
+				handled.add(outcome);
+			}
+		});
+		alertHandler = new ImmediateAlertHandler(alertStates, alarmFilters, controller);
+	}
+
+	@After
+	public void tearDown()
+	{
+		events.stop();
+		statistics.close();
+		journal.close();
+	}
+
+	/*
+	* Writes the alert level of a clip to the Alert Level characteristic.
+	*/
+	private void write(String address, int alertLevel)
+	{
+		assertEquals(0, alertHandler.onCharacteristicWrite(address, null, 0, new byte[] {(byte) alertLevel}));	// GATT_SUCCESS
+	}
+
+	/*
+	* Connects a clip, which writes its current alert level (ignored).
+	*/
+	private void connect(String address)
+	{
+		alertStates.onConnected(address);
+		write(address, 0);
+	}
+
+	private List<AlarmJournal.Entry> journalEntries()
+	{
+		List<AlarmJournal.Entry> entries = new ArrayList<AlarmJournal.Entry>();
+		journal.scan(0, 0, Long.MAX_VALUE, null, 100, entries);
+		return entries;
+	}
+
+	@Test
+	public void connectTimeWriteIsNotAnAlarm()
+	{
+		connect(CLIP);
+		assertEquals(0, output.getWakeUps());
+		assertTrue(handled.isEmpty());
+		assertTrue(journalEntries().isEmpty());
+		assertEquals(-1, statistics.findDevice(CLIP));
+	}
+
+	@Test
+	public void foregroundAlarmPlaysTheSoundAndVibrates() throws Exception
+	{
+		connect(CLIP);
+		write(CLIP, 2);
+		assertEquals(1, output.getWakeUps());
+		assertEquals(1, output.getPlays());
+		assertSame(AlarmSound.SOUND_2, output.getLastSound());
+		assertEquals(1, output.getVibrations());
+		assertEquals(0, output.getNotifications());
+
+		assertTrue(sink.await(1, 5000));
+		final JSONObject event = (JSONObject) sink.getMessages().get(0).payload;
+		assertEquals(ServerEvent.TYPE_WRITE_REQUEST, event.getInt("type"));
+		assertEquals(CLIP, event.getString("device"));
+		assertEquals(2, event.getInt("level"));
+
+		final List<AlarmJournal.Entry> entries = journalEntries();
+		assertEquals(1, entries.size());
+		assertEquals(AlarmJournal.OUTCOME_PLAYED, entries.get(0).outcome);
+		assertEquals(CLIP, entries.get(0).device);
+		assertEquals(2, entries.get(0).level);
+		assertEquals(clock.currentTimeMillis(), entries.get(0).timestamp);
+		assertEquals(1, statistics.getAlarms(statistics.findDevice(CLIP)));
+		assertEquals(1, handled.size());
+	}
+
+	@Test
+	public void backgroundAlarmPostsANotification()
+	{
+		controller.setInBackground(true);
+		connect(CLIP);
+		write(CLIP, 1);
+		assertEquals(1, output.getNotifications());
+		assertEquals(1, output.getStops());		// A sound started in the foreground is stopped
+		assertSame(AlarmSound.SOUND_2, output.getLastSound());
+		assertTrue(output.getLastVibration());
+		assertEquals(1, output.getLastAlertLevel());
+		assertEquals(0, output.getPlays());
+		assertEquals(AlarmJournal.OUTCOME_NOTIFIED, journalEntries().get(0).outcome);
+	}
+
+	@Test
+	public void backgroundAlarmWithNotificationsDisabledIsSilent()
+	{
+		controller.setInBackground(true);
+		output.setNotificationsEnabled(false);
+		connect(CLIP);
+		write(CLIP, 2);
+		assertEquals(0, output.getNotifications());
+		assertEquals(0, output.getPlays());
+		assertEquals(AlarmJournal.OUTCOME_SILENT, journalEntries().get(0).outcome);
+		assertEquals(1, statistics.getAlarms(statistics.findDevice(CLIP)));	// Still counted
+	}
+
+	@Test
+	public void soundOffIsSilentInTheForeground()
+	{
+		settings = new AppSettingsStore.Settings(AlarmSound.SOUND_OFF, true, true);
+		connect(CLIP);
+		write(CLIP, 2);
+		assertEquals(0, output.getPlays());
+		assertEquals(0, output.getVibrations());
+		assertEquals(AlarmJournal.OUTCOME_SILENT, journalEntries().get(0).outcome);
+	}
+
+	@Test
+	public void failedPlaybackIsLoggedAsFailed()
+	{
+		output.setPlayable(false);
+		connect(CLIP);
+		write(CLIP, 2);
+		assertEquals(0, output.getVibrations());
+		assertEquals(AlarmJournal.OUTCOME_FAILED, journalEntries().get(0).outcome);
+		assertEquals(AlarmJournal.OUTCOME_FAILED, (int) handled.get(0));
+	}
+
+	@Test
+	public void bouncesAreCountedAndLoggedButNotSignalled() throws Exception
+	{
+		connect(CLIP);
+		write(CLIP, 2);
+		for (int bounce = 0; bounce < 3; bounce++){
+			clock.advance(20);
+			write(CLIP, (bounce % 2 == 0) ? 0 : 2);
+		}
+		clock.advance(SETTLED);
+		write(CLIP, 0);		// Next press (toggled level)
+		assertEquals(2, output.getPlays());
+		assertEquals(2, handled.size());
+		final int slot = statistics.findDevice(CLIP);
+		assertEquals(2, statistics.getAlarms(slot));
+		assertEquals(3, statistics.getBounces(slot));
+
+		final List<AlarmJournal.Entry> entries = journalEntries();
+		assertEquals(5, entries.size());
+		for (int i = 1; i <= 3; i++){
+			assertEquals(AlarmJournal.OUTCOME_SUPPRESSED, entries.get(i).outcome);
+		}
+		assertTrue(sink.await(2, 5000));
+		Thread.sleep(50);	// Nothing else may arrive
+		assertEquals(2, sink.getMessages().size());
+	}
+
+	@Test
+	public void logOffWritesNothingToTheJournal()
+	{
+		settings = new AppSettingsStore.Settings(AlarmSound.SOUND_2, false, false);
+		connect(CLIP);
+		write(CLIP, 2);
+		clock.advance(20);
+		write(CLIP, 2);
+		assertEquals(1, output.getPlays());
+		assertTrue(journalEntries().isEmpty());
+	}
+
+	@Test
+	public void settingsChangesApplyToTheNextAlarm()
+	{
+		connect(CLIP);
+		write(CLIP, 2);
+		settings = new AppSettingsStore.Settings(AlarmSound.SOUND_0, false, true);
+		clock.advance(SETTLED);
+		write(CLIP, 0);
+		assertEquals(2, output.getPlays());
+		assertSame(AlarmSound.SOUND_0, output.getLastSound());
+		assertEquals(1, output.getVibrations());
+	}
+
+	@Test
+	public void clipsAlarmIndependently() throws Exception
+	{
+		connect(CLIP);
+		connect(OTHER_CLIP);
+		write(CLIP, 2);
+		clock.advance(20);
+		write(OTHER_CLIP, 2);		// Not a bounce of the other clip
+		assertEquals(2, output.getPlays());
+		assertEquals(1, statistics.getAlarms(statistics.findDevice(CLIP)));
+		assertEquals(1, statistics.getAlarms(statistics.findDevice(OTHER_CLIP)));
+		assertTrue(sink.await(2, 5000));
+		assertEquals(OTHER_CLIP, ((JSONObject) sink.getMessages().get(1).payload).getString("device"));
+
+		// resetAlarm: the clips' next writes are connect-time writes again
+		alertStates.resetAll();
+		clock.advance(SETTLED);
+		write(CLIP, 0);
+		assertEquals(2, output.getPlays());
+		assertFalse(alertStates.peek(CLIP).isInitialized());
+	}
+}
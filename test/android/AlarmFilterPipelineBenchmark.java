@@ -0,0 +1,88 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* Benchmark of AlarmFilterPipeline (the default stages and configuration) under simulated contact-bounce traffic.
+*
+* Every clip alternates between quiet periods and presses. A press is one alarm write followed by a few writes
+* a few milliseconds apart, as a loose contact between clip and sensor produces. The time comes from a
+* VirtualClock, so the simulation runs as fast as the pipeline does and the outcome does not depend on the host.
+* Reports the time per write and how many writes every stage dropped; with the default 3000 ms debounce
+* exactly one alarm per press should get through.
+*
+* Run: java -cp <classes> com.sensiblesolutions.gattserver.AlarmFilterPipelineBenchmark [presses] [clips] [bounces]
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+import java.util.Random;
+
+
+public class AlarmFilterPipelineBenchmark
+{
+	private final static long QUIET_PERIOD = 10000;		// Minimum milliseconds between the presses of a clip
+	private final static int MAX_BOUNCE_INTERVAL = 50;	// Maximum milliseconds between the writes of a press
+
+	public static void main(String[] args)
+	{
+		final int presses = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+		final int clips = (args.length > 1) ? Integer.parseInt(args[1]) : 64;
+		final int maxBounces = (args.length > 2) ? Integer.parseInt(args[2]) : 8;
+
+		run(presses / 10, clips, maxBounces, false);	// Warm up
+		run(presses, clips, maxBounces, true);
+	}
+
+	private static void run(int presses, int clips, int maxBounces, boolean report)
+	{
+		final VirtualClock clock = new VirtualClock(0);
+		clock.advance(QUIET_PERIOD);
+		final AlarmFilterPipeline pipeline = new AlarmFilterPipeline(AlarmFilterPipeline.DEFAULT_STAGES, clock);
+		final DeviceAlertTable alertStates = new DeviceAlertTable();
+		final DeviceAlertTable.DeviceAlertState[] states = new DeviceAlertTable.DeviceAlertState[clips];
+		for (int clip = 0; clip < clips; clip++){
+			states[clip] = alertStates.onConnected(String.format("00:11:22:33:%02X:%02X", (clip >> 8) & 0xff, clip & 0xff));
+			pipeline.accept(states[clip], 0);	// Connect-time write
+		}
+		// The writes are generated up front, only the pipeline is timed
+		final Random random = new Random(42);
+		final int[] bounces = new int[presses];
+		final int[] intervals = new int[presses * maxBounces];
+		long writes = 0;
+		for (int press = 0; press < presses; press++){
+			bounces[press] = random.nextInt(maxBounces + 1);
+			for (int bounce = 0; bounce < bounces[press]; bounce++){
+				intervals[press * maxBounces + bounce] = 1 + random.nextInt(MAX_BOUNCE_INTERVAL);
+			}
+			writes += 1 + bounces[press];
+		}
+
+		long elapsed = 0;
+		long alarms = 0;
+		for (int press = 0; press < presses; press++){
+			// The clips press in turns, every clip has been quiet for at least QUIET_PERIOD
+			final DeviceAlertTable.DeviceAlertState state = states[press % clips];
+			if (press % clips == 0)
+				clock.advance(QUIET_PERIOD);
+			long start = System.nanoTime();
+			if (pipeline.accept(state, 2))
+				alarms++;
+			for (int bounce = 0; bounce < bounces[press]; bounce++){
+				clock.advance(intervals[press * maxBounces + bounce]);
+				if (pipeline.accept(state, (bounce % 2 == 0) ? 0 : 2))	// Toggled levels
+					alarms++;
+			}
+			elapsed += System.nanoTime() - start;
+		}
+		if (!report)
+			return;
+
+		System.out.println("Presses: " + presses + " by " + clips + " clips, up to " + maxBounces + " bounces each (" + writes + " writes)");
+		System.out.println(String.format("Time: %.1f ns per write, %.0f writes/s", (double) elapsed / writes, writes * 1e9 / elapsed));
+		System.out.println("Alarms: " + alarms + " (" + (alarms == presses ? "one per press" : "expected " + presses) + ")");
+		final String[] names = {"toggleDecode", "levelThreshold", "debounce", "burstCollapse"};
+		for (int stage = 0; stage < pipeline.getStageCount(); stage++){
+			System.out.println("Dropped by " + names[stage] + ": " + pipeline.getDropped(stage));
+		}
+	}
+}
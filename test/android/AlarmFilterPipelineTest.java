@@ -0,0 +1,179 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* Tests of the alarm filter stages, each on its own and chained, under a VirtualClock.
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class AlarmFilterPipelineTest
+{
+	private final static String CLIP = "00:11:22:33:44:55";
+	private final static String OTHER_CLIP = "00:11:22:33:44:66";
+	private final static long BOOT_TIME = 60000;	// The elapsed time is never near 0 on a device
+
+	private VirtualClock clock;
+	private DeviceAlertTable alertStates;
+	private DeviceAlertTable.DeviceAlertState state;
+
+	@Before
+	public void setUp()
+	{
+		clock = new VirtualClock(1500000000000L);
+		clock.advance(BOOT_TIME);
+		alertStates = new DeviceAlertTable();
+		state = alertStates.onConnected(CLIP);
+	}
+
+	private AlarmFilterPipeline pipeline(AlarmFilterPipeline.Stage stage, AlarmFilterPipeline.Config config)
+	{
+		AlarmFilterPipeline pipeline = new AlarmFilterPipeline(new AlarmFilterPipeline.Stage[] {stage}, clock);
+		pipeline.setDefaultConfig(config);
+		return pipeline;
+	}
+
+	@Test
+	public void toggleDecodeIgnoresConnectTimeWritesThenTakesEveryWrite()
+	{
+		final AlarmFilterPipeline pipeline = pipeline(AlarmFilterPipeline.TOGGLE_DECODE, new AlarmFilterPipeline.Config(true, 0, 0, 0, 1));
+		assertFalse(pipeline.accept(state, 0));
+		assertFalse(pipeline.accept(state, 0));
+		assertTrue(pipeline.accept(state, 2));
+		assertTrue(state.isInitialized());
+		assertTrue(pipeline.accept(state, 0));		// Toggled level
+		assertTrue(pipeline.accept(state, 2));
+
+		state.reset();		// resetAlarm
+		assertFalse(pipeline.accept(state, 0));
+		assertEquals(3, pipeline.getAccepted());
+		assertEquals(3, pipeline.getDropped(0));
+	}
+
+	@Test
+	public void toggleDecodeOffTakesConnectTimeWrites()
+	{
+		final AlarmFilterPipeline pipeline = pipeline(AlarmFilterPipeline.TOGGLE_DECODE, new AlarmFilterPipeline.Config(false, 0, 0, 0, 1));
+		assertTrue(pipeline.accept(state, 0));
+		assertFalse(state.isInitialized());
+	}
+
+	@Test
+	public void levelThresholdDropsLowerLevels()
+	{
+		final AlarmFilterPipeline pipeline = pipeline(AlarmFilterPipeline.LEVEL_THRESHOLD, new AlarmFilterPipeline.Config(true, 2, 0, 0, 1));
+		assertFalse(pipeline.accept(state, 0));
+		assertFalse(pipeline.accept(state, 1));
+		assertTrue(pipeline.accept(state, 2));
+	}
+
+	@Test
+	public void debounceDropsBouncesUntilTheContactSettles()
+	{
+		final AlarmFilterPipeline pipeline = pipeline(AlarmFilterPipeline.DEBOUNCE, new AlarmFilterPipeline.Config(true, 0, 3000, 0, 1));
+		assertTrue(pipeline.accept(state, 2));
+		// Every bounce restarts the interval
+		for (int bounce = 0; bounce < 10; bounce++){
+			clock.advance(2999);
+			assertFalse(pipeline.accept(state, 2));
+		}
+		clock.advance(3000);
+		assertTrue(pipeline.accept(state, 2));
+		assertEquals(2, pipeline.getAccepted());
+		assertEquals(10, pipeline.getDropped(0));
+	}
+
+	@Test
+	public void debounceOffTakesEveryWrite()
+	{
+		final AlarmFilterPipeline pipeline = pipeline(AlarmFilterPipeline.DEBOUNCE, new AlarmFilterPipeline.Config(true, 0, 0, 0, 1));
+		assertTrue(pipeline.accept(state, 2));
+		assertTrue(pipeline.accept(state, 2));
+	}
+
+	@Test
+	public void burstCollapseLetsMaxAlarmsThroughPerWindow()
+	{
+		final AlarmFilterPipeline pipeline = pipeline(AlarmFilterPipeline.BURST_COLLAPSE, new AlarmFilterPipeline.Config(true, 0, 0, 1000, 2));
+		assertTrue(pipeline.accept(state, 2));
+		clock.advance(10);
+		assertTrue(pipeline.accept(state, 2));
+		clock.advance(10);
+		assertFalse(pipeline.accept(state, 2));
+		clock.advance(979);
+		assertFalse(pipeline.accept(state, 2));
+		clock.advance(1);		// The window started 1000 ms ago
+		assertTrue(pipeline.accept(state, 2));
+	}
+
+	@Test
+	public void burstCollapseOffTakesEveryWrite()
+	{
+		final AlarmFilterPipeline pipeline = pipeline(AlarmFilterPipeline.BURST_COLLAPSE, AlarmFilterPipeline.Config.DEFAULT);
+		for (int i = 0; i < 10; i++){
+			assertTrue(pipeline.accept(state, 2));
+		}
+	}
+
+	@Test
+	public void burstWindowWithoutAlarmsIsRejected()
+	{
+		try {
+			new AlarmFilterPipeline.Config(true, 0, 3000, 1000, 0);
+			fail("A burst window letting no alarms through suppresses every alarm");
+		}
+		catch (IllegalArgumentException e) {
+			// Expected
+		}
+		// Setting only a window on the defaults lets one alarm per window through
+		final AlarmFilterPipeline.Config defaults = AlarmFilterPipeline.Config.DEFAULT;
+		final AlarmFilterPipeline pipeline = pipeline(AlarmFilterPipeline.BURST_COLLAPSE,
+			new AlarmFilterPipeline.Config(defaults.toggleDecode, defaults.minLevel, defaults.debounceInterval, 1000, defaults.burstMaxAlarms));
+		assertTrue(pipeline.accept(state, 2));
+		assertFalse(pipeline.accept(state, 2));
+	}
+
+	@Test
+	public void defaultStagesReportTheDroppingStage()
+	{
+		final AlarmFilterPipeline pipeline = new AlarmFilterPipeline(AlarmFilterPipeline.DEFAULT_STAGES, clock);
+		pipeline.setDefaultConfig(new AlarmFilterPipeline.Config(true, 1, 3000, 60000, 2));
+		assertEquals(0, pipeline.evaluate(state, 0));		// Connect-time write
+		assertEquals(-1, pipeline.evaluate(state, 2));
+		clock.advance(100);
+		assertEquals(2, pipeline.evaluate(state, 2));		// Bounce
+		clock.advance(3000);
+		assertEquals(1, pipeline.evaluate(state, 0));		// Toggled to "No Alert", below the threshold
+		clock.advance(3000);
+		assertEquals(-1, pipeline.evaluate(state, 2));
+		clock.advance(3000);
+		assertEquals(3, pipeline.evaluate(state, 2));		// Third alarm of the burst window
+		assertEquals(2, pipeline.getAccepted());
+		for (int stage = 0; stage < pipeline.getStageCount(); stage++){
+			assertEquals(1, pipeline.getDropped(stage));
+		}
+	}
+
+	@Test
+	public void deviceConfigOverridesTheDefault()
+	{
+		final AlarmFilterPipeline pipeline = pipeline(AlarmFilterPipeline.LEVEL_THRESHOLD, new AlarmFilterPipeline.Config(true, 2, 0, 0, 1));
+		final AlarmFilterPipeline.Config lowThreshold = new AlarmFilterPipeline.Config(true, 1, 0, 0, 1);
+		pipeline.setDeviceConfig(CLIP, lowThreshold);
+		assertSame(lowThreshold, pipeline.getConfig(CLIP));
+		assertTrue(pipeline.accept(state, 1));
+		assertFalse(pipeline.accept(alertStates.onConnected(OTHER_CLIP), 1));
+		pipeline.setDeviceConfig(CLIP, null);
+		assertFalse(pipeline.accept(state, 1));
+	}
+}
@@ -0,0 +1,170 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* Tests of the binary event records: their layout, the events delivered as JSON instead, and a round trip
+* through decodeEvents of www/gattserver.js (run with Node.js, skipped if it is not installed).
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class BinaryEventEncoderTest
+{
+	private final static String CLIP = "00:11:22:AA:BB:CC";
+	private final static long TIMESTAMP = 1500000000123L;
+
+	private static ServerEvent event(int type, String device, int status, int level)
+	{
+		final ServerEvent event = new ServerEvent();
+		event.set(type, device, status, level, TIMESTAMP, 0);
+		return event;
+	}
+
+	@Test
+	public void recordLayout()
+	{
+		final byte[] record = BinaryEventEncoder.encode(event(ServerEvent.TYPE_CONNECTED, CLIP, 517, 0));
+		assertEquals(BinaryEventEncoder.RECORD_SIZE, record.length);
+		assertEquals(ServerEvent.TYPE_CONNECTED, record[0]);
+		assertEquals(0, record[1]);
+		assertEquals(517, (record[2] & 0xff) | ((record[3] & 0xff) << 8));
+		assertArrayEquals(new byte[] {0x00, 0x11, 0x22, (byte)0xaa, (byte)0xbb, (byte)0xcc}, Arrays.copyOfRange(record, 4, 10));
+		long timestamp = 0;
+		for (int i = 5; i >= 0; i--){
+			timestamp = (timestamp << 8) | (record[10 + i] & 0xff);
+		}
+		assertEquals(TIMESTAMP, timestamp);
+	}
+
+	@Test
+	public void addressesRoundTrip()
+	{
+		assertEquals(0x001122aabbccL, BinaryEventEncoder.parseAddress(CLIP));
+		assertEquals(CLIP, BinaryEventEncoder.formatAddress(BinaryEventEncoder.parseAddress(CLIP)));
+		assertEquals(0, BinaryEventEncoder.parseAddress(null));
+		assertEquals(0, BinaryEventEncoder.parseAddress("00002a06-0000-1000-8000-00805f9b34fb"));
+	}
+
+	@Test
+	public void serviceErrorsAreDeliveredAsJson() throws Exception
+	{
+		assertFalse(BinaryEventEncoder.canEncode(event(ServerEvent.TYPE_SERVICE_ERROR, "00001802-0000-1000-8000-00805f9b34fb", 257, 3)));
+		assertTrue(BinaryEventEncoder.canEncode(event(ServerEvent.TYPE_CONNECTION_ERROR, CLIP, 8, 0)));
+
+		final FakeEventSink sink = new FakeEventSink();
+		final ServerEventDispatcher dispatcher = new ServerEventDispatcher(new ServerEventDispatcher.Encoder() {
+			@Override
+			public JSONObject encode(ServerEvent event) {
+				JSONObject object = new JSONObject();
+				try {
+					object.put("type", event.type);
+					object.put("service", event.device);
+				}
+				catch (JSONException e) {
+					throw new AssertionError(e);
+				}
+				return object;
+			}
+		});
+		dispatcher.setSink(sink);
+		dispatcher.setBinaryEncoding(true);
+		dispatcher.start();
+		try {
+			assertTrue(dispatcher.publish(ServerEvent.TYPE_WRITE_NOT_SUPPORTED, CLIP, 6, 0));
+			assertTrue(dispatcher.publish(ServerEvent.TYPE_SERVICE_ERROR, "00001802-0000-1000-8000-00805f9b34fb", 257, 3));
+			assertTrue(sink.await(2, 5000));
+		}
+		finally {
+			dispatcher.stop();
+		}
+		final List<FakeEventSink.Message> messages = sink.getMessages();
+		assertTrue(messages.get(0).payload instanceof byte[]);
+		assertTrue(messages.get(0).error);
+		final JSONObject serviceError = (JSONObject) messages.get(1).payload;
+		assertEquals("00001802-0000-1000-8000-00805f9b34fb", serviceError.getString("service"));
+		assertTrue(messages.get(1).error);
+		assertFalse(messages.get(1).keepCallback);
+	}
+
+	@Test
+	public void decodeEventsReadsTheRecords() throws Exception
+	{
+		final File script = new File(System.getProperty("user.dir"), "www/gattserver.js");
+		Assume.assumeTrue("Run from the plugin directory", script.isFile());
+
+		final ServerEvent[] events = {
+			event(ServerEvent.TYPE_CONNECTED, CLIP, 23, 0),
+			event(ServerEvent.TYPE_WRITE_REQUEST, CLIP, 0, ServerEvent.LEVEL_HIGH_ALERT),
+			event(ServerEvent.TYPE_MTU_CHANGED, "FF:EE:DD:CC:BB:AA", 517, 0),
+			event(ServerEvent.TYPE_SERVICE_ADDED, null, 0, 2)
+		};
+		final byte[] records = new byte[events.length * BinaryEventEncoder.RECORD_SIZE];
+		final StringBuilder hex = new StringBuilder();
+		for (int i = 0; i < events.length; i++){
+			BinaryEventEncoder.encode(events[i], records, i * BinaryEventEncoder.RECORD_SIZE);
+		}
+		for (byte b : records){
+			hex.append(String.format("%02x", b & 0xff));
+		}
+
+		final JSONArray decoded = new JSONArray(decodeWithNode(script, hex.toString()));
+		assertEquals(events.length, decoded.length());
+		for (int i = 0; i < events.length; i++){
+			final JSONObject object = decoded.getJSONObject(i);
+			assertEquals(events[i].type, object.getInt("type"));
+			assertEquals(events[i].level, object.getInt("level"));
+			assertEquals(events[i].status, object.getInt("status"));
+			assertEquals(events[i].device, object.isNull("device") ? null : object.getString("device"));
+			assertEquals(TIMESTAMP, object.getLong("timestamp"));
+		}
+		assertEquals("connected", decoded.getJSONObject(0).getString("event"));
+		assertEquals("characteristicWriteRequest", decoded.getJSONObject(1).getString("event"));
+	}
+
+	/*
+	* Runs decodeEvents of the script on the records (hex) with Node.js and returns the events as JSON text.
+	*/
+	private static String decodeWithNode(File script, String hex) throws Exception
+	{
+		final String program = "var gattserver = require(process.argv[1]);" +
+			"var bytes = Buffer.from(process.argv[2], 'hex');" +
+			"var buffer = bytes.buffer.slice(bytes.byteOffset, bytes.byteOffset + bytes.length);" +
+			"process.stdout.write(JSON.stringify(gattserver.decodeEvents(buffer)));";
+		final Process node;
+		try {
+			node = new ProcessBuilder("node", "-e", program, script.getAbsolutePath(), hex).redirectErrorStream(true).start();
+		}
+		catch (IOException e) {
+			Assume.assumeNoException("Node.js is not installed", e);
+			throw e;
+		}
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		final InputStream input = node.getInputStream();
+		final byte[] buffer = new byte[4096];
+		int length;
+		while ((length = input.read(buffer)) > 0){
+			output.write(buffer, 0, length);
+		}
+		assertEquals(output.toString("UTF-8"), 0, node.waitFor());
+		return output.toString("UTF-8");
+	}
+}
@@ -0,0 +1,110 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* Tests of ConnectionRegistry: the active connections the wake locks and the foreground service follow, and the
+* alarming marks of the clips.
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class ConnectionRegistryTest
+{
+	private final static String CLIP = "00:11:22:33:44:55";
+	private final static String OTHER_CLIP = "00:11:22:33:44:66";
+	private final static String THIRD_CLIP = "00:11:22:33:44:77";
+
+	private VirtualClock clock;
+	private ConnectionRegistry registry;
+
+	@Before
+	public void setUp()
+	{
+		clock = new VirtualClock(1500000000000L);
+		registry = new ConnectionRegistry(clock, clock);
+	}
+
+	@Test
+	public void connectionsAreActiveUntilCancelled()
+	{
+		registry.onConnected(CLIP, null);
+		assertEquals(1, registry.countActive());
+		registry.onConnected(OTHER_CLIP, null);
+		assertEquals(2, registry.countActive());
+		registry.onDisconnected(CLIP);
+		assertEquals(1, registry.countActive());
+		assertEquals(1, registry.size());
+	}
+
+	@Test
+	public void disconnectionsAfterReleaseCpuLeaveNoActiveConnection()
+	{
+		registry.onConnected(CLIP, null);
+		registry.onConnected(OTHER_CLIP, null);
+		registry.onConnected(THIRD_CLIP, null);
+
+		// releaseCpu: every connection is cancelled, the disconnection callbacks follow one by one
+		final List<ConnectionRegistry.Connection> cancelled = registry.cancelAll();
+		assertEquals(3, cancelled.size());
+		assertEquals(0, registry.countActive());
+		assertEquals(3, registry.size());	// Still registered until disconnected
+		registry.onDisconnected(CLIP);
+		assertEquals(0, registry.countActive());	// 3 -> 2 must not take the wake lock again
+		registry.onDisconnected(OTHER_CLIP);
+		assertEquals(0, registry.countActive());	// 2 -> 1 must not start the service again
+		registry.onDisconnected(THIRD_CLIP);
+		assertEquals(0, registry.countActive());
+		assertTrue(registry.isEmpty());
+	}
+
+	@Test
+	public void reconnectionDuringPendingDisconnectionsIsActive()
+	{
+		registry.onConnected(CLIP, null);
+		registry.onConnected(OTHER_CLIP, null);
+		registry.cancelAll();
+		registry.onDisconnected(CLIP);
+
+		// The clip reconnects before the other one's disconnection callback: it is the first active connection
+		registry.onConnected(CLIP, null);
+		assertEquals(1, registry.countActive());
+		assertFalse(registry.get(CLIP).isCancelled());
+		assertTrue(registry.get(OTHER_CLIP).isCancelled());
+		registry.onDisconnected(OTHER_CLIP);
+		assertEquals(1, registry.countActive());
+	}
+
+	@Test
+	public void setAlarmingReportsOnlyTheTransition()
+	{
+		registry.onConnected(CLIP, null);
+		assertTrue(registry.setAlarming(CLIP));
+		assertFalse(registry.setAlarming(CLIP));	// Already alarming, no notification update
+		assertEquals(1, registry.countAlarming());
+		assertFalse(registry.setAlarming(OTHER_CLIP));	// Not connected
+
+		registry.resetAlarming();
+		assertEquals(0, registry.countAlarming());
+		assertTrue(registry.setAlarming(CLIP));
+	}
+
+	@Test
+	public void connectedTimeFollowsTheClock()
+	{
+		final ConnectionRegistry.Connection connection = registry.onConnected(CLIP, null);
+		assertEquals(1500000000000L, connection.getConnectTime());
+		clock.advance(2500);
+		assertEquals(2500, connection.getConnectedTime());
+		assertEquals(CLIP, connection.getAddress());
+	}
+}
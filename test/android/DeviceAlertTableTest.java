@@ -0,0 +1,250 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* Tests of DeviceAlertTable with hundreds of simulated clips connecting, alarming and disconnecting at once.
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+public class DeviceAlertTableTest
+{
+	private final static int DEVICES = 500;
+	private final static int THREADS = 16;
+	private final static int ROUNDS = 200;
+
+	private final static String[] ADDRESSES = new String[DEVICES];
+	static {
+		for (int device = 0; device < DEVICES; device++){
+			ADDRESSES[device] = String.format("00:11:22:33:%02X:%02X", (device >> 8) & 0xff, device & 0xff);
+		}
+	}
+
+	private static String address(int device)
+	{
+		return ADDRESSES[device];
+	}
+
+	/*
+	* Runs the task on THREADS threads released at the same time and waits for all of them.
+	*/
+	private static <T> List<T> runConcurrently(final Callable<T> task) throws Exception
+	{
+		final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		final CountDownLatch start = new CountDownLatch(1);
+		try {
+			List<Future<T>> futures = new ArrayList<Future<T>>();
+			for (int i = 0; i < THREADS; i++){
+				futures.add(executor.submit(new Callable<T>() {
+					@Override
+					public T call() throws Exception {
+						start.await();
+						return task.call();
+					}
+				}));
+			}
+			start.countDown();
+			List<T> results = new ArrayList<T>();
+			for (Future<T> future : futures){
+				results.add(future.get(30, TimeUnit.SECONDS));
+			}
+			return results;
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void concurrentGetCreatesOneStatePerDevice() throws Exception
+	{
+		final DeviceAlertTable table = new DeviceAlertTable();
+		final List<DeviceAlertTable.DeviceAlertState[]> seen = runConcurrently(new Callable<DeviceAlertTable.DeviceAlertState[]>() {
+			@Override
+			public DeviceAlertTable.DeviceAlertState[] call() {
+				DeviceAlertTable.DeviceAlertState[] states = new DeviceAlertTable.DeviceAlertState[DEVICES];
+				for (int device = 0; device < DEVICES; device++){
+					states[device] = table.get(address(device));
+				}
+				return states;
+			}
+		});
+		assertEquals(DEVICES, table.size());
+		for (int device = 0; device < DEVICES; device++){
+			final DeviceAlertTable.DeviceAlertState state = table.peek(address(device));
+			assertEquals(address(device), state.getAddress());
+			for (DeviceAlertTable.DeviceAlertState[] states : seen){
+				assertSame(state, states[device]);
+			}
+		}
+	}
+
+	@Test
+	public void oneClipAlarmingDoesNotAffectTheOthers() throws Exception
+	{
+		final DeviceAlertTable table = new DeviceAlertTable();
+		for (int device = 0; device < DEVICES; device++){
+			table.onConnected(address(device));
+		}
+		// Every thread alarms its own share of the clips (every third clip), the others stay uninitialized
+		runConcurrently(new Callable<Void>() {
+			private int next = 0;
+			@Override
+			public Void call() {
+				final int thread;
+				synchronized (this) {
+					thread = next++;
+				}
+				for (int device = thread; device < DEVICES; device += THREADS){
+					if (device % 3 != 0)
+						continue;
+					final DeviceAlertTable.DeviceAlertState state = table.get(address(device));
+					assertTrue(state.initialize());
+					state.setAlertLevel(2);
+					state.markAlarmTime(device + 1);
+				}
+				return null;
+			}
+		});
+		int alarming = 0;
+		for (int device = 0; device < DEVICES; device++){
+			final DeviceAlertTable.DeviceAlertState state = table.peek(address(device));
+			final boolean expected = (device % 3 == 0);
+			assertEquals(expected, state.isInitialized());
+			assertEquals(expected ? 2 : 0, state.getAlertLevel());
+			assertEquals(expected ? device + 1 : 0, state.getLastAlarmTime());
+			if (expected)
+				alarming++;
+		}
+		assertEquals(alarming, table.countAlarming());
+	}
+
+	@Test
+	public void onlyOneThreadInitializesAClip() throws Exception
+	{
+		final DeviceAlertTable table = new DeviceAlertTable();
+		final List<Integer> firsts = runConcurrently(new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				int first = 0;
+				for (int device = 0; device < DEVICES; device++){
+					if (table.get(address(device)).initialize())
+						first++;
+				}
+				return first;
+			}
+		});
+		int total = 0;
+		for (int first : firsts){
+			total += first;
+		}
+		assertEquals(DEVICES, total);
+		assertEquals(DEVICES, table.countAlarming());
+		table.resetAll();
+		assertEquals(0, table.countAlarming());
+	}
+
+	@Test
+	public void alarmTimesAreNeverLost() throws Exception
+	{
+		// Every thread marks its own alarm times on every clip, the previous times returned and the last time
+		// left in each state must together be exactly the times marked (plus the initial 0)
+		final DeviceAlertTable table = new DeviceAlertTable();
+		final List<List<Set<Long>>> returned = runConcurrently(new Callable<List<Set<Long>>>() {
+			private int next = 0;
+			@Override
+			public List<Set<Long>> call() {
+				final int thread;
+				synchronized (this) {
+					thread = next++;
+				}
+				List<Set<Long>> previous = new ArrayList<Set<Long>>();
+				for (int device = 0; device < DEVICES; device++){
+					previous.add(new HashSet<Long>());
+				}
+				for (int round = 0; round < ROUNDS; round++){
+					for (int device = 0; device < DEVICES; device++){
+						final long time = 1 + (long) round * THREADS + thread;
+						previous.get(device).add(table.get(address(device)).markAlarmTime(time));
+					}
+				}
+				return previous;
+			}
+		});
+		for (int device = 0; device < DEVICES; device++){
+			final Set<Long> times = new HashSet<Long>();
+			times.add(table.peek(address(device)).getLastAlarmTime());
+			int count = 1;
+			for (List<Set<Long>> previous : returned){
+				times.addAll(previous.get(device));
+				count += previous.get(device).size();
+			}
+			assertEquals(THREADS * ROUNDS + 1, count);
+			assertEquals(THREADS * ROUNDS + 1, times.size());
+			assertTrue(times.contains(0L));
+		}
+	}
+
+	@Test
+	public void connectingAndDisconnectingClipsAtOnce() throws Exception
+	{
+		// The clips of even threads end connected, the clips of odd threads end disconnected
+		final DeviceAlertTable table = new DeviceAlertTable();
+		final int perThread = DEVICES / THREADS;
+		runConcurrently(new Callable<Void>() {
+			private int next = 0;
+			@Override
+			public Void call() {
+				final int thread;
+				synchronized (this) {
+					thread = next++;
+				}
+				for (int round = 0; round < ROUNDS / 10; round++){
+					for (int i = 0; i < perThread; i++){
+						final String address = address(thread * perThread + i);
+						final DeviceAlertTable.DeviceAlertState state = table.onConnected(address);
+						assertFalse(state.isInitialized());
+						state.initialize();
+						table.get(address).setAlertLevel(1);
+						if (thread % 2 != 0 || round < ROUNDS / 10 - 1)
+							table.onDisconnected(address);
+					}
+				}
+				return null;
+			}
+		});
+		assertEquals((THREADS / 2) * perThread, table.size());
+		for (int thread = 0; thread < THREADS; thread++){
+			for (int i = 0; i < perThread; i++){
+				final DeviceAlertTable.DeviceAlertState state = table.peek(address(thread * perThread + i));
+				if (thread % 2 != 0){
+					assertNull(state);
+				}
+				else {
+					assertTrue(state.isInitialized());
+					assertEquals(1, state.getAlertLevel());
+				}
+			}
+		}
+	}
+}
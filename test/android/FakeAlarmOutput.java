@@ -0,0 +1,136 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* In-memory alarm output for running the alarm core on a plain JVM.
+*
+* Records what would have been signalled (counts and the last sound, vibration flag and alert level) instead of
+* touching any hardware. Whether notifications are enabled and whether sounds can be played can be set, to drive
+* the alarm decisions down every path.
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+
+public class FakeAlarmOutput implements AlarmOutput
+{
+	private volatile boolean notificationsEnabled = true;
+	private volatile boolean playable = true;
+
+	// What has been signalled (guarded by this)
+	private int wakeUps = 0;
+	private int notifications = 0;
+	private int plays = 0;
+	private int stops = 0;
+	private int vibrations = 0;
+	private AlarmSound lastSound = null;
+	private boolean lastVibration = false;
+	private int lastAlertLevel = -1;
+
+	public void setNotificationsEnabled(boolean notificationsEnabled)
+	{
+		this.notificationsEnabled = notificationsEnabled;
+	}
+
+	/**
+	 * Sets if play() succeeds (false to act as a sound that failed to load).
+	*/
+	public void setPlayable(boolean playable)
+	{
+		this.playable = playable;
+	}
+
+	@Override
+	public synchronized void keepAwake()
+	{
+		wakeUps++;
+	}
+
+	@Override
+	public boolean canNotify()
+	{
+		return notificationsEnabled;
+	}
+
+	@Override
+	public synchronized void notify(AlarmSound sound, boolean vibration, int alertLevel)
+	{
+		notifications++;
+		lastSound = sound;
+		lastVibration = vibration;
+		lastAlertLevel = alertLevel;
+	}
+
+	@Override
+	public synchronized boolean play(AlarmSound sound, long triggerTime)
+	{
+		if (!playable)
+			return false;
+		plays++;
+		lastSound = sound;
+		return true;
+	}
+
+	@Override
+	public synchronized void stop()
+	{
+		stops++;
+	}
+
+	@Override
+	public synchronized void vibrate()
+	{
+		vibrations++;
+	}
+
+	public synchronized int getWakeUps()
+	{
+		return wakeUps;
+	}
+
+	public synchronized int getNotifications()
+	{
+		return notifications;
+	}
+
+	public synchronized int getPlays()
+	{
+		return plays;
+	}
+
+	public synchronized int getStops()
+	{
+		return stops;
+	}
+
+	public synchronized int getVibrations()
+	{
+		return vibrations;
+	}
+
+	public synchronized AlarmSound getLastSound()
+	{
+		return lastSound;
+	}
+
+	public synchronized boolean getLastVibration()
+	{
+		return lastVibration;
+	}
+
+	public synchronized int getLastAlertLevel()
+	{
+		return lastAlertLevel;
+	}
+
+	/**
+	 * Forgets everything signalled so far.
+	*/
+	public synchronized void reset()
+	{
+		wakeUps = notifications = plays = stops = vibrations = 0;
+		lastSound = null;
+		lastVibration = false;
+		lastAlertLevel = -1;
+	}
+}
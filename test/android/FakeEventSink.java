@@ -0,0 +1,93 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* In-memory event sink for running the GATT server core on a plain JVM.
+*
+* Keeps every message the ServerEventDispatcher delivers (JSONObject, JSONArray or byte[] records) in the order
+* delivered, and can wait for a number of messages since they are delivered on the drainer thread.
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+public class FakeEventSink implements ServerEventDispatcher.EventSink
+{
+	/*
+	* A delivered message.
+	*/
+	public final static class Message
+	{
+		public final Object payload;		// JSONObject, JSONArray (batch) or byte[] (binary records)
+		public final boolean error;
+		public final boolean keepCallback;
+
+		Message(Object payload, boolean error, boolean keepCallback)
+		{
+			this.payload = payload;
+			this.error = error;
+			this.keepCallback = keepCallback;
+		}
+	}
+
+	private final ArrayList<Message> messages = new ArrayList<Message>();	// Guarded by this
+
+	@Override
+	public void send(JSONObject event, boolean error, boolean keepCallback)
+	{
+		add(new Message(event, error, keepCallback));
+	}
+
+	@Override
+	public void send(JSONArray events)
+	{
+		add(new Message(events, false, true));
+	}
+
+	@Override
+	public void send(byte[] records, boolean error, boolean keepCallback)
+	{
+		add(new Message(records, error, keepCallback));
+	}
+
+	/**
+	 * Returns a copy of the messages delivered so far.
+	*/
+	public synchronized List<Message> getMessages()
+	{
+		return new ArrayList<Message>(messages);
+	}
+
+	/**
+	 * Waits until at least count messages have been delivered or the timeout (milliseconds) has passed.
+	 * Returns true if they have been delivered.
+	*/
+	public synchronized boolean await(int count, long timeout) throws InterruptedException
+	{
+		final long end = System.currentTimeMillis() + timeout;
+		while (messages.size() < count){
+			final long left = end - System.currentTimeMillis();
+			if (left <= 0)
+				return false;
+			wait(left);
+		}
+		return true;
+	}
+
+	public synchronized void clear()
+	{
+		messages.clear();
+	}
+
+	private synchronized void add(Message message)
+	{
+		messages.add(message);
+		notifyAll();
+	}
+}
@@ -0,0 +1,106 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* In-memory GATT server for running the GATT server core on a plain JVM.
+*
+* Records the responses and notifications sent to the clients in the order sent instead of calling the
+* Bluetooth stack. Whether the notifications can be sent can be set, to act as a stack that refuses them.
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+public class FakeGattServer implements GattServer
+{
+	/*
+	* A response sent to a read or write request.
+	*/
+	public final static class Response
+	{
+		public final String address;
+		public final int requestId;
+		public final int status;
+		public final int offset;
+		public final byte[] value;
+
+		Response(String address, int requestId, int status, int offset, byte[] value)
+		{
+			this.address = address;
+			this.requestId = requestId;
+			this.status = status;
+			this.offset = offset;
+			this.value = value;
+		}
+	}
+
+	/*
+	* A notification (or indication) sent to a client.
+	*/
+	public final static class Notification
+	{
+		public final String address;
+		public final BluetoothGattCharacteristic characteristic;
+		public final byte[] value;
+		public final boolean confirm;
+
+		Notification(String address, BluetoothGattCharacteristic characteristic, byte[] value, boolean confirm)
+		{
+			this.address = address;
+			this.characteristic = characteristic;
+			this.value = value;
+			this.confirm = confirm;
+		}
+	}
+
+	private volatile boolean notifiable = true;
+
+	// What has been sent (guarded by this)
+	private final ArrayList<Response> responses = new ArrayList<Response>();
+	private final ArrayList<Notification> notifications = new ArrayList<Notification>();
+
+	/**
+	 * Sets if notifyCharacteristicChanged succeeds (false to act as a stack that refuses the notifications).
+	*/
+	public void setNotifiable(boolean notifiable)
+	{
+		this.notifiable = notifiable;
+	}
+
+	@Override
+	public synchronized boolean sendResponse(String address, int requestId, int status, int offset, byte[] value)
+	{
+		responses.add(new Response(address, requestId, status, offset, (value != null) ? value.clone() : null));
+		return true;
+	}
+
+	@Override
+	public synchronized boolean notifyCharacteristicChanged(String address, BluetoothGattCharacteristic characteristic, byte[] value, boolean confirm)
+	{
+		if (!notifiable)
+			return false;
+		notifications.add(new Notification(address, characteristic, value.clone(), confirm));
+		return true;
+	}
+
+	/**
+	 * Returns a copy of the responses sent so far.
+	*/
+	public synchronized List<Response> getResponses()
+	{
+		return new ArrayList<Response>(responses);
+	}
+
+	/**
+	 * Returns a copy of the notifications sent so far.
+	*/
+	public synchronized List<Notification> getNotifications()
+	{
+		return new ArrayList<Notification>(notifications);
+	}
+}
@@ -0,0 +1,101 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* Tests of compiling declarative GATT service definitions into attribute tables.
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+
+import org.json.JSONException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class GattAttributeTableTest
+{
+	private static GattAttributeTable.CharacteristicDefinition characteristic(String definition) throws JSONException
+	{
+		return GattAttributeTable.compile("[{\"uuid\":\"180f\",\"characteristics\":[" + definition + "]}]").getServices()[0].characteristics[0];
+	}
+
+	@Test
+	public void notifyingCharacteristicGetsACccd() throws Exception
+	{
+		final GattAttributeTable.CharacteristicDefinition notifying = characteristic("{\"uuid\":\"2a19\",\"properties\":[\"read\",\"notify\"],\"permissions\":[\"read\"]}");
+		assertEquals(1, notifying.descriptors.length);
+		assertEquals(GattAttributeTable.CCCD_UUID, notifying.descriptors[0].uuid);
+		assertEquals(BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE, notifying.descriptors[0].permissions);
+		assertArrayEquals(new byte[] {0, 0}, notifying.descriptors[0].getValue());
+
+		final GattAttributeTable.CharacteristicDefinition indicating = characteristic("{\"uuid\":\"2a19\",\"properties\":[\"indicate\"]," +
+			"\"descriptors\":[{\"uuid\":\"2901\",\"permissions\":[\"read\"],\"value\":\"4c6576656c\"}]}");
+		assertEquals(2, indicating.descriptors.length);
+		assertEquals(GattAttributeTable.CCCD_UUID, indicating.descriptors[1].uuid);	// After the declared descriptors
+	}
+
+	@Test
+	public void declaredCccdIsKept() throws Exception
+	{
+		final GattAttributeTable.CharacteristicDefinition notifying = characteristic("{\"uuid\":\"2a19\",\"properties\":[\"notify\"]," +
+			"\"descriptors\":[{\"uuid\":\"0x2902\",\"permissions\":[\"read\",\"writeEncrypted\"],\"value\":[1,0]}]}");
+		assertEquals(1, notifying.descriptors.length);
+		assertEquals(BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE_ENCRYPTED, notifying.descriptors[0].permissions);
+		assertArrayEquals(new byte[] {1, 0}, notifying.descriptors[0].getValue());
+	}
+
+	@Test
+	public void characteristicWithoutNotificationsGetsNoCccd() throws Exception
+	{
+		assertEquals(0, characteristic("{\"uuid\":\"2a06\",\"properties\":[\"writeWithoutResponse\"],\"permissions\":[\"write\"]}").descriptors.length);
+		assertEquals(0, GattAttributeTable.immediateAlert().getServices()[0].characteristics[0].descriptors.length);
+	}
+
+	@Test
+	public void mitmAndSignedPermissionsAreAccepted() throws Exception
+	{
+		final GattAttributeTable.CharacteristicDefinition secured = characteristic("{\"uuid\":\"2a19\",\"properties\":[\"read\",\"signedWrite\"]," +
+			"\"permissions\":[\"readEncryptedMitm\",\"writeEncryptedMitm\",\"writeSigned\",\"writeSignedMitm\"]}");
+		assertEquals(BluetoothGattCharacteristic.PERMISSION_READ_ENCRYPTED_MITM | BluetoothGattCharacteristic.PERMISSION_WRITE_ENCRYPTED_MITM |
+			BluetoothGattCharacteristic.PERMISSION_WRITE_SIGNED | BluetoothGattCharacteristic.PERMISSION_WRITE_SIGNED_MITM, secured.permissions);
+	}
+
+	@Test
+	public void unknownNamesListTheAcceptedOnes()
+	{
+		try {
+			characteristic("{\"uuid\":\"2a19\",\"properties\":[\"read\"],\"permissions\":[\"readMitm\"]}");
+			fail();
+		}
+		catch (JSONException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Unknown permission: readMitm (one of read, readEncrypted, readEncryptedMitm"));
+		}
+		try {
+			characteristic("{\"uuid\":\"2a19\",\"properties\":[\"notification\"]}");
+			fail();
+		}
+		catch (JSONException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("(one of broadcast, read, writeWithoutResponse"));
+		}
+	}
+
+	@Test
+	public void lastDefinitionIsCompiledOnce() throws Exception
+	{
+		final String definition = "[{\"uuid\":\"180f\",\"characteristics\":[{\"uuid\":\"2a19\",\"properties\":[\"notify\"]}]}]";
+		final GattAttributeTable table = GattAttributeTable.compile(definition);
+		assertSame(table, GattAttributeTable.compile(definition));
+		final GattAttributeTable other = GattAttributeTable.compile("[{\"uuid\":\"180f\"}]");
+		assertNotSame(table, other);
+		assertEquals(0, other.getServices()[0].characteristics.length);
+	}
+}
@@ -0,0 +1,278 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* Tests of serving the clients on a plain JVM: the state actor messages of a clip's connection, writes and
+* disconnection run through the GattServerCore, the Immediate Alert writes through the ImmediateAlertHandler into
+* the AlarmController, and the responses and notifications go to a FakeGattServer.
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+import android.bluetooth.BluetoothGatt;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class GattServerCoreTest
+{
+	private final static String CLIP = "00:11:22:33:44:55";
+	private final static String OTHER_CLIP = "00:11:22:33:44:66";
+	private final static Object CCCD = new Object();		// Stands in for the descriptor
+
+	private VirtualClock clock;
+	private FakeGattServer server;
+	private FakeAlarmOutput output;
+	private FakeEventSink sink;
+	private ServerEventDispatcher events;
+	private ConnectionRegistry connections;
+	private DeviceAlertTable alertStates;
+	private NotificationSender notificationSender;
+	private GattServerCore core;
+	private final List<Object> deadlines = new ArrayList<Object>();
+	private final List<Boolean> connectionChanges = new ArrayList<Boolean>();
+	private int requestId = 0;
+
+	@Before
+	public void setUp()
+	{
+		clock = new VirtualClock(1500000000000L);
+		server = new FakeGattServer();
+		output = new FakeAlarmOutput();
+		sink = new FakeEventSink();
+		events = new ServerEventDispatcher(new ServerEventDispatcher.Encoder() {
+			@Override
+			public JSONObject encode(ServerEvent event) {
+				JSONObject object = new JSONObject();
+				try {
+					object.put("type", event.type);
+					object.put("device", event.device);
+					object.put("status", event.status);
+					object.put("level", event.level);
+				}
+				catch (JSONException e) {
+					throw new AssertionError(e);
+				}
+				return object;
+			}
+		});
+		events.setSink(sink);
+		events.start();
+		connections = new ConnectionRegistry(clock, clock);
+		alertStates = new DeviceAlertTable();
+		notificationSender = new NotificationSender(new NotificationSender.Scheduler() {
+			@Override
+			public void schedule(Object token, long delayMillis) {
+				deadlines.add(token);
+			}
+		});
+		final AlarmFilterPipeline alarmFilters = new AlarmFilterPipeline(AlarmFilterPipeline.DEFAULT_STAGES, clock);
+		final AlarmMetrics metrics = new AlarmMetrics();
+		final AlarmController controller = new AlarmController(output, new AlarmController.SettingsSource() {
+			@Override
+			public AppSettingsStore.Settings get() {
+				return new AppSettingsStore.Settings(AlarmSound.SOUND_2, true, false);
+			}
+		}, alarmFilters, events, metrics, clock);
+		final AttributeHandlerRegistry attributeHandlers = new AttributeHandlerRegistry();
+		core = new GattServerCore(connections, alertStates, attributeHandlers, new AttributeValueStore(), notificationSender,
+			new PreparedWriteBuffers(), events, metrics, new GattServerCore.Listener() {
+			@Override
+			public void onConnectionsChanged(boolean connected) {
+				connectionChanges.add(connected);
+			}
+		});
+		final ImmediateAlertHandler alertHandler = new ImmediateAlertHandler(alertStates, alarmFilters, controller);
+		alertHandler.setTriggerTimeSource(core);
+		attributeHandlers.register(ImmediateAlertHandler.IMMEDIATE_ALERT_SERVICE_UUID, ImmediateAlertHandler.ALERT_LEVEL_CHAR_UUID, alertHandler);
+		core.setServer(server);
+	}
+
+	@After
+	public void tearDown()
+	{
+		events.stop();
+	}
+
+	private void connect(String address)
+	{
+		core.onConnectionState(new PluginStateActor.ConnectionState(address, null, BluetoothGatt.GATT_SUCCESS, BluetoothGatt.STATE_CONNECTED));
+	}
+
+	private void disconnect(String address)
+	{
+		core.onConnectionState(new PluginStateActor.ConnectionState(address, null, BluetoothGatt.GATT_SUCCESS, BluetoothGatt.STATE_DISCONNECTED));
+	}
+
+	/*
+	* Writes the alert level of a clip to the Alert Level characteristic (with response).
+	*/
+	private void writeAlertLevel(String address, int alertLevel)
+	{
+		core.onCharacteristicWrite(new PluginStateActor.WriteRequest(address, ++requestId, null, null, ImmediateAlertHandler.IMMEDIATE_ALERT_SERVICE_UUID,
+			ImmediateAlertHandler.ALERT_LEVEL_CHAR_UUID, null, false, true, 0, new byte[] {(byte) alertLevel}));
+	}
+
+	/*
+	* Writes the Client Characteristic Configuration Descriptor (CCCD) of a characteristic (null) of the clip.
+	*/
+	private void subscribe(String address, int subscription)
+	{
+		core.onDescriptorWrite(new PluginStateActor.WriteRequest(address, ++requestId, CCCD, null, null, ImmediateAlertHandler.ALERT_LEVEL_CHAR_UUID,
+			GattAttributeTable.CCCD_UUID, false, true, 0, new byte[] {(byte) subscription, 0}));
+	}
+
+	private FakeGattServer.Response lastResponse()
+	{
+		final List<FakeGattServer.Response> responses = server.getResponses();
+		return responses.get(responses.size() - 1);
+	}
+
+	private JSONObject event(int index)
+	{
+		return (JSONObject) sink.getMessages().get(index).payload;
+	}
+
+	@Test
+	public void clipLifecycle() throws Exception
+	{
+		connect(CLIP);
+		assertTrue(connections.isConnected(CLIP));
+		assertEquals(Arrays.asList(true), connectionChanges);
+
+		// The level written when the clip connects is not an alarm
+		writeAlertLevel(CLIP, 0);
+		assertEquals(requestId, lastResponse().requestId);
+		assertEquals(BluetoothGatt.GATT_SUCCESS, lastResponse().status);
+		assertEquals(0, output.getPlays());
+		assertFalse(alertStates.peek(CLIP).isInitialized());
+
+		// The button is pressed
+		clock.advance(5000);
+		writeAlertLevel(CLIP, 2);
+		assertEquals(CLIP, lastResponse().address);
+		assertEquals(BluetoothGatt.GATT_SUCCESS, lastResponse().status);
+		assertEquals(2, server.getResponses().size());
+		assertEquals(1, output.getPlays());
+		assertTrue(alertStates.peek(CLIP).isInitialized());
+		assertEquals(2, alertStates.peek(CLIP).getAlertLevel());
+		assertEquals(2, connections.get(CLIP).getWriteRequests());
+
+		disconnect(CLIP);
+		assertFalse(connections.isConnected(CLIP));
+		assertNull(alertStates.peek(CLIP));
+		assertEquals(Arrays.asList(true, false), connectionChanges);
+
+		assertTrue(sink.await(3, 5000));
+		assertEquals(ServerEvent.TYPE_CONNECTED, event(0).getInt("type"));
+		assertEquals(ConnectionRegistry.DEFAULT_MTU, event(0).getInt("status"));
+		assertEquals(ServerEvent.TYPE_WRITE_REQUEST, event(1).getInt("type"));
+		assertEquals(CLIP, event(1).getString("device"));
+		assertEquals(2, event(1).getInt("level"));
+		assertEquals(ServerEvent.TYPE_DISCONNECTED, event(2).getInt("type"));
+		assertEquals(3, sink.getMessages().size());
+	}
+
+	@Test
+	public void reconnectedClipStartsOver()
+	{
+		connect(CLIP);
+		writeAlertLevel(CLIP, 0);
+		clock.advance(5000);
+		writeAlertLevel(CLIP, 2);
+		assertEquals(1, output.getPlays());
+		disconnect(CLIP);
+		clock.advance(5000);
+		connect(CLIP);
+		writeAlertLevel(CLIP, 0);	// Its connect-time write again, not a toggled level
+		assertEquals(1, output.getPlays());
+		assertFalse(alertStates.peek(CLIP).isInitialized());
+	}
+
+	@Test
+	public void writeOfAnUnknownCharacteristicIsNotSupported() throws Exception
+	{
+		connect(CLIP);
+		core.onCharacteristicWrite(new PluginStateActor.WriteRequest(CLIP, 7, null, null, GattAttributeTable.parseUuid("180f"),
+			GattAttributeTable.parseUuid("2a19"), null, false, true, 0, new byte[] {1}));
+		assertEquals(7, lastResponse().requestId);
+		assertEquals(BluetoothGatt.GATT_REQUEST_NOT_SUPPORTED, lastResponse().status);
+		assertTrue(sink.await(2, 5000));
+		assertEquals(ServerEvent.TYPE_WRITE_NOT_SUPPORTED, event(1).getInt("type"));
+	}
+
+	@Test
+	public void notificationsGoToSubscribedClientsOnly()
+	{
+		connect(CLIP);
+		connect(OTHER_CLIP);
+		subscribe(CLIP, NotificationSender.SUBSCRIBED_NOTIFICATIONS);
+		assertEquals(BluetoothGatt.GATT_SUCCESS, lastResponse().status);
+
+		final NotificationSender.SendCounts counts = new NotificationSender.SendCounts();
+		assertEquals(1, notificationSender.sendToSubscribers(null, new byte[] {1}, counts));
+		assertFalse(notificationSender.send(OTHER_CLIP, null, new byte[] {1}, counts));
+		assertEquals(1, counts.notSubscribed);
+		assertFalse(notificationSender.send(CLIP, null, new byte[ConnectionRegistry.DEFAULT_MTU - NotificationSender.NOTIFICATION_HEADER_LENGTH + 1], counts));
+		assertEquals(1, counts.tooLong);
+
+		final List<FakeGattServer.Notification> notifications = server.getNotifications();
+		assertEquals(1, notifications.size());
+		assertEquals(CLIP, notifications.get(0).address);
+		assertArrayEquals(new byte[] {1}, notifications.get(0).value);
+		assertFalse(notifications.get(0).confirm);
+	}
+
+	@Test
+	public void lostNotificationTimesOut()
+	{
+		connect(CLIP);
+		subscribe(CLIP, NotificationSender.SUBSCRIBED_INDICATIONS);
+		final NotificationSender.SendCounts counts = new NotificationSender.SendCounts();
+		assertTrue(notificationSender.send(CLIP, null, new byte[] {1}, counts));
+		assertTrue(notificationSender.send(CLIP, null, new byte[] {2}, counts));
+		assertEquals(1, server.getNotifications().size());	// One in flight at a time
+		assertTrue(server.getNotifications().get(0).confirm);
+
+		// onNotificationSent never comes for the first one
+		notificationSender.onTimer(deadlines.get(0));
+		assertEquals(1, notificationSender.getTimedOut());
+		assertEquals(2, server.getNotifications().size());
+		core.onNotificationSent(new PluginStateActor.LinkUpdate(CLIP, BluetoothGatt.GATT_SUCCESS, 0));
+		assertEquals(0, notificationSender.getQueueDepth());
+		notificationSender.onTimer(deadlines.get(1));		// Sent since
+		assertEquals(1, notificationSender.getTimedOut());
+	}
+
+	@Test
+	public void mtuChangeIsTracked()
+	{
+		connect(CLIP);
+		core.onMtuChanged(new PluginStateActor.LinkUpdate(CLIP, 185, 0));
+		assertEquals(185, connections.getMtu(CLIP));
+		assertEquals(185 - ConnectionRegistry.READ_RESPONSE_HEADER_LENGTH, connections.getMaxReadLength(CLIP));
+	}
+
+	@Test
+	public void noResponsesOnceTheServerIsClosed()
+	{
+		connect(CLIP);
+		core.setServer(null);
+		writeAlertLevel(CLIP, 0);
+		assertTrue(server.getResponses().isEmpty());
+	}
+}
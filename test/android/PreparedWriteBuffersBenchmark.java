@@ -0,0 +1,96 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* Benchmark of PreparedWriteBuffers reassembling 512-byte values (the longest attribute value) written as long writes.
+*
+* Every write is split into the Prepare Write fragments a client sends at the given ATT MTU (MTU - 5 bytes each)
+* and executed. Reports the reassembly throughput and the allocation rate: the reassembly buffers allocated
+* (not taken from the pool) and, when the JVM can tell, the bytes allocated per write.
+*
+* Run: java -cp <classes> com.sensiblesolutions.gattserver.PreparedWriteBuffersBenchmark [writes] [devices] [mtu]
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+
+public class PreparedWriteBuffersBenchmark
+{
+	private final static int VALUE_LENGTH = PreparedWriteBuffers.MAX_VALUE_LENGTH;
+	private final static int PREPARE_WRITE_HEADER_LENGTH = 5;	// Opcode, handle and offset
+
+	public static void main(String[] args)
+	{
+		final int writes = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+		final int devices = (args.length > 1) ? Integer.parseInt(args[1]) : 8;
+		final int mtu = (args.length > 2) ? Integer.parseInt(args[2]) : ConnectionRegistry.DEFAULT_MTU;
+
+		final String[] addresses = new String[devices];
+		for (int device = 0; device < devices; device++){
+			addresses[device] = String.format("00:11:22:33:%02X:%02X", (device >> 8) & 0xff, device & 0xff);
+		}
+		// The fragments of a value, as received from the client
+		final int fragmentLength = mtu - PREPARE_WRITE_HEADER_LENGTH;
+		final int fragmentCount = (VALUE_LENGTH + fragmentLength - 1) / fragmentLength;
+		final byte[][] fragments = new byte[fragmentCount][];
+		for (int i = 0; i < fragmentCount; i++){
+			final int offset = i * fragmentLength;
+			fragments[i] = new byte[Math.min(fragmentLength, VALUE_LENGTH - offset)];
+			for (int j = 0; j < fragments[i].length; j++){
+				fragments[i][j] = (byte)(offset + j);
+			}
+		}
+		final Object attribute = new Object();
+		final long[] checksum = new long[1];
+		final PreparedWriteBuffers.Committer committer = new PreparedWriteBuffers.Committer() {
+			@Override
+			public int commit(Object committed, byte[] value) {
+				checksum[0] += value.length + value[value.length - 1];
+				return 0;
+			}
+		};
+
+		run(new PreparedWriteBuffers(), addresses, attribute, fragments, fragmentLength, committer, writes / 10);	// Warm up
+		final PreparedWriteBuffers buffers = new PreparedWriteBuffers();
+		final long allocatedBefore = allocatedBytes();
+		final long start = System.nanoTime();
+		run(buffers, addresses, attribute, fragments, fragmentLength, committer, writes);
+		final long elapsed = System.nanoTime() - start;
+		final long allocated = allocatedBytes() - allocatedBefore;
+
+		System.out.println("Writes: " + writes + " of " + VALUE_LENGTH + " bytes from " + devices + " devices, MTU " + mtu +
+			" (" + fragmentCount + " fragments per write)");
+		System.out.println("Committed: " + buffers.getCommittedWrites() + " writes, " + buffers.getCommittedBytes() + " bytes (checksum " + checksum[0] + ")");
+		System.out.println(String.format("Throughput: %.0f writes/s, %.1f MB/s, %.0f ns per fragment",
+			writes * 1e9 / elapsed, buffers.getCommittedBytes() * 1e3 / elapsed, (double) elapsed / ((long) writes * fragmentCount)));
+		System.out.println("Reassembly buffers allocated: " + buffers.getAllocatedBuffers() +
+			String.format(" (%.6f per write)", (double) buffers.getAllocatedBuffers() / writes));
+		if (allocated >= 0)
+			System.out.println(String.format("Heap allocated: %.1f bytes per write (the committed value copy is %d bytes)", (double) allocated / writes, VALUE_LENGTH));
+	}
+
+	private static void run(PreparedWriteBuffers buffers, String[] addresses, Object attribute, byte[][] fragments, int fragmentLength,
+		PreparedWriteBuffers.Committer committer, int writes)
+	{
+		// The devices write in turns, a device has at most one write in progress
+		for (int write = 0; write < writes; write++){
+			final String address = addresses[write % addresses.length];
+			for (int i = 0; i < fragments.length; i++){
+				buffers.prepare(address, attribute, i * fragmentLength, fragments[i]);
+			}
+			buffers.execute(address, true, committer);
+		}
+	}
+
+	private static long allocatedBytes()
+	{
+		// Bytes allocated by this thread (-1 if the JVM does not tell)
+		final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return -1;
+	}
+}
@@ -0,0 +1,200 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* Tests of ServerEventDispatcher delivering to a FakeEventSink, one by one and in batches, and of what happens
+* when its ring buffer is full.
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class ServerEventDispatcherTest
+{
+	private final static int CAPACITY = 8;
+	private final static String CLIP = "00:11:22:33:44:55";
+	private final static long LONG_WINDOW = 60000;		// Batch window no test waits for
+
+	private final List<String> overflows = new ArrayList<String>();
+	private FakeEventSink sink;
+	private ServerEventDispatcher dispatcher;
+
+	@Before
+	public void setUp()
+	{
+		sink = new FakeEventSink();
+		dispatcher = new ServerEventDispatcher(new ServerEventDispatcher.Encoder() {
+			@Override
+			public JSONObject encode(ServerEvent event) {
+				JSONObject object = new JSONObject();
+				try {
+					object.put("type", event.type);
+					object.put("level", event.level);
+				}
+				catch (JSONException e) {
+					throw new AssertionError(e);
+				}
+				return object;
+			}
+		}, CAPACITY);
+		dispatcher.setSink(sink);
+		dispatcher.setOverflowListener(new ServerEventDispatcher.OverflowListener() {
+			@Override
+			public void onEventDropped(int type, String device, long droppedEvents) {
+				synchronized (overflows) {
+					overflows.add(type + " " + device + " " + droppedEvents);
+				}
+			}
+		});
+	}
+
+	@After
+	public void tearDown()
+	{
+		dispatcher.stop();
+	}
+
+	@Test
+	public void deliversEventsInOrder() throws Exception
+	{
+		dispatcher.start();
+		for (int level = 0; level < 3; level++){
+			assertTrue(dispatcher.publish(ServerEvent.TYPE_WRITE_REQUEST, CLIP, 0, level));
+		}
+		assertTrue(sink.await(3, 5000));
+		final List<FakeEventSink.Message> messages = sink.getMessages();
+		for (int level = 0; level < 3; level++){
+			final JSONObject event = (JSONObject) messages.get(level).payload;
+			assertEquals(ServerEvent.TYPE_WRITE_REQUEST, event.getInt("type"));
+			assertEquals(level, event.getInt("level"));
+			assertFalse(messages.get(level).error);
+		}
+	}
+
+	/*
+	* Returns the alert levels of the events of a delivered batch.
+	*/
+	private static int[] levels(FakeEventSink.Message message) throws JSONException
+	{
+		final JSONArray batch = (JSONArray) message.payload;
+		final int[] levels = new int[batch.length()];
+		for (int i = 0; i < levels.length; i++){
+			levels[i] = batch.getJSONObject(i).getInt("level");
+		}
+		return levels;
+	}
+
+	@Test
+	public void fullBatchIsDeliveredBeforeTheWindowEnds() throws Exception
+	{
+		dispatcher.setBatching(LONG_WINDOW, 3, true);
+		dispatcher.start();
+		for (int i = 0; i < 7; i++){
+			assertTrue(dispatcher.publish(ServerEvent.TYPE_WRITE_REQUEST, CLIP, 0, i % 2));
+		}
+		assertTrue(sink.await(2, 5000));
+		Thread.sleep(50);	// The last event waits for the window
+		final List<FakeEventSink.Message> messages = sink.getMessages();
+		assertEquals(2, messages.size());
+		assertArrayEquals(new int[] {0, 1, 0}, levels(messages.get(0)));
+		assertArrayEquals(new int[] {1, 0, 1}, levels(messages.get(1)));
+		assertTrue(messages.get(0).keepCallback);
+	}
+
+	@Test
+	public void batchIsDeliveredWhenTheWindowEnds() throws Exception
+	{
+		final long window = 100;
+		dispatcher.setBatching(window, 32, true);
+		dispatcher.start();
+		final long start = System.nanoTime();
+		assertTrue(dispatcher.publish(ServerEvent.TYPE_WRITE_REQUEST, CLIP, 0, 0));
+		assertTrue(dispatcher.publish(ServerEvent.TYPE_WRITE_REQUEST, CLIP, 0, 1));
+		assertTrue(sink.await(1, 5000));
+		assertTrue((System.nanoTime() - start) / 1000000 >= window);
+		assertArrayEquals(new int[] {0, 1}, levels(sink.getMessages().get(0)));
+	}
+
+	@Test
+	public void highAlertFlushesTheBatchRightAway() throws Exception
+	{
+		dispatcher.setBatching(LONG_WINDOW, 32, true);
+		dispatcher.start();
+		assertTrue(dispatcher.publish(ServerEvent.TYPE_CONNECTED, CLIP, 23, 0));
+		assertTrue(dispatcher.publish(ServerEvent.TYPE_WRITE_REQUEST, CLIP, 0, ServerEvent.LEVEL_HIGH_ALERT));
+		assertTrue(sink.await(1, 5000));
+		assertArrayEquals(new int[] {0, ServerEvent.LEVEL_HIGH_ALERT}, levels(sink.getMessages().get(0)));
+	}
+
+	@Test
+	public void highAlertWaitsForTheWindowWithoutFlushOnHighAlert() throws Exception
+	{
+		dispatcher.setBatching(LONG_WINDOW, 32, false);
+		dispatcher.start();
+		assertTrue(dispatcher.publish(ServerEvent.TYPE_WRITE_REQUEST, CLIP, 0, ServerEvent.LEVEL_HIGH_ALERT));
+		assertFalse(sink.await(1, 200));
+		dispatcher.stop();	// Delivers the pending batch
+		assertTrue(sink.await(1, 5000));
+	}
+
+	@Test
+	public void errorsAreNotBatched() throws Exception
+	{
+		dispatcher.setBatching(LONG_WINDOW, 32, true);
+		dispatcher.start();
+		assertTrue(dispatcher.publish(ServerEvent.TYPE_WRITE_REQUEST, CLIP, 0, 1));
+		assertTrue(dispatcher.publish(ServerEvent.TYPE_CONNECTION_ERROR, CLIP, 8, 0));
+		assertTrue(sink.await(2, 5000));
+		final List<FakeEventSink.Message> messages = sink.getMessages();
+		assertArrayEquals(new int[] {1}, levels(messages.get(0)));	// The batch before the error
+		assertTrue(messages.get(1).error);
+		assertEquals(ServerEvent.TYPE_CONNECTION_ERROR, ((JSONObject) messages.get(1).payload).getInt("type"));
+	}
+
+	@Test
+	public void fullRingCountsDroppedAlarmsAndReportsTheFirstDrop() throws Exception
+	{
+		// Without the drainer nothing leaves the ring
+		for (int i = 0; i < CAPACITY; i++){
+			assertTrue(dispatcher.publish(ServerEvent.TYPE_CONNECTED, CLIP, 23, 0));
+		}
+		assertFalse(dispatcher.publish(ServerEvent.TYPE_WRITE_REQUEST, CLIP, 0, 2));
+		assertFalse(dispatcher.publish(ServerEvent.TYPE_WRITE_REQUEST, CLIP, 0, 2));
+		assertFalse(dispatcher.publish(ServerEvent.TYPE_DISCONNECTED, CLIP, 0, 0));
+		assertEquals(3, dispatcher.getDroppedEvents());
+		assertEquals(2, dispatcher.getDroppedAlarms());
+		assertEquals(1, overflows.size());
+		assertEquals(ServerEvent.TYPE_WRITE_REQUEST + " " + CLIP + " 1", overflows.get(0));
+
+		// Once the ring has drained and taken an event again, the next overflow is reported again
+		dispatcher.start();
+		assertTrue(sink.await(CAPACITY, 5000));
+		assertTrue(dispatcher.publish(ServerEvent.TYPE_CONNECTED, CLIP, 23, 0));
+		assertTrue(sink.await(CAPACITY + 1, 5000));
+		dispatcher.stop();
+		while (dispatcher.publish(ServerEvent.TYPE_WRITE_REQUEST, CLIP, 0, 1)){
+			// Fill the ring again (the drainer may still take some events before it exits)
+		}
+		assertEquals(4, dispatcher.getDroppedEvents());
+		assertEquals(3, dispatcher.getDroppedAlarms());
+		synchronized (overflows) {
+			assertEquals(2, overflows.size());
+			assertEquals(ServerEvent.TYPE_WRITE_REQUEST + " " + CLIP + " 4", overflows.get(1));
+		}
+	}
+}
@@ -0,0 +1,60 @@
+/*
+* Copyright (C) 2015-2018 Sensible Solutions Sweden AB
+*
+* Clock that only moves when told to.
+*
+* Stands in for both the monotonic clock (alarm filters, wake locks) and the wall clock (alarm history and
+* statistics) when the alarm core is run on a plain JVM, so debounce intervals, burst windows and hour buckets
+* can be stepped through without waiting. The wall clock can also be set back, as on a device.
+*
+*/
+
+package com.sensiblesolutions.gattserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+public class VirtualClock implements MonotonicClock, WallClock
+{
+	private final AtomicLong elapsed;
+	private final AtomicLong wallOffset;
+
+	/**
+	 * Creates a clock at the elapsed time 0 and the wall clock time (milliseconds since epoch).
+	*/
+	public VirtualClock(long wallTime)
+	{
+		this.elapsed = new AtomicLong(0);
+		this.wallOffset = new AtomicLong(wallTime);
+	}
+
+	@Override
+	public long now()
+	{
+		return elapsed.get();
+	}
+
+	@Override
+	public long currentTimeMillis()
+	{
+		return elapsed.get() + wallOffset.get();
+	}
+
+	/**
+	 * Moves both clocks forward by the milliseconds.
+	*/
+	public void advance(long millis)
+	{
+		if (millis < 0)
+			throw new IllegalArgumentException("A monotonic clock cannot go backwards");
+		elapsed.addAndGet(millis);
+	}
+
+	/**
+	 * Sets the wall clock time (milliseconds since epoch), the monotonic clock is not affected.
+	*/
+	public void setWallTime(long wallTime)
+	{
+		wallOffset.set(wallTime - elapsed.get());
+	}
+}
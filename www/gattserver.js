@@ -1,6 +1,35 @@
 var gattServerName = "GattServerPlugin";
+// Binary server event record (eventEncoding "binary"), see BinaryEventEncoder.java
+var EVENT_RECORD_SIZE = 16;
+var eventTypes = {
+	1: "serviceAdded",
+	2: "serviceAlreadyProvided",
+	3: "serviceError",
+	4: "connected",
+	5: "disconnected",
+	6: "connectionError",
+	7: "characteristicWriteRequest",
+	8: "writeRequestNotSupported",
+	10: "mtuChanged"
+};
 var gattserver = {
 	startServer: function(successCallback, errorCallback, params) {
+		// Note: JS object parameter (params), optional. Android only:
+		// services: array of GATT service definitions, e.g.
+		//           [{uuid: "1802", characteristics: [{uuid: "2a06", properties: ["writeWithoutResponse"], permissions: ["write"], value: [0]}]}]
+		//           (default is the Immediate Alert service only, see GattAttributeTable.java). Characteristics with
+		//           the notify or indicate property get a CCCD (2902) unless they declare one. Calling startServer
+		//           again with other definitions while the server is running replaces the services that changed.
+		//           If a service could not be added, errorCallback is called with {error: "serviceAdded", message,
+		//           service: UUID, gattStatus, attempts}
+		// eventDelivery: "single" (default) calls successCallback once per event object,
+		//                "batch" calls successCallback with an array of event objects
+		// batchWindow: time in milliseconds the events are collected before delivered (default 16)
+		// batchMaxEvents: maximum number of events in a batch (default 32)
+		// batchFlushOnHighAlert: deliver a batch right away on a High Alert (default true)
+		// eventEncoding: "json" (default) or "binary", which calls the callbacks with an ArrayBuffer of
+		//                event records (decode with gattserver.decodeEvents). The serviceAdded error is still
+		//                a JSON object (it carries a service UUID, not a device address)
 		cordova.exec(successCallback, errorCallback, gattServerName, "startServer", [params]); 
 	},
 	resetAlarm: function(successCallback) {
@@ -43,12 +72,129 @@ var gattserver = {
 		// Note: JS object parameter (params)
 		cordova.exec(successCallback, successCallback, gattServerName, "playSound", [params]);
 	},
+	getAudioStats: function(successCallback) {
+		// Calls successCallback with the alarm sound counters and latencies from alarm to playback in microseconds:
+		// {plays, failures, lastLatency, averageLatency, maxLatency}
+		// Android only
+		cordova.exec(successCallback, successCallback, gattServerName, "getAudioStats", []);
+	},
+	getWakeLockStats: function(successCallback, params) {
+		// Note: JS object parameter (params), optional: {reset: true to zero the counters after returning them}
+		// Calls successCallback with the wake lock counters (times in milliseconds):
+		// {held, acquisitions, heldTime, longestHold, timeouts (holds ended by the safety timeout)}
+		// Android only
+		cordova.exec(successCallback, successCallback, gattServerName, "getWakeLockStats", [params]);
+	},
 	resetSound: function(successCallback, params) {
 		// Note: JS object parameter (params)
 		cordova.exec(successCallback, successCallback, gattServerName, "resetSound", [params]);
 	},
 	setApplicationBadgeNumber: function(successCallback, badgeNumber) {
 		cordova.exec(successCallback, successCallback, gattServerName, "setApplicationBadgeNumber", [badgeNumber]);
-	}	
+	},
+	notify: function(successCallback, errorCallback, notifications) {
+		// Note: JS object parameter (notifications), one object or an array of objects:
+		// {device: address (optional, all subscribed clients if not given), service: UUID (optional),
+		//  characteristic: UUID, value: array of bytes or hex string}
+		// A notification is only queued to clients subscribed to the characteristic, and its value must fit in
+		// MTU-3 bytes of the connection. Calls successCallback with the outcome of the call {queued, rejected,
+		// unknownCharacteristic, notConnected, notSubscribed, queueFull, tooLong} and the send queue statistics
+		// {queueDepth, sent, failed, sentBytes, throughput}
+		// Android only
+		cordova.exec(successCallback, errorCallback, gattServerName, "notify", [notifications]);
+	},
+	getConnections: function(successCallback, errorCallback) {
+		// Calls successCallback with an array of the connected clients:
+		// {device: address, connectTime: wall clock time in milliseconds, connectedTime: milliseconds connected,
+		//  mtu: ATT MTU, txPhy: transmitter PHY, rxPhy: receiver PHY (1 = LE 1M, 2 = LE 2M, 3 = LE Coded),
+		//  readRequests, writeRequests, notificationsSent: counters, alarming: alarmed since connected or resetAlarm}
+		// Android only
+		cordova.exec(successCallback, errorCallback, gattServerName, "getConnections", []);
+	},
+	setAlarmFilter: function(successCallback, errorCallback, params) {
+		// Note: JS object parameter (params), parameters not given keep their current values:
+		// {device: address (optional, all clips if not given), reset: true to use the parameters for all clips for the device,
+		//  toggleDecode: ignore connect-time writes and take toggled levels as alarms (default true),
+		//  minLevel: minimum alert level of an alarm (default 0),
+		//  debounceInterval: milliseconds of silence required since the previous write (default 3000, 0 = off),
+		//  burstWindow: milliseconds of a burst window (default 0 = off), burstMaxAlarms: alarms let through per burst window
+		//  (default 1, must be at least 1 when a burst window is set)}
+		// Calls successCallback with the parameters in use. Android only
+		cordova.exec(successCallback, errorCallback, gattServerName, "setAlarmFilter", [params]);
+	},
+	setValue: function(successCallback, errorCallback, values) {
+		// Note: JS object parameter (values), one object or an array of objects:
+		// {service: UUID (optional), characteristic: UUID, descriptor: UUID (optional), value: array of bytes or hex string}
+		// Sets the values the server answers read requests with (reads are not forwarded to JS)
+		// Android only
+		cordova.exec(successCallback, errorCallback, gattServerName, "setValue", [values]);
+	},
+	getQueueStats: function(successCallback, params) {
+		// Note: JS object parameter (params), optional: {reset: true to zero the notification counters after returning them}
+		// Calls successCallback with the plugin state queue depth {queued, maxQueued}, the number of server events
+		// lost because the server event queue was full {droppedEvents, droppedAlarms}, per message type
+		// (connectionState, characteristicWrite, action etc.), {count, failures, averageLatency, maxLatency}
+		// where the latencies are the times in microseconds messages waited in the queue, and the notification
+		// send queues {notifications: {queueDepth, queued, rejected, tooLong, sent, failed, timedOut, sentBytes, throughput}},
+		// the prepared (long) writes {preparedWrites: {allocatedBuffers, committedWrites, committedBytes, discardedWrites}}
+		// and, per characteristic handler, {handlers: [{service, characteristic, requests, averageLatency, maxLatency}]}
+		// where the latencies are the times in microseconds spent handling a request
+		// Android only
+		cordova.exec(successCallback, successCallback, gattServerName, "getQueueStats", [params]);
+	},
+	getMetrics: function(successCallback, params) {
+		// Note: JS object parameter (params), optional: {reset: true to zero the metrics after returning them}
+		// Calls successCallback with the latencies in microseconds from an alarm write being received to each stage:
+		// queue (taken from the plugin state queue), filter (alarm filters decided), audio (sound started),
+		// notification (notification posted) and callback (alarm event sent to the server callback), each
+		// {count, min, mean, p50, p90, p99, p999, max}
+		// Android only
+		cordova.exec(successCallback, successCallback, gattServerName, "getMetrics", [params]);
+	},
+	queryAlarmLog: function(successCallback, params) {
+		// Note: JS object parameter (params), optional: {from: oldest alarm time, to: newest alarm time (milliseconds
+		// since epoch), device: clip address (all clips if not given), pageSize: maximum number of alarms per page
+		// (default 100), pages: maximum number of pages (all if not given), cursor: continue a previous query}
+		// Calls successCallback once per page with {alarms: [{timestamp, device, level, outcome, latency}], cursor, done},
+		// oldest first. The outcome is "played", "notified", "silent", "failed" or "suppressed" (dropped by the alarm
+		// filters) and latency the time in microseconds from the alarm write being received. Pass the cursor of the
+		// last page to continue (it is missing when there are no more alarms). Alarms are only logged if the log
+		// app setting is on
+		// Android only
+		cordova.exec(successCallback, successCallback, gattServerName, "queryAlarmLog", [params]);
+	},
+	getAlarmStats: function(successCallback, params) {
+		// Note: JS object parameter (params), optional: {device: clip address (all clips if not given), hours: number
+		// of hourly counts (default 24, at most 168), reset: true to zero the statistics after returning them}
+		// Calls successCallback with {firstHour, devices: [{device, alarms, bounces, firstAlarm, lastAlarm, hourlyAlarms,
+		// hourlyBounces}]}. The hourly counts are arrays, oldest hour first, starting at firstHour (milliseconds since
+		// epoch). Bounces are writes dropped by the alarm debounce. Kept up to date as alarms arrive, so it is cheap to call
+		// Android only
+		cordova.exec(successCallback, successCallback, gattServerName, "getAlarmStats", [params]);
+	},
+	decodeEvents: function(buffer) {
+		// Decodes an ArrayBuffer of binary server event records into an array of event objects
+		var view = new DataView(buffer);
+		var events = [];
+		for (var offset = 0; offset + EVENT_RECORD_SIZE <= buffer.byteLength; offset += EVENT_RECORD_SIZE) {
+			var type = view.getUint8(offset);
+			var device = [];
+			var hasDevice = false;
+			for (var i = 0; i < 6; i++) {
+				var b = view.getUint8(offset + 4 + i);
+				hasDevice = hasDevice || (b !== 0);
+				device.push((b < 16 ? "0" : "") + b.toString(16).toUpperCase());
+			}
+			events.push({
+				"type": type,
+				"event": eventTypes[type],
+				"level": view.getUint8(offset + 1),
+				"status": view.getUint16(offset + 2, true),
+				"device": hasDevice ? device.join(":") : null,
+				"timestamp": view.getUint32(offset + 10, true) + view.getUint16(offset + 14, true) * 4294967296
+			});
+		}
+		return events;
+	}
 }
 module.exports = gattserver;